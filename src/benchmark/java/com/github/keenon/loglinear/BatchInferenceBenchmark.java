@@ -0,0 +1,109 @@
+package com.github.keenon.loglinear;
+
+import com.github.keenon.loglinear.inference.BatchInference;
+import com.github.keenon.loglinear.inference.CliqueTree;
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measures the throughput of BatchInference against the thread count, using linear chain CRFs with CoNLL-like shapes
+ * (sentence lengths 5-40, 9 tags, sparse features). The serial baseline is the old pattern of calling
+ * new CliqueTree(model, weights).calculateMarginals() per sentence.
+ */
+public class BatchInferenceBenchmark {
+    private static final int NUM_MODELS = 2000;
+    private static final int NUM_TAGS = 9;
+    private static final int NUM_FEATURES = 1000;
+
+    public static void main(String[] args) {
+        Random r = new Random(10101L);
+
+        ConcatVector weights = new ConcatVector(2);
+        double[] emission = new double[NUM_FEATURES * NUM_TAGS];
+        for (int i = 0; i < emission.length; i++) emission[i] = r.nextGaussian();
+        double[] transition = new double[NUM_TAGS * NUM_TAGS];
+        for (int i = 0; i < transition.length; i++) transition[i] = r.nextGaussian();
+        weights.setDenseComponent(0, emission);
+        weights.setDenseComponent(1, transition);
+
+        List<GraphicalModel> models = new ArrayList<>();
+        for (int i = 0; i < NUM_MODELS; i++) {
+            models.add(generateChain(r, 5 + r.nextInt(36)));
+        }
+
+        int maxThreads = Math.max(8, Runtime.getRuntime().availableProcessors());
+        System.err.println("Available processors: " + Runtime.getRuntime().availableProcessors());
+
+        // Warm up the JIT
+
+        for (int i = 0; i < 3; i++) {
+            serial(models, weights);
+            batch(models, weights, 2);
+        }
+
+        long serialTime = serial(models, weights);
+        System.err.println(String.format("serial new CliqueTree() per model: %.1f models/sec",
+                NUM_MODELS * 1.0e9 / serialTime));
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            long batchTime = Long.MAX_VALUE;
+            for (int i = 0; i < 3; i++) {
+                batchTime = Math.min(batchTime, batch(models, weights, threads));
+            }
+            System.err.println(String.format("BatchInference, %d threads: %.1f models/sec (%.2fx serial)",
+                    threads, NUM_MODELS * 1.0e9 / batchTime, (double) serialTime / batchTime));
+        }
+    }
+
+    private static long serial(List<GraphicalModel> models, ConcatVector weights) {
+        long start = System.nanoTime();
+        for (GraphicalModel model : models) {
+            new CliqueTree(model, weights).calculateMarginals();
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static long batch(List<GraphicalModel> models, ConcatVector weights, int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            BatchInference batch = new BatchInference(weights, pool);
+            long start = System.nanoTime();
+            batch.calculateMarginals(models);
+            return System.nanoTime() - start;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private static GraphicalModel generateChain(Random r, int length) {
+        GraphicalModel model = new GraphicalModel();
+        for (int i = 0; i < length; i++) {
+            int[] features = new int[3];
+            for (int j = 0; j < features.length; j++) features[j] = r.nextInt(NUM_FEATURES);
+            model.addFactor(new int[]{i}, new int[]{NUM_TAGS}, assignment -> {
+                ConcatVector v = new ConcatVector(2);
+                int[] indices = new int[features.length];
+                double[] values = new double[features.length];
+                for (int j = 0; j < features.length; j++) {
+                    indices[j] = features[j] * NUM_TAGS + assignment[0];
+                    values[j] = 1.0;
+                }
+                v.setSparseComponent(0, indices, values);
+                return v;
+            });
+            if (i > 0) {
+                model.addFactor(new int[]{i - 1, i}, new int[]{NUM_TAGS, NUM_TAGS}, assignment -> {
+                    ConcatVector v = new ConcatVector(2);
+                    v.setSparseComponent(1, assignment[0] * NUM_TAGS + assignment[1], 1.0);
+                    return v;
+                });
+            }
+        }
+        return model;
+    }
+}
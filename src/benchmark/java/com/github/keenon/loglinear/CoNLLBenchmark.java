@@ -7,6 +7,7 @@ import com.github.keenon.loglinear.learning.BacktrackingAdaGradOptimizer;
 import com.github.keenon.loglinear.model.ConcatVector;
 import com.github.keenon.loglinear.model.ConcatVectorNamespace;
 import com.github.keenon.loglinear.model.GraphicalModel;
+import com.github.keenon.loglinear.storage.FeaturizationPipeline;
 
 import java.io.*;
 import java.util.*;
@@ -54,14 +55,9 @@ public class CoNLLBenchmark {
 
         ConcatVectorNamespace namespace = new ConcatVectorNamespace();
 
-        int trainSize = train.size();
-        GraphicalModel[] trainingSet = new GraphicalModel[trainSize];
-        for (int i = 0; i < trainSize; i++) {
-            if (i % 10 == 0) {
-                System.err.println(i+"/"+trainSize);
-            }
-            trainingSet[i] = generateSentenceModel(namespace, train.get(i), tags);
-        }
+        FeaturizationPipeline<CoNLLSentence> pipeline = new FeaturizationPipeline<>(sentence -> generateSentenceModel(namespace, sentence, tags));
+        GraphicalModel[] trainingSet = pipeline.buildBatch(train.iterator()).toArray(new GraphicalModel[train.size()]);
+        System.err.println(pipeline.getStats());
 
         System.err.println("Training system...");
 
@@ -0,0 +1,86 @@
+package com.github.keenon.loglinear;
+
+import com.github.keenon.loglinear.model.ConcatVectorNamespace;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Compares a ConcatVectorNamespace before and after freeze(), on a namespace about the size of a real NER model's: a
+ * few dozen sparse features, with a million values between them. Reports the heap each one holds on to, and the time
+ * per lookup, along with the time to load the frozen namespace back from disk with mapBinary().
+ */
+public class FrozenNamespaceBenchmark {
+    private static final int NUM_FEATURES = 40;
+    private static final int VALUES_PER_FEATURE = 25000;
+    private static final int NUM_LOOKUPS = 2000000;
+
+    public static void main(String[] args) throws IOException {
+        Random r = new Random(42);
+        // Fresh strings for the lookups, so they don't share objects with the keys in the namespace
+        String[] queryFeatures = new String[NUM_LOOKUPS];
+        String[] queryValues = new String[NUM_LOOKUPS];
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            queryFeatures[i] = featureName(r.nextInt(NUM_FEATURES));
+            queryValues[i] = valueName(r.nextInt(VALUES_PER_FEATURE));
+        }
+
+        long baseline = usedHeap();
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        for (int f = 0; f < NUM_FEATURES; f++) {
+            for (int v = 0; v < VALUES_PER_FEATURE; v++) {
+                namespace.ensureSparseFeature(featureName(f), valueName(v));
+            }
+        }
+        System.err.println("maps: " + ((usedHeap() - baseline) >> 20) + "MB");
+        time("maps", namespace, queryFeatures, queryValues);
+
+        namespace.freeze();
+        System.err.println("frozen: " + ((usedHeap() - baseline) >> 20) + "MB");
+        time("frozen", namespace, queryFeatures, queryValues);
+
+        File file = File.createTempFile("namespace", ".frozen");
+        file.deleteOnExit();
+        try (OutputStream stream = new FileOutputStream(file)) {
+            namespace.writeBinary(stream);
+        }
+        System.err.println("frozen file: " + (file.length() >> 20) + "MB");
+        //noinspection UnusedAssignment
+        namespace = null;
+
+        long start = System.nanoTime();
+        ConcatVectorNamespace mapped = ConcatVectorNamespace.mapBinary(file);
+        System.err.println("mapBinary: " + ((System.nanoTime() - start) / 1000) + "us");
+        System.err.println("mapped: " + ((usedHeap() - baseline) >> 20) + "MB on heap");
+        time("mapped", mapped, queryFeatures, queryValues);
+    }
+
+    private static void time(String name, ConcatVectorNamespace namespace, String[] queryFeatures, String[] queryValues) {
+        for (int trial = 0; trial < 5; trial++) {
+            long start = System.nanoTime();
+            long sum = 0;
+            for (int i = 0; i < queryFeatures.length; i++) {
+                sum += namespace.ensureSparseFeature(queryFeatures[i], queryValues[i]);
+            }
+            long duration = System.nanoTime() - start;
+            // Print the sum, so the JIT can't skip the lookups
+            System.err.println("\t" + name + ": " + (duration / queryFeatures.length) + "ns per lookup (" + sum + ")");
+        }
+    }
+
+    private static String featureName(int feature) {
+        return "feature:" + feature;
+    }
+
+    private static String valueName(int value) {
+        return "w" + (value * 2654435761L % 1000000007L);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) System.gc();
+        return Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+    }
+}
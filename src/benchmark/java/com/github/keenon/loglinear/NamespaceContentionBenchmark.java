@@ -0,0 +1,161 @@
+package com.github.keenon.loglinear;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.ConcatVectorNamespace;
+import com.github.keenon.loglinear.model.GraphicalModel;
+import com.github.keenon.loglinear.storage.FeaturizationPipeline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Function;
+
+/**
+ * Hammers a ConcatVectorNamespace from 32 featurizer threads at once, through a FeaturizationPipeline, to see how
+ * interning holds up under contention. The records are synthetic sentences with a Zipfian vocabulary, like real text,
+ * so most lookups hit features that already exist, and a long tail keeps adding new ones.
+ *
+ * Each pass is timed four ways: a fresh namespace behind one global lock (which is how every new feature used to be
+ * added), a fresh namespace (interning), the same namespace again (pure lookups), and again after freeze().
+ */
+public class NamespaceContentionBenchmark {
+    private static final int NUM_THREADS = 32;
+    private static final int NUM_SENTENCES = 20000;
+    private static final int VOCABULARY_SIZE = 200000;
+    private static final int NUM_TAGS = 9;
+
+    /**
+     * The part of the namespace the featurizer uses, so it can be swapped for a globally locked version.
+     */
+    private interface Interner {
+        int feature(String featureName);
+        int sparseFeature(String featureName, String value);
+    }
+
+    public static void main(String[] args) {
+        Random r = new Random(42);
+        double[] cumulative = zipf(VOCABULARY_SIZE);
+        List<String[]> sentences = new ArrayList<>();
+        for (int i = 0; i < NUM_SENTENCES; i++) {
+            String[] sentence = new String[5 + r.nextInt(30)];
+            for (int j = 0; j < sentence.length; j++) sentence[j] = "w" + sample(r, cumulative);
+            sentences.add(sentence);
+        }
+
+        for (int trial = 0; trial < 5; trial++) {
+            System.err.println("Trial " + trial);
+
+            ConcatVectorNamespace locked = new ConcatVectorNamespace();
+            Object lock = new Object();
+            run("global lock", sentences, new Interner() {
+                @Override
+                public int feature(String featureName) {
+                    synchronized (lock) {
+                        return locked.ensureFeature(featureName);
+                    }
+                }
+
+                @Override
+                public int sparseFeature(String featureName, String value) {
+                    synchronized (lock) {
+                        return locked.ensureSparseFeature(featureName, value);
+                    }
+                }
+            });
+
+            ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+            Interner interner = new Interner() {
+                @Override
+                public int feature(String featureName) {
+                    return namespace.ensureFeature(featureName);
+                }
+
+                @Override
+                public int sparseFeature(String featureName, String value) {
+                    return namespace.ensureSparseFeature(featureName, value);
+                }
+            };
+            run("interning", sentences, interner);
+            run("lookups", sentences, interner);
+            namespace.freeze();
+            run("frozen lookups", sentences, interner);
+        }
+    }
+
+    private static void run(String name, List<String[]> sentences, Interner interner) {
+        FeaturizationPipeline<String[]> pipeline = new FeaturizationPipeline<>(featurizer(interner), NUM_THREADS, 4 * NUM_THREADS);
+        long start = System.nanoTime();
+        // Stream rather than collect a batch, so the models can be thrown away as soon as they're built
+        long numModels = pipeline.stream(sentences.iterator()).count();
+        long duration = System.nanoTime() - start;
+        System.err.println("\t" + name + ": " + numModels + " models in " + (duration / 1000000) + "ms");
+        System.err.println("\t\t" + pipeline.getStats().toString().replace("\n", "\n\t\t"));
+    }
+
+    /**
+     * A linear chain CRF, with a handful of sparse features per token. The features are interned up front, while the
+     * model is built, rather than lazily inside the factors, so that all the interning happens on the pipeline.
+     */
+    private static Function<String[], GraphicalModel> featurizer(Interner interner) {
+        return sentence -> {
+            GraphicalModel model = new GraphicalModel();
+            for (int i = 0; i < sentence.length; i++) {
+                String word = sentence[i];
+                String[][] features = new String[][]{
+                        {"word", word},
+                        {"prefix", word.substring(0, Math.min(3, word.length()))},
+                        {"suffix", word.substring(Math.max(0, word.length() - 3))},
+                        {"left", i > 0 ? sentence[i - 1] : "^"},
+                        {"right", i < sentence.length - 1 ? sentence[i + 1] : "$"},
+                };
+                int[][] components = new int[NUM_TAGS][features.length];
+                int[][] indices = new int[NUM_TAGS][features.length];
+                for (int tag = 0; tag < NUM_TAGS; tag++) {
+                    for (int f = 0; f < features.length; f++) {
+                        String featureName = feature(features[f][0], tag);
+                        components[tag][f] = interner.feature(featureName);
+                        indices[tag][f] = interner.sparseFeature(featureName, features[f][1]);
+                    }
+                }
+                model.addFactor(new int[]{i}, new int[]{NUM_TAGS}, assignment -> {
+                    ConcatVector vector = new ConcatVector(0);
+                    for (int f = 0; f < features.length; f++) {
+                        vector.setSparseComponent(components[assignment[0]][f], indices[assignment[0]][f], 1.0);
+                    }
+                    return vector;
+                });
+
+                if (i > 0) {
+                    int transition = interner.feature("transition");
+                    model.addFactor(new int[]{i - 1, i}, new int[]{NUM_TAGS, NUM_TAGS}, assignment -> {
+                        ConcatVector vector = new ConcatVector(0);
+                        vector.setSparseComponent(transition, assignment[0] * NUM_TAGS + assignment[1], 1.0);
+                        return vector;
+                    });
+                }
+            }
+            return model;
+        };
+    }
+
+    private static String feature(String name, int tag) {
+        return name + ":" + tag;
+    }
+
+    private static double[] zipf(int size) {
+        double[] cumulative = new double[size];
+        double total = 0.0;
+        for (int i = 0; i < size; i++) {
+            total += 1.0 / (i + 1);
+            cumulative[i] = total;
+        }
+        for (int i = 0; i < size; i++) cumulative[i] /= total;
+        return cumulative;
+    }
+
+    private static int sample(Random r, double[] cumulative) {
+        int index = Arrays.binarySearch(cumulative, r.nextDouble());
+        return index >= 0 ? index : Math.min(-index - 1, cumulative.length - 1);
+    }
+}
@@ -0,0 +1,75 @@
+package com.github.keenon.loglinear;
+
+import com.github.keenon.loglinear.model.ConcatVectorNamespace;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Times loading a big namespace (a million sparse values) at startup, from the proto written by writeToStream(), and
+ * from the binary format written by writeBinary(), both memory-mapped and read onto the heap. Each load is followed by
+ * a batch of lookups, since a mapped namespace pays for paging in its tables as they're first touched, rather than up
+ * front. (Java serialization isn't an option: the HPPC maps behind the namespace aren't Serializable.)
+ */
+public class NamespaceLoadBenchmark {
+    private static final int NUM_FEATURES = 40;
+    private static final int VALUES_PER_FEATURE = 25000;
+    private static final int NUM_LOOKUPS = 100000;
+
+    private interface Loader {
+        ConcatVectorNamespace load() throws IOException;
+    }
+
+    public static void main(String[] args) throws IOException {
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        for (int f = 0; f < NUM_FEATURES; f++) {
+            for (int v = 0; v < VALUES_PER_FEATURE; v++) {
+                namespace.ensureSparseFeature("feature:" + f, "w" + v);
+            }
+        }
+
+        File proto = File.createTempFile("namespace", ".proto");
+        proto.deleteOnExit();
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(proto))) {
+            namespace.writeToStream(stream);
+        }
+        File binary = File.createTempFile("namespace", ".bin");
+        binary.deleteOnExit();
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(binary))) {
+            namespace.writeBinary(stream);
+        }
+        System.err.println("proto: " + (proto.length() >> 20) + "MB, binary: " + (binary.length() >> 20) + "MB");
+        //noinspection UnusedAssignment
+        namespace = null;
+
+        for (int trial = 0; trial < 5; trial++) {
+            System.err.println("Trial " + trial);
+            run("proto", () -> {
+                try (InputStream stream = new BufferedInputStream(new FileInputStream(proto))) {
+                    return ConcatVectorNamespace.readFromStream(stream);
+                }
+            });
+            run("binary, read", () -> ConcatVectorNamespace.readBinary(ByteBuffer.wrap(Files.readAllBytes(binary.toPath()))));
+            run("binary, mapped", () -> ConcatVectorNamespace.mapBinary(binary));
+        }
+    }
+
+    private static void run(String name, Loader loader) throws IOException {
+        System.gc();
+        long start = System.nanoTime();
+        ConcatVectorNamespace namespace = loader.load();
+        long loaded = System.nanoTime();
+
+        Random r = new Random(42);
+        long sum = 0;
+        for (int i = 0; i < NUM_LOOKUPS; i++) {
+            sum += namespace.ensureSparseFeature("feature:" + r.nextInt(NUM_FEATURES), "w" + r.nextInt(VALUES_PER_FEATURE));
+        }
+        long done = System.nanoTime();
+        // Print the sum, so the JIT can't skip the lookups
+        System.err.println("\t" + name + ": loaded in " + ((loaded - start) / 1000000) + "ms, then " + NUM_LOOKUPS +
+                " lookups in " + ((done - loaded) / 1000000) + "ms (" + sum + ")");
+    }
+}
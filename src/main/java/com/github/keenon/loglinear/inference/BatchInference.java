@@ -0,0 +1,178 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Runs inference over a whole batch of models at once, which is the common case in production (one model per sentence).
+ * Calling new CliqueTree(model, weights) per model deep-clones the weights every time, and leaves the threading to the
+ * caller. This takes a single read-only snapshot of the weights up front, and shares it across every model in every
+ * batch.
+ * <p>
+ * Models are grouped by shape before being cut into chunks, so that models with the same structure are solved back to
+ * back on the same thread, and hit the shape-keyed layout and junction tree caches while they're hot. The chunks are
+ * small relative to the number of threads, so that a work-stealing executor (the default is the common ForkJoinPool)
+ * can even out models of very different sizes.
+ */
+public class BatchInference {
+  // The number of chunks we aim to give each thread, so that there's always something to steal
+  private static final int CHUNKS_PER_THREAD = 8;
+
+  private final ConcatVector weights;
+  private final ExecutorService executor;
+  private final int parallelism;
+
+  /**
+   * Creates a BatchInference that runs on the common ForkJoinPool.
+   *
+   * @param weights the weights to use for every model. This is cloned once, so later changes to the weights are not
+   *                reflected here.
+   */
+  public BatchInference(ConcatVector weights) {
+    this(weights, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Creates a BatchInference that runs on the given executor. A ForkJoinPool is recommended, since it steals work.
+   *
+   * @param weights  the weights to use for every model. This is cloned once, so later changes to the weights are not
+   *                 reflected here.
+   * @param executor the executor to run inference on. It isn't shut down by this class.
+   */
+  public BatchInference(ConcatVector weights, ExecutorService executor) {
+    this.weights = weights.deepClone();
+    this.executor = executor;
+    if (executor instanceof ForkJoinPool) {
+      this.parallelism = ((ForkJoinPool) executor).getParallelism();
+    } else if (executor instanceof ThreadPoolExecutor) {
+      this.parallelism = ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+    } else {
+      this.parallelism = Runtime.getRuntime().availableProcessors();
+    }
+  }
+
+  /**
+   * Calculates marginals for every model in the batch.
+   *
+   * @param models the models to solve
+   * @return the results, one-to-one with the models
+   */
+  public List<CliqueTree.MarginalResult> calculateMarginals(List<GraphicalModel> models) {
+    return map(models, CliqueTree::calculateMarginals);
+  }
+
+  /**
+   * Calculates singleton marginals for every model in the batch, skipping joint marginals and partition functions.
+   *
+   * @param models the models to solve
+   * @return the marginals, one-to-one with the models
+   */
+  public List<double[][]> calculateMarginalsJustSingletons(List<GraphicalModel> models) {
+    return map(models, CliqueTree::calculateMarginalsJustSingletons);
+  }
+
+  /**
+   * Calculates the MAP assignment for every model in the batch.
+   *
+   * @param models the models to solve
+   * @return the assignments, one-to-one with the models
+   */
+  public List<int[]> calculateMAP(List<GraphicalModel> models) {
+    return map(models, CliqueTree::calculateMAP);
+  }
+
+  /**
+   * Runs an arbitrary inference call against a CliqueTree for every model in the batch, sharing the weights snapshot.
+   *
+   * @param models    the models to solve
+   * @param inference the call to make on each model's CliqueTree
+   * @param <T>       the type of result
+   * @return the results, one-to-one with the models
+   */
+  public <T> List<T> map(List<GraphicalModel> models, Function<CliqueTree, T> inference) {
+    GraphicalModel[] modelArray = models.toArray(new GraphicalModel[models.size()]);
+    Object[] results = new Object[modelArray.length];
+
+    int[] order = groupByShape(modelArray);
+    int chunkSize = Math.max(1, modelArray.length / (parallelism * CHUNKS_PER_THREAD));
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (int start = 0; start < order.length; start += chunkSize) {
+      final int chunkStart = start;
+      final int chunkEnd = Math.min(order.length, start + chunkSize);
+      futures.add(executor.submit(() -> {
+        // The chunk's trees run one after another, so they can all run compiled programs in the same scratch space
+        InferenceProgram.Workspace workspace = new InferenceProgram.Workspace();
+        for (int i = chunkStart; i < chunkEnd; i++) {
+          int index = order[i];
+          CliqueTree tree = new CliqueTree(modelArray[index], weights, false);
+          tree.programWorkspace = workspace;
+          results[index] = inference.apply(tree);
+          // The tree may outlive this chunk, so it gets a workspace of its own if it's ever used again
+          tree.programWorkspace = null;
+        }
+      }));
+    }
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for batch inference", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        throw new IllegalStateException("Batch inference failed", e.getCause());
+      }
+    }
+
+    List<T> list = new ArrayList<>(results.length);
+    for (Object o : results) {
+      @SuppressWarnings("unchecked")
+      T t = (T) o;
+      list.add(t);
+    }
+    return list;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * @return the indices of the models, arranged so that models with the same shape are next to each other
+   */
+  private static int[] groupByShape(GraphicalModel[] models) {
+    long[] shapes = new long[models.length];
+    for (int i = 0; i < models.length; i++) {
+      shapes[i] = shapeFingerprint(models[i]);
+    }
+    Integer[] order = new Integer[models.length];
+    for (int i = 0; i < order.length; i++) order[i] = i;
+    Arrays.sort(order, (a, b) -> shapes[a] != shapes[b] ? Long.compare(shapes[a], shapes[b]) : Integer.compare(a, b));
+
+    int[] result = new int[order.length];
+    for (int i = 0; i < order.length; i++) result[i] = order[i];
+    return result;
+  }
+
+  /**
+   * A cheap, order-independent hash of the scopes and sizes of a model's factors. Collisions only cost us some cache
+   * locality, never correctness.
+   */
+  private static long shapeFingerprint(GraphicalModel model) {
+    long fingerprint = 0;
+    for (GraphicalModel.Factor f : model.factors) {
+      long factorHash = 31L * Arrays.hashCode(f.neigborIndices) + Arrays.hashCode(f.getDimensions());
+      // Mix each factor before summing, so that the sum doesn't depend on factor order
+      factorHash *= 0x9E3779B97F4A7C15L;
+      factorHash ^= (factorHash >>> 32);
+      fingerprint += factorHash;
+    }
+    return fingerprint;
+  }
+}
@@ -0,0 +1,255 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.*;
+
+/**
+ * Picks a reduced domain for every variable with a single forward pass over the factors, for approximate inference on
+ * models with very large label sets. Factors are visited leaves first, and each factor sums its table against the
+ * evidence gathered so far, and passes the result on to the variables it shares with factors that haven't been visited
+ * yet. A variable is pruned just before the last factor touching it is visited, since at that point it has heard from
+ * everything below it. That means the expensive products only ever see pruned domains: on a chain with K labels and a
+ * beam of B, each transition costs B*K rather than K^2, and only those B*K entries are ever dot producted with the
+ * weights.
+ * <p>
+ * On a tree this is exactly the upward half of sum-product, so the evidence used to prune is the true posterior given
+ * the subtree. On loopy models the evidence is only a heuristic, but the pruned model is still solved exactly.
+ */
+class BeamPruner {
+  private final ConcatVector weights;
+  private final GraphicalModel.Factor[] factors;
+  private final int[] observations;
+  private final int[] variableSizes;
+
+  // The System.nanoTime() after which to give up with a CliqueTree.DeadlineExceededException
+  long deadline = Long.MAX_VALUE;
+
+  /**
+   * @param model        the model to prune
+   * @param weights      the weights to score factors with
+   * @param observations the observed value of each variable, or -1
+   */
+  BeamPruner(GraphicalModel model, ConcatVector weights, int[] observations) {
+    this.weights = weights;
+    this.factors = model.factors.toArray(new GraphicalModel.Factor[model.factors.size()]);
+    this.observations = observations;
+    this.variableSizes = new int[observations.length];
+    for (GraphicalModel.Factor f : factors) {
+      for (int i = 0; i < f.neigborIndices.length; i++) {
+        variableSizes[f.neigborIndices[i]] = f.getDimensions()[i];
+      }
+    }
+  }
+
+  /**
+   * Runs the forward pass and picks the surviving states.
+   *
+   * @param posteriorThreshold states with a posterior below this are dropped, use 0 to disable
+   * @param beamSize           the most states to keep per variable, use a value below 1 to disable
+   * @return for every variable, the original values that survived, in ascending order. Observed variables keep only
+   * their observation, and the most likely state of each variable always survives.
+   */
+  int[][] pruneDomains(double posteriorThreshold, int beamSize) {
+    int numVariables = observations.length;
+    int[][] domains = new int[numVariables][];
+    double[][] evidence = new double[numVariables][];
+    // Whether a variable has received any messages yet, since pruning on no evidence would just be guessing
+    boolean[] heard = new boolean[numVariables];
+    int[] remaining = new int[numVariables];
+    List<List<Integer>> variableFactors = new ArrayList<>();
+    for (int v = 0; v < numVariables; v++) variableFactors.add(new ArrayList<>());
+    for (int f = 0; f < factors.length; f++) {
+      for (int v : factors[f].neigborIndices) {
+        variableFactors.get(v).add(f);
+        remaining[v]++;
+      }
+    }
+    for (int v = 0; v < numVariables; v++) {
+      if (observations[v] != -1) {
+        domains[v] = new int[]{observations[v]};
+      } else {
+        domains[v] = new int[variableSizes[v]];
+        for (int i = 0; i < domains[v].length; i++) domains[v][i] = i;
+      }
+      evidence[v] = new double[domains[v].length];
+    }
+
+    int[] order = leavesFirstOrder(variableFactors);
+    for (int f : order) {
+      CliqueTree.checkDeadline(deadline);
+      GraphicalModel.Factor factor = factors[f];
+      int[] vars = factor.neigborIndices;
+
+      // Anything this factor closes has heard from everything below it, so prune it before we pay for it. The one
+      // exception is the last factor of a component, which closes everything it touches: nothing comes after it, so
+      // we prune its variables afterwards instead, on their full posteriors.
+
+      boolean[] open = new boolean[vars.length];
+      boolean anyOpen = false;
+      for (int i = 0; i < vars.length; i++) {
+        open[i] = remaining[vars[i]] > 1;
+        anyOpen = anyOpen || open[i];
+      }
+      if (anyOpen) {
+        for (int i = 0; i < vars.length; i++) {
+          if (!open[i] && observations[vars[i]] == -1 && heard[vars[i]]) {
+            prune(vars[i], domains, evidence, posteriorThreshold, beamSize);
+          }
+        }
+      }
+
+      int[] reducedDims = new int[vars.length];
+      int size = 1;
+      for (int i = 0; i < vars.length; i++) {
+        reducedDims[i] = domains[vars[i]].length;
+        size *= reducedDims[i];
+      }
+
+      // Score the reduced table, folding in the evidence on the variables this factor closes
+
+      double[] table = new double[size];
+      int[] reduced = new int[vars.length];
+      int[] original = new int[vars.length];
+      for (int a = 0; a < size; a++) {
+        unflatten(a, reducedDims, reduced);
+        double value = 0.0;
+        for (int i = 0; i < vars.length; i++) {
+          original[i] = domains[vars[i]][reduced[i]];
+          if (!open[i]) value += evidence[vars[i]][reduced[i]];
+        }
+        table[a] = value + factor.getAssignmentValue(original, weights);
+      }
+
+      if (!anyOpen) {
+        for (int i = 0; i < vars.length; i++) {
+          if (observations[vars[i]] != -1) continue;
+          double[] posterior = new double[reducedDims[i]];
+          Arrays.fill(posterior, Double.NEGATIVE_INFINITY);
+          for (int a = 0; a < size; a++) {
+            unflatten(a, reducedDims, reduced);
+            posterior[reduced[i]] = logSumExp(posterior[reduced[i]], table[a]);
+          }
+          evidence[vars[i]] = posterior;
+          prune(vars[i], domains, evidence, posteriorThreshold, beamSize);
+        }
+      }
+
+      // Pass a message on to every variable that still has factors left to visit
+
+      for (int i = 0; i < vars.length; i++) {
+        if (!open[i]) continue;
+        double[] message = new double[reducedDims[i]];
+        Arrays.fill(message, Double.NEGATIVE_INFINITY);
+        for (int a = 0; a < size; a++) {
+          unflatten(a, reducedDims, reduced);
+          double value = table[a];
+          for (int j = 0; j < vars.length; j++) {
+            if (j != i && open[j]) value += evidence[vars[j]][reduced[j]];
+          }
+          message[reduced[i]] = logSumExp(message[reduced[i]], value);
+        }
+        double max = Double.NEGATIVE_INFINITY;
+        for (double m : message) max = Math.max(max, m);
+        for (int s = 0; s < message.length; s++) {
+          evidence[vars[i]][s] += max == Double.NEGATIVE_INFINITY ? 0.0 : message[s] - max;
+        }
+        heard[vars[i]] = true;
+      }
+
+      for (int v : vars) remaining[v]--;
+    }
+
+    return domains;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Reduces a variable's domain to the states that pass the threshold and the beam, and shrinks its evidence to match.
+   */
+  private static void prune(int v, int[][] domains, double[][] evidence, double posteriorThreshold, int beamSize) {
+    double[] logPosterior = evidence[v];
+    double max = Double.NEGATIVE_INFINITY;
+    for (double e : logPosterior) max = Math.max(max, e);
+    if (max == Double.NEGATIVE_INFINITY) return;
+    double total = 0.0;
+    for (double e : logPosterior) total += Math.exp(e - max);
+
+    Integer[] byPosterior = new Integer[logPosterior.length];
+    for (int i = 0; i < byPosterior.length; i++) byPosterior[i] = i;
+    Arrays.sort(byPosterior, (a, b) -> Double.compare(logPosterior[b], logPosterior[a]));
+
+    int keep = 1;
+    int limit = beamSize < 1 ? byPosterior.length : Math.min(beamSize, byPosterior.length);
+    while (keep < limit && Math.exp(logPosterior[byPosterior[keep]] - max) / total >= posteriorThreshold) keep++;
+    if (keep == logPosterior.length) return;
+
+    int[] kept = new int[keep];
+    for (int i = 0; i < keep; i++) kept[i] = byPosterior[i];
+    Arrays.sort(kept);
+    int[] domain = new int[keep];
+    double[] keptEvidence = new double[keep];
+    for (int i = 0; i < keep; i++) {
+      domain[i] = domains[v][kept[i]];
+      keptEvidence[i] = logPosterior[kept[i]];
+    }
+    domains[v] = domain;
+    evidence[v] = keptEvidence;
+  }
+
+  /**
+   * Orders the factors by a breadth first search over each connected component, then reverses it, so that every
+   * factor is visited after the factors further from the root than it.
+   */
+  private int[] leavesFirstOrder(List<List<Integer>> variableFactors) {
+    boolean[] visited = new boolean[factors.length];
+    int[] order = new int[factors.length];
+    int cursor = 0;
+    Queue<Integer> queue = new ArrayDeque<>();
+    for (int start = 0; start < factors.length; start++) {
+      if (visited[start]) continue;
+      visited[start] = true;
+      queue.add(start);
+      while (!queue.isEmpty()) {
+        int f = queue.poll();
+        order[cursor++] = f;
+        for (int v : factors[f].neigborIndices) {
+          for (int g : variableFactors.get(v)) {
+            if (!visited[g]) {
+              visited[g] = true;
+              queue.add(g);
+            }
+          }
+        }
+      }
+    }
+
+    for (int i = 0; i < order.length / 2; i++) {
+      int tmp = order[i];
+      order[i] = order[order.length - 1 - i];
+      order[order.length - 1 - i] = tmp;
+    }
+    return order;
+  }
+
+  private static double logSumExp(double a, double b) {
+    if (a == Double.NEGATIVE_INFINITY) return b;
+    if (b == Double.NEGATIVE_INFINITY) return a;
+    double max = Math.max(a, b);
+    return max + Math.log(Math.exp(a - max) + Math.exp(b - max));
+  }
+
+  /**
+   * Decodes a flat index into an assignment, with the last variable moving fastest.
+   */
+  private static void unflatten(int index, int[] dims, int[] assignment) {
+    for (int i = dims.length - 1; i >= 0; i--) {
+      assignment[i] = index % dims[i];
+      index /= dims[i];
+    }
+  }
+}
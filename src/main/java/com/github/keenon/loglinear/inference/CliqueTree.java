@@ -6,6 +6,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Created by keenon on 8/11/15.
@@ -23,6 +25,32 @@ public class CliqueTree {
   public final GraphicalModel model;
   public final ConcatVector weights;
 
+  // The System.nanoTime() after which message passing gives up, which is only set by calculateMAP(timeout)
+  private long deadline = Long.MAX_VALUE;
+
+  // The values each variable may take, indexed by variable, which is only set by calculateMaxMarginals(allowedValues)
+  private boolean[][] allowedValues = null;
+
+  // Profiling: who to tell about each message passing run, and a count of the table entries written during it
+  private ProfilingListener profilingListener = null;
+  private long flopCounter = 0;
+
+  // Set when this is a per-thread context of a CompiledInference, which owns a forest and observations built only once
+  private final CompiledInference compiled;
+
+  // The (start-clique, end-clique) message table, kept between calls so that repeated inference doesn't reallocate it
+  private TableFactor[][] messageScratch = null;
+
+  // Whether sum-product may run as a compiled InferenceProgram, which is only turned off to test against the original
+  private boolean useCompiledPrograms = true;
+
+  // The scratch space compiled programs run in, created the first time one runs. Programs are shared between threads,
+  // so they keep no scratch space of their own. BatchInference lends one workspace to every tree in a chunk, in turn.
+  InferenceProgram.Workspace programWorkspace = null;
+
+  // The beam calculateMAP(timeout) uses for its middle stage, on variables with more states than this
+  private static final int ANYTIME_BEAM_SIZE = 8;
+
   // This is the metadata key for the model to store an observed value for a variable, as an int
   public static final String VARIABLE_OBSERVED_VALUE = "inference.CliqueTree.VARIABLE_OBSERVED_VALUE";
 
@@ -38,12 +66,43 @@ public class CliqueTree {
    *                the weights, you must create a new CliqueTree.
    */
   public CliqueTree(GraphicalModel model, ConcatVector weights) {
+    this(model, weights, true);
+  }
+
+  /**
+   * Creates a CliqueTree that can optionally read straight from the weights passed in, rather than a private clone.
+   * This is what lets BatchInference share one read-only snapshot of the weights across every model in a batch.
+   *
+   * @param model        the model to be computed over
+   * @param weights      the weights to dot product with model features
+   * @param cloneWeights if false, the caller promises that nobody mutates the weights while this CliqueTree is in use
+   */
+  CliqueTree(GraphicalModel model, ConcatVector weights, boolean cloneWeights) {
     this.model = model;
-    this.weights = weights.deepClone();
+    this.weights = cloneWeights ? weights.deepClone() : weights;
+    this.compiled = null;
+  }
+
+  /**
+   * Creates a per-thread context over a CompiledInference. Message passing reads the compiled cliques, forest and
+   * observations rather than rebuilding them from the model, so the only state this owns is its scratch space.
+   *
+   * @param compiled the shared, read-only compiled model
+   */
+  CliqueTree(CompiledInference compiled) {
+    this.model = compiled.model;
+    this.weights = compiled.weights;
+    this.compiled = compiled;
   }
 
   /**
    * Little data structure for passing around the results of marginal computations.
+   * <p>
+   * Joint marginals are stored compactly: factors are indexed by position, and all the joint marginal tables are laid
+   * out back to back in one double[] (in probability space, row-major in the order of each factor's neighbors), with
+   * an offset per factor. Hot loops like the log-likelihood gradient should read from getJointMarginalValues() by
+   * position. The jointMarginals map is a lazy view for compatibility, which only builds a TableFactor for a factor
+   * when that factor is looked up.
    */
   public static class MarginalResult {
     public double[][] marginals;
@@ -51,11 +110,195 @@ public class CliqueTree {
     public Map<GraphicalModel.Factor, TableFactor> jointMarginals;
     int[] mapAssignment;
 
+    // The factors with joint marginals, by position
+    private final GraphicalModel.Factor[] factors;
+    // All the joint marginal tables, back to back
+    private final double[] jointMarginalValues;
+    // One longer than factors, so that the table for factor i is [offsets[i], offsets[i+1])
+    private final int[] jointMarginalOffsets;
+    // Lazily created TableFactor versions of the joint marginals, and a lazy reverse index for map lookups
+    private TableFactor[] constructedJointMarginals;
+    private IdentityHashMap<GraphicalModel.Factor, Integer> factorIndices;
+
     public MarginalResult(double[][] marginals, double partitionFunction, Map<GraphicalModel.Factor, TableFactor> jointMarginals, int[] mapAssignment) {
       this.marginals = marginals;
       this.partitionFunction = partitionFunction;
-      this.jointMarginals = jointMarginals;
       this.mapAssignment = mapAssignment;
+
+      // Flatten the map we're handed, so that the array accessors work the same no matter how this was built
+
+      factors = jointMarginals.keySet().toArray(new GraphicalModel.Factor[jointMarginals.size()]);
+      jointMarginalOffsets = computeOffsets(factors);
+      jointMarginalValues = new double[jointMarginalOffsets[factors.length]];
+      constructedJointMarginals = new TableFactor[factors.length];
+      for (int i = 0; i < factors.length; i++) {
+        TableFactor table = jointMarginals.get(factors[i]);
+        constructedJointMarginals[i] = table;
+        for (int[] assignment : table) {
+          jointMarginalValues[jointMarginalOffsets[i] + flatIndex(factors[i].getDimensions(), assignment)] = table.getAssignmentValue(assignment);
+        }
+      }
+      this.jointMarginals = new JointMarginalsView();
+    }
+
+    MarginalResult(double[][] marginals, double partitionFunction, GraphicalModel.Factor[] factors,
+                   double[] jointMarginalValues, int[] jointMarginalOffsets, int[] mapAssignment) {
+      this.marginals = marginals;
+      this.partitionFunction = partitionFunction;
+      this.mapAssignment = mapAssignment;
+      this.factors = factors;
+      this.jointMarginalValues = jointMarginalValues;
+      this.jointMarginalOffsets = jointMarginalOffsets;
+      this.constructedJointMarginals = new TableFactor[factors.length];
+      this.jointMarginals = new JointMarginalsView();
+    }
+
+    /**
+     * @return the number of factors that have joint marginals
+     */
+    public int getNumFactors() {
+      return factors.length;
+    }
+
+    /**
+     * @param index the position of the factor
+     * @return the factor at that position
+     */
+    public GraphicalModel.Factor getFactor(int index) {
+      return factors[index];
+    }
+
+    /**
+     * @param factor the factor to look for, by reference
+     * @return the position of the factor, or -1 if it has no joint marginal
+     */
+    public synchronized int getFactorIndex(GraphicalModel.Factor factor) {
+      if (factorIndices == null) {
+        factorIndices = new IdentityHashMap<>();
+        for (int i = 0; i < factors.length; i++) factorIndices.put(factors[i], i);
+      }
+      Integer index = factorIndices.get(factor);
+      return index == null ? -1 : index;
+    }
+
+    /**
+     * WARNING: This is by reference, for speed. Don't modify it.
+     *
+     * @return all the joint marginal tables, back to back. The table for factor i starts at getJointMarginalOffset(i).
+     */
+    public double[] getJointMarginalValues() {
+      return jointMarginalValues;
+    }
+
+    /**
+     * @param index the position of the factor
+     * @return the offset into getJointMarginalValues() where the factor's table starts
+     */
+    public int getJointMarginalOffset(int index) {
+      return jointMarginalOffsets[index];
+    }
+
+    /**
+     * @param index      the position of the factor
+     * @param assignment an assignment to the factor, in the order of its neighbors
+     * @return the joint marginal probability of the assignment
+     */
+    public double getJointMarginalValue(int index, int[] assignment) {
+      return jointMarginalValues[jointMarginalOffsets[index] + flatIndex(factors[index].getDimensions(), assignment)];
+    }
+
+    /**
+     * Builds (once) a TableFactor holding the joint marginal for a factor.
+     *
+     * @param index the position of the factor
+     * @return the joint marginal as a TableFactor
+     */
+    public synchronized TableFactor getJointMarginal(int index) {
+      if (constructedJointMarginals[index] == null) {
+        GraphicalModel.Factor f = factors[index];
+        TableFactor table = new TableFactor(f.neigborIndices, f.getDimensions());
+        int[] dims = f.getDimensions();
+        Iterator<int[]> fastPassByReferenceIterator = table.fastPassByReferenceIterator();
+        while (fastPassByReferenceIterator.hasNext()) {
+          int[] assignment = fastPassByReferenceIterator.next();
+          table.setAssignmentValue(assignment, jointMarginalValues[jointMarginalOffsets[index] + flatIndex(dims, assignment)]);
+        }
+        constructedJointMarginals[index] = table;
+      }
+      return constructedJointMarginals[index];
+    }
+
+    /**
+     * Computes where each factor's table starts in a contiguous array of joint marginals.
+     */
+    static int[] computeOffsets(GraphicalModel.Factor[] factors) {
+      int[] offsets = new int[factors.length + 1];
+      for (int i = 0; i < factors.length; i++) {
+        offsets[i + 1] = offsets[i] + factors[i].combinatorialNeighborStatesCount();
+      }
+      return offsets;
+    }
+
+    /**
+     * The row-major offset of an assignment, with the last variable moving fastest, which matches NDArrayDoubles.
+     */
+    static int flatIndex(int[] dims, int[] assignment) {
+      int offset = 0;
+      for (int i = 0; i < assignment.length; i++) {
+        offset = (offset * dims[i]) + assignment[i];
+      }
+      return offset;
+    }
+
+    /**
+     * A read-only Map over the arrays, which builds TableFactors lazily as they're looked up.
+     */
+    private class JointMarginalsView extends AbstractMap<GraphicalModel.Factor, TableFactor> {
+      @Override
+      public int size() {
+        return factors.length;
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return key instanceof GraphicalModel.Factor && getFactorIndex((GraphicalModel.Factor) key) != -1;
+      }
+
+      @Override
+      public TableFactor get(Object key) {
+        if (!(key instanceof GraphicalModel.Factor)) return null;
+        int index = getFactorIndex((GraphicalModel.Factor) key);
+        return index == -1 ? null : getJointMarginal(index);
+      }
+
+      @Override
+      public Set<Entry<GraphicalModel.Factor, TableFactor>> entrySet() {
+        return new AbstractSet<Entry<GraphicalModel.Factor, TableFactor>>() {
+          @Override
+          public Iterator<Entry<GraphicalModel.Factor, TableFactor>> iterator() {
+            return new Iterator<Entry<GraphicalModel.Factor, TableFactor>>() {
+              int cursor = 0;
+
+              @Override
+              public boolean hasNext() {
+                return cursor < factors.length;
+              }
+
+              @Override
+              public Entry<GraphicalModel.Factor, TableFactor> next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                int index = cursor++;
+                return new SimpleImmutableEntry<>(factors[index], getJointMarginal(index));
+              }
+            };
+          }
+
+          @Override
+          public int size() {
+            return factors.length;
+          }
+        };
+      }
     }
 
     @Override
@@ -94,6 +337,41 @@ public class CliqueTree {
     }
   }
 
+  /**
+   * The result of beam-pruned inference. Pruned states get zero probability in every marginal, and the partition
+   * function only sums over the surviving states, so it is a lower bound on the exact one.
+   */
+  public static class PrunedMarginalResult extends MarginalResult {
+    // For every variable, the values that survived pruning, in ascending order
+    public final int[][] keptStates;
+
+    PrunedMarginalResult(double[][] marginals, double partitionFunction, GraphicalModel.Factor[] factors,
+                         double[] jointMarginalValues, int[] jointMarginalOffsets, int[] mapAssignment, int[][] keptStates) {
+      super(marginals, partitionFunction, factors, jointMarginalValues, jointMarginalOffsets, mapAssignment);
+      this.keptStates = keptStates;
+    }
+
+    /**
+     * Measures how far these marginals are from exact ones, as the worst total variation distance over all the
+     * variables. Zero means pruning lost nothing, one means some variable's marginal is completely wrong.
+     *
+     * @param exact the result of exact inference on the same model
+     * @return the largest total variation distance between the approximate and exact marginal of any variable
+     */
+    public double approximationGap(MarginalResult exact) {
+      double gap = 0.0;
+      for (int i = 0; i < Math.min(marginals.length, exact.marginals.length); i++) {
+        if (marginals[i] == null || exact.marginals[i] == null) continue;
+        double distance = 0.0;
+        for (int j = 0; j < marginals[i].length; j++) {
+          distance += Math.abs(marginals[i][j] - exact.marginals[i][j]);
+        }
+        gap = Math.max(gap, distance / 2);
+      }
+      return gap;
+    }
+  }
+
   /**
    * This assumes that factors represent joint probabilities.
    *
@@ -115,6 +393,226 @@ public class CliqueTree {
     return result.marginals;
   }
 
+  /**
+   * Approximate marginals for models with very large label sets, where exact K^2 clique tables are too expensive. A
+   * single forward pass over the factors prunes each variable's states as soon as it has heard from everything below
+   * it, keeping only states with a posterior of at least posteriorThreshold, and at most beamSize of them. Every later
+   * product in the forward pass, and the final exact message passing, only ever sees the pruned domains, so only the
+   * surviving entries of each factor are ever dot producted with the weights.
+   * <p>
+   * Use PrunedMarginalResult.approximationGap() against calculateMarginals() to see what the pruning cost.
+   *
+   * @param posteriorThreshold states whose posterior falls below this are dropped, 0 disables the threshold
+   * @param beamSize           the most states to keep per variable, anything below 1 disables the beam
+   * @return marginals with pruned states set to zero, and joint marginals over the original factor shapes
+   */
+  public PrunedMarginalResult calculateMarginalsBeamPruned(double posteriorThreshold, int beamSize) {
+    int[] observations = getObservations();
+    int[] variableSizes = getVariableSizes(observations.length);
+    int[][] domains = new BeamPruner(model, weights, observations).pruneDomains(posteriorThreshold, beamSize);
+
+    GraphicalModel.Factor[] factors = model.factors.toArray(new GraphicalModel.Factor[model.factors.size()]);
+    GraphicalModel.Factor[] reducedFactors = new GraphicalModel.Factor[factors.length];
+    GraphicalModel reducedModel = buildReducedModel(factors, domains, reducedFactors);
+    MarginalResult reduced = new CliqueTree(reducedModel, weights, false).messagePassing(MarginalizationMethod.SUM, true);
+
+    // Map everything back onto the original domains
+
+    double[][] marginals = new double[reduced.marginals.length][];
+    int[] mapAssignment = new int[reduced.marginals.length];
+    for (int v = 0; v < marginals.length; v++) {
+      if (reduced.marginals[v] == null) continue;
+      marginals[v] = new double[variableSizes[v]];
+      for (int j = 0; j < domains[v].length; j++) marginals[v][domains[v][j]] = reduced.marginals[v][j];
+      if (reduced.mapAssignment != null && v < reduced.mapAssignment.length && reduced.mapAssignment[v] >= 0) {
+        mapAssignment[v] = domains[v][reduced.mapAssignment[v]];
+      } else {
+        mapAssignment[v] = -1;
+      }
+    }
+
+    int[] offsets = MarginalResult.computeOffsets(factors);
+    double[] jointMarginalValues = new double[offsets[factors.length]];
+    double[] reducedValues = reduced.getJointMarginalValues();
+    for (int i = 0; i < factors.length; i++) {
+      int index = reduced.getFactorIndex(reducedFactors[i]);
+      if (index == -1) continue;
+      int[] dims = factors[i].getDimensions();
+      int[] reducedDims = reducedFactors[i].getDimensions();
+      int[] assignment = new int[dims.length];
+      int[] original = new int[dims.length];
+      for (int a = 0; a < reducedFactors[i].combinatorialNeighborStatesCount(); a++) {
+        int flat = a;
+        for (int j = reducedDims.length - 1; j >= 0; j--) {
+          assignment[j] = flat % reducedDims[j];
+          flat /= reducedDims[j];
+        }
+        for (int j = 0; j < dims.length; j++) original[j] = domains[factors[i].neigborIndices[j]][assignment[j]];
+        jointMarginalValues[offsets[i] + MarginalResult.flatIndex(dims, original)] = reducedValues[reduced.getJointMarginalOffset(index) + a];
+      }
+    }
+
+    return new PrunedMarginalResult(marginals, reduced.partitionFunction, factors, jointMarginalValues, offsets, mapAssignment, domains);
+  }
+
+  /**
+   * This calculates marginals for just a few variables, which is much cheaper than calculating everything when the
+   * model is large. Only the trees of the forest that contain a query variable are touched. In each of those trees,
+   * messages are collected towards a clique containing a query variable, and then only sent back out along the paths
+   * to the other cliques we need. No joint marginals or partition function are calculated.
+   *
+   * @param queryVariables the variables to calculate marginals for
+   * @return an array, indexed first by variable, then by variable assignment, of global probability. Only the entries
+   * for query variables are filled in, everything else is null.
+   */
+  public double[][] calculateMarginals(int[] queryVariables) {
+    int maxVar = model.getMaxVariable();
+    for (int q : queryVariables) {
+      if (q < 0) throw new IllegalArgumentException("Can't query a negative variable index: " + q);
+      if (q > maxVar) maxVar = q;
+    }
+    int[] variableSizes = getVariableSizes(maxVar + 1);
+
+    double[][] marginals = new double[maxVar + 1][];
+    boolean[] needed = new boolean[maxVar + 1];
+    boolean anyNeeded = false;
+
+    // Observed variables are deterministic, and don't need any messages
+
+    for (int q : queryVariables) {
+      if (variableSizes[q] == 0) continue;
+      int assignment = model.getObservedValue(q);
+      if (assignment != -1) {
+        if (assignment >= variableSizes[q]) {
+          throw new IllegalStateException("Variable " + q + ": Can't have as assignment (" + assignment + ") that is out of bounds for dimension size (" + variableSizes[q] + ")");
+        }
+        marginals[q] = new double[variableSizes[q]];
+        marginals[q][assignment] = 1.0;
+      } else {
+        needed[q] = true;
+        anyNeeded = true;
+      }
+    }
+    if (!anyNeeded) return marginals;
+
+    CliqueForest forest = buildCliqueForest();
+    TableFactor[] cliques = forest.cliques;
+
+    // An impossible observation gives a uniform distribution, to match the behavior of messagePassing()
+
+    if (forest.impossibleObservationMade) {
+      for (int q = 0; q < needed.length; q++) {
+        if (!needed[q]) continue;
+        marginals[q] = new double[variableSizes[q]];
+        Arrays.fill(marginals[q], 1.0 / variableSizes[q]);
+      }
+      return marginals;
+    }
+
+    // Greedily pick target cliques, preferring the cliques that cover the most query variables we still need
+
+    boolean[] isTarget = new boolean[cliques.length];
+    boolean[] covered = new boolean[maxVar + 1];
+    while (true) {
+      int best = -1;
+      int bestCount = 0;
+      for (int i = 0; i < cliques.length; i++) {
+        int count = 0;
+        for (int n : cliques[i].neighborIndices) if (needed[n] && !covered[n]) count++;
+        if (count > bestCount) {
+          best = i;
+          bestCount = count;
+        }
+      }
+      if (best == -1) break;
+      isTarget[best] = true;
+      for (int n : cliques[best].neighborIndices) covered[n] = true;
+    }
+
+    // Undirected adjacency of the forest, so that we can re-root each tree at a target
+
+    List<List<Integer>> adjacency = new ArrayList<>();
+    for (int i = 0; i < cliques.length; i++) adjacency.add(new ArrayList<>());
+    for (int i = 0; i < cliques.length; i++) {
+      if (forest.parent[i] != -1) {
+        adjacency.get(i).add(forest.parent[i]);
+        adjacency.get(forest.parent[i]).add(i);
+      }
+    }
+
+    int[] parent = new int[cliques.length];
+    TableFactor[] upMessages = new TableFactor[cliques.length];
+    TableFactor[] downMessages = new TableFactor[cliques.length];
+    boolean[] visited = new boolean[cliques.length];
+
+    for (int root = 0; root < cliques.length; root++) {
+      if (!isTarget[root] || visited[root]) continue;
+
+      // BFS from the root, which gives us a parent-before-child order for just this tree
+
+      List<Integer> order = new ArrayList<>();
+      parent[root] = -1;
+      visited[root] = true;
+      order.add(root);
+      for (int i = 0; i < order.size(); i++) {
+        int cursor = order.get(i);
+        for (int neighbor : adjacency.get(cursor)) {
+          if (visited[neighbor]) continue;
+          visited[neighbor] = true;
+          parent[neighbor] = cursor;
+          order.add(neighbor);
+        }
+      }
+
+      // Collect every message towards the root
+
+      for (int i = order.size() - 1; i > 0; i--) {
+        int cursor = order.get(i);
+        TableFactor message = cliques[cursor];
+        for (int neighbor : adjacency.get(cursor)) {
+          if (neighbor != parent[cursor]) message = message.multiply(upMessages[neighbor]);
+        }
+        upMessages[cursor] = marginalizeMessage(message, cliques[parent[cursor]].neighborIndices, MarginalizationMethod.SUM);
+      }
+
+      // Distribute messages back out, but only along the paths from the root to the other targets
+
+      boolean[] onPath = new boolean[cliques.length];
+      for (int cursor : order) {
+        if (!isTarget[cursor]) continue;
+        for (int j = cursor; j != root && !onPath[j]; j = parent[j]) onPath[j] = true;
+      }
+      for (int cursor : order) {
+        if (!onPath[cursor]) continue;
+        int p = parent[cursor];
+        TableFactor message = cliques[p];
+        if (downMessages[p] != null) message = message.multiply(downMessages[p]);
+        for (int neighbor : adjacency.get(p)) {
+          if (neighbor != parent[p] && neighbor != cursor) message = message.multiply(upMessages[neighbor]);
+        }
+        downMessages[cursor] = marginalizeMessage(message, cliques[cursor].neighborIndices, MarginalizationMethod.SUM);
+      }
+
+      // Read the marginals off the converged targets
+
+      for (int cursor : order) {
+        if (!isTarget[cursor]) continue;
+        TableFactor convergedClique = cliques[cursor];
+        if (downMessages[cursor] != null) convergedClique = convergedClique.multiply(downMessages[cursor]);
+        for (int neighbor : adjacency.get(cursor)) {
+          if (neighbor != parent[cursor]) convergedClique = convergedClique.multiply(upMessages[neighbor]);
+        }
+        double[][] cliqueMarginals = convergedClique.getSummedMarginals();
+        for (int j = 0; j < convergedClique.neighborIndices.length; j++) {
+          int k = convergedClique.neighborIndices[j];
+          if (needed[k] && marginals[k] == null) marginals[k] = cliqueMarginals[j];
+        }
+      }
+    }
+
+    return marginals;
+  }
+
   /**
    * This assumes that factors represent joint probabilities.
    *
@@ -125,6 +623,253 @@ public class CliqueTree {
     return marginalResult.mapAssignment;
   }
 
+  /**
+   * The result of one max-product pass: the MAP assignment, and the max-marginals it was read off of.
+   */
+  public static class MaxMarginalResult {
+    // Indexed by variable, the highest scoring assignment
+    public final int[] mapAssignment;
+    // Indexed first by variable, then by value, the score of the best assignment that gives the variable that value,
+    // normalized so that each variable's max-marginals sum to 1. Disallowed values get 0.
+    public final double[][] maxMarginals;
+
+    public MaxMarginalResult(int[] mapAssignment, double[][] maxMarginals) {
+      this.mapAssignment = mapAssignment;
+      this.maxMarginals = maxMarginals;
+    }
+  }
+
+  /**
+   * Calculates max-marginals for every value of every variable, and the MAP assignment, in a single max-product pass,
+   * where each variable is only allowed to take some of its values. This is for constrained decoding, like forbidding
+   * labels that a gazetteer rules out, without touching the model's metadata or adding factors to it. The masks are
+   * applied as each factor is scored, so disallowed entries are never dot producted with the weights, and factors that
+   * no mask touches are still served from the usual caches.
+   * <p>
+   * Observed variables keep their observed value whatever their mask says. If the masks leave no assignment with
+   * nonzero probability, the result is the same as for an impossible observation: uniform max-marginals.
+   *
+   * @param allowedValues indexed first by variable, then by value, whether the variable may take that value. A null
+   *                      array, or a null entry for a variable, allows everything.
+   * @return the MAP assignment under the masks, and the max-marginals
+   */
+  public MaxMarginalResult calculateMaxMarginals(boolean[][] allowedValues) {
+    if (allowedValues != null) checkAllowedValues(allowedValues);
+    this.allowedValues = allowedValues;
+    try {
+      MarginalResult result = messagePassing(MarginalizationMethod.MAX, false);
+      return new MaxMarginalResult(result.mapAssignment, result.marginals);
+    } finally {
+      this.allowedValues = null;
+    }
+  }
+
+  /**
+   * The same as calculateMAP(), except that each variable is only allowed to take some of its values. See
+   * calculateMaxMarginals(allowedValues).
+   *
+   * @param allowedValues indexed first by variable, then by value, whether the variable may take that value. A null
+   *                      array, or a null entry for a variable, allows everything.
+   * @return an array, indexed by variable, of maximum likelihood assignments that respect the masks
+   */
+  public int[] calculateMAP(boolean[][] allowedValues) {
+    return calculateMaxMarginals(allowedValues).mapAssignment;
+  }
+
+  /**
+   * The result of MAP inference under a deadline: the best assignment found in time, its unnormalized log-likelihood,
+   * and whether it's the exact MAP or an approximation.
+   */
+  public static class AnytimeMAPResult {
+    public enum Method {
+      GREEDY,
+      BEAM,
+      EXACT
+    }
+
+    public final int[] assignment;
+    public final double logScore;
+    public final Method method;
+
+    public AnytimeMAPResult(int[] assignment, double logScore, Method method) {
+      this.assignment = assignment;
+      this.logScore = logScore;
+      this.method = method;
+    }
+
+    /**
+     * @return true if exact max-product finished in time, so this is the true MAP assignment
+     */
+    public boolean isExact() {
+      return method == Method.EXACT;
+    }
+  }
+
+  /**
+   * MAP inference that respects a latency budget. This runs a sequence of increasingly expensive decoders, and keeps
+   * the best assignment found so far, so there's always an answer when time runs out:
+   * <ol>
+   * <li>A greedy decode improved by ICM sweeps, which is linear in the size of the model. If even this runs out of
+   * time, the variables it didn't get to are left at 0.</li>
+   * <li>For large label sets, exact max-product over a beam-pruned model (see calculateMarginalsBeamPruned()), which
+   * costs B*K rather than K^2 per transition.</li>
+   * <li>Exact max-product, the same as calculateMAP().</li>
+   * </ol>
+   * Every stage checks the clock as it goes, and gives up as soon as the deadline passes, so very long documents
+   * degrade to the cheaper decoders rather than blowing through the budget.
+   *
+   * @param timeout how long we have
+   * @param unit    the unit of the timeout
+   * @return the best assignment found in time, and how it was found
+   */
+  public AnytimeMAPResult calculateMAP(long timeout, TimeUnit unit) {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    int[] observations = getObservations();
+    int[] variableSizes = getVariableSizes(observations.length);
+
+    GreedyDecoder greedy = new GreedyDecoder(model, weights, observations);
+    int[] greedyAssignment = greedy.decode(deadline);
+    AnytimeMAPResult best = new AnytimeMAPResult(greedyAssignment, greedy.score(greedyAssignment), AnytimeMAPResult.Method.GREEDY);
+
+    try {
+      boolean beamHelps = false;
+      for (int i = 0; i < observations.length; i++) {
+        if (observations[i] == -1 && variableSizes[i] > ANYTIME_BEAM_SIZE) beamHelps = true;
+      }
+      if (beamHelps) {
+        BeamPruner pruner = new BeamPruner(model, weights, observations);
+        pruner.deadline = deadline;
+        int[][] domains = pruner.pruneDomains(0.0, ANYTIME_BEAM_SIZE);
+
+        GraphicalModel.Factor[] factors = model.factors.toArray(new GraphicalModel.Factor[model.factors.size()]);
+        GraphicalModel reducedModel = buildReducedModel(factors, domains, new GraphicalModel.Factor[factors.length]);
+        CliqueTree reducedTree = new CliqueTree(reducedModel, weights, false);
+        reducedTree.deadline = deadline;
+        int[] reducedAssignment = reducedTree.messagePassing(MarginalizationMethod.MAX, false).mapAssignment;
+
+        int[] beamAssignment = observations.clone();
+        for (int i = 0; i < beamAssignment.length; i++) {
+          if (i < reducedAssignment.length && reducedAssignment[i] >= 0) beamAssignment[i] = domains[i][reducedAssignment[i]];
+        }
+        double beamScore = greedy.score(beamAssignment);
+        if (beamScore > best.logScore) best = new AnytimeMAPResult(beamAssignment, beamScore, AnytimeMAPResult.Method.BEAM);
+      }
+
+      this.deadline = deadline;
+      try {
+        int[] exactAssignment = messagePassing(MarginalizationMethod.MAX, false).mapAssignment;
+        return new AnytimeMAPResult(exactAssignment, greedy.score(exactAssignment), AnytimeMAPResult.Method.EXACT);
+      } finally {
+        this.deadline = Long.MAX_VALUE;
+      }
+    } catch (DeadlineExceededException e) {
+      return best;
+    }
+  }
+
+  /**
+   * A full assignment to the model, along with its unnormalized log-likelihood (the sum over all factors of the
+   * log-value of the factor at this assignment).
+   */
+  public static class ScoredAssignment {
+    public final int[] assignment;
+    public final double logScore;
+
+    public ScoredAssignment(int[] assignment, double logScore) {
+      this.assignment = assignment;
+      this.logScore = logScore;
+    }
+
+    @Override
+    public String toString() {
+      return Arrays.toString(assignment) + ":" + logScore;
+    }
+  }
+
+  /**
+   * Finds the k highest scoring assignments to the model in a single k-best max-product pass, which is much cheaper
+   * than repeatedly constraining the model and re-running calculateMAP(). The cost is roughly linear in k.
+   * Observed variables keep their observed values in every assignment. Assignments with zero probability are never
+   * returned, so fewer than k results will come back if the model doesn't have k possible assignments.
+   *
+   * @param k the number of assignments to return
+   * @return up to k assignments, indexed by variable, sorted best first with ties broken arbitrarily
+   */
+  public List<ScoredAssignment> calculateKBestMAP(int k) {
+    if (k < 1) throw new IllegalArgumentException("Can't ask for the " + k + " best assignments, k must be positive");
+
+    int maxVar = model.getMaxVariable();
+    int[] observations = model.getObservedValues(maxVar + 1);
+
+    // Fully observed factors don't get cliques, but they still add a constant to every score
+
+    double offset = 0.0;
+    outer:
+    for (GraphicalModel.Factor f : model.factors) {
+      int[] assignment = new int[f.neigborIndices.length];
+      for (int i = 0; i < f.neigborIndices.length; i++) {
+        if (observations[f.neigborIndices[i]] == -1) continue outer;
+        assignment[i] = observations[f.neigborIndices[i]];
+      }
+      offset += f.getAssignmentValue(assignment, weights);
+    }
+    if (offset == Double.NEGATIVE_INFINITY) return new ArrayList<>();
+
+    CliqueForest forest = buildCliqueForest(observations);
+    if (forest.impossibleObservationMade) return new ArrayList<>();
+
+    return new KBestMAPDecoder(forest.cliques, forest.parent, forest.visitedOrder, k).decode(offset, maxVar + 1, observations);
+  }
+
+  /**
+   * If the model has cycles, exact inference is done over a junction tree, which is built by triangulating the model.
+   * This sets the greedy heuristic that is used to pick an elimination order for triangulation. The default,
+   * MIN_FILL, is usually best. MIN_WEIGHT can do better when variables have very uneven domain sizes.
+   *
+   * @param heuristic the elimination heuristic to use for any future inference calls
+   */
+  public void setTriangulationHeuristic(JunctionTree.Heuristic heuristic) {
+    this.triangulationHeuristic = heuristic;
+  }
+
+  /**
+   * What one message passing run cost: the cost model's estimate for the layout it ran over, and what it actually did.
+   * Both are counted in table entries written by products and marginalizations, so the two can be compared directly.
+   */
+  public static class InferenceProfile {
+    public final int numCliques;
+    public final long estimatedFlops;
+    public final long actualFlops;
+    public final long nanos;
+
+    public InferenceProfile(int numCliques, long estimatedFlops, long actualFlops, long nanos) {
+      this.numCliques = numCliques;
+      this.estimatedFlops = estimatedFlops;
+      this.actualFlops = actualFlops;
+      this.nanos = nanos;
+    }
+
+    @Override
+    public String toString() {
+      return numCliques + " cliques, " + estimatedFlops + " estimated flops, " + actualFlops + " actual flops, " +
+          (nanos / 1000) + "us";
+    }
+  }
+
+  /**
+   * A hook for profiling inference, which is called once at the end of every message passing run.
+   */
+  public interface ProfilingListener {
+    void onMessagePassing(InferenceProfile profile);
+  }
+
+  /**
+   * @param profilingListener called with a profile after every message passing run on this CliqueTree, or null to
+   *                          turn profiling off
+   */
+  public void setProfilingListener(ProfilingListener profilingListener) {
+    this.profilingListener = profilingListener;
+  }
 
 
   /**
@@ -142,19 +887,15 @@ public class CliqueTree {
     double partitionFunction = marginalsResult.partitionFunction;
     assert partitionFunction >= 0.0;
 
-    for (Map.Entry<GraphicalModel.Factor, TableFactor> entry : marginalsResult.jointMarginals.entrySet()) {
-      GraphicalModel.Factor factor = entry.getKey();
-      TableFactor tableFactor = entry.getValue();
+    for (int i = 0; i < marginalsResult.getNumFactors(); i++) {
+      GraphicalModel.Factor factor = marginalsResult.getFactor(i);
 
       // Compute the normalization constant
       double localNorm = Math.pow(partitionFunction, -1.0 / ((double) model.factors.size()));
       assert !Double.isNaN(localNorm);
 
       // Get the normalized value if the partition function is 0
-      int factorSize = 1;
-      for (int dim : tableFactor.getDimensions()) {
-        factorSize *= dim;
-      }
+      int factorSize = factor.combinatorialNeighborStatesCount();
       double uniformValue = 1.0 / ((double) factorSize);
 
       // Set the value
@@ -171,10 +912,8 @@ public class CliqueTree {
 
     // Add any metadata
     for (int var = 0; var < model.numVariables(); ++var) {
-      Map<String, String> metadata = model.getVariableMetaDataByReference(var);
-      if (metadata.containsKey(VARIABLE_OBSERVED_VALUE)) {
-        normalized.getVariableMetaDataByReference(var).put(VARIABLE_OBSERVED_VALUE, metadata.get(VARIABLE_OBSERVED_VALUE));
-      }
+      int observation = model.getObservedValue(var);
+      if (observation != -1) normalized.observe(var, observation);
     }
 
     return normalized;
@@ -197,10 +936,8 @@ public class CliqueTree {
 
     // Add any metadata
     for (int var = 0; var < model.numVariables(); ++var) {
-      Map<String, String> metadata = model.getVariableMetaDataByReference(var);
-      if (metadata.containsKey(VARIABLE_OBSERVED_VALUE)) {
-        compiled.getVariableMetaDataByReference(var).put(VARIABLE_OBSERVED_VALUE, metadata.get(VARIABLE_OBSERVED_VALUE));
-      }
+      int observation = model.getObservedValue(var);
+      if (observation != -1) compiled.observe(var, observation);
     }
     return compiled;
   }
@@ -216,6 +953,8 @@ public class CliqueTree {
     MAX
   }
 
+  private JunctionTree.Heuristic triangulationHeuristic = JunctionTree.Heuristic.MIN_FILL;
+
   // OPTIMIZATION:
   // cache the creation of TableFactors, to avoid redundant dot products
 
@@ -235,6 +974,8 @@ public class CliqueTree {
    * @return the marginal messages
    */
   private MarginalResult messagePassing(MarginalizationMethod marginalize, boolean includeJointMarginalsAndPartition) {
+    long startTime = System.nanoTime();
+    flopCounter = 0;
 
     // Using the behavior of brute force factor multiplication as ground truth, the desired
     // outcome of marginal calculation with an impossible factor is a uniform probability dist.,
@@ -243,6 +984,11 @@ public class CliqueTree {
 
     boolean impossibleObservationMade = false;
 
+    // OPTIMIZATION:
+    // Read every observation out of the metadata once, rather than parsing strings out of it all through the passes
+
+    int[] observations = compiled != null ? compiled.observations : getObservations();
+
     // Message passing will look at fully observed cliques as non-entities, but their
     // log-likelihood (the log-likelihood of the single observed value) is still relevant for the
     // partition function.
@@ -250,129 +996,32 @@ public class CliqueTree {
     double partitionFunction = 1.0;
 
     if (includeJointMarginalsAndPartition) {
-
-      // Find only factors which are fully observed
-      outer:
-      for (GraphicalModel.Factor f : model.factors) {
-        for (int n : f.neigborIndices) {
-          if (!model.getVariableMetaDataByReference(n).containsKey(VARIABLE_OBSERVED_VALUE)) continue outer;
-        }
-
-        int[] assignment = new int[f.neigborIndices.length];
-        for (int i = 0; i < f.neigborIndices.length; i++) {
-          assignment[i] = Integer.parseInt(model.getVariableMetaDataByReference(f.neigborIndices[i]).get(VARIABLE_OBSERVED_VALUE));
-        }
-
-        double assignmentValue = f.getAssignmentValue(assignment, weights);
-        if (Double.isInfinite(assignmentValue)) {
-          impossibleObservationMade = true;
-        } else {
-          assert !Double.isNaN(assignmentValue);
-          partitionFunction *= Math.exp(assignmentValue);
-          assert !Double.isNaN(partitionFunction);
-        }
+      double observedLogLikelihood = compiled != null ? compiled.observedLogLikelihood : observedLogLikelihood(observations);
+      if (observedLogLikelihood == Double.NEGATIVE_INFINITY) {
+        impossibleObservationMade = true;
+      } else {
+        partitionFunction = Math.exp(observedLogLikelihood);
+        assert !Double.isNaN(partitionFunction);
       }
     }
 
-    // Create the cliques by multiplying out table factors
-    // TODO:OPT This could be made more efficient by observing first, then dot product
+    // Create the cliques by multiplying out table factors, and lay them out as a forest for message passing
 
-    List<TableFactor> cliquesList = new ArrayList<>();
-    Map<Integer, GraphicalModel.Factor> cliqueToFactor = new HashMap<>();
+    CliqueForest forest = compiled != null && allowedValues == null ? compiled.forest : buildCliqueForest(observations);
+    if (forest.impossibleObservationMade) impossibleObservationMade = true;
+    TableFactor[] cliques = forest.cliques;
 
-    for (GraphicalModel.Factor f : model.factors) {
-      boolean allObserved = true;
+    // If we made any impossible observations, we can just return a uniform distribution for all the variables that
+    // weren't observed, since that's the semantically correct thing to do (our 'probability' is broken at this
+    // point).
+
+    if (impossibleObservationMade) {
       int maxVar = 0;
-      for (int n : f.neigborIndices) {
-        if (!model.getVariableMetaDataByReference(n).containsKey(VARIABLE_OBSERVED_VALUE)) allObserved = false;
-        if (n > maxVar) maxVar = n;
+      for (TableFactor c : cliques) {
+        for (int i : c.neighborIndices) if (i > maxVar) maxVar = i;
       }
-      if (allObserved) continue;
 
-      TableFactor clique = null;
-
-      // Retrieve cache if exists and none of the observations have changed
-
-      if (cachedFactors.containsKey(f)) {
-        CachedFactorWithObservations obs = cachedFactors.get(f);
-        boolean allConsistent = true;
-        for (int i = 0; i < f.neigborIndices.length; i++) {
-          int n = f.neigborIndices[i];
-          if (model.getVariableMetaDataByReference(n).containsKey(VARIABLE_OBSERVED_VALUE) &&
-              (obs.observations[i] == -1 ||
-                  Integer.parseInt(model.getVariableMetaDataByReference(n).get(VARIABLE_OBSERVED_VALUE)) != obs.observations[i])) {
-            allConsistent = false;
-            break;
-          }
-          // NOTE: This disqualifies lots of stuff for some reason...
-          if (!model.getVariableMetaDataByReference(n).containsKey(VARIABLE_OBSERVED_VALUE) && (obs.observations[i] != -1)) {
-            allConsistent = false;
-            break;
-          }
-        }
-        if (allConsistent) {
-          clique = obs.cachedFactor;
-          if (obs.impossibleObservation) {
-            impossibleObservationMade = true;
-          }
-        }
-      }
-
-      // Otherwise make a new cache
-
-      if (clique == null) {
-        int[] observations = new int[f.neigborIndices.length];
-        for (int i = 0; i < observations.length; i++) {
-          Map<String, String> metadata = model.getVariableMetaDataByReference(f.neigborIndices[i]);
-          if (metadata.containsKey(VARIABLE_OBSERVED_VALUE)) {
-            int value = Integer.parseInt(metadata.get(VARIABLE_OBSERVED_VALUE));
-            observations[i] = value;
-          } else {
-            observations[i] = -1;
-          }
-        }
-
-        clique = new TableFactor(weights, f, observations);
-
-        CachedFactorWithObservations cache = new CachedFactorWithObservations();
-        cache.cachedFactor = clique;
-        cache.observations = observations;
-
-        // Check for an impossible observation
-        boolean nonZeroValue = false;
-        for (int[] assignment : clique) {
-          double assignmentValue = clique.getAssignmentValue(assignment);
-          assert assignmentValue >= 0.0;
-          if (assignmentValue > 0) {
-            nonZeroValue = true;
-            break;
-          }
-        }
-        if (!nonZeroValue) {
-          impossibleObservationMade = true;
-          cache.impossibleObservation = true;
-        }
-
-        cachedFactors.put(f, cache);
-      }
-
-      cliqueToFactor.put(cliquesList.size(), f);
-      cliquesList.add(clique);
-    }
-
-    TableFactor[] cliques = cliquesList.toArray(new TableFactor[cliquesList.size()]);
-
-    // If we made any impossible observations, we can just return a uniform distribution for all the variables that
-    // weren't observed, since that's the semantically correct thing to do (our 'probability' is broken at this
-    // point).
-
-    if (impossibleObservationMade) {
-      int maxVar = 0;
-      for (TableFactor c : cliques) {
-        for (int i : c.neighborIndices) if (i > maxVar) maxVar = i;
-      }
-
-      double[][] result = new double[maxVar + 1][];
+      double[][] result = new double[maxVar + 1][];
 
       for (TableFactor c : cliques) {
         for (int i = 0; i < c.neighborIndices.length; i++) {
@@ -387,141 +1036,60 @@ public class CliqueTree {
       // Create a bunch of uniform joint marginals, constrained by observations, and fill up the joint marginals
       // with them
 
-      Map<GraphicalModel.Factor, TableFactor> jointMarginals = new IdentityHashMap<>();
-      if (includeJointMarginalsAndPartition) {
-        for (GraphicalModel.Factor f : model.factors) {
-          TableFactor uniformZero = new TableFactor(f.neigborIndices, f.getDimensions());
-
-          for (int[] assignment : uniformZero) {
-            uniformZero.setAssignmentValue(assignment, 0.0);
-          }
+      GraphicalModel.Factor[] factors = includeJointMarginalsAndPartition ?
+          model.factors.toArray(new GraphicalModel.Factor[model.factors.size()]) : new GraphicalModel.Factor[0];
+      int[] offsets = MarginalResult.computeOffsets(factors);
 
-          jointMarginals.put(f, uniformZero);
-        }
-      }
-
-      return new MarginalResult(result, 1.0, jointMarginals, new int[result.length]);
+      return new MarginalResult(result, 1.0, factors, new double[offsets[factors.length]], offsets, new int[result.length]);
     }
 
-    // Find the number of variables in the model, so that we can size arrays appropriately
+    // OPTIMIZATION:
+    // Shapes we've seen before run as a compiled program over a flat workspace, which gives exactly the same answers as
+    // the general purpose message passing below, without any of its allocation or bookkeeping
 
-    int maxVar = 0;
-    for (GraphicalModel.Factor fac : model.factors) {
-      for (int i : fac.neigborIndices) if (i > maxVar) maxVar = i;
+    if (marginalize == MarginalizationMethod.SUM && useCompiledPrograms && profilingListener == null) {
+      InferenceProgram program = getProgram(forest, includeJointMarginalsAndPartition);
+      if (program != null) {
+        if (programWorkspace == null) programWorkspace = new InferenceProgram.Workspace();
+        return program.execute(programWorkspace, cliques, forest.cliqueToFactors, model, observations, partitionFunction);
+      }
     }
 
-    // Indexed by (start-clique, end-clique), this array will remain mostly null in most graphs
-
-    TableFactor[][] messages = new TableFactor[cliques.length][cliques.length];
-    boolean[][] backwardPassedMessages = new boolean[cliques.length][cliques.length];
-
-    // Create the data structures to hold the tree pattern
-
-    boolean[] visited = new boolean[cliques.length];
-    int numVisited = 0;
-    int[] visitedOrder = new int[cliques.length];
-
-    int[] parent = new int[cliques.length];
-    for (int i = 0; i < parent.length; i++) parent[i] = -1;
-    // Figure out which cliques are connected to which trees. This is important for calculating the partition
-    // function later, since each tree will converge to its own partition function by multiplication, and we will
-    // need to multiply the partition function of each of the trees to get the global one.
-    int[] trees = new int[cliques.length];
-
-    // Forward pass, record a BFS forest pattern that we can use for message passing
+    // Find the number of variables in the model, so that we can size arrays appropriately
 
-    int treeIndex = -1;
-    boolean[] seenVariable = new boolean[maxVar + 1];
-    while (numVisited < cliques.length) {
-      treeIndex++;
+    int maxVar = Math.max(model.getMaxVariable(), 0);
 
-      // Pick the largest connected graph remaining as the root for message passing
+    List<List<GraphicalModel.Factor>> cliqueToFactors = forest.cliqueToFactors;
+    int[] parent = forest.parent;
+    int[] visitedOrder = forest.visitedOrder;
+    int[] trees = forest.trees;
+    int numVisited = cliques.length;
+    int treeIndex = forest.numTrees - 1;
 
-      int root = -1;
-      for (int i = 0; i < cliques.length; i++) {
-        if (!visited[i] &&
-            (root == -1 || cliques[i].neighborIndices.length > cliques[root].neighborIndices.length)) {
-          root = i;
-        }
-      }
-      assert (root != -1);
-
-      Queue<Integer> toVisit = new ArrayDeque<>();
-      toVisit.add(root);
-      boolean[] toVisitArray = new boolean[cliques.length];
-      toVisitArray[root] = true;
-
-      while (toVisit.size() > 0) {
-        int cursor = toVisit.poll();
-        // toVisitArray[cursor] = false;
-        trees[cursor] = treeIndex;
-        if (visited[cursor]) {
-          log.info("Visited contains: " + cursor);
-          log.info("Visited: " + Arrays.toString(visited));
-          log.info("To visit: " + toVisit);
-        }
-        assert (!visited[cursor]);
-        visited[cursor] = true;
-        visitedOrder[numVisited] = cursor;
-        for (int i : cliques[cursor].neighborIndices) seenVariable[i] = true;
-        numVisited++;
-
-        childLoop:
-        for (int i = 0; i < cliques.length; i++) {
-          if (i == cursor) continue;
-          if (i == parent[cursor]) continue;
-          if (domainsOverlap(cliques[cursor], cliques[i])) {
-
-            // Make sure that for every variable that we've already seen somewhere in the graph, if it's
-            // in the child, it's in the parent. Otherwise we'll break the property of continuous
-            // transmission of information about variables through messages.
-
-            childNeighborLoop:
-            for (int child : cliques[i].neighborIndices) {
-              if (seenVariable[child]) {
-                for (int j : cliques[cursor].neighborIndices) {
-                  if (j == child) {
-                    continue childNeighborLoop;
-                  }
-                }
-                // If we get here it means that this clique is not good as a child, since we can't pass
-                // it all the information it needs from other elements of the tree
-                continue childLoop;
-              }
-            }
+    // Indexed by (start-clique, end-clique), this array will remain mostly null in most graphs
 
-            if (parent[i] == -1 && !visited[i]) {
-              if (!toVisitArray[i]) {
-                toVisit.add(i);
-                toVisitArray[i] = true;
-                for (int j : cliques[i].neighborIndices) seenVariable[j] = true;
-              }
-              parent[i] = cursor;
-            }
-          }
-        }
-      }
-      // No cycles in the tree
-      assert (parent[root] == -1);
+    TableFactor[][] messages = messageScratch;
+    if (messages == null || messages.length != cliques.length) {
+      messages = new TableFactor[cliques.length][cliques.length];
+      messageScratch = messages;
+    } else {
+      for (TableFactor[] row : messages) Arrays.fill(row, null);
     }
 
-    assert (numVisited == cliques.length);
-
     // Backward pass, run the visited list in reverse
 
     for (int i = numVisited - 1; i >= 0; i--) {
+      checkDeadline(deadline);
       int cursor = visitedOrder[i];
       if (parent[cursor] == -1) continue;
 
-      backwardPassedMessages[cursor][parent[cursor]] = true;
-
       // Calculate the message to the clique's parent, given all incoming messages so far
 
       TableFactor message = cliques[cursor];
       for (int k = 0; k < cliques.length; k++) {
         if (k == parent[cursor]) continue;
         if (messages[k][cursor] != null) {
-          message = message.multiply(messages[k][cursor]);
+          message = countedMultiply(message, messages[k][cursor]);
         }
       }
 
@@ -532,20 +1100,12 @@ public class CliqueTree {
 
     // Setup for MAP calculation
 
-    int[] bestGlobalAssignment = new int[maxVar+1];
-    for (int i = 0; i < maxVar+1; i++) {
-      Map<String, String> metadata = model.getVariableMetaDataByReference(i);
-      if (metadata.containsKey(VARIABLE_OBSERVED_VALUE)) {
-        int value = Integer.parseInt(metadata.get(VARIABLE_OBSERVED_VALUE));
-        bestGlobalAssignment[i] = value;
-      } else {
-        bestGlobalAssignment[i] = -1;
-      }
-    }
+    int[] bestGlobalAssignment = Arrays.copyOf(observations, maxVar + 1);
 
     // Forward pass, run the visited list forward
 
     for (int i = 0; i < numVisited; i++) {
+      checkDeadline(deadline);
       int cursor = visitedOrder[i];
 
       // For each child of the cursor
@@ -558,7 +1118,7 @@ public class CliqueTree {
         for (int k = 0; k < cliques.length; k++) {
           if (k == j) continue;
           if (messages[k][cursor] != null) {
-            message = message.multiply(messages[k][cursor]);
+            message = countedMultiply(message, messages[k][cursor]);
           }
         }
 
@@ -573,7 +1133,7 @@ public class CliqueTree {
         for (int j = 0; j < cliques.length; j++) {
           if (parent[cursor] == j) continue;
           if (messages[j][cursor] != null) {
-            mapFactor = mapFactor.multiply(messages[j][cursor]);
+            mapFactor = countedMultiply(mapFactor, messages[j][cursor]);
           }
         }
 
@@ -587,8 +1147,8 @@ public class CliqueTree {
         Iterator<int[]> fastPassByReferenceIterator = mapFactor.fastPassByReferenceIterator();
         do {
           int[] assignment = fastPassByReferenceIterator.next();
-          double v = mapFactor.getAssignmentValue(assignment);
-          if (v > bestAssignmentValue) {
+          double v = mapFactor.getAssignmentLogValue(assignment);
+          if (bestAssignment == null || v > bestAssignmentValue) {
             // Check if this is consistent with our global state
             boolean isConsistent = true;
             for (int k = 0; k < assignment.length; k++) {
@@ -620,22 +1180,18 @@ public class CliqueTree {
 
     // Include observed variables as deterministic
 
-    for (GraphicalModel.Factor fac : model.factors) {
-      for (int i = 0; i < fac.neigborIndices.length; i++) {
-        int n = fac.neigborIndices[i];
-        if (model.getVariableMetaDataByReference(n).containsKey(VARIABLE_OBSERVED_VALUE)) {
-          double[] deterministic = new double[fac.getDimensions()[i]];
-          int assignment = Integer.parseInt(model.getVariableMetaDataByReference(n).get(VARIABLE_OBSERVED_VALUE));
-          if (assignment > deterministic.length) {
-            throw new IllegalStateException("Variable " + n + ": Can't have as assignment (" + assignment + ") that is out of bounds for dimension size (" + deterministic.length + ")");
-          }
-          deterministic[assignment] = 1.0;
-          marginals[n] = deterministic;
-        }
-      }
-    }
+    fillObservedMarginals(model, observations, marginals);
+
+    // OPTIMIZATION:
+    // Joint marginals all go into one contiguous array, indexed by factor position, rather than a TableFactor each
 
-    Map<GraphicalModel.Factor, TableFactor> jointMarginals = new IdentityHashMap<>();
+    GraphicalModel.Factor[] factors = includeJointMarginalsAndPartition ?
+        model.factors.toArray(new GraphicalModel.Factor[model.factors.size()]) : new GraphicalModel.Factor[0];
+    int[] jointMarginalOffsets = MarginalResult.computeOffsets(factors);
+    double[] jointMarginalValues = new double[jointMarginalOffsets[factors.length]];
+    boolean[] hasJointMarginal = new boolean[factors.length];
+    IdentityHashMap<GraphicalModel.Factor, Integer> factorIndices = new IdentityHashMap<>();
+    for (int i = 0; i < factors.length; i++) factorIndices.put(factors[i], i);
 
     if (includeJointMarginalsAndPartition) {
       boolean[] partitionIncludesTrees = new boolean[treeIndex + 1];
@@ -647,7 +1203,7 @@ public class CliqueTree {
         for (int j = 0; j < cliques.length; j++) {
           if (i == j) continue;
           if (messages[j][i] == null) continue;
-          convergedClique = convergedClique.multiply(messages[j][i]);
+          convergedClique = countedMultiply(convergedClique, messages[j][i]);
         }
 
         // It doesn't make sense to calculate a partition function for MAP message passing
@@ -681,66 +1237,69 @@ public class CliqueTree {
           }
         }
 
-        // Calculate the factor this clique corresponds to, and put in an entry for joint marginals
+        // Calculate the factors this clique corresponds to, and put in an entry for joint marginals
 
-        GraphicalModel.Factor f = cliqueToFactor.get(i);
-        assert (f != null);
-        if (!jointMarginals.containsKey(f)) {
-          int[] observedAssignments = getObservedAssignments(f);
+        for (GraphicalModel.Factor f : cliqueToFactors.get(i)) {
+          int factorIndex = factorIndices.get(f);
+          if (hasJointMarginal[factorIndex]) continue;
+          hasJointMarginal[factorIndex] = true;
+          int[] observedAssignments = getObservedAssignments(f, observations);
+
+          // A junction tree clique can be bigger than the factor, so first reduce it to just the factor's variables
+
+          int[] unobserved = new int[f.neigborIndices.length];
+          int numUnobserved = 0;
+          for (int j = 0; j < observedAssignments.length; j++) {
+            if (observedAssignments[j] == -1) unobserved[numUnobserved++] = f.neigborIndices[j];
+          }
+          TableFactor factorClique = convergedClique;
+          if (convergedClique.neighborIndices.length != numUnobserved) {
+            factorClique = marginalizeMessage(convergedClique, Arrays.copyOf(unobserved, numUnobserved), marginalize);
+          }
 
-          // Collect back pointers and check if this factor matches the clique we're using
+          // Collect back pointers from the factor's variables into the clique's variables
 
           int[] backPointers = new int[observedAssignments.length];
-          int cursor = 0;
           for (int j = 0; j < observedAssignments.length; j++) {
+            backPointers[j] = -1;
             if (observedAssignments[j] == -1) {
-              backPointers[j] = cursor;
-              cursor++;
+              for (int k = 0; k < factorClique.neighborIndices.length; k++) {
+                if (factorClique.neighborIndices[k] == f.neigborIndices[j]) {
+                  backPointers[j] = k;
+                  break;
+                }
+              }
+              assert (backPointers[j] != -1);
             }
-            // This is not strictly necessary but will trigger array OOB exception if things go wrong, so is nice
-            else backPointers[j] = -1;
           }
 
-          double sum = convergedClique.valueSum();
+          double sum = factorClique.valueSum();
           assert(sum > 0);
 
-          TableFactor jointMarginal = new TableFactor(f.neigborIndices, f.getDimensions());
+          int[] factorDims = f.getDimensions();
+          int offset = jointMarginalOffsets[factorIndex];
 
           // OPTIMIZATION:
           // Rather than use the standard iterator, which creates lots of int[] arrays on the heap, which need to be GC'd,
           // we use the fast version that just mutates one array. Since this is read once for us here, this is ideal.
-          Iterator<int[]> fastPassByReferenceIterator = convergedClique.fastPassByReferenceIterator();
+          int[] jointAssignment = new int[backPointers.length];
+          Iterator<int[]> fastPassByReferenceIterator = factorClique.fastPassByReferenceIterator();
           do {
             int[] assignment = fastPassByReferenceIterator.next();
-            if (backPointers.length == assignment.length) {
-              // Normalize if we're doing SUM (inference) message passing
-              if (marginalize == MarginalizationMethod.SUM) {
-                jointMarginal.setAssignmentValue(assignment, convergedClique.getAssignmentValue(assignment) / sum);
-              }
-              // Don't normalize if we're doing MAX (MAP) message passing
-              else if (marginalize == MarginalizationMethod.MAX) {
-                jointMarginal.setAssignmentValue(assignment, convergedClique.getAssignmentValue(assignment));
-              }
-            } else {
-              int[] jointAssignment = new int[backPointers.length];
-              for (int j = 0; j < jointAssignment.length; j++) {
-                if (observedAssignments[j] != -1) jointAssignment[j] = observedAssignments[j];
-                else jointAssignment[j] = assignment[backPointers[j]];
-              }
-              // Normalize if we're doing SUM (inference) message passing
-              if (marginalize == MarginalizationMethod.SUM) {
-                jointMarginal.setAssignmentValue(jointAssignment, convergedClique.getAssignmentValue(assignment) / sum);
-              }
-              // Don't normalize if we're doing MAX (MAP) message passing
-              else if (marginalize == MarginalizationMethod.MAX) {
-                jointMarginal.setAssignmentValue(jointAssignment, convergedClique.getAssignmentValue(assignment));
-              }
+            for (int j = 0; j < jointAssignment.length; j++) {
+              if (observedAssignments[j] != -1) jointAssignment[j] = observedAssignments[j];
+              else jointAssignment[j] = assignment[backPointers[j]];
+            }
+            int index = offset + MarginalResult.flatIndex(factorDims, jointAssignment);
+            // Normalize if we're doing SUM (inference) message passing
+            if (marginalize == MarginalizationMethod.SUM) {
+              jointMarginalValues[index] = factorClique.getAssignmentValue(assignment) / sum;
+            }
+            // Don't normalize if we're doing MAX (MAP) message passing
+            else if (marginalize == MarginalizationMethod.MAX) {
+              jointMarginalValues[index] = factorClique.getAssignmentValue(assignment);
             }
-
-            // Set the assignment arrays correctly
           } while (fastPassByReferenceIterator.hasNext());
-
-          jointMarginals.put(f, jointMarginal);
         }
 
         boolean anyNull = false;
@@ -786,7 +1345,7 @@ public class CliqueTree {
           for (int j = 0; j < cliques.length; j++) {
             if (i == j) continue;
             if (messages[j][i] == null) continue;
-            convergedClique = convergedClique.multiply(messages[j][i]);
+            convergedClique = countedMultiply(convergedClique, messages[j][i]);
           }
 
           double[][] cliqueMarginals = null;
@@ -822,7 +1381,7 @@ public class CliqueTree {
           for (int j = 0; j < cliques.length; j++) {
             if (i == j) continue;
             if (messages[j][i] == null) continue;
-            convergedClique = convergedClique.multiply(messages[j][i]);
+            convergedClique = countedMultiply(convergedClique, messages[j][i]);
           }
 
           double[][] cliqueMarginals = null;
@@ -844,36 +1403,689 @@ public class CliqueTree {
       }
     }
 
-    // Add any factors to the joint marginal map that were fully observed and so didn't get cliques
-    if (marginalize == MarginalizationMethod.SUM && includeJointMarginalsAndPartition) {
-      for (GraphicalModel.Factor f : model.factors) {
-        if (!jointMarginals.containsKey(f)) {
-          // This implies that every variable in the factor is observed. If that's the case, we need to construct
-          // a one hot TableFactor representing the deterministic distribution.
-          TableFactor deterministicJointMarginal = new TableFactor(f.neigborIndices, f.getDimensions());
-          int[] observedAssignment = getObservedAssignments(f);
-          for (int i : observedAssignment) assert (i != -1);
-          deterministicJointMarginal.setAssignmentValue(observedAssignment, 1.0);
+    // Add any factors to the joint marginals that were fully observed and so didn't get cliques
+    for (int i = 0; i < factors.length; i++) {
+      if (!hasJointMarginal[i]) {
+        // This implies that every variable in the factor is observed. If that's the case, we need to construct
+        // a one hot table representing the deterministic distribution.
+        int[] observedAssignment = getObservedAssignments(factors[i], observations);
+        for (int j : observedAssignment) assert (j != -1);
+        jointMarginalValues[jointMarginalOffsets[i] + MarginalResult.flatIndex(factors[i].getDimensions(), observedAssignment)] = 1.0;
+      }
+    }
+
+    assert !Double.isNaN(partitionFunction);
+    if (profilingListener != null) {
+      profilingListener.onMessagePassing(new InferenceProfile(cliques.length, forest.estimatedFlops, flopCounter, System.nanoTime() - startTime));
+    }
+
+    return new MarginalResult(marginals, partitionFunction, factors, jointMarginalValues, jointMarginalOffsets, bestGlobalAssignment);
+  }
+
+  /**
+   * The cliques for message passing, and the forest pattern that messages flow along. Every parent comes before all of
+   * its children in visitedOrder.
+   */
+  static class CliqueForest {
+    TableFactor[] cliques;
+    List<List<GraphicalModel.Factor>> cliqueToFactors;
+    boolean impossibleObservationMade;
+    int[] parent;
+    int[] visitedOrder;
+    int[] trees;
+    int numTrees;
+    long estimatedFlops;
+    // The shared layout this forest came from, which also holds its compiled programs
+    ForestLayout layout;
+  }
 
-          jointMarginals.put(f, deterministicJointMarginal);
+  /**
+   * Thrown from deep inside inference when a deadline passes, and caught by calculateMAP(timeout). This never escapes
+   * to callers.
+   */
+  static class DeadlineExceededException extends RuntimeException {
+    private static final long serialVersionUID = 3170682257136451849L;
+
+    DeadlineExceededException() {
+      // Skip filling in the stack trace, since this is control flow rather than an error
+      super(null, null, false, false);
+    }
+  }
+
+  static void checkDeadline(long deadline) {
+    if (deadline != Long.MAX_VALUE && System.nanoTime() - deadline > 0) throw new DeadlineExceededException();
+  }
+
+  /**
+   * Sets the marginal of every observed variable to a one hot distribution on its observation.
+   *
+   * @param model        the model, whose factors give the sizes of the variables
+   * @param observations the observed value of each variable, or -1
+   * @param marginals    the marginals to fill in, indexed by variable
+   */
+  static void fillObservedMarginals(GraphicalModel model, int[] observations, double[][] marginals) {
+    for (GraphicalModel.Factor fac : model.factors) {
+      for (int i = 0; i < fac.neigborIndices.length; i++) {
+        int n = fac.neigborIndices[i];
+        if (observations[n] != -1) {
+          double[] deterministic = new double[fac.getDimensions()[i]];
+          int assignment = observations[n];
+          if (assignment > deterministic.length) {
+            throw new IllegalStateException("Variable " + n + ": Can't have as assignment (" + assignment + ") that is out of bounds for dimension size (" + deterministic.length + ")");
+          }
+          deterministic[assignment] = 1.0;
+          marginals[n] = deterministic;
         }
       }
     }
+  }
 
-    assert !Double.isNaN(partitionFunction);
-    return new MarginalResult(marginals, partitionFunction, jointMarginals, bestGlobalAssignment);
+  /**
+   * Turns compiled programs on or off, so that tests can check them against the general purpose message passing.
+   */
+  void setUseCompiledPrograms(boolean useCompiledPrograms) {
+    this.useCompiledPrograms = useCompiledPrograms;
   }
 
-  private int[] getObservedAssignments(GraphicalModel.Factor f) {
+  /**
+   * Gets the compiled program for a forest's shape, compiling it the first time the shape is seen. Layouts are shared
+   * between threads, so a program is published with a compare-and-set. Two threads may both compile a new shape, in
+   * which case they agree on whichever program was set first.
+   *
+   * @return the program, or null if the forest has no cached layout or isn't a shape programs cover
+   */
+  private static InferenceProgram getProgram(CliqueForest forest, boolean includeJointMarginalsAndPartition) {
+    ForestLayout layout = forest.layout;
+    if (layout == null || layout.junctionTree != null) return null;
+    int slot = includeJointMarginalsAndPartition ? 1 : 0;
+    Optional<InferenceProgram> program = layout.programs.get(slot);
+    if (program == null) {
+      layout.programs.compareAndSet(slot, null, Optional.ofNullable(InferenceProgram.compile(forest.cliques,
+          forest.parent, forest.visitedOrder, includeJointMarginalsAndPartition)));
+      program = layout.programs.get(slot);
+    }
+    return program.orElse(null);
+  }
+
+  /**
+   * Scores the factors whose variables are all observed. Message passing leaves them out, but their value at the
+   * observation still counts towards the partition function.
+   *
+   * @param observations the observed value of each variable, or -1
+   * @return the summed log value of the fully observed factors, or negative infinity if any of them is impossible
+   */
+  double observedLogLikelihood(int[] observations) {
+    double logLikelihood = 0.0;
+    outer:
+    for (GraphicalModel.Factor f : model.factors) {
+      int[] assignment = new int[f.neigborIndices.length];
+      for (int i = 0; i < f.neigborIndices.length; i++) {
+        assignment[i] = observations[f.neigborIndices[i]];
+        if (assignment[i] == -1) continue outer;
+      }
+
+      double assignmentValue = f.getAssignmentValue(assignment, weights);
+      if (Double.isInfinite(assignmentValue)) return Double.NEGATIVE_INFINITY;
+      assert !Double.isNaN(assignmentValue);
+      logLikelihood += assignmentValue;
+    }
+    return logLikelihood;
+  }
+
+  /**
+   * @return the observed value of every variable touched by a factor, or -1 if it isn't observed
+   */
+  int[] getObservations() {
+    int maxVar = model.getMaxVariable();
+    int[] observations = model.getObservedValues(maxVar + 1);
+    return observations;
+  }
+
+  /**
+   * Picks out the allowed-value masks for a factor's unobserved neighbors.
+   *
+   * @return the mask for each of the factor's neighbors, or null if none of its unobserved neighbors are masked
+   */
+  private boolean[][] getFactorMasks(GraphicalModel.Factor f, int[] factorObservations) {
+    if (allowedValues == null) return null;
+    boolean[][] factorMasks = null;
+    for (int i = 0; i < f.neigborIndices.length; i++) {
+      int n = f.neigborIndices[i];
+      if (factorObservations[i] != -1 || n >= allowedValues.length || allowedValues[n] == null) continue;
+      if (factorMasks == null) factorMasks = new boolean[f.neigborIndices.length][];
+      factorMasks[i] = allowedValues[n];
+    }
+    return factorMasks;
+  }
+
+  /**
+   * Checks that every mask is the size of its variable, and leaves every unobserved variable at least one value.
+   */
+  private void checkAllowedValues(boolean[][] allowedValues) {
+    int[] observations = compiled != null ? compiled.observations : getObservations();
+    int[] variableSizes = getVariableSizes(observations.length);
+    for (int i = 0; i < Math.min(allowedValues.length, observations.length); i++) {
+      if (allowedValues[i] == null || variableSizes[i] == 0) continue;
+      if (allowedValues[i].length != variableSizes[i]) {
+        throw new IllegalArgumentException("Variable " + i + ": Mask has " + allowedValues[i].length + " values, but the variable has " + variableSizes[i]);
+      }
+      if (observations[i] != -1) continue;
+      boolean anyAllowed = false;
+      for (boolean allowed : allowedValues[i]) anyAllowed |= allowed;
+      if (!anyAllowed) {
+        throw new IllegalArgumentException("Variable " + i + ": Mask doesn't allow any values");
+      }
+    }
+  }
+
+  /**
+   * @return the number of values each variable can take, read off the factors that touch it
+   */
+  private int[] getVariableSizes(int numVariables) {
+    int[] variableSizes = new int[numVariables];
+    for (int i = 0; i < numVariables; i++) variableSizes[i] = Math.max(model.getVariableSize(i), 0);
+    return variableSizes;
+  }
+
+  /**
+   * Builds a model over just the surviving states of every variable, with one static factor per original factor that
+   * holds the original log values at the surviving entries. Observed variables are left with a single state, which is
+   * the same thing as observing them. Only the surviving entries are ever scored against the weights.
+   *
+   * @param factors        the original factors
+   * @param domains        the original values that survive for each variable
+   * @param reducedFactors filled with the reduced factor for each original factor, by position
+   * @return the reduced model
+   */
+  private GraphicalModel buildReducedModel(GraphicalModel.Factor[] factors, int[][] domains, GraphicalModel.Factor[] reducedFactors) {
+    GraphicalModel reducedModel = new GraphicalModel();
+    for (int i = 0; i < factors.length; i++) {
+      GraphicalModel.Factor factor = factors[i];
+      int[] reducedDims = new int[factor.neigborIndices.length];
+      for (int j = 0; j < reducedDims.length; j++) reducedDims[j] = domains[factor.neigborIndices[j]].length;
+      reducedFactors[i] = reducedModel.addStaticFactor(factor.neigborIndices, reducedDims, assignment -> {
+        int[] original = new int[assignment.length];
+        for (int j = 0; j < assignment.length; j++) original[j] = domains[factor.neigborIndices[j]][assignment[j]];
+        return factor.getAssignmentValue(original, weights);
+      });
+    }
+    return reducedModel;
+  }
+
+  /**
+   * Builds a clique for every factor that isn't fully observed, reusing cached cliques where the observations haven't
+   * changed, and then lays the cliques out as a forest that respects the running intersection property. If the model
+   * has cycles, the cliques are replaced by the cliques of a junction tree. If any observation is impossible, the
+   * cliques are returned without a forest layout.
+   *
+   * @return the cliques, and the forest to pass messages along
+   */
+  CliqueForest buildCliqueForest() {
+    return buildCliqueForest(getObservations());
+  }
+
+  /**
+   * Builds the clique forest, as buildCliqueForest(), given observations that have already been read out of the model.
+   *
+   * @param observations the observed value of each variable, or -1
+   * @return the cliques, and the forest to pass messages along
+   */
+  CliqueForest buildCliqueForest(int[] observations) {
+    CliqueForest forest = new CliqueForest();
+    boolean impossibleObservationMade = false;
+
+    // Create the cliques by observing each factor first, and then only dot producting the slice that's left. Fully
+    // observed factors get no clique at all, and only contribute their single observed value to the partition function.
+
+    List<TableFactor> cliquesList = new ArrayList<>();
+    List<List<GraphicalModel.Factor>> cliqueToFactors = new ArrayList<>();
+    Object weightsKey = null;
+
+    for (GraphicalModel.Factor f : model.factors) {
+      checkDeadline(deadline);
+      int[] factorObservations = getObservedAssignments(f, observations);
+      boolean allObserved = true;
+      for (int observation : factorObservations) {
+        if (observation == -1) allObserved = false;
+      }
+      if (allObserved) continue;
+
+      TableFactor clique = null;
+      boolean[][] factorMasks = getFactorMasks(f, factorObservations);
+
+      // Retrieve cache if exists and none of the observations have changed. Masked factors are one-offs, and are never
+      // cached.
+
+      CachedFactorWithObservations obs = factorMasks == null ? cachedFactors.get(f) : null;
+      if (obs != null && Arrays.equals(obs.observations, factorObservations)) {
+        clique = obs.cachedFactor;
+        if (obs.impossibleObservation) {
+          impossibleObservationMade = true;
+        }
+      }
+
+      // Otherwise make a new cache
+
+      if (clique == null) {
+        if (factorMasks != null) {
+          clique = new TableFactor(weights, f, factorObservations, factorMasks);
+        } else if (ScoredFactorCache.isShared(f)) {
+          // OPTIMIZATION:
+          // Tables marked as shared across models are scored once per weights version and observation pattern
+
+          if (weightsKey == null) weightsKey = weights.getContentKey();
+          clique = ScoredFactorCache.score(weights, weightsKey, f, factorObservations);
+        } else {
+          clique = new TableFactor(weights, f, factorObservations);
+        }
+
+        CachedFactorWithObservations cache = new CachedFactorWithObservations();
+        cache.cachedFactor = clique;
+        cache.observations = factorObservations;
+
+        // Check for an impossible observation
+        boolean nonZeroValue = false;
+        for (double logValue : clique.getLogValues()) {
+          if (Math.exp(logValue) > 0) {
+            nonZeroValue = true;
+            break;
+          }
+        }
+        if (!nonZeroValue) {
+          impossibleObservationMade = true;
+          cache.impossibleObservation = true;
+        }
+
+        if (factorMasks == null) cachedFactors.put(f, cache);
+      }
+
+      cliqueToFactors.add(Collections.singletonList(f));
+      cliquesList.add(clique);
+    }
+
+    // OPTIMIZATION:
+    // model.factors iterates in the order factors were added, which changes from model to model. We sort the cliques by scope, so
+    // that models with the same shape always produce the same clique order. That lets us lay out the forest once per
+    // shape, and reuse it for every model with that shape.
+
+    Integer[] canonicalOrder = new Integer[cliquesList.size()];
+    for (int i = 0; i < canonicalOrder.length; i++) canonicalOrder[i] = i;
+    Arrays.sort(canonicalOrder, (a, b) -> compareScopes(cliquesList.get(a), cliquesList.get(b)));
+
+    TableFactor[] cliques = new TableFactor[canonicalOrder.length];
+    List<List<GraphicalModel.Factor>> cliqueFactors = new ArrayList<>();
+    for (int i = 0; i < canonicalOrder.length; i++) {
+      cliques[i] = cliquesList.get(canonicalOrder[i]);
+      cliqueFactors.add(cliqueToFactors.get(canonicalOrder[i]));
+    }
+
+    forest.cliques = cliques;
+    forest.cliqueToFactors = cliqueFactors;
+    if (impossibleObservationMade) {
+      forest.impossibleObservationMade = true;
+      return forest;
+    }
+
+    int maxVar = 0;
+    for (TableFactor c : cliques) {
+      for (int i : c.neighborIndices) if (i > maxVar) maxVar = i;
+    }
+    int[][] scopes = new int[cliques.length][];
+    int[] variableSizes = new int[maxVar + 1];
+    for (int i = 0; i < cliques.length; i++) {
+      scopes[i] = cliques[i].neighborIndices;
+      for (int j = 0; j < scopes[i].length; j++) {
+        variableSizes[scopes[i][j]] = cliques[i].getDimensions()[j];
+      }
+    }
+
+    JunctionTree.ShapeKey shape = new JunctionTree.ShapeKey(scopes, variableSizes, triangulationHeuristic);
+    ForestLayout layout = cachedLayouts.get(shape);
+    if (layout == null) {
+      layout = layoutForest(cliques, scopes, variableSizes, maxVar);
+      cachedLayouts.put(shape, layout);
+    }
+
+    // If the model has cycles, we pass messages over the cliques of a junction tree instead, which keeps inference
+    // exact. Each junction tree clique starts out uniform, and then we multiply in the factors assigned to it.
+
+    if (layout.junctionTree != null) {
+      JunctionTree junctionTree = layout.junctionTree;
+      TableFactor[] junctionCliques = new TableFactor[junctionTree.size()];
+      List<List<GraphicalModel.Factor>> junctionCliqueToFactors = new ArrayList<>();
+      for (int i = 0; i < junctionCliques.length; i++) {
+        junctionCliques[i] = new TableFactor(junctionTree.cliqueVariables[i], junctionTree.cliqueDimensions[i]);
+        for (int[] assignment : junctionCliques[i]) {
+          junctionCliques[i].setAssignmentValue(assignment, 1.0);
+        }
+        junctionCliqueToFactors.add(new ArrayList<>());
+      }
+      for (int i = 0; i < cliques.length; i++) {
+        int home = junctionTree.scopeToClique[i];
+        junctionCliques[home] = junctionCliques[home].multiply(cliques[i]);
+        junctionCliqueToFactors.get(home).addAll(cliqueFactors.get(i));
+      }
+      forest.cliques = junctionCliques;
+      forest.cliqueToFactors = junctionCliqueToFactors;
+    }
+
+    forest.parent = layout.parent;
+    forest.visitedOrder = layout.visitedOrder;
+    forest.trees = layout.trees;
+    forest.numTrees = layout.numTrees;
+    forest.estimatedFlops = layout.estimatedFlops;
+    forest.layout = layout;
+    return forest;
+  }
+
+  /**
+   * The shape-dependent part of a CliqueForest: the pattern that messages flow along, and the junction tree to build
+   * cliques from if the model has cycles. These are read-only once they're created, so they're shared between all the
+   * models with the same shape.
+   */
+  private static class ForestLayout {
+    int[] parent;
+    int[] visitedOrder;
+    int[] trees;
+    int numTrees;
+    JunctionTree junctionTree;
+    // What the cost model expects a full calculateMarginals() to cost over this layout
+    long estimatedFlops;
+    // Compiled programs for sum-product without and with joint marginals, compiled the first time they're needed. A
+    // slot is null until then, and empty if the shape isn't one that programs cover.
+    final AtomicReferenceArray<Optional<InferenceProgram>> programs = new AtomicReferenceArray<>(2);
+  }
+
+  private static final int MAX_CACHED_LAYOUTS = 1024;
+
+  private static final Map<JunctionTree.ShapeKey, ForestLayout> cachedLayouts = Collections.synchronizedMap(
+      new LinkedHashMap<JunctionTree.ShapeKey, ForestLayout>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<JunctionTree.ShapeKey, ForestLayout> eldest) {
+          return size() > MAX_CACHED_LAYOUTS;
+        }
+      });
+
+  /**
+   * Orders cliques by their scopes (variables, then variable sizes), which is all a forest layout depends on.
+   */
+  private static int compareScopes(TableFactor a, TableFactor b) {
+    if (a.neighborIndices.length != b.neighborIndices.length) {
+      return Integer.compare(a.neighborIndices.length, b.neighborIndices.length);
+    }
+    for (int i = 0; i < a.neighborIndices.length; i++) {
+      if (a.neighborIndices[i] != b.neighborIndices[i]) return Integer.compare(a.neighborIndices[i], b.neighborIndices[i]);
+    }
+    int[] aDims = a.getDimensions();
+    int[] bDims = b.getDimensions();
+    for (int i = 0; i < aDims.length; i++) {
+      if (aDims[i] != bDims[i]) return Integer.compare(aDims[i], bDims[i]);
+    }
+    return 0;
+  }
+
+  /**
+   * Lays out a forest over the cliques for message passing, using a cost model over the clique sizes.
+   * <p>
+   * Every message a clique receives is over a subset of its own variables, so every intermediate product in message
+   * passing is exactly the size of the clique doing the multiplying. What drives the cost is therefore how many
+   * products each clique has to do, which grows with the square of its degree (see estimateFlops()). The old layout
+   * hung everything off the largest clique by BFS, which turns a big clique with many small neighbors into a very
+   * expensive hub. Instead we take a maximum spanning forest over the shared variables (which is what keeps the running
+   * intersection property), breaking ties towards edges between small cliques, so that small cliques chain off each
+   * other rather than all multiplying into a big one. Then each tree is rooted at a small, low degree clique.
+   * <p>
+   * If the spanning forest doesn't respect the running intersection property, then the model has cycles. In that case
+   * we triangulate the model and lay messages out over the resulting junction tree, rooted by the same cost model.
+   *
+   * @param cliques       the cliques, in canonical order
+   * @param scopes        the variables in each clique
+   * @param variableSizes the size of each variable
+   * @param maxVar        the largest variable index in any clique
+   * @return the layout
+   */
+  private ForestLayout layoutForest(TableFactor[] cliques, int[][] scopes, int[] variableSizes, int maxVar) {
+    int n = cliques.length;
+    long[] sizes = new long[n];
+    for (int i = 0; i < n; i++) sizes[i] = cliques[i].combinatorialNeighborStatesCount();
+
+    // Find every pair of cliques that share a variable, through an index from variables to cliques, rather than
+    // checking all n^2 pairs
+
+    List<List<Integer>> variableCliques = new ArrayList<>();
+    for (int v = 0; v <= maxVar; v++) variableCliques.add(new ArrayList<>());
+    for (int i = 0; i < n; i++) {
+      for (int v : scopes[i]) variableCliques.get(v).add(i);
+    }
+    Set<Long> seenPairs = new HashSet<>();
+    List<int[]> edges = new ArrayList<>();
+    for (List<Integer> containing : variableCliques) {
+      for (int a = 0; a < containing.size(); a++) {
+        for (int b = a + 1; b < containing.size(); b++) {
+          int i = containing.get(a);
+          int j = containing.get(b);
+          if (seenPairs.add((long) i * n + j)) edges.add(new int[]{i, j, sharedVariables(scopes[i], scopes[j])});
+        }
+      }
+    }
+
+    // Kruskal's algorithm: most shared variables first, then cheapest endpoints first
+
+    long[] cliqueSizes = sizes;
+    edges.sort((x, y) -> {
+      if (x[2] != y[2]) return Integer.compare(y[2], x[2]);
+      int cost = Long.compare(cliqueSizes[x[0]] + cliqueSizes[x[1]], cliqueSizes[y[0]] + cliqueSizes[y[1]]);
+      if (cost != 0) return cost;
+      return x[0] != y[0] ? Integer.compare(x[0], y[0]) : Integer.compare(x[1], y[1]);
+    });
+    int[] unionFind = new int[n];
+    for (int i = 0; i < n; i++) unionFind[i] = i;
+    List<List<Integer>> adjacency = new ArrayList<>();
+    for (int i = 0; i < n; i++) adjacency.add(new ArrayList<>());
+    int[] treeEdgesWithVariable = new int[maxVar + 1];
+    for (int[] edge : edges) {
+      int a = edge[0];
+      while (unionFind[a] != a) a = unionFind[a];
+      int b = edge[1];
+      while (unionFind[b] != b) b = unionFind[b];
+      if (a == b) continue;
+      unionFind[a] = b;
+      adjacency.get(edge[0]).add(edge[1]);
+      adjacency.get(edge[1]).add(edge[0]);
+      for (int v : scopes[edge[0]]) {
+        for (int w : scopes[edge[1]]) if (v == w) treeEdgesWithVariable[v]++;
+      }
+    }
+
+    // The running intersection property holds if and only if the cliques containing each variable are connected in
+    // the forest, which for a forest means they're joined by exactly one fewer edges than there are cliques
+
+    boolean runningIntersection = true;
+    for (int v = 0; v <= maxVar; v++) {
+      if (!variableCliques.get(v).isEmpty() && treeEdgesWithVariable[v] != variableCliques.get(v).size() - 1) {
+        runningIntersection = false;
+        break;
+      }
+    }
+
+    ForestLayout layout = new ForestLayout();
+    if (!runningIntersection) {
+      JunctionTree junctionTree = JunctionTree.compile(scopes, variableSizes, triangulationHeuristic);
+      layout.junctionTree = junctionTree;
+      n = junctionTree.size();
+      sizes = new long[n];
+      adjacency = new ArrayList<>();
+      for (int i = 0; i < n; i++) {
+        sizes[i] = 1;
+        for (int d : junctionTree.cliqueDimensions[i]) sizes[i] *= d;
+        adjacency.add(new ArrayList<>());
+      }
+      for (int i = 0; i < n; i++) {
+        if (junctionTree.parent[i] == -1) continue;
+        adjacency.get(i).add(junctionTree.parent[i]);
+        adjacency.get(junctionTree.parent[i]).add(i);
+      }
+    }
+
+    rootForest(adjacency, sizes, layout);
+    if (layout.junctionTree != null) {
+      layout.estimatedFlops = estimateFlops(layout.parent, layout.junctionTree.cliqueVariables, layout.junctionTree.cliqueDimensions);
+    } else {
+      int[][] dims = new int[cliques.length][];
+      for (int i = 0; i < cliques.length; i++) dims[i] = cliques[i].getDimensions();
+      layout.estimatedFlops = estimateFlops(layout.parent, scopes, dims);
+    }
+    return layout;
+  }
+
+  /**
+   * Roots each tree of an undirected forest at the clique the cost model says is cheapest, and records a BFS order
+   * from the roots in which smaller children come first.
+   */
+  private static void rootForest(List<List<Integer>> adjacency, long[] sizes, ForestLayout layout) {
+    int n = sizes.length;
+    int[] parent = new int[n];
+    Arrays.fill(parent, -1);
+    int[] visitedOrder = new int[n];
+    int[] trees = new int[n];
+    boolean[] visited = new boolean[n];
+    int numVisited = 0;
+    int numTrees = 0;
+
+    for (int start = 0; start < n; start++) {
+      if (visited[start]) continue;
+
+      // Collect the component, and pick its root. The root doesn't change the cost of a full two-way pass, since
+      // every edge carries one message each way, but one-way passes (MAP read-back, k-best, sampling) finish with the
+      // root absorbing a message from every neighbor, so we want a small, low degree root.
+
+      List<Integer> component = new ArrayList<>();
+      Queue<Integer> queue = new ArrayDeque<>();
+      boolean[] inComponent = new boolean[n];
+      queue.add(start);
+      inComponent[start] = true;
+      while (!queue.isEmpty()) {
+        int cursor = queue.poll();
+        component.add(cursor);
+        for (int neighbor : adjacency.get(cursor)) {
+          if (!inComponent[neighbor]) {
+            inComponent[neighbor] = true;
+            queue.add(neighbor);
+          }
+        }
+      }
+      int root = start;
+      for (int i : component) {
+        long cost = adjacency.get(i).size() * sizes[i];
+        long rootCost = adjacency.get(root).size() * sizes[root];
+        if (cost < rootCost || (cost == rootCost && i < root)) root = i;
+      }
+
+      queue.add(root);
+      visited[root] = true;
+      while (!queue.isEmpty()) {
+        int cursor = queue.poll();
+        visitedOrder[numVisited++] = cursor;
+        trees[cursor] = numTrees;
+        List<Integer> children = new ArrayList<>();
+        for (int neighbor : adjacency.get(cursor)) {
+          if (!visited[neighbor]) children.add(neighbor);
+        }
+        children.sort((a, b) -> sizes[a] != sizes[b] ? Long.compare(sizes[a], sizes[b]) : Integer.compare(a, b));
+        for (int child : children) {
+          visited[child] = true;
+          parent[child] = cursor;
+          queue.add(child);
+        }
+      }
+      numTrees++;
+    }
+    assert (numVisited == n);
+
+    layout.parent = parent;
+    layout.visitedOrder = visitedOrder;
+    layout.trees = trees;
+    layout.numTrees = numTrees;
+  }
+
+  /**
+   * The cost model for calculateMarginals() over a forest, counted in table entries written. A clique of size s with
+   * c children and p parents (0 or 1), so degree d = c + p, does:
+   * <ul>
+   * <li>c products, and a marginalization down to its parent's variables, to send its message up</li>
+   * <li>d - 1 products, and a marginalization down to the child's variables, for each message down to a child</li>
+   * <li>d products to converge, so that the marginals can be read off</li>
+   * </ul>
+   * Every product writes s entries. A marginalization sums out one variable at a time, and writes as many entries as
+   * the table it starts each step from.
+   *
+   * @param parent the parent of each clique, or -1 for roots
+   * @param scopes the variables in each clique
+   * @param dims   the size of each variable in each clique
+   * @return the estimated number of table entries written
+   */
+  static long estimateFlops(int[] parent, int[][] scopes, int[][] dims) {
+    int[] children = new int[parent.length];
+    for (int p : parent) if (p != -1) children[p]++;
+    long flops = 0;
+    for (int i = 0; i < parent.length; i++) {
+      long size = 1;
+      for (int d : dims[i]) size *= d;
+      long c = children[i];
+      long p = parent[i] == -1 ? 0 : 1;
+      long d = c + p;
+      flops += size * (p * c + c * (d - 1) + d);
+      if (parent[i] != -1) {
+        flops += marginalizationFlops(scopes[i], dims[i], scopes[parent[i]]);
+        flops += marginalizationFlops(scopes[parent[i]], dims[parent[i]], scopes[i]);
+      }
+    }
+    return flops;
+  }
+
+  /**
+   * @return the entries written by marginalizeMessage() to reduce a table down to the variables it shares with another
+   */
+  private static long marginalizationFlops(int[] scope, int[] dims, int[] relevant) {
+    long size = 1;
+    for (int d : dims) size *= d;
+    long flops = 0;
+    for (int i = 0; i < scope.length; i++) {
+      boolean contains = false;
+      for (int j : relevant) if (j == scope[i]) contains = true;
+      if (!contains) {
+        flops += size;
+        size /= dims[i];
+      }
+    }
+    return flops;
+  }
+
+  private static int sharedVariables(int[] a, int[] b) {
+    int shared = 0;
+    for (int v : a) {
+      for (int w : b) if (v == w) shared++;
+    }
+    return shared;
+  }
+
+  private static int[] getObservedAssignments(GraphicalModel.Factor f, int[] observations) {
     int[] observedAssignments = new int[f.neigborIndices.length];
     for (int i = 0; i < observedAssignments.length; i++) {
-      if (model.getVariableMetaDataByReference(f.neigborIndices[i]).containsKey(VARIABLE_OBSERVED_VALUE)) {
-        observedAssignments[i] = Integer.parseInt(model.getVariableMetaDataByReference(f.neigborIndices[i]).get(VARIABLE_OBSERVED_VALUE));
-      } else observedAssignments[i] = -1;
+      observedAssignments[i] = observations[f.neigborIndices[i]];
     }
     return observedAssignments;
   }
 
+  /**
+   * Multiplies two factors, and counts the entries in the result towards the profile of this run.
+   */
+  private TableFactor countedMultiply(TableFactor a, TableFactor b) {
+    TableFactor result = a.multiply(b);
+    flopCounter += result.combinatorialNeighborStatesCount();
+    return result;
+  }
+
   /**
    * This is a key step in message passing. When we are calculating a message, we want to marginalize out all variables
    * not relevant to the recipient of the message. This function does that.
@@ -894,6 +2106,7 @@ public class CliqueTree {
         }
       }
       if (!contains) {
+        flopCounter += result.combinatorialNeighborStatesCount();
         switch (marginalize) {
           case SUM:
             result = result.sumOut(i);
@@ -908,23 +2121,6 @@ public class CliqueTree {
     return result;
   }
 
-  /**
-   * Just a quick inline to check if two factors have overlapping domains. Since factor neighbor sets are super small,
-   * this n^2 algorithm is fine.
-   *
-   * @param f1 first factor to compare
-   * @param f2 second factor to compare
-   * @return whether their domains overlap
-   */
-  private boolean domainsOverlap(TableFactor f1, TableFactor f2) {
-    for (int n1 : f1.neighborIndices) {
-      for (int n2 : f2.neighborIndices) {
-        if (n1 == n2) return true;
-      }
-    }
-    return false;
-  }
-
   @SuppressWarnings({"ConstantConditions", "AssertWithSideEffects", "UnusedAssignment"})
   private boolean assertsEnabled() {
     boolean assertsEnabled = false;
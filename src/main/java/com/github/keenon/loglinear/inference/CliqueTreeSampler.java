@@ -0,0 +1,463 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Draws joint samples from the posterior of a GraphicalModel, for things like LENSE style lookahead, where marginals
+ * alone aren't enough.
+ * <p>
+ * There are two samplers here. The exact sampler does one upward sum-product pass over the same clique forest that
+ * CliqueTree uses (including the junction tree for loopy models), and then precomputes a cumulative distribution for
+ * every clique, conditioned on its separator with its parent. After that, every sample is just a walk down the forest
+ * with one binary search per clique, so thousands of samples cost about as much as one message pass. The blocked Gibbs
+ * sampler is for models where even the junction tree is too wide: it resamples small blocks of variables from their
+ * exact conditionals, and can run several independent chains in parallel.
+ * <p>
+ * Like CliqueTree, this takes the weights and model by reference at creation. The exact sampler calibrates lazily on
+ * the first sample, and won't notice later changes to the model unless you call recalibrate().
+ */
+public class CliqueTreeSampler {
+  public final GraphicalModel model;
+  public final ConcatVector weights;
+
+  // The largest number of joint states we'll allow in a single Gibbs block
+  private int maxBlockStates = 256;
+  private ExecutorService executor = ForkJoinPool.commonPool();
+
+  // Calibrated state for exact sampling, built on the first sample
+  private Calibration calibration = null;
+
+  /**
+   * @param model   the model to sample from
+   * @param weights the weights to dot product with model features. This is cloned, like in CliqueTree.
+   */
+  public CliqueTreeSampler(GraphicalModel model, ConcatVector weights) {
+    this.model = model;
+    this.weights = weights.deepClone();
+  }
+
+  /**
+   * @param maxBlockStates the largest number of joint states a Gibbs block may have. Bigger blocks mix faster, but
+   *                       each resampling step costs time linear in the block's state count.
+   */
+  public void setMaxBlockStates(int maxBlockStates) {
+    if (maxBlockStates < 1) throw new IllegalArgumentException("Blocks need at least one state, got " + maxBlockStates);
+    this.maxBlockStates = maxBlockStates;
+  }
+
+  /**
+   * @param executor the executor to run parallel Gibbs chains on. The default is the common ForkJoinPool.
+   */
+  public void setExecutor(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  /**
+   * Throws away the calibrated messages, so that the next exact sample will see any changes made to the model.
+   */
+  public synchronized void recalibrate() {
+    calibration = null;
+  }
+
+  /**
+   * Draws one exact joint sample.
+   *
+   * @param random the source of randomness
+   * @return an assignment indexed by variable. Observed variables keep their observed value, and variables not touched
+   * by any factor are -1.
+   */
+  public int[] sample(Random random) {
+    Calibration c = getCalibration();
+    int[] assignment = new int[c.observations.length];
+    sample(random, assignment);
+    return assignment;
+  }
+
+  /**
+   * Draws one exact joint sample into a buffer, so that drawing many samples doesn't need to allocate.
+   *
+   * @param random the source of randomness
+   * @param buffer the array to write the assignment into, must be at least as long as the number of variables
+   */
+  public void sample(Random random, int[] buffer) {
+    Calibration c = getCalibration();
+    System.arraycopy(c.observations, 0, buffer, 0, c.observations.length);
+
+    for (int clique : c.visitedOrder) {
+      int[] vars = c.cliques[clique].neighborIndices;
+      int[] dims = c.dimensions[clique];
+
+      // Find which conditional distribution to use, given the variables we share with our parent
+
+      int separatorIndex = 0;
+      for (int p : c.separatorPositions[clique]) {
+        separatorIndex = separatorIndex * dims[p] + buffer[vars[p]];
+      }
+
+      double[] cdf = c.cdfs[clique][separatorIndex];
+      int[] members = c.members[clique][separatorIndex];
+      int chosen = members[binarySearch(cdf, random.nextDouble() * cdf[cdf.length - 1])];
+
+      // Decode the clique assignment straight into the buffer, with the last variable moving fastest
+      for (int i = vars.length - 1; i >= 0; i--) {
+        buffer[vars[i]] = chosen % dims[i];
+        chosen /= dims[i];
+      }
+    }
+  }
+
+  /**
+   * Draws many exact joint samples from a single calibration.
+   *
+   * @param random     the source of randomness
+   * @param numSamples the number of samples to draw
+   * @return the samples, each indexed by variable
+   */
+  public int[][] sample(Random random, int numSamples) {
+    Calibration c = getCalibration();
+    int[][] samples = new int[numSamples][c.observations.length];
+    for (int i = 0; i < numSamples; i++) sample(random, samples[i]);
+    return samples;
+  }
+
+  /**
+   * Runs several independent blocked Gibbs chains in parallel, which works on any model, no matter how loopy. Each
+   * block is resampled from its exact conditional given the rest of the variables.
+   *
+   * @param numChains       the number of independent chains to run
+   * @param burnIn          the number of sweeps to discard at the start of each chain
+   * @param samplesPerChain the number of samples to keep from each chain, one per sweep after burn in
+   * @param seed            the seed for the chains, chain i is seeded with seed + i
+   * @return numChains * samplesPerChain samples, each indexed by variable, grouped by chain
+   */
+  public int[][] sampleGibbs(int numChains, int burnIn, int samplesPerChain, long seed) {
+    GibbsState template = new GibbsState();
+    int[][] samples = new int[numChains * samplesPerChain][];
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (int chain = 0; chain < numChains; chain++) {
+      final int chainIndex = chain;
+      futures.add(executor.submit(() -> {
+        Random random = new Random(seed + chainIndex);
+        int[] state = template.initialState(random);
+        double[] logWeights = new double[template.maxBlockSize];
+        int[][] factorAssignments = template.newFactorAssignments();
+        for (int sweep = 0; sweep < burnIn + samplesPerChain; sweep++) {
+          for (int b = 0; b < template.blocks.length; b++) {
+            template.resampleBlock(b, state, logWeights, factorAssignments, random);
+          }
+          if (sweep >= burnIn) samples[chainIndex * samplesPerChain + sweep - burnIn] = state.clone();
+        }
+      }));
+    }
+
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for Gibbs chains", e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+        throw new IllegalStateException("Gibbs chain failed", e.getCause());
+      }
+    }
+    return samples;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Everything we need to draw exact samples: the forest, and for every clique and every assignment to its separator
+   * with its parent, the clique assignments consistent with it and their cumulative probabilities.
+   */
+  private static class Calibration {
+    TableFactor[] cliques;
+    int[][] dimensions;
+    int[] visitedOrder;
+    int[][] separatorPositions;
+    int[][][] members;
+    double[][][] cdfs;
+    int[] observations;
+  }
+
+  private synchronized Calibration getCalibration() {
+    if (calibration == null) calibration = calibrate();
+    return calibration;
+  }
+
+  private Calibration calibrate() {
+    CliqueTree.CliqueForest forest = new CliqueTree(model, weights, false).buildCliqueForest();
+    if (forest.impossibleObservationMade) {
+      throw new IllegalStateException("The observations on this model are impossible, so there's nothing to sample");
+    }
+
+    Calibration c = new Calibration();
+    c.cliques = forest.cliques;
+    c.visitedOrder = forest.visitedOrder;
+    int n = forest.cliques.length;
+
+    int maxVar = model.getMaxVariable();
+    c.observations = model.getObservedValues(maxVar + 1);
+
+    // Upward pass: each clique's belief is its own table times the messages from its children, and its message to
+    // its parent sums out everything the parent doesn't have
+
+    TableFactor[] beliefs = new TableFactor[n];
+    for (int i = 0; i < n; i++) beliefs[i] = forest.cliques[i];
+    for (int i = n - 1; i >= 0; i--) {
+      int cursor = forest.visitedOrder[i];
+      int parent = forest.parent[cursor];
+      if (parent == -1) continue;
+      TableFactor message = beliefs[cursor];
+      for (int v : beliefs[cursor].neighborIndices) {
+        boolean shared = false;
+        for (int p : forest.cliques[parent].neighborIndices) if (p == v) shared = true;
+        if (!shared) message = message.sumOut(v);
+      }
+      beliefs[parent] = beliefs[parent].multiply(message);
+    }
+
+    // Turn every belief into conditional distributions given the separator with the parent
+
+    c.dimensions = new int[n][];
+    c.separatorPositions = new int[n][];
+    c.members = new int[n][][];
+    c.cdfs = new double[n][][];
+    for (int clique = 0; clique < n; clique++) {
+      TableFactor belief = beliefs[clique];
+      assert (Arrays.equals(belief.neighborIndices, forest.cliques[clique].neighborIndices));
+      int[] dims = belief.getDimensions();
+      c.dimensions[clique] = dims;
+
+      List<Integer> positions = new ArrayList<>();
+      int numSeparatorStates = 1;
+      int parent = forest.parent[clique];
+      if (parent != -1) {
+        for (int i = 0; i < belief.neighborIndices.length; i++) {
+          for (int p : forest.cliques[parent].neighborIndices) {
+            if (p == belief.neighborIndices[i]) {
+              positions.add(i);
+              numSeparatorStates *= dims[i];
+            }
+          }
+        }
+      }
+      c.separatorPositions[clique] = positions.stream().mapToInt(x -> x).toArray();
+
+      int size = belief.combinatorialNeighborStatesCount();
+      double[] logValues = new double[size];
+      int[] separatorOf = new int[size];
+      int[] groupSizes = new int[numSeparatorStates];
+      int[] assignment = new int[dims.length];
+      for (int a = 0; a < size; a++) {
+        unflatten(a, dims, assignment);
+        logValues[a] = belief.getAssignmentLogValue(assignment);
+        int s = 0;
+        for (int p : c.separatorPositions[clique]) s = s * dims[p] + assignment[p];
+        separatorOf[a] = s;
+        groupSizes[s]++;
+      }
+
+      c.members[clique] = new int[numSeparatorStates][];
+      c.cdfs[clique] = new double[numSeparatorStates][];
+      double[] groupMax = new double[numSeparatorStates];
+      Arrays.fill(groupMax, Double.NEGATIVE_INFINITY);
+      for (int s = 0; s < numSeparatorStates; s++) {
+        c.members[clique][s] = new int[groupSizes[s]];
+        c.cdfs[clique][s] = new double[groupSizes[s]];
+      }
+      for (int a = 0; a < size; a++) groupMax[separatorOf[a]] = Math.max(groupMax[separatorOf[a]], logValues[a]);
+
+      int[] cursors = new int[numSeparatorStates];
+      for (int a = 0; a < size; a++) {
+        int s = separatorOf[a];
+        double p = groupMax[s] == Double.NEGATIVE_INFINITY ? 0.0 : Math.exp(logValues[a] - groupMax[s]);
+        int k = cursors[s]++;
+        c.members[clique][s][k] = a;
+        c.cdfs[clique][s][k] = (k == 0 ? 0.0 : c.cdfs[clique][s][k - 1]) + p;
+      }
+    }
+
+    return c;
+  }
+
+  /**
+   * @return the first index whose cumulative value is strictly above u, skipping zero probability entries
+   */
+  private static int binarySearch(double[] cdf, double u) {
+    int lo = 0;
+    int hi = cdf.length - 1;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (cdf[mid] > u) hi = mid;
+      else lo = mid + 1;
+    }
+    return lo;
+  }
+
+  /**
+   * Decodes a flat index into an assignment, with the last variable moving fastest.
+   */
+  private static void unflatten(int index, int[] dims, int[] assignment) {
+    for (int i = dims.length - 1; i >= 0; i--) {
+      assignment[i] = index % dims[i];
+      index /= dims[i];
+    }
+  }
+
+  /**
+   * The read-only setup for blocked Gibbs sampling, which is shared by all the chains: the log-space factor tables,
+   * which factors touch which variables, and the blocks.
+   */
+  private class GibbsState {
+    final int[] observations;
+    final int[] variableSizes;
+    final TableFactor[] tables;
+    // For each variable, the factors that touch it
+    final int[][] variableFactors;
+    // The unobserved variables in each block
+    final int[][] blocks;
+    // For each block, the factors touching any of its variables
+    final int[][] blockFactors;
+    final int maxBlockSize;
+
+    GibbsState() {
+      int maxVar = model.getMaxVariable();
+      observations = model.getObservedValues(maxVar + 1);
+      variableSizes = new int[maxVar + 1];
+
+      GraphicalModel.Factor[] factors = model.factors.toArray(new GraphicalModel.Factor[model.factors.size()]);
+      tables = new TableFactor[factors.length];
+      List<List<Integer>> variableFactorLists = new ArrayList<>();
+      for (int i = 0; i <= maxVar; i++) variableFactorLists.add(new ArrayList<>());
+      for (int i = 0; i < factors.length; i++) {
+        tables[i] = new TableFactor(weights, factors[i]);
+        for (int j = 0; j < factors[i].neigborIndices.length; j++) {
+          int v = factors[i].neigborIndices[j];
+          variableSizes[v] = factors[i].getDimensions()[j];
+          variableFactorLists.get(v).add(i);
+        }
+      }
+      variableFactors = new int[maxVar + 1][];
+      for (int i = 0; i <= maxVar; i++) {
+        variableFactors[i] = variableFactorLists.get(i).stream().mapToInt(x -> x).toArray();
+      }
+
+      // Greedily grow blocks out of factor scopes, as long as they stay under maxBlockStates. Resampling whole factor
+      // scopes at once is what lets the sampler move through strongly coupled variables.
+
+      int[] blockOf = new int[maxVar + 1];
+      Arrays.fill(blockOf, -1);
+      List<List<Integer>> blockLists = new ArrayList<>();
+      List<Long> blockStates = new ArrayList<>();
+      for (GraphicalModel.Factor f : factors) {
+        for (int v : f.neigborIndices) {
+          if (observations[v] != -1 || blockOf[v] != -1) continue;
+          // Try to join a block that already holds another variable from this factor
+          int joined = -1;
+          for (int u : f.neigborIndices) {
+            int b = blockOf[u];
+            if (b != -1 && blockStates.get(b) * variableSizes[v] <= maxBlockStates) {
+              joined = b;
+              break;
+            }
+          }
+          if (joined == -1) {
+            joined = blockLists.size();
+            blockLists.add(new ArrayList<>());
+            blockStates.add(1L);
+          }
+          blockLists.get(joined).add(v);
+          blockStates.set(joined, blockStates.get(joined) * variableSizes[v]);
+          blockOf[v] = joined;
+        }
+      }
+
+      blocks = new int[blockLists.size()][];
+      blockFactors = new int[blockLists.size()][];
+      int largest = 1;
+      for (int b = 0; b < blocks.length; b++) {
+        blocks[b] = blockLists.get(b).stream().mapToInt(x -> x).toArray();
+        Set<Integer> touching = new TreeSet<>();
+        for (int v : blocks[b]) for (int f : variableFactors[v]) touching.add(f);
+        blockFactors[b] = touching.stream().mapToInt(x -> x).toArray();
+        largest = (int) Math.max(largest, blockStates.get(b));
+      }
+      maxBlockSize = largest;
+    }
+
+    /**
+     * @return a random starting state consistent with the observations
+     */
+    int[] initialState(Random random) {
+      int[] state = observations.clone();
+      for (int[] block : blocks) {
+        for (int v : block) state[v] = random.nextInt(variableSizes[v]);
+      }
+      return state;
+    }
+
+    /**
+     * @return one scratch assignment array per factor, so that a chain can score factors without allocating
+     */
+    int[][] newFactorAssignments() {
+      int[][] assignments = new int[tables.length][];
+      for (int f = 0; f < tables.length; f++) assignments[f] = new int[tables[f].neighborIndices.length];
+      return assignments;
+    }
+
+    /**
+     * Resamples every variable in a block jointly, from its exact conditional given the rest of the state.
+     */
+    void resampleBlock(int b, int[] state, double[] logWeights, int[][] factorAssignments, Random random) {
+      int[] block = blocks[b];
+      int numStates = 1;
+      for (int v : block) numStates *= variableSizes[v];
+
+      double max = Double.NEGATIVE_INFINITY;
+      for (int s = 0; s < numStates; s++) {
+        setBlockState(block, s, state);
+        double logWeight = 0.0;
+        for (int f : blockFactors[b]) {
+          int[] assignment = factorAssignments[f];
+          for (int i = 0; i < assignment.length; i++) assignment[i] = state[tables[f].neighborIndices[i]];
+          logWeight += tables[f].getAssignmentLogValue(assignment);
+        }
+        logWeights[s] = logWeight;
+        if (logWeight > max) max = logWeight;
+      }
+
+      // If every state is impossible given the rest, there's nothing to prefer, so we pick uniformly
+
+      double total = 0.0;
+      for (int s = 0; s < numStates; s++) {
+        logWeights[s] = max == Double.NEGATIVE_INFINITY ? 1.0 : Math.exp(logWeights[s] - max);
+        total += logWeights[s];
+      }
+      double u = random.nextDouble() * total;
+      int chosen = numStates - 1;
+      for (int s = 0; s < numStates; s++) {
+        u -= logWeights[s];
+        if (u < 0) {
+          chosen = s;
+          break;
+        }
+      }
+      setBlockState(block, chosen, state);
+    }
+
+    private void setBlockState(int[] block, int flat, int[] state) {
+      for (int i = block.length - 1; i >= 0; i--) {
+        state[block[i]] = flat % variableSizes[block[i]];
+        flat /= variableSizes[block[i]];
+      }
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+/**
+ * An immutable, compiled form of a model for serving many inference requests at once. A CliqueTree keeps mutable caches
+ * of its own, so it can't be shared across threads, and building one per request redoes all of the setup: cloning the
+ * weights, dot producting every factor, and laying out the forest. This does all of that exactly once, and keeps the
+ * result read-only: a snapshot of the weights, the observations, the scored cliques and the message passing schedule.
+ * <p>
+ * Inference itself runs in a lightweight context, which owns nothing but its scratch space. The convenience methods
+ * here make a throwaway context per call, which runs compiled programs in a workspace kept per thread, so any number of
+ * threads can call them concurrently without locking. That workspace holds no reference back to this object, so a
+ * compiled model that's dropped can be collected, even after it's run on a long-lived pool thread. Callers that manage
+ * their own threads can hold on to a context from newContext() instead.
+ * <p>
+ * The model is held by reference, and must not be changed after it's compiled. That includes its observations, which
+ * are read once here. To run with new weights or observations, compile again.
+ */
+public class CompiledInference {
+  final GraphicalModel model;
+  final ConcatVector weights;
+
+  // The observed value of each variable, or -1
+  final int[] observations;
+  // The summed log value of the factors that are fully observed, which message passing leaves out
+  final double observedLogLikelihood;
+  // The scored cliques and the schedule to pass messages along, which contexts only ever read
+  final CliqueTree.CliqueForest forest;
+
+  // Scratch space for the convenience methods' contexts, shared by every compiled model used on a thread. This must
+  // never reference a CompiledInference, or the thread would keep it alive.
+  private static final ThreadLocal<InferenceProgram.Workspace> workspaces =
+      ThreadLocal.withInitial(InferenceProgram.Workspace::new);
+
+  /**
+   * Compiles a model for inference. This scores every factor, so it costs about as much as a single inference call.
+   *
+   * @param model   the model to compile, which must not change afterwards
+   * @param weights the weights to dot product with model features. This is cloned, so later changes to the weights
+   *                are not reflected here.
+   */
+  public CompiledInference(GraphicalModel model, ConcatVector weights) {
+    this.model = model;
+    this.weights = weights.deepClone();
+
+    CliqueTree builder = new CliqueTree(model, this.weights, false);
+    this.observations = builder.getObservations();
+    this.observedLogLikelihood = builder.observedLogLikelihood(observations);
+    this.forest = builder.buildCliqueForest();
+  }
+
+  /**
+   * Creates a new inference context over this compiled model. A context keeps scratch space between calls, so it must
+   * only be used by one thread at a time, but it's cheap to create and shares everything else with this object.
+   *
+   * @return a CliqueTree whose marginal and MAP calculations run over the compiled cliques
+   */
+  public CliqueTree newContext() {
+    return new CliqueTree(this);
+  }
+
+  /**
+   * Safe to call from many threads at once.
+   *
+   * @return global marginals, joint marginals and the partition function, as from CliqueTree.calculateMarginals()
+   */
+  public CliqueTree.MarginalResult calculateMarginals() {
+    return context().calculateMarginals();
+  }
+
+  /**
+   * Safe to call from many threads at once.
+   *
+   * @return singleton marginals only, as from CliqueTree.calculateMarginalsJustSingletons()
+   */
+  public double[][] calculateMarginalsJustSingletons() {
+    return context().calculateMarginalsJustSingletons();
+  }
+
+  /**
+   * Safe to call from many threads at once.
+   *
+   * @return an array, indexed by variable, of maximum likelihood assignments
+   */
+  public int[] calculateMAP() {
+    return context().calculateMAP();
+  }
+
+  /**
+   * Safe to call from many threads at once. The masks are applied to a one-off set of cliques, so this doesn't share
+   * the compiled ones, but the compiled observations are still used.
+   *
+   * @param allowedValues indexed first by variable, then by value, whether the variable may take that value
+   * @return the MAP assignment under the masks, and the max-marginals, as from CliqueTree.calculateMaxMarginals()
+   */
+  public CliqueTree.MaxMarginalResult calculateMaxMarginals(boolean[][] allowedValues) {
+    return context().calculateMaxMarginals(allowedValues);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * @return a context for a single call on this thread, which runs in the thread's workspace
+   */
+  private CliqueTree context() {
+    CliqueTree context = newContext();
+    context.programWorkspace = workspaces.get();
+    return context;
+  }
+}
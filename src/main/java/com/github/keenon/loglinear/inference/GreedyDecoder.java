@@ -0,0 +1,145 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.*;
+
+/**
+ * A cheap approximate MAP decoder, for when exact max-product can't finish in time. It first decodes greedily in
+ * variable order, picking each variable's best value given the factors whose other variables are already decided,
+ * which is linear in the size of the model. Then it improves the result with iterated conditional modes (ICM), sweeping
+ * over the variables and moving each to its best value given all the others, until nothing changes or time runs out.
+ * Every sweep can only raise the score, so stopping early always leaves a valid assignment.
+ * <p>
+ * Each factor's table is scored against the weights once, the first time the decoder needs it, and every lookup after
+ * that is a read from the TableFactor, rather than a call to the featurizer and a dot product per cell visited.
+ */
+class GreedyDecoder {
+  private final ConcatVector weights;
+  private final GraphicalModel.Factor[] factors;
+  private final int[] observations;
+  private final int[] variableSizes;
+  // For each variable, the factors that touch it
+  private final int[][] variableFactors;
+  // The scored table for each factor, filled in the first time it's needed
+  private final TableFactor[] tables;
+  // One scratch assignment per factor, so that scoring doesn't allocate
+  private final int[][] factorAssignments;
+
+  /**
+   * @param model        the model to decode
+   * @param weights      the weights to score factors with
+   * @param observations the observed value of each variable, or -1
+   */
+  GreedyDecoder(GraphicalModel model, ConcatVector weights, int[] observations) {
+    this.weights = weights;
+    this.factors = model.factors.toArray(new GraphicalModel.Factor[model.factors.size()]);
+    this.observations = observations;
+    this.variableSizes = new int[observations.length];
+
+    List<List<Integer>> variableFactorLists = new ArrayList<>();
+    for (int i = 0; i < observations.length; i++) variableFactorLists.add(new ArrayList<>());
+    for (int f = 0; f < factors.length; f++) {
+      for (int i = 0; i < factors[f].neigborIndices.length; i++) {
+        variableSizes[factors[f].neigborIndices[i]] = factors[f].getDimensions()[i];
+        variableFactorLists.get(factors[f].neigborIndices[i]).add(f);
+      }
+    }
+    variableFactors = new int[observations.length][];
+    for (int i = 0; i < observations.length; i++) {
+      variableFactors[i] = variableFactorLists.get(i).stream().mapToInt(x -> x).toArray();
+    }
+
+    tables = new TableFactor[factors.length];
+    factorAssignments = new int[factors.length][];
+    for (int f = 0; f < factors.length; f++) factorAssignments[f] = new int[factors[f].neigborIndices.length];
+  }
+
+  /**
+   * Decodes greedily, then runs ICM sweeps until convergence or the deadline. If the deadline passes during the greedy
+   * pass, the variables it hasn't reached yet are set to 0, so there's always a complete assignment to return.
+   *
+   * @param deadline the System.nanoTime() after which to stop
+   * @return an assignment indexed by variable, with observed variables at their observed values
+   */
+  int[] decode(long deadline) {
+    int[] assignment = observations.clone();
+
+    for (int v = 0; v < assignment.length; v++) {
+      if (assignment[v] != -1 || variableFactors[v].length == 0) continue;
+      if (System.nanoTime() - deadline > 0) assignment[v] = 0;
+      else assignment[v] = bestValue(v, assignment);
+    }
+
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      for (int v = 0; v < assignment.length; v++) {
+        if (System.nanoTime() - deadline > 0) return assignment;
+        if (observations[v] != -1 || variableFactors[v].length == 0) continue;
+        int best = bestValue(v, assignment);
+        if (best != assignment[v]) {
+          assignment[v] = best;
+          changed = true;
+        }
+      }
+    }
+    return assignment;
+  }
+
+  /**
+   * @return the sum over all factors of the log value of the factor at this assignment
+   */
+  double score(int[] assignment) {
+    double score = 0.0;
+    for (int f = 0; f < factors.length; f++) {
+      int[] factorAssignment = factorAssignments[f];
+      int[] neighbors = factors[f].neigborIndices;
+      for (int i = 0; i < neighbors.length; i++) factorAssignment[i] = assignment[neighbors[i]];
+      // A single cell doesn't justify scoring a whole table we haven't needed yet
+      if (tables[f] != null) score += tables[f].getAssignmentLogValue(factorAssignment);
+      else score += factors[f].getAssignmentValue(factorAssignment, weights);
+    }
+    return score;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Finds the best value for a variable, counting only the factors whose other variables are all assigned. Ties, and
+   * the case where every value is impossible, go to the lowest value.
+   */
+  private int bestValue(int v, int[] assignment) {
+    int saved = assignment[v];
+    int best = 0;
+    double bestScore = Double.NEGATIVE_INFINITY;
+    for (int value = 0; value < variableSizes[v]; value++) {
+      assignment[v] = value;
+      double score = 0.0;
+      for (int f : variableFactors[v]) {
+        int[] neighbors = factors[f].neigborIndices;
+        int[] factorAssignment = factorAssignments[f];
+        boolean decided = true;
+        for (int i = 0; i < neighbors.length; i++) {
+          factorAssignment[i] = assignment[neighbors[i]];
+          if (factorAssignment[i] == -1) decided = false;
+        }
+        if (decided) score += getTable(f).getAssignmentLogValue(factorAssignment);
+      }
+      if (score > bestScore) {
+        bestScore = score;
+        best = value;
+      }
+    }
+    assignment[v] = saved;
+    return best;
+  }
+
+  private TableFactor getTable(int f) {
+    if (tables[f] == null) tables[f] = new TableFactor(weights, factors[f]);
+    return tables[f];
+  }
+}
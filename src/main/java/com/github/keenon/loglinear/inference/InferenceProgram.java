@@ -0,0 +1,566 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.*;
+
+/**
+ * Sum-product message passing, compiled for one model shape. Production models are the same shape over and over (a
+ * chain of some length, over the same factor templates), and for every one of them messagePassing() rediscovers the
+ * same schedule, allocates a TableFactor and a few lists per product, and looks factors up in maps. A program does all
+ * of that once per shape: it's a flat list of kernel invocations, with fixed offsets into a single double[] workspace.
+ * Running it just copies in the new clique values and executes the list, and the only arrays it allocates are the ones
+ * in the result it returns.
+ * <p>
+ * A program is immutable once compiled, so one program is shared by every model with its shape, on every thread. The
+ * workspace belongs to the caller instead: each CliqueTree brings its own, so a program never holds on to memory for
+ * the threads that have run it.
+ * <p>
+ * The kernels repeat the arithmetic of TableFactor.multiply(), sumOut(), valueSum() and getSummedMarginals() operation
+ * for operation, in the same order, so the results match messagePassing() exactly rather than approximately. To keep
+ * that promise simple, programs only cover forests of cliques over one or two variables, which covers chains, trees
+ * and anything else built from unary and pairwise factors. Everything else returns null from compile(), and runs
+ * through messagePassing() as before.
+ */
+class InferenceProgram {
+  // Instructions are OPCODE, DESTINATION, SOURCE, A, B
+  private static final int INSTRUCTION_SIZE = 5;
+
+  // dst[0..A) = src[0..A)
+  private static final int OP_COPY = 0;
+  // dst[0..A) += src[0..A)
+  private static final int OP_ADD = 1;
+  // dst[i*B + j] += src[i], over an A by B table
+  private static final int OP_ADD_AXIS0 = 2;
+  // dst[i*B + j] += src[j], over an A by B table
+  private static final int OP_ADD_AXIS1 = 3;
+  // dst[i*B + j] += src[j*A + i], over an A by B table
+  private static final int OP_ADD_TRANSPOSED = 4;
+  // dst[j] = log sum over i of exp(src[i*B + j]), over an A by B table
+  private static final int OP_SUM_OUT_0 = 5;
+  // dst[i] = log sum over j of exp(src[i*B + j]), over an A by B table
+  private static final int OP_SUM_OUT_1 = 6;
+  // Clique A is fully converged, in the scratch buffer, so read off its marginals
+  private static final int OP_CONVERGED = 7;
+
+  private final boolean includeJointMarginalsAndPartition;
+  private final int[] code;
+
+  // Workspace layout: the bound cliques, then every message, then a scratch table and a scratch vector
+  private final int[] cliqueOffsets;
+  private final int[][] cliqueScopes;
+  private final int[][] cliqueDims;
+  private final int scratchOffset;
+  private final int pivotOffset;
+  private final int workspaceSize;
+
+  // The clique whose converged value counts towards the partition function for its tree, which is the first one
+  private final boolean[] countsTowardsPartition;
+  // For each clique, and each of its variables, whether this is the clique that the variable's marginal comes from
+  private final boolean[][] suppliesMarginal;
+
+  /**
+   * The scratch space programs run in. A CliqueTree owns one, and passes it to every program it runs, so it's only
+   * ever used by one thread at a time. It grows to fit the biggest program it's run, and is reused from then on.
+   */
+  static class Workspace {
+    private double[] values = new double[0];
+
+    double[] get(int size) {
+      if (values.length < size) values = new double[size];
+      return values;
+    }
+  }
+
+  /**
+   * Compiles the message passing schedule for a forest of cliques.
+   *
+   * @param cliques      the cliques of a model with this shape, which are only read for their scopes and dimensions
+   * @param parent       the parent of each clique in the forest, or -1 for roots
+   * @param visitedOrder the cliques in breadth first order
+   * @param includeJointMarginalsAndPartition which flavor of messagePassing() to reproduce
+   * @return the program, or null if this shape isn't one that programs cover
+   */
+  static InferenceProgram compile(TableFactor[] cliques, int[] parent, int[] visitedOrder,
+                                  boolean includeJointMarginalsAndPartition) {
+    if (TableFactor.USE_EXP_APPROX) return null;
+    for (TableFactor clique : cliques) {
+      if (clique.neighborIndices.length < 1 || clique.neighborIndices.length > 2) return null;
+    }
+    try {
+      return new InferenceProgram(cliques, parent, visitedOrder, includeJointMarginalsAndPartition);
+    } catch (UnsupportedShapeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Binds a model's clique values to the program and runs it.
+   *
+   * @param workspace         the caller's scratch space, which must not be in use by another thread
+   * @param cliques           the scored cliques, in the same order and with the same shape as the program was
+   *                          compiled for
+   * @param cliqueToFactors   the factor each clique was built from
+   * @param model             the model, for its fully observed factors
+   * @param observations      the observed value of each variable, or -1
+   * @param partitionFunction the contribution of fully observed factors to the partition function
+   * @return exactly what messagePassing() would return
+   */
+  CliqueTree.MarginalResult execute(Workspace workspace, TableFactor[] cliques,
+                                    List<List<GraphicalModel.Factor>> cliqueToFactors, GraphicalModel model,
+                                    int[] observations, double partitionFunction) {
+    return execute(workspace.get(workspaceSize), cliques, cliqueToFactors, model, observations, partitionFunction);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  private CliqueTree.MarginalResult execute(double[] workspace, TableFactor[] cliques,
+                                            List<List<GraphicalModel.Factor>> cliqueToFactors, GraphicalModel model,
+                                            int[] observations, double partitionFunction) {
+    for (int c = 0; c < cliques.length; c++) {
+      double[] values = cliques[c].getLogValues();
+      System.arraycopy(values, 0, workspace, cliqueOffsets[c], values.length);
+    }
+
+    double[][] marginals = new double[Math.max(observations.length, 1)][];
+    CliqueTree.fillObservedMarginals(model, observations, marginals);
+
+    // Lay out the joint marginals with the cliques' factors first, in clique order, so we never need to look a factor
+    // up by identity
+
+    GraphicalModel.Factor[] factors;
+    if (includeJointMarginalsAndPartition) {
+      // Each clique's first factor, then every fully observed factor, counted first so we allocate the array just once
+      int numFactors = cliqueToFactors.size();
+      for (GraphicalModel.Factor f : model.factors) {
+        if (isFullyObserved(f, observations)) numFactors++;
+      }
+      factors = new GraphicalModel.Factor[numFactors];
+      int cursor = 0;
+      for (List<GraphicalModel.Factor> cliqueFactors : cliqueToFactors) factors[cursor++] = cliqueFactors.get(0);
+      for (GraphicalModel.Factor f : model.factors) {
+        if (isFullyObserved(f, observations)) factors[cursor++] = f;
+      }
+    } else {
+      factors = NO_FACTORS;
+    }
+    int[] jointMarginalOffsets = CliqueTree.MarginalResult.computeOffsets(factors);
+    double[] jointMarginalValues = new double[jointMarginalOffsets[factors.length]];
+
+    for (int pc = 0; pc < code.length; pc += INSTRUCTION_SIZE) {
+      int dst = code[pc + 1];
+      int src = code[pc + 2];
+      int a = code[pc + 3];
+      int b = code[pc + 4];
+      switch (code[pc]) {
+        case OP_COPY:
+          System.arraycopy(workspace, src, workspace, dst, a);
+          break;
+        case OP_ADD:
+          for (int i = 0; i < a; i++) workspace[dst + i] = workspace[dst + i] + workspace[src + i];
+          break;
+        case OP_ADD_AXIS0:
+          for (int i = 0; i < a; i++) {
+            double d = workspace[src + i];
+            int k = dst + i * b;
+            for (int j = 0; j < b; j++) workspace[k + j] = workspace[k + j] + d;
+          }
+          break;
+        case OP_ADD_AXIS1:
+          for (int i = 0; i < a; i++) {
+            int k = dst + i * b;
+            for (int j = 0; j < b; j++) workspace[k + j] = workspace[k + j] + workspace[src + j];
+          }
+          break;
+        case OP_ADD_TRANSPOSED:
+          for (int i = 0; i < a; i++) {
+            int k = dst + i * b;
+            for (int j = 0; j < b; j++) workspace[k + j] = workspace[k + j] + workspace[src + j * a + i];
+          }
+          break;
+        case OP_SUM_OUT_0:
+          sumOut(workspace, dst, src, b, a, 1, b);
+          break;
+        case OP_SUM_OUT_1:
+          sumOut(workspace, dst, src, a, b, b, 1);
+          break;
+        case OP_CONVERGED:
+          partitionFunction = converged(workspace, a, cliqueToFactors, marginals, jointMarginalOffsets,
+              jointMarginalValues, observations, partitionFunction);
+          break;
+        default:
+          throw new IllegalStateException("Unknown opcode " + code[pc]);
+      }
+    }
+
+    // Fully observed factors get a one hot joint marginal, on their observation
+
+    for (int i = cliques.length; i < factors.length; i++) {
+      // The same as MarginalResult.flatIndex() of the observed assignment, without building the assignment
+      int[] neighbors = factors[i].neigborIndices;
+      int[] dims = factors[i].getDimensions();
+      int flatIndex = 0;
+      for (int j = 0; j < neighbors.length; j++) flatIndex = flatIndex * dims[j] + observations[neighbors[j]];
+      jointMarginalValues[jointMarginalOffsets[i] + flatIndex] = 1.0;
+    }
+
+    return new CliqueTree.MarginalResult(marginals, partitionFunction, factors, jointMarginalValues,
+        jointMarginalOffsets, Arrays.copyOf(observations, marginals.length));
+  }
+
+  private static final GraphicalModel.Factor[] NO_FACTORS = new GraphicalModel.Factor[0];
+
+  private static boolean isFullyObserved(GraphicalModel.Factor f, int[] observations) {
+    for (int n : f.neigborIndices) {
+      if (observations[n] == -1) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Thrown during compilation when the schedule needs a kernel that programs don't have.
+   */
+  private static class UnsupportedShapeException extends Exception {
+    private static final long serialVersionUID = -2811637051846092371L;
+  }
+
+  private InferenceProgram(TableFactor[] cliques, int[] parent, int[] visitedOrder,
+                           boolean includeJointMarginalsAndPartition) throws UnsupportedShapeException {
+    this.includeJointMarginalsAndPartition = includeJointMarginalsAndPartition;
+    int n = cliques.length;
+
+    int[][] scopes = new int[n][];
+    cliqueScopes = scopes;
+    cliqueDims = new int[n][];
+    cliqueOffsets = new int[n];
+    int cursor = 0;
+    int maxCliqueSize = 0;
+    int maxDim = 0;
+    for (int c = 0; c < n; c++) {
+      scopes[c] = cliques[c].neighborIndices;
+      cliqueDims[c] = cliques[c].getDimensions();
+      cliqueOffsets[c] = cursor;
+      int size = cliques[c].combinatorialNeighborStatesCount();
+      cursor += size;
+      maxCliqueSize = Math.max(maxCliqueSize, size);
+      for (int d : cliqueDims[c]) maxDim = Math.max(maxDim, d);
+    }
+
+    // Every tree edge carries one message each way: up from a child, and down to it
+
+    List<List<Integer>> neighbors = new ArrayList<>();
+    List<List<Integer>> children = new ArrayList<>();
+    for (int c = 0; c < n; c++) {
+      neighbors.add(new ArrayList<>());
+      children.add(new ArrayList<>());
+    }
+    for (int c = 0; c < n; c++) {
+      if (parent[c] == -1) continue;
+      children.get(parent[c]).add(c);
+      neighbors.get(parent[c]).add(c);
+      neighbors.get(c).add(parent[c]);
+    }
+    for (List<Integer> list : neighbors) Collections.sort(list);
+
+    int[] upOffsets = new int[n];
+    int[] downOffsets = new int[n];
+    int[][] upScopes = new int[n][];
+    int[][] downScopes = new int[n][];
+    for (int c = 0; c < n; c++) {
+      if (parent[c] == -1) continue;
+      upScopes[c] = messageScope(scopes[c], scopes[parent[c]]);
+      downScopes[c] = messageScope(scopes[parent[c]], scopes[c]);
+      upOffsets[c] = cursor;
+      cursor += tableSize(upScopes[c], scopes[c], cliqueDims[c]);
+      downOffsets[c] = cursor;
+      cursor += tableSize(downScopes[c], scopes[parent[c]], cliqueDims[parent[c]]);
+    }
+    scratchOffset = cursor;
+    cursor += maxCliqueSize;
+    pivotOffset = cursor;
+    cursor += maxDim;
+    workspaceSize = cursor;
+
+    Compiler compiler = new Compiler(scopes, parent, upOffsets, downOffsets, upScopes, downScopes);
+
+    // Backward pass: every clique sends up to its parent, once it's heard from all of its children
+
+    for (int i = n - 1; i >= 0; i--) {
+      int c = visitedOrder[i];
+      if (parent[c] == -1) continue;
+      compiler.emitMessage(c, children.get(c), upOffsets[c], upScopes[c]);
+    }
+
+    // Forward pass: every clique sends down to each child, everything it's heard from everyone else
+
+    for (int i = 0; i < n; i++) {
+      int c = visitedOrder[i];
+      for (int child : children.get(c)) {
+        List<Integer> senders = new ArrayList<>(neighbors.get(c));
+        senders.remove(Integer.valueOf(child));
+        compiler.emitMessage(c, senders, downOffsets[child], downScopes[child]);
+      }
+    }
+
+    // Final phase: converge the cliques we need, and decide which clique each variable's marginal is read from, in
+    // the same order that messagePassing() does
+
+    countsTowardsPartition = new boolean[n];
+    suppliesMarginal = new boolean[n][];
+    for (int c = 0; c < n; c++) suppliesMarginal[c] = new boolean[scopes[c].length];
+    Set<Integer> covered = new HashSet<>();
+
+    if (includeJointMarginalsAndPartition) {
+      Set<Integer> countedTrees = new HashSet<>();
+      int[] root = new int[n];
+      for (int i = 0; i < n; i++) {
+        int c = visitedOrder[i];
+        root[c] = parent[c] == -1 ? c : root[parent[c]];
+      }
+      for (int c = 0; c < n; c++) {
+        countsTowardsPartition[c] = countedTrees.add(root[c]);
+        for (int j = 0; j < scopes[c].length; j++) suppliesMarginal[c][j] = covered.add(scopes[c][j]);
+        compiler.emitConverged(c, neighbors.get(c));
+      }
+    } else {
+      for (int c = 0; c < n; c++) {
+        boolean allNull = true;
+        for (int v : scopes[c]) if (covered.contains(v)) allNull = false;
+        if (!allNull) continue;
+        for (int j = 0; j < scopes[c].length; j++) suppliesMarginal[c][j] = covered.add(scopes[c][j]);
+        compiler.emitConverged(c, neighbors.get(c));
+      }
+      for (int c = 0; c < n; c++) {
+        boolean anyNull = false;
+        for (int v : scopes[c]) if (!covered.contains(v)) anyNull = true;
+        if (!anyNull) continue;
+        for (int j = 0; j < scopes[c].length; j++) suppliesMarginal[c][j] = covered.add(scopes[c][j]);
+        compiler.emitConverged(c, neighbors.get(c));
+      }
+    }
+
+    code = compiler.code.stream().mapToInt(x -> x).toArray();
+  }
+
+  /**
+   * Emits instructions, which needs the shape of every clique and message.
+   */
+  private class Compiler {
+    final List<Integer> code = new ArrayList<>();
+    final int[][] scopes;
+    final int[] parent;
+    final int[] upOffsets;
+    final int[] downOffsets;
+    final int[][] upScopes;
+    final int[][] downScopes;
+
+    Compiler(int[][] scopes, int[] parent, int[] upOffsets, int[] downOffsets, int[][] upScopes, int[][] downScopes) {
+      this.scopes = scopes;
+      this.parent = parent;
+      this.upOffsets = upOffsets;
+      this.downOffsets = downOffsets;
+      this.upScopes = upScopes;
+      this.downScopes = downScopes;
+    }
+
+    void emit(int op, int dst, int src, int a, int b) {
+      code.add(op);
+      code.add(dst);
+      code.add(src);
+      code.add(a);
+      code.add(b);
+    }
+
+    /**
+     * Multiplies clique c by the messages from each sender, in ascending order, into dst.
+     */
+    void emitProduct(int c, List<Integer> senders, int dst) throws UnsupportedShapeException {
+      int[] dims = cliqueDims[c];
+      emit(OP_COPY, dst, cliqueOffsets[c], dims.length == 1 ? dims[0] : dims[0] * dims[1], 0);
+      List<Integer> sorted = new ArrayList<>(senders);
+      Collections.sort(sorted);
+      for (int k : sorted) {
+        int src;
+        int[] scope;
+        if (parent[k] == c) {
+          src = upOffsets[k];
+          scope = upScopes[k];
+        } else {
+          src = downOffsets[c];
+          scope = downScopes[c];
+        }
+        int[] cliqueScope = scopes[c];
+        if (cliqueScope.length == 1) {
+          emit(OP_ADD, dst, src, dims[0], 0);
+        } else if (scope.length == 1) {
+          emit(scope[0] == cliqueScope[0] ? OP_ADD_AXIS0 : OP_ADD_AXIS1, dst, src, dims[0], dims[1]);
+        } else if (scope[0] == cliqueScope[0]) {
+          emit(OP_ADD, dst, src, dims[0] * dims[1], 0);
+        } else {
+          emit(OP_ADD_TRANSPOSED, dst, src, dims[0], dims[1]);
+        }
+      }
+    }
+
+    /**
+     * Computes a message from clique c, given the messages c has heard from the senders.
+     */
+    void emitMessage(int c, List<Integer> senders, int dst, int[] messageScope) throws UnsupportedShapeException {
+      int[] dims = cliqueDims[c];
+      if (messageScope.length == scopes[c].length) {
+        emitProduct(c, senders, dst);
+      } else {
+        emitProduct(c, senders, scratchOffset);
+        emit(messageScope[0] == scopes[c][1] ? OP_SUM_OUT_0 : OP_SUM_OUT_1, dst, scratchOffset, dims[0], dims[1]);
+      }
+    }
+
+    void emitConverged(int c, List<Integer> senders) throws UnsupportedShapeException {
+      emitProduct(c, senders, scratchOffset);
+      emit(OP_CONVERGED, 0, 0, c, 0);
+    }
+  }
+
+  /**
+   * @return the variables of the sender that survive marginalizing down to the receiver, in the sender's order
+   */
+  private static int[] messageScope(int[] sender, int[] receiver) throws UnsupportedShapeException {
+    int[] scope = new int[sender.length];
+    int size = 0;
+    for (int v : sender) {
+      for (int w : receiver) {
+        if (v == w) {
+          scope[size++] = v;
+          break;
+        }
+      }
+    }
+    // A message with nothing left in it would need a kernel to sum out every variable, which the layout never asks for
+    if (size == 0) throw new UnsupportedShapeException();
+    return Arrays.copyOf(scope, size);
+  }
+
+  private static int tableSize(int[] scope, int[] cliqueScope, int[] cliqueDims) {
+    int size = 1;
+    for (int v : scope) {
+      for (int i = 0; i < cliqueScope.length; i++) {
+        if (cliqueScope[i] == v) size *= cliqueDims[i];
+      }
+    }
+    return size;
+  }
+
+  /**
+   * The arithmetic of the two variable special case of TableFactor.sumOut(). Output k sums the entries
+   * src[k*outerStride + m*innerStride] over m, in ascending order of m.
+   */
+  private static void sumOut(double[] workspace, int dst, int src, int outputs, int summed, int outerStride,
+                             int innerStride) {
+    for (int k = 0; k < outputs; k++) {
+      double max = Double.NEGATIVE_INFINITY;
+      for (int m = 0; m < summed; m++) {
+        double value = workspace[src + k * outerStride + m * innerStride];
+        if (value > max) max = value;
+      }
+      double sum = 0;
+      if (Double.isFinite(max)) {
+        for (int m = 0; m < summed; m++) {
+          sum += Math.exp(workspace[src + k * outerStride + m * innerStride] - max);
+        }
+        workspace[dst + k] = max + Math.log(sum);
+      } else {
+        workspace[dst + k] = max;
+      }
+    }
+  }
+
+  /**
+   * Reads the partition function, joint marginals and singleton marginals off a converged clique in the scratch buffer.
+   */
+  private double converged(double[] workspace, int c, List<List<GraphicalModel.Factor>> cliqueToFactors,
+                           double[][] marginals, int[] jointMarginalOffsets, double[] jointMarginalValues,
+                           int[] observations, double partitionFunction) {
+    int[] dims = cliqueDims[c];
+    int d0 = dims[0];
+    int d1 = dims.length == 1 ? 1 : dims[1];
+
+    if (includeJointMarginalsAndPartition) {
+      // TableFactor.valueSum() pivots on the max (starting from 0), and sums in iteration order, where the first
+      // variable moves fastest
+
+      double max = 0.0;
+      for (int i = 0; i < d0 * d1; i++) {
+        if (workspace[scratchOffset + i] > max) max = workspace[scratchOffset + i];
+      }
+      double sumExp = 0.0;
+      for (int j = 0; j < d1; j++) {
+        for (int i = 0; i < d0; i++) sumExp += Math.exp(workspace[scratchOffset + i * d1 + j] - max);
+      }
+      double sum = sumExp * Math.exp(max);
+      if (countsTowardsPartition[c]) partitionFunction *= sum;
+
+      // The joint marginal of the clique's factor, with any observed variables held at their observations
+
+      GraphicalModel.Factor f = cliqueToFactors.get(c).get(0);
+      int[] factorDims = f.getDimensions();
+      int base = jointMarginalOffsets[c];
+      // The strides of the clique's first and second variables in the factor's table. The second is 0 for a clique
+      // over one variable, where j is always 0 anyway.
+      int stride0 = 0;
+      int stride1 = 0;
+      int stride = 1;
+      int position = dims.length;
+      for (int i = factorDims.length - 1; i >= 0; i--) {
+        int observation = observations[f.neigborIndices[i]];
+        if (observation == -1) {
+          if (--position == 1) stride1 = stride;
+          else stride0 = stride;
+        } else {
+          base += observation * stride;
+        }
+        stride *= factorDims[i];
+      }
+      for (int i = 0; i < d0; i++) {
+        for (int j = 0; j < d1; j++) {
+          jointMarginalValues[base + i * stride0 + j * stride1] = Math.exp(workspace[scratchOffset + i * d1 + j]) / sum;
+        }
+      }
+    }
+
+    // TableFactor.getSummedMarginals(), for just the variables this clique supplies
+
+    for (int axis = 0; axis < dims.length; axis++) {
+      if (!suppliesMarginal[c][axis]) continue;
+      int size = dims[axis];
+      int other = axis == 0 ? d1 : d0;
+      int step = axis == 0 ? d1 : 1;
+      int otherStep = axis == 0 ? 1 : d1;
+      double[] result = new double[size];
+      for (int s = 0; s < size; s++) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (int o = 0; o < other; o++) {
+          double v = workspace[scratchOffset + s * step + o * otherStep];
+          if (max < v) max = v;
+        }
+        workspace[pivotOffset + s] = max;
+        for (int o = 0; o < other; o++) {
+          result[s] += Math.exp(workspace[scratchOffset + s * step + o * otherStep] - max);
+        }
+      }
+      double sum = 0.0;
+      for (int s = 0; s < size; s++) {
+        result[s] = Math.exp(workspace[pivotOffset + s]) * result[s];
+        sum += result[s];
+      }
+      if (Double.isInfinite(sum)) {
+        for (int s = 0; s < size; s++) result[s] = 1.0 / size;
+      } else {
+        for (int s = 0; s < size; s++) result[s] /= sum;
+      }
+      marginals[cliqueScopes[c][axis]] = result;
+    }
+    return partitionFunction;
+  }
+}
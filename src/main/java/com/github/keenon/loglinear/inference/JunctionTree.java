@@ -0,0 +1,417 @@
+package com.github.keenon.loglinear.inference;
+
+import java.util.*;
+
+/**
+ * The compiled structure for exact inference over graphs with cycles. The factor scopes are used to build the
+ * interaction graph over variables, which is triangulated by greedy elimination. The maximal elimination cliques are
+ * then joined by a maximum spanning tree over separator sizes, which gives a proper junction tree (every variable
+ * shared by two cliques is present on the path between them). Message passing then runs over the compiled cliques, so
+ * the cost of exact inference scales with the treewidth of the model rather than with the number of cycles.
+ * <p>
+ * Compilation only looks at the shape of the model (which variables each factor touches, and how big they are), so
+ * the results are cached by shape. Many models with the same structure but different features share one JunctionTree.
+ */
+public class JunctionTree {
+  /**
+   * The greedy heuristics available for picking an elimination order during triangulation.
+   */
+  public enum Heuristic {
+    /**
+     * Eliminate the variable that adds the fewest fill-in edges, breaking ties by table size
+     */
+    MIN_FILL,
+    /**
+     * Eliminate the variable whose elimination clique has the smallest table size, breaking ties by fill-in
+     */
+    MIN_WEIGHT
+  }
+
+  // The variables in each clique, sorted ascending
+  final int[][] cliqueVariables;
+  // The sizes of the variables in each clique, one-to-one with cliqueVariables
+  final int[][] cliqueDimensions;
+  // The variables that each clique shares with its parent, empty for roots
+  final int[][] separators;
+  // The parent of each clique, or -1 for the root of each tree
+  final int[] parent;
+  // All the cliques, arranged so that every parent comes before all of its children
+  final int[] order;
+  // The index of the tree in the forest that each clique belongs to
+  final int[] trees;
+  final int numTrees;
+  // One-to-one with the scopes that this was compiled from, this holds the clique that each scope was assigned to
+  final int[] scopeToClique;
+
+  /**
+   * @return the number of cliques in the junction tree
+   */
+  public int size() {
+    return cliqueVariables.length;
+  }
+
+  /**
+   * @return the size of the largest clique, minus one.
+   */
+  public int getTreewidth() {
+    int width = 0;
+    for (int[] clique : cliqueVariables) {
+      if (clique.length - 1 > width) width = clique.length - 1;
+    }
+    return width;
+  }
+
+  /**
+   * @return the total number of entries in all the clique tables, which is what message passing will cost
+   */
+  public long getTotalTableSize() {
+    long total = 0;
+    for (int[] dims : cliqueDimensions) {
+      long size = 1;
+      for (int dim : dims) size *= dim;
+      total += size;
+    }
+    return total;
+  }
+
+  /**
+   * @param clique the clique to look at
+   * @return the variables in the clique, by value
+   */
+  public int[] getCliqueVariables(int clique) {
+    return cliqueVariables[clique].clone();
+  }
+
+  /**
+   * @param clique the clique to look at
+   * @return the separator between the clique and its parent, empty if the clique is a root
+   */
+  public int[] getSeparator(int clique) {
+    return separators[clique].clone();
+  }
+
+  /**
+   * @param clique the clique to look at
+   * @return the parent of the clique, or -1 if the clique is the root of its tree
+   */
+  public int getParent(int clique) {
+    return parent[clique];
+  }
+
+  /**
+   * @param scope the index of a scope passed in at compile time
+   * @return the clique that holds the factor with that scope
+   */
+  public int getCliqueForScope(int scope) {
+    return scopeToClique[scope];
+  }
+
+  // OPTIMIZATION:
+  // Compilation is a pure function of the model shape, and the same shapes come up over and over again (every sentence
+  // of a given length in a chain, for example), so we keep a bounded cache of compiled trees.
+
+  private static final int MAX_CACHED_SHAPES = 1024;
+
+  private static final Map<ShapeKey, JunctionTree> compiledShapes = Collections.synchronizedMap(
+      new LinkedHashMap<ShapeKey, JunctionTree>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<ShapeKey, JunctionTree> eldest) {
+          return size() > MAX_CACHED_SHAPES;
+        }
+      });
+
+  /**
+   * Compiles (or retrieves from the cache) the junction tree for a set of factor scopes.
+   *
+   * @param scopes        the variables touched by each factor. Observed variables should already be removed.
+   * @param variableSizes the size of every variable, indexed by variable. Only the variables in scopes are read.
+   * @param heuristic     the elimination heuristic to use for triangulation
+   * @return a junction tree where every scope is contained in at least one clique
+   */
+  public static JunctionTree compile(int[][] scopes, int[] variableSizes, Heuristic heuristic) {
+    ShapeKey key = new ShapeKey(scopes, variableSizes, heuristic);
+    JunctionTree compiled = compiledShapes.get(key);
+    if (compiled == null) {
+      compiled = new JunctionTree(scopes, variableSizes, heuristic);
+      compiledShapes.put(key, compiled);
+    }
+    return compiled;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  private JunctionTree(int[][] scopes, int[] variableSizes, Heuristic heuristic) {
+    int numVariables = 0;
+    for (int[] scope : scopes) {
+      for (int n : scope) if (n + 1 > numVariables) numVariables = n + 1;
+    }
+
+    // Build the interaction graph, where two variables are adjacent if any factor touches both
+
+    List<Set<Integer>> adjacency = new ArrayList<>();
+    boolean[] present = new boolean[numVariables];
+    for (int i = 0; i < numVariables; i++) adjacency.add(new HashSet<>());
+    for (int[] scope : scopes) {
+      for (int a : scope) {
+        present[a] = true;
+        for (int b : scope) {
+          if (a != b) adjacency.get(a).add(b);
+        }
+      }
+    }
+
+    // Triangulate by greedy elimination, recording the maximal elimination cliques as we go
+
+    List<int[]> cliques = new ArrayList<>();
+    boolean[] eliminated = new boolean[numVariables];
+    int remaining = 0;
+    for (boolean p : present) if (p) remaining++;
+
+    while (remaining > 0) {
+      int best = -1;
+      long bestFill = Long.MAX_VALUE;
+      double bestWeight = Double.POSITIVE_INFINITY;
+      for (int v = 0; v < numVariables; v++) {
+        if (!present[v] || eliminated[v]) continue;
+        long fill = fillIn(adjacency, v);
+        double weight = Math.log(variableSizes[v]);
+        for (int n : adjacency.get(v)) weight += Math.log(variableSizes[n]);
+
+        boolean better;
+        if (heuristic == Heuristic.MIN_FILL) {
+          better = fill < bestFill || (fill == bestFill && weight < bestWeight);
+        } else {
+          better = weight < bestWeight || (weight == bestWeight && fill < bestFill);
+        }
+        if (better) {
+          best = v;
+          bestFill = fill;
+          bestWeight = weight;
+        }
+      }
+      assert (best != -1);
+
+      Set<Integer> neighbors = adjacency.get(best);
+      int[] clique = new int[neighbors.size() + 1];
+      int cursor = 0;
+      clique[cursor++] = best;
+      for (int n : neighbors) clique[cursor++] = n;
+      Arrays.sort(clique);
+
+      // An elimination clique that is contained in an earlier one adds nothing to the tree
+
+      boolean contained = false;
+      for (int[] existing : cliques) {
+        if (isSubset(clique, existing)) {
+          contained = true;
+          break;
+        }
+      }
+      if (!contained) cliques.add(clique);
+
+      // Connect all the neighbors, then remove the variable from the graph
+
+      for (int a : neighbors) {
+        for (int b : neighbors) {
+          if (a != b) adjacency.get(a).add(b);
+        }
+        adjacency.get(a).remove(best);
+      }
+      neighbors.clear();
+      eliminated[best] = true;
+      remaining--;
+    }
+
+    cliqueVariables = cliques.toArray(new int[cliques.size()][]);
+    cliqueDimensions = new int[cliqueVariables.length][];
+    for (int i = 0; i < cliqueVariables.length; i++) {
+      cliqueDimensions[i] = new int[cliqueVariables[i].length];
+      for (int j = 0; j < cliqueVariables[i].length; j++) {
+        cliqueDimensions[i][j] = variableSizes[cliqueVariables[i][j]];
+      }
+    }
+
+    // Join the cliques with a maximum spanning forest over separator sizes (Kruskal's algorithm). On the maximal cliques
+    // of a chordal graph this is guaranteed to satisfy the running intersection property.
+
+    List<int[]> edges = new ArrayList<>();
+    List<Integer> edgeWeights = new ArrayList<>();
+    for (int i = 0; i < cliqueVariables.length; i++) {
+      for (int j = i + 1; j < cliqueVariables.length; j++) {
+        int shared = intersection(cliqueVariables[i], cliqueVariables[j]).length;
+        if (shared > 0) {
+          edges.add(new int[]{i, j});
+          edgeWeights.add(shared);
+        }
+      }
+    }
+    Integer[] edgeOrder = new Integer[edges.size()];
+    for (int i = 0; i < edgeOrder.length; i++) edgeOrder[i] = i;
+    Arrays.sort(edgeOrder, (a, b) -> edgeWeights.get(b) - edgeWeights.get(a));
+
+    int[] unionFind = new int[cliqueVariables.length];
+    for (int i = 0; i < unionFind.length; i++) unionFind[i] = i;
+    List<List<Integer>> treeNeighbors = new ArrayList<>();
+    for (int i = 0; i < cliqueVariables.length; i++) treeNeighbors.add(new ArrayList<>());
+
+    for (int e : edgeOrder) {
+      int a = find(unionFind, edges.get(e)[0]);
+      int b = find(unionFind, edges.get(e)[1]);
+      if (a == b) continue;
+      unionFind[a] = b;
+      treeNeighbors.get(edges.get(e)[0]).add(edges.get(e)[1]);
+      treeNeighbors.get(edges.get(e)[1]).add(edges.get(e)[0]);
+    }
+
+    // Root each tree at its largest clique, and record a BFS order so that parents always come before children
+
+    parent = new int[cliqueVariables.length];
+    order = new int[cliqueVariables.length];
+    trees = new int[cliqueVariables.length];
+    separators = new int[cliqueVariables.length][];
+    boolean[] visited = new boolean[cliqueVariables.length];
+    int numVisited = 0;
+    int treeIndex = -1;
+
+    while (numVisited < cliqueVariables.length) {
+      treeIndex++;
+      int root = -1;
+      for (int i = 0; i < cliqueVariables.length; i++) {
+        if (!visited[i] && (root == -1 || cliqueVariables[i].length > cliqueVariables[root].length)) root = i;
+      }
+      parent[root] = -1;
+      separators[root] = new int[0];
+      visited[root] = true;
+
+      Queue<Integer> toVisit = new ArrayDeque<>();
+      toVisit.add(root);
+      while (toVisit.size() > 0) {
+        int cursor = toVisit.poll();
+        order[numVisited++] = cursor;
+        trees[cursor] = treeIndex;
+        for (int child : treeNeighbors.get(cursor)) {
+          if (visited[child]) continue;
+          visited[child] = true;
+          parent[child] = cursor;
+          separators[child] = intersection(cliqueVariables[child], cliqueVariables[cursor]);
+          toVisit.add(child);
+        }
+      }
+    }
+    numTrees = treeIndex + 1;
+
+    // Assign every scope to the smallest clique that contains it
+
+    scopeToClique = new int[scopes.length];
+    for (int s = 0; s < scopes.length; s++) {
+      int[] sorted = scopes[s].clone();
+      Arrays.sort(sorted);
+      int home = -1;
+      for (int i = 0; i < cliqueVariables.length; i++) {
+        if (isSubset(sorted, cliqueVariables[i]) &&
+            (home == -1 || cliqueVariables[i].length < cliqueVariables[home].length)) {
+          home = i;
+        }
+      }
+      if (home == -1) {
+        throw new IllegalStateException("Triangulation lost the scope " + Arrays.toString(scopes[s]) + ", this should be impossible");
+      }
+      scopeToClique[s] = home;
+    }
+  }
+
+  /**
+   * Counts the edges that would have to be added between the neighbors of a variable, if it were eliminated.
+   */
+  private static long fillIn(List<Set<Integer>> adjacency, int v) {
+    long fill = 0;
+    Integer[] neighbors = adjacency.get(v).toArray(new Integer[adjacency.get(v).size()]);
+    for (int i = 0; i < neighbors.length; i++) {
+      for (int j = i + 1; j < neighbors.length; j++) {
+        if (!adjacency.get(neighbors[i]).contains(neighbors[j])) fill++;
+      }
+    }
+    return fill;
+  }
+
+  private static int find(int[] unionFind, int i) {
+    while (unionFind[i] != i) {
+      unionFind[i] = unionFind[unionFind[i]];
+      i = unionFind[i];
+    }
+    return i;
+  }
+
+  /**
+   * @return whether sorted array a is contained in sorted array b
+   */
+  private static boolean isSubset(int[] a, int[] b) {
+    int j = 0;
+    for (int x : a) {
+      while (j < b.length && b[j] < x) j++;
+      if (j == b.length || b[j] != x) return false;
+    }
+    return true;
+  }
+
+  /**
+   * @return the sorted intersection of two sorted arrays
+   */
+  private static int[] intersection(int[] a, int[] b) {
+    int[] buf = new int[Math.min(a.length, b.length)];
+    int size = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] == b[j]) {
+        buf[size++] = a[i];
+        i++;
+        j++;
+      } else if (a[i] < b[j]) i++;
+      else j++;
+    }
+    return Arrays.copyOf(buf, size);
+  }
+
+  /**
+   * The cache key for a compiled shape, using deep equality over the scopes and the sizes of the variables they touch.
+   */
+  static class ShapeKey {
+    final int[][] scopes;
+    final int[] flatSizes;
+    final Heuristic heuristic;
+    final int hash;
+
+    ShapeKey(int[][] scopes, int[] variableSizes, Heuristic heuristic) {
+      this.scopes = new int[scopes.length][];
+      for (int i = 0; i < scopes.length; i++) {
+        this.scopes[i] = scopes[i].clone();
+      }
+      // We only keep the sizes of variables that actually show up, so that unrelated entries can't break cache hits
+      List<Integer> sizeList = new ArrayList<>();
+      for (int[] scope : scopes) {
+        for (int n : scope) sizeList.add(variableSizes[n]);
+      }
+      flatSizes = new int[sizeList.size()];
+      for (int i = 0; i < flatSizes.length; i++) flatSizes[i] = sizeList.get(i);
+      this.heuristic = heuristic;
+      this.hash = 31 * (31 * Arrays.deepHashCode(this.scopes) + Arrays.hashCode(flatSizes)) + heuristic.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ShapeKey)) return false;
+      ShapeKey other = (ShapeKey) o;
+      return hash == other.hash && heuristic == other.heuristic && Arrays.deepEquals(scopes, other.scopes) &&
+          Arrays.equals(flatSizes, other.flatSizes);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+  }
+}
@@ -0,0 +1,299 @@
+package com.github.keenon.loglinear.inference;
+
+import java.util.*;
+
+/**
+ * A k-best variant of max-product message passing over a clique forest. Rather than passing a single max value for
+ * every separator assignment, each message carries the k best scores for that separator assignment, along with
+ * back-pointers recording which clique assignment and which ranks in the incoming messages produced each score. A
+ * single upward pass computes all the messages, and then the k best global assignments are read back down the
+ * back-pointers.
+ * <p>
+ * Combining lists is done lazily with a heap (only the frontier of the next-best combinations is ever expanded), so
+ * the cost of decoding is roughly linear in k, rather than the k^2 or worse of naive list products.
+ */
+class KBestMAPDecoder {
+  private final TableFactor[] cliques;
+  private final int[] visitedOrder;
+  private final int k;
+
+  // The children of every clique, and the roots of the forest
+  private final int[][] children;
+  private final int[] roots;
+  // For every clique, the positions (into its own neighborIndices) of the variables it shares with its parent
+  private final int[][] separatorPositions;
+  // For every clique, and each of its children, the positions (into the clique's neighborIndices) of the variables
+  // shared with that child, in the same order as the child's separatorPositions
+  private final int[][][] childSeparatorPositions;
+  // For every clique, the number of separator assignments it sends a message for
+  private final int[] separatorSizes;
+
+  // Indexed by (clique, separator assignment), this holds the k best entries sorted by descending score
+  private final Entry[][][] messages;
+
+  /**
+   * One candidate in a k-best list: a score, the (flat) clique assignment that produced it, and the ranks of the
+   * entries in each child message that were combined to get it.
+   */
+  private static class Entry {
+    final double score;
+    final int assignment;
+    final int[] childRanks;
+
+    Entry(double score, int assignment, int[] childRanks) {
+      this.score = score;
+      this.assignment = assignment;
+      this.childRanks = childRanks;
+    }
+  }
+
+  /**
+   * @param cliques      the log-space cliques to decode over
+   * @param parent       the parent of each clique, or -1 for roots
+   * @param visitedOrder the cliques arranged so that parents come before children
+   * @param k            the number of assignments to find
+   */
+  KBestMAPDecoder(TableFactor[] cliques, int[] parent, int[] visitedOrder, int k) {
+    this.cliques = cliques;
+    this.visitedOrder = visitedOrder;
+    this.k = k;
+
+    List<List<Integer>> childLists = new ArrayList<>();
+    for (int i = 0; i < cliques.length; i++) childLists.add(new ArrayList<>());
+    List<Integer> rootList = new ArrayList<>();
+    for (int i : visitedOrder) {
+      if (parent[i] == -1) rootList.add(i);
+      else childLists.get(parent[i]).add(i);
+    }
+
+    children = new int[cliques.length][];
+    for (int i = 0; i < cliques.length; i++) {
+      children[i] = childLists.get(i).stream().mapToInt(x -> x).toArray();
+    }
+    roots = rootList.stream().mapToInt(x -> x).toArray();
+
+    separatorPositions = new int[cliques.length][];
+    separatorSizes = new int[cliques.length];
+    for (int i = 0; i < cliques.length; i++) {
+      separatorSizes[i] = 1;
+      if (parent[i] == -1) {
+        separatorPositions[i] = new int[0];
+        continue;
+      }
+      List<Integer> positions = new ArrayList<>();
+      for (int j = 0; j < cliques[i].neighborIndices.length; j++) {
+        for (int n : cliques[parent[i]].neighborIndices) {
+          if (n == cliques[i].neighborIndices[j]) {
+            positions.add(j);
+            separatorSizes[i] *= cliques[i].getDimensions()[j];
+            break;
+          }
+        }
+      }
+      separatorPositions[i] = positions.stream().mapToInt(x -> x).toArray();
+    }
+
+    childSeparatorPositions = new int[cliques.length][][];
+    for (int i = 0; i < cliques.length; i++) {
+      childSeparatorPositions[i] = new int[children[i].length][];
+      for (int c = 0; c < children[i].length; c++) {
+        int child = children[i][c];
+        int[] positions = new int[separatorPositions[child].length];
+        for (int j = 0; j < positions.length; j++) {
+          int variable = cliques[child].neighborIndices[separatorPositions[child][j]];
+          positions[j] = -1;
+          for (int l = 0; l < cliques[i].neighborIndices.length; l++) {
+            if (cliques[i].neighborIndices[l] == variable) positions[j] = l;
+          }
+          assert (positions[j] != -1);
+        }
+        childSeparatorPositions[i][c] = positions;
+      }
+    }
+
+    messages = new Entry[cliques.length][][];
+  }
+
+  /**
+   * Runs the upward k-best pass, then reads back the best assignments.
+   *
+   * @param offset        a constant log score to add to every result, such as from fully observed factors
+   * @param numVariables  the size of the assignment arrays to return
+   * @param observations  the observed value of each variable, or -1, which is copied into every returned assignment
+   * @return up to k results, best first. Assignments with zero probability are never returned.
+   */
+  List<CliqueTree.ScoredAssignment> decode(double offset, int numVariables, int[] observations) {
+
+    // Upward pass, run the visited list in reverse so that children are done before parents
+
+    for (int i = visitedOrder.length - 1; i >= 0; i--) {
+      computeMessage(visitedOrder[i]);
+    }
+
+    // Combine the trees of the forest as though they were children of a single empty root
+
+    Entry[][] rootLists = new Entry[roots.length][];
+    for (int r = 0; r < roots.length; r++) rootLists[r] = messages[roots[r]][0];
+    List<Entry> best = new ArrayList<>();
+    kBestCombinations(offset, rootLists, 0, best);
+
+    List<CliqueTree.ScoredAssignment> results = new ArrayList<>();
+    for (Entry e : best) {
+      int[] assignment = observations.clone();
+      assert (assignment.length == numVariables);
+      for (int r = 0; r < roots.length; r++) {
+        readBackPointers(roots[r], 0, e.childRanks[r], assignment);
+      }
+      results.add(new CliqueTree.ScoredAssignment(assignment, e.score));
+    }
+    return results;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Computes the k best entries for every separator assignment from a clique to its parent, given that all of its
+   * children have already sent their messages.
+   */
+  private void computeMessage(int clique) {
+    TableFactor factor = cliques[clique];
+    int[] dims = factor.getDimensions();
+    int numAssignments = 1;
+    for (int d : dims) numAssignments *= d;
+
+    List<List<Entry[]>> candidates = new ArrayList<>();
+    for (int s = 0; s < separatorSizes[clique]; s++) candidates.add(new ArrayList<>());
+
+    int[] assignment = new int[dims.length];
+    Entry[][] childLists = new Entry[children[clique].length][];
+    List<Entry> buffer = new ArrayList<>();
+
+    for (int a = 0; a < numAssignments; a++) {
+      unflatten(a, dims, assignment);
+      double base = factor.getAssignmentLogValue(assignment);
+      if (base == Double.NEGATIVE_INFINITY) continue;
+
+      boolean anyEmpty = false;
+      for (int c = 0; c < children[clique].length; c++) {
+        int child = children[clique][c];
+        childLists[c] = messages[child][flatten(assignment, childSeparatorPositions[clique][c], dims)];
+        if (childLists[c].length == 0) {
+          anyEmpty = true;
+          break;
+        }
+      }
+      if (anyEmpty) continue;
+
+      buffer.clear();
+      kBestCombinations(base, childLists, a, buffer);
+      candidates.get(flatten(assignment, separatorPositions[clique], dims)).add(buffer.toArray(new Entry[buffer.size()]));
+    }
+
+    messages[clique] = new Entry[separatorSizes[clique]][];
+    for (int s = 0; s < separatorSizes[clique]; s++) {
+      messages[clique][s] = mergeSorted(candidates.get(s));
+    }
+  }
+
+  /**
+   * Finds the k best ways to pick one entry from each list, where the score of a pick is the base plus the sum of the
+   * picked scores. The frontier is expanded lazily: a rank vector only generates successors by incrementing positions
+   * at or after its last non-zero rank, which means every rank vector has exactly one predecessor, so we never need to
+   * check for duplicates.
+   */
+  private void kBestCombinations(double base, Entry[][] lists, int assignment, List<Entry> output) {
+    double start = base;
+    for (Entry[] list : lists) {
+      if (list.length == 0) return;
+      start += list[0].score;
+    }
+    if (start == Double.NEGATIVE_INFINITY) return;
+
+    PriorityQueue<Entry> frontier = new PriorityQueue<>((x, y) -> Double.compare(y.score, x.score));
+    frontier.add(new Entry(start, assignment, new int[lists.length]));
+
+    while (output.size() < k && !frontier.isEmpty()) {
+      Entry e = frontier.poll();
+      if (e.score == Double.NEGATIVE_INFINITY) break;
+      output.add(e);
+
+      int lastNonZero = 0;
+      for (int j = lists.length - 1; j >= 0; j--) {
+        if (e.childRanks[j] != 0) {
+          lastNonZero = j;
+          break;
+        }
+      }
+      for (int j = lastNonZero; j < lists.length; j++) {
+        int rank = e.childRanks[j];
+        if (rank + 1 >= lists[j].length) continue;
+        int[] nextRanks = e.childRanks.clone();
+        nextRanks[j] = rank + 1;
+        double nextScore = e.score - lists[j][rank].score + lists[j][rank + 1].score;
+        frontier.add(new Entry(nextScore, assignment, nextRanks));
+      }
+    }
+  }
+
+  /**
+   * Merges several lists that are already sorted by descending score, keeping only the k best overall.
+   */
+  private Entry[] mergeSorted(List<Entry[]> lists) {
+    if (lists.size() == 1) return lists.get(0);
+
+    // Heap entries are (list, position) pairs, ordered by the score at that position
+    PriorityQueue<int[]> heap = new PriorityQueue<>((x, y) ->
+        Double.compare(lists.get(y[0])[y[1]].score, lists.get(x[0])[x[1]].score));
+    for (int i = 0; i < lists.size(); i++) {
+      if (lists.get(i).length > 0) heap.add(new int[]{i, 0});
+    }
+
+    List<Entry> merged = new ArrayList<>();
+    while (merged.size() < k && !heap.isEmpty()) {
+      int[] top = heap.poll();
+      merged.add(lists.get(top[0])[top[1]]);
+      if (top[1] + 1 < lists.get(top[0]).length) heap.add(new int[]{top[0], top[1] + 1});
+    }
+    return merged.toArray(new Entry[merged.size()]);
+  }
+
+  /**
+   * Writes the assignment for a clique's entry into the global assignment, and recurses into its children.
+   */
+  private void readBackPointers(int clique, int separatorAssignment, int rank, int[] globalAssignment) {
+    Entry e = messages[clique][separatorAssignment][rank];
+    int[] dims = cliques[clique].getDimensions();
+    int[] assignment = new int[dims.length];
+    unflatten(e.assignment, dims, assignment);
+    for (int i = 0; i < assignment.length; i++) {
+      globalAssignment[cliques[clique].neighborIndices[i]] = assignment[i];
+    }
+    for (int c = 0; c < children[clique].length; c++) {
+      int childSeparator = flatten(assignment, childSeparatorPositions[clique][c], dims);
+      readBackPointers(children[clique][c], childSeparator, e.childRanks[c], globalAssignment);
+    }
+  }
+
+  /**
+   * Decodes a flat index into an assignment, with the last variable moving fastest.
+   */
+  private static void unflatten(int index, int[] dims, int[] assignment) {
+    for (int i = dims.length - 1; i >= 0; i--) {
+      assignment[i] = index % dims[i];
+      index /= dims[i];
+    }
+  }
+
+  /**
+   * Computes the flat index of a subset of an assignment, with the last selected variable moving fastest.
+   */
+  private static int flatten(int[] assignment, int[] positions, int[] dims) {
+    int index = 0;
+    for (int p : positions) {
+      index = index * dims[p] + assignment[p];
+    }
+    return index;
+  }
+}
@@ -0,0 +1,247 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A cache of scored factor tables, for tables shared by many factors. Models built in bulk often share one table object
+ * across thousands of factors, like the table behind a tied FactorTemplate, or a label-transition ConcatVectorTable or
+ * static prior that the caller passes to addFactor() or addStaticFactor() for every model. Without this, every
+ * inference call on every model dot products that table with the weights all over again.
+ * <p>
+ * Only tables marked with markShared() go through the cache, which tied templates do for their tables. Most tables
+ * belong to a single factor, like the ones addFactor(neighbors, dimensions, featurizer) builds, and caching those would
+ * only add a lookup that can never hit.
+ * <p>
+ * The cache is a concurrent map with weak keys, so lookups from many inference threads don't contend on a lock, and an
+ * entry goes away once its table is no longer reachable, rather than keeping models and their featurizers alive. Each
+ * table keeps its scores for the latest weights version only, one per observation pattern on its variables. Versions
+ * are compared with ConcatVector.getContentKey(), which is as cheap as comparing pointers. Cached tables are shared
+ * read-only between models, and relabelled with each model's own variables on the way out.
+ * <p>
+ * Tables are keyed by identity rather than contents, so a shared table must not be changed once it's been used for
+ * inference. A feature table's contents are lazy featurizers, so hashing them would cost as much as the dot products
+ * we're trying to save.
+ */
+public class ScoredFactorCache {
+  // The most observation patterns we keep scores for, per table
+  private static final int MAX_OBSERVATION_PATTERNS = 1024;
+
+  // Static tables don't depend on the weights, so they're always at this version
+  private static final Object STATIC_VERSION = new Object();
+
+  private static final Map<Object, Scores> scoresByTable = new ConcurrentHashMap<>();
+  // Keys whose tables have been garbage collected, so their entries can be dropped
+  private static final ReferenceQueue<Object> collected = new ReferenceQueue<>();
+
+  private static final LongAdder hits = new LongAdder();
+  private static final LongAdder misses = new LongAdder();
+
+  /**
+   * @return the number of lookups that found an already scored table
+   */
+  public static long getHits() {
+    return hits.sum();
+  }
+
+  /**
+   * @return the number of lookups that had to score a table
+   */
+  public static long getMisses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the fraction of lookups that found an already scored table, or 0 if there haven't been any
+   */
+  public static double getHitRate() {
+    long h = hits.sum();
+    long total = h + misses.sum();
+    return total == 0 ? 0.0 : (double) h / total;
+  }
+
+  /**
+   * Drops every cached table, and resets the hit and miss counts.
+   */
+  public static void clear() {
+    scoresByTable.clear();
+    hits.reset();
+    misses.reset();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * @param factor the factor to check
+   * @return whether the factor's table has been marked as shared, so it's worth going through the cache
+   */
+  static boolean isShared(GraphicalModel.Factor factor) {
+    if (factor instanceof GraphicalModel.StaticFactor) {
+      return ((GraphicalModel.StaticFactor) factor).staticFeaturesTable.isShared();
+    } else if (factor instanceof GraphicalModel.VectorFactor) {
+      return ((GraphicalModel.VectorFactor) factor).featuresTable.isShared();
+    }
+    return false;
+  }
+
+  /**
+   * Gets a factor scored against the weights and reduced by the observations, from the cache if possible. Factors
+   * whose tables aren't shared are just scored.
+   *
+   * @param weights      the weights to dot product with the factor's features
+   * @param weightsKey   weights.getContentKey(), which callers compute once rather than once per factor
+   * @param factor       the factor to score
+   * @param observations the observed value of each of the factor's neighbors, or -1
+   * @return the scored factor, over the factor's unobserved neighbors. This may share its values with other models, so
+   * it must not be modified.
+   */
+  static TableFactor score(ConcatVector weights, Object weightsKey, GraphicalModel.Factor factor, int[] observations) {
+    if (!isShared(factor)) return new TableFactor(weights, factor, observations);
+
+    Object table;
+    Object version;
+    if (factor instanceof GraphicalModel.StaticFactor) {
+      table = ((GraphicalModel.StaticFactor) factor).staticFeaturesTable;
+      version = STATIC_VERSION;
+    } else {
+      table = ((GraphicalModel.VectorFactor) factor).featuresTable;
+      version = weightsKey;
+    }
+
+    expungeCollected();
+
+    // A new weights version replaces the table's old scores all at once. If we race another thread doing the same,
+    // one of the two sets of scores is simply lost, which only costs a rescore.
+
+    Lookup lookup = new Lookup(table);
+    Scores scores = scoresByTable.get(lookup);
+    if (scores == null || !scores.version.equals(version)) {
+      Scores fresh = new Scores(version);
+      if (scores == null) scoresByTable.putIfAbsent(new WeakKey(table, collected), fresh);
+      else scoresByTable.replace(lookup, scores, fresh);
+      scores = fresh;
+    }
+
+    ObservationKey key = new ObservationKey(observations);
+    TableFactor cached = scores.byObservations.get(key);
+    if (cached == null) {
+      misses.increment();
+      TableFactor result = new TableFactor(weights, factor, observations);
+      if (scores.byObservations.size() < MAX_OBSERVATION_PATTERNS) scores.byObservations.putIfAbsent(key, result);
+      return result;
+    }
+    hits.increment();
+
+    // Relabel the shared table with this factor's unobserved neighbors
+
+    int[] neighborIndices = new int[cached.neighborIndices.length];
+    int cursor = 0;
+    for (int i = 0; i < observations.length; i++) {
+      if (observations[i] == -1) neighborIndices[cursor++] = factor.neigborIndices[i];
+    }
+    return new TableFactor(neighborIndices, cached);
+  }
+
+  private static void expungeCollected() {
+    Reference<?> reference;
+    while ((reference = collected.poll()) != null) scoresByTable.remove(reference);
+  }
+
+  /**
+   * Everything scored for one table, against one version of the weights. This must not reference the table itself,
+   * or the table would never become weakly reachable.
+   */
+  private static class Scores {
+    final Object version;
+    final Map<ObservationKey, TableFactor> byObservations = new ConcurrentHashMap<>();
+
+    Scores(Object version) {
+      this.version = version;
+    }
+  }
+
+  /**
+   * The key a table is stored under, which doesn't keep the table alive. This equals only itself, or a Lookup for the
+   * same table, and keeps its hash code after the table has been collected, so that it can still be removed.
+   */
+  private static class WeakKey extends WeakReference<Object> {
+    private final int hashCode;
+
+    WeakKey(Object table, ReferenceQueue<Object> queue) {
+      super(table, queue);
+      this.hashCode = System.identityHashCode(table);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      Object table = get();
+      if (table == null) return false;
+      if (o instanceof Lookup) return ((Lookup) o).table == table;
+      return o instanceof WeakKey && ((WeakKey) o).get() == table;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
+  /**
+   * A short-lived key for looking a table up, which holds it strongly, but is never stored in the map.
+   */
+  private static class Lookup {
+    private final Object table;
+
+    Lookup(Object table) {
+      this.table = table;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o instanceof WeakKey) return ((WeakKey) o).get() == table;
+      return o instanceof Lookup && ((Lookup) o).table == table;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(table);
+    }
+  }
+
+  /**
+   * The observations a table was reduced by.
+   */
+  private static class ObservationKey {
+    private final int[] observations;
+    private final int hashCode;
+
+    ObservationKey(int[] observations) {
+      this.observations = observations;
+      this.hashCode = Arrays.hashCode(observations);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ObservationKey)) return false;
+      return Arrays.equals(observations, ((ObservationKey) o).observations);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+}
@@ -77,6 +77,21 @@ public class TableFactor extends NDArrayDoubles {
    * @param factor  the feature factor to be multiplied in
    */
   public TableFactor(ConcatVector weights, GraphicalModel.Factor factor, int[] observations) {
+    this(weights, factor, observations, null);
+  }
+
+  /**
+   * Construct a TableFactor for inference within a model, with observations and allowed-value masks applied before any
+   * dot products are done. Entries that assign a disallowed value to any variable get probability 0, and are never
+   * dot producted with the weights at all.
+   *
+   * @param weights       the vector to dot product with every element of the factor table
+   * @param factor        the feature factor to be multiplied in
+   * @param observations  the observed value of each of the factor's neighbors, or -1
+   * @param allowedValues for each of the factor's neighbors, which values it's allowed to take, or null if they're all
+   *                      allowed. This can itself be null if nothing is masked.
+   */
+  public TableFactor(ConcatVector weights, GraphicalModel.Factor factor, int[] observations, boolean[][] allowedValues) {
     super();
     assert (observations.length == factor.neigborIndices.length);
 
@@ -101,11 +116,34 @@ public class TableFactor extends NDArrayDoubles {
 
     values = new double[combinatorialNeighborStatesCount()];
 
-    for (int[] assn : this) {
-      for (int i = 0; i < assn.length; i++) {
-        factorAssignment[forwardPointers[i]] = assn[i];
+    boolean[][] masks = null;
+    if (allowedValues != null) {
+      masks = new boolean[size][];
+      for (int i = 0; i < size; i++) masks[i] = allowedValues[forwardPointers[i]];
+    }
+
+    // OPTIMIZATION:
+    // Walk the unobserved slice in storage order, writing each value straight into place, and only touching the
+    // entries of the factor's assignment that change. This scores only the slice that survives the observations, with
+    // no per-assignment allocation or index arithmetic.
+
+    for (int k = 0; k < values.length; k++) {
+      boolean allowed = true;
+      if (masks != null) {
+        for (int i = 0; i < size; i++) {
+          if (masks[i] != null && !masks[i][factorAssignment[forwardPointers[i]]]) {
+            allowed = false;
+            break;
+          }
+        }
+      }
+      values[k] = allowed ? factor.getAssignmentValue(factorAssignment, weights) : Double.NEGATIVE_INFINITY;
+      for (int i = size - 1; i >= 0; i--) {
+        int pointer = forwardPointers[i];
+        factorAssignment[pointer]++;
+        if (factorAssignment[pointer] < dimensions[i]) break;
+        factorAssignment[pointer] = 0;
       }
-      setAssignmentLogValue(assn, factor.getAssignmentValue(factorAssignment, weights));
     }
   }
 
@@ -611,18 +649,38 @@ public class TableFactor extends NDArrayDoubles {
     super.setAssignmentValue(assignment, Math.log(value));
   }
 
-  ////////////////////////////////////////////////////////////////////////////
-  // PRIVATE IMPLEMENTATION
-  ////////////////////////////////////////////////////////////////////////////
-
-  private double getAssignmentLogValue(int[] assignment) {
+  /**
+   * Reads the raw log-space value of an assignment, without the Math.exp. This is package private so that inference
+   * code that works in log-space (like k-best decoding) doesn't have to pay for an exp and a log on every read.
+   *
+   * @param assignment a list of variable settings, in the same order as the neighbors array of the factor
+   * @return the log of the value of the assignment
+   */
+  double getAssignmentLogValue(int[] assignment) {
     return super.getAssignmentValue(assignment);
   }
 
-  private void setAssignmentLogValue(int[] assignment, double value) {
+  /**
+   * @return the raw log-space values, by reference, in row-major order of the neighbors
+   */
+  double[] getLogValues() {
+    return values;
+  }
+
+  /**
+   * Sets the raw log-space value of an assignment, without the Math.log.
+   *
+   * @param assignment a list of variable settings, in the same order as the neighbors array of the factor
+   * @param value      the log of the value to put into the factor table
+   */
+  void setAssignmentLogValue(int[] assignment, double value) {
     super.setAssignmentValue(assignment, value);
   }
 
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
   /**
    * Marginalizes out a variable by applying an associative join operation for each possible assignment to the
    * marginalized variable.
@@ -741,6 +799,21 @@ public class TableFactor extends NDArrayDoubles {
     }
   }
 
+  /**
+   * Creates a view of another factor's table over a different set of variables, sharing its values rather than copying
+   * them. Both factors must be treated as read-only from then on, which is how cached cliques are used.
+   *
+   * @param neighborIndices the variables for the view, one-to-one with the table's dimensions
+   * @param table           the factor to share values with
+   */
+  TableFactor(int[] neighborIndices, TableFactor table) {
+    super();
+    assert (neighborIndices.length == table.neighborIndices.length);
+    this.neighborIndices = neighborIndices;
+    this.dimensions = table.dimensions;
+    this.values = table.values;
+  }
+
   /**
    * FOR PRIVATE USE AND TESTING ONLY
    */
@@ -2,22 +2,21 @@ package com.github.keenon.loglinear.learning;
 
 import com.github.keenon.loglinear.model.ConcatVector;
 import com.github.keenon.loglinear.model.ConcatVectorNamespace;
-import com.github.keenon.loglinear.model.GraphicalModel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
-import java.util.Random;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by keenon on 8/26/15.
@@ -32,6 +31,16 @@ public abstract class AbstractBatchOptimizer {
    */
   private static final Logger log = LoggerFactory.getLogger(AbstractBatchOptimizer.class);
 
+  // The gradient is computed over chunks of the dataset that threads claim as they go. Chunks are small enough that
+  // the last few to finish don't leave anyone waiting long, but big enough that claiming one costs nothing next to
+  // computing its gradients.
+  private static final int CHUNKS_PER_THREAD = 16;
+  private static final int MAX_CHUNK_SIZE = 32;
+
+  private volatile GradientStats lastGradientStats = null;
+
+  private boolean deterministic = false;
+
   public <T> ConcatVector optimize(T[] dataset, AbstractDifferentiableFunction<T> fn) {
     ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
     ConcatVector weights = optimize(dataset, fn, new ConcatVector(0), 1.0, 1.0e-3, false, executor, Optional.empty());
@@ -94,6 +103,58 @@ public abstract class AbstractBatchOptimizer {
     }
   }
 
+  /**
+   * Makes the gradients computed with threads bitwise reproducible from run to run, as long as the number of threads
+   * stays the same. Normally the threads claim chunks of the dataset as they go, so which thread adds up which
+   * datum's gradient, and so the order of the floating point sums, changes from run to run. In deterministic mode
+   * thread i takes every numThreads-th chunk starting at chunk i, always in the same order, which gives up evening
+   * out the work between threads. The per-thread sums are always reduced in the same order either way.
+   *
+   * @param deterministic whether to make the sums reproducible
+   */
+  public void setDeterministic(boolean deterministic) {
+    this.deterministic = deterministic;
+  }
+
+  /**
+   * @return how the work of the most recent gradient computation was spread over the threads, or null if there hasn't
+   * been one yet
+   */
+  public GradientStats getLastGradientStats() {
+    return lastGradientStats;
+  }
+
+  /**
+   * How the work of computing one gradient was spread over the threads. All the times are in nanoseconds, and the
+   * arrays have an entry per thread.
+   */
+  public static class GradientStats {
+    public final long wallNanos;
+    // Time spent adding up the threads' gradients, after they'd all finished
+    public final long reduceNanos;
+    // Time spent computing gradients
+    public final long[] busyNanos;
+    // Time spent not computing gradients, which is waiting to be scheduled, or waiting for the other threads to finish
+    public final long[] idleNanos;
+    public final int[] chunks;
+
+    GradientStats(long wallNanos, long reduceNanos, long[] busyNanos, int[] chunks) {
+      this.wallNanos = wallNanos;
+      this.reduceNanos = reduceNanos;
+      this.busyNanos = busyNanos;
+      this.chunks = chunks;
+      this.idleNanos = new long[busyNanos.length];
+      for (int i = 0; i < busyNanos.length; i++) idleNanos[i] = Math.max(0, wallNanos - busyNanos[i]);
+    }
+
+    @Override
+    public String toString() {
+      long[] idleMillis = new long[idleNanos.length];
+      for (int i = 0; i < idleNanos.length; i++) idleMillis[i] = idleNanos[i] / 1000000;
+      return "idle per thread=" + Arrays.toString(idleMillis) + " ms; reduce=" + (reduceNanos / 1000000) + "ms";
+    }
+  }
+
   List<Constraint> constraints = new ArrayList<>();
 
   /**
@@ -186,6 +247,12 @@ public abstract class AbstractBatchOptimizer {
    */
   protected abstract OptimizationState getFreshOptimizationState(ConcatVector initialWeights);
 
+  /**
+   * One of the threads computing the gradient. Rather than getting a fixed share of the dataset up front, each worker
+   * keeps claiming the next small chunk until there are none left, so a worker that gets stuck on a big model just
+   * ends up claiming fewer chunks, and they all finish within about a chunk of each other. In deterministic mode,
+   * the worker instead takes every numThreads-th chunk, starting at its own index.
+   */
   private static class GradientWorker<T> implements Runnable {
     ConcatVector localDerivative;
     double localLogLikelihood = 0.0;
@@ -193,39 +260,49 @@ public abstract class AbstractBatchOptimizer {
     TrainingWorker mainWorker;
     int threadIdx;
     int numThreads;
-    List<T> queue;
+    T[] dataset;
+    // Null in deterministic mode
+    AtomicInteger nextChunkStart;
+    int chunkSize;
     AbstractDifferentiableFunction<T> fn;
     ConcatVector weights;
 
-    // This is to help the dynamic re-balancing of work queues
-    long finishedAtTime = 0;
-    long cpuTimeRequired = 0;
+    // These are for the stats
+    long busyNanos = 0;
+    int chunks = 0;
 
-    public GradientWorker(TrainingWorker<T> mainWorker, int threadIdx, int numThreads, List<T> queue, AbstractDifferentiableFunction<T> fn, ConcatVector weights) {
+    public GradientWorker(TrainingWorker<T> mainWorker, int threadIdx, int numThreads, T[] dataset, AtomicInteger nextChunkStart, int chunkSize, AbstractDifferentiableFunction<T> fn, ConcatVector weights, ConcatVector localDerivative) {
       this.mainWorker = mainWorker;
       this.threadIdx = threadIdx;
       this.numThreads = numThreads;
-      this.queue = queue;
+      this.dataset = dataset;
+      this.nextChunkStart = nextChunkStart;
+      this.chunkSize = chunkSize;
       this.fn = fn;
       this.weights = weights;
-
-      localDerivative = weights.newEmptyClone();
+      this.localDerivative = localDerivative;
     }
 
     @Override
     public void run() {
-      long startTime = ManagementFactory.getThreadMXBean().getThreadCpuTime(Thread.currentThread().getId());
-
-      for (T datum : queue) {
-        localLogLikelihood += fn.getSummaryForInstance(datum, weights, localDerivative);
-        // Check for user interrupt
-        if (mainWorker.isFinished) return;
+      long startTime = System.nanoTime();
+      try {
+        // OPTIMIZATION: the buffer is kept from the last pass, and zeroing it here happens on all the threads at once
+        localDerivative.zeroInPlace();
+        for (int chunk = threadIdx; ; chunk += numThreads) {
+          long chunkStart = nextChunkStart == null ? (long) chunk * chunkSize : nextChunkStart.getAndAdd(chunkSize);
+          if (chunkStart >= dataset.length) return;
+          int chunkEnd = (int) Math.min(dataset.length, chunkStart + chunkSize);
+          for (int i = (int) chunkStart; i < chunkEnd; i++) {
+            localLogLikelihood += fn.getSummaryForInstance(dataset[i], weights, localDerivative);
+            // Check for user interrupt
+            if (mainWorker.isFinished) return;
+          }
+          chunks++;
+        }
+      } finally {
+        busyNanos = System.nanoTime() - startTime;
       }
-
-      finishedAtTime = System.currentTimeMillis();
-
-      long endTime = ManagementFactory.getThreadMXBean().getThreadCpuTime(Thread.currentThread().getId());
-      cpuTimeRequired = endTime - startTime;
     }
   }
 
@@ -262,21 +339,26 @@ public abstract class AbstractBatchOptimizer {
     }
 
     /**
-     * This lets the system allocate work to threads evenly, which reduces the amount of blocking and can improve
-     * runtimes by 20% or more.
+     * Adds up the threads' gradients into the first of them, as a tree of pairwise sums: first every other buffer is
+     * added into its left neighbour, all at once on the executor, then every fourth into the one two to its left, and so
+     * on. That takes log(numThreads) rounds, instead of numThreads - 1 sums one after another on this thread. The tree
+     * only depends on the number of buffers, so the order of the floating point sums is the same on every pass.
      *
-     * @param datum the datum to estimate work for
-     * @return a work estimate, on a relative scale of single cpu wall time, for getting the gradient and log-likelihood
+     * @param buffers the per-thread gradients, of which all but the first are left holding partial sums
      */
-    private int estimateRelativeRuntime(T datum) {
-      if (datum instanceof GraphicalModel) {
-        int cost = 0;
-        GraphicalModel model = (GraphicalModel) datum;
-        for (GraphicalModel.Factor f : model.factors) {
-          cost += f.combinatorialNeighborStatesCount();
+    private void reduceInPlace(ConcatVector[] buffers) throws InterruptedException, ExecutionException {
+      List<Future<?>> merges = new ArrayList<>();
+      for (int stride = 1; stride < buffers.length; stride *= 2) {
+        merges.clear();
+        // Hand off all but the first merge of each round, and do that one on this thread, rather than wait idle
+        for (int i = 2 * stride; i + stride < buffers.length; i += 2 * stride) {
+          ConcatVector into = buffers[i];
+          ConcatVector from = buffers[i + stride];
+          merges.add(executor.submit(() -> into.addVectorInPlace(from, 1.0)));
         }
-        return cost;
-      } else return 1;
+        buffers[0].addVectorInPlace(buffers[stride], 1.0);
+        for (Future<?> merge : merges) merge.get();
+      }
     }
 
     @Override
@@ -286,28 +368,14 @@ public abstract class AbstractBatchOptimizer {
         // Multithreading stuff
 
         int numThreads = Math.max(1, executor.getMaximumPoolSize());
-        @SuppressWarnings("unchecked")
-        List<T>[] queues = (List<T>[]) (new List[numThreads]);
-        Random r = new Random();
-
-        // Allocate work to make estimated cost of work per thread as even as possible
+        int chunkSize = Math.max(1, Math.min(MAX_CHUNK_SIZE, dataset.length / (numThreads * CHUNKS_PER_THREAD)));
 
+        // Each thread adds into the same buffer on every pass, rather than a fresh one, so once the buffers have grown
+        // to the size of the gradient the threads stop allocating
+        ConcatVector[] localDerivatives = new ConcatVector[numThreads];
         if (useThreads) {
           for (int i = 0; i < numThreads; i++) {
-            queues[i] = new ArrayList<>();
-          }
-          int[] queueEstimatedTotalCost = new int[numThreads];
-
-          for (T datum : dataset) {
-            int datumEstimatedCost = estimateRelativeRuntime(datum);
-
-            int minCostQueue = 0;
-            for (int i = 0; i < numThreads; i++) {
-              if (queueEstimatedTotalCost[i] < queueEstimatedTotalCost[minCostQueue]) minCostQueue = i;
-            }
-
-            queueEstimatedTotalCost[minCostQueue] += datumEstimatedCost;
-            queues[minCostQueue].add(datum);
+            localDerivatives[i] = weights.newEmptyClone();
           }
         }
 
@@ -316,30 +384,23 @@ public abstract class AbstractBatchOptimizer {
           // Collect log-likelihood and derivatives
 
           long startTime = System.currentTimeMillis();
-          long threadWaiting = 0;
+          long startNanos = System.nanoTime();
 
           ConcatVector derivative = weights.newEmptyClone();
           double logLikelihood = 0.0;
 
           if (useThreads) {
+            AtomicInteger nextChunkStart = deterministic ? null : new AtomicInteger(0);
             GradientWorker[] workers = new GradientWorker[numThreads];
             @SuppressWarnings("unchecked")
             Future<Void>[] threads = (Future<Void>[]) new Future[numThreads];
             for (int i = 0; i < workers.length; i++) {
-              workers[i] = new GradientWorker(this, i, numThreads, queues[i], fn, weights);
+              workers[i] = new GradientWorker<>(this, i, numThreads, dataset, nextChunkStart, chunkSize, fn, weights, localDerivatives[i]);
               threads[i] = (Future<Void>) executor.submit(workers[i]);
             }
 
-            // This is for logging
-            long minFinishTime = Long.MAX_VALUE;
-            long maxFinishTime = Long.MIN_VALUE;
-
-            // This is for re-balancing
-            long minCPUTime = Long.MAX_VALUE;
-            long maxCPUTime = Long.MIN_VALUE;
-            int slowestWorker = 0;
-            int fastestWorker = 0;
-
+            long[] busyNanos = new long[numThreads];
+            int[] chunks = new int[numThreads];
             for (int i = 0; i < workers.length; i++) {
               try {
                 threads[i].get();
@@ -347,40 +408,19 @@ public abstract class AbstractBatchOptimizer {
                 e.printStackTrace();
               }
               logLikelihood += workers[i].localLogLikelihood;
-              derivative.addVectorInPlace(workers[i].localDerivative, 1.0);
-
-              if (workers[i].finishedAtTime < minFinishTime) {
-                minFinishTime = workers[i].finishedAtTime;
-              }
-              if (workers[i].finishedAtTime > maxFinishTime) {
-                maxFinishTime = workers[i].finishedAtTime;
-              }
-
-              if (workers[i].cpuTimeRequired < minCPUTime) {
-                fastestWorker = i;
-                minCPUTime = workers[i].cpuTimeRequired;
-              }
-              if (workers[i].cpuTimeRequired > maxCPUTime) {
-                slowestWorker = i;
-                maxCPUTime = workers[i].cpuTimeRequired;
-              }
-            }
-            threadWaiting = maxFinishTime - minFinishTime;
-
-            // Try to reallocate work dynamically to minimize waiting on subsequent rounds
-
-            // Figure out the percentage of work represented by the waiting
-            double waitingPercentage = (double) (maxCPUTime - minCPUTime) / (double) maxCPUTime;
-            int needTransferItems = (int) Math.floor(queues[slowestWorker].size() * waitingPercentage * 0.5);
-            for (int i = 0; i < needTransferItems; i++) {
-              int toTransfer = r.nextInt(queues[slowestWorker].size());
-              T datum = queues[slowestWorker].get(toTransfer);
-              queues[slowestWorker].remove(toTransfer);
-              queues[fastestWorker].add(datum);
+              busyNanos[i] = workers[i].busyNanos;
+              chunks[i] = workers[i].chunks;
             }
 
             // Check for user interrupt
             if (isFinished) return;
+
+            long reduceStartNanos = System.nanoTime();
+            reduceInPlace(localDerivatives);
+            // The optimizer can hold on to the derivative between iterations, so the sum is copied out of the buffers
+            derivative.addVectorInPlace(localDerivatives[0], 1.0);
+            long endNanos = System.nanoTime();
+            lastGradientStats = new GradientStats(reduceStartNanos - startNanos, endNanos - reduceStartNanos, busyNanos, chunks);
           } else {
             for (T datum : dataset) {
               assert (datum != null);
@@ -388,6 +428,8 @@ public abstract class AbstractBatchOptimizer {
               // Check for user interrupt
               if (isFinished) return;
             }
+            long wallNanos = System.nanoTime() - startNanos;
+            lastGradientStats = new GradientStats(wallNanos, 0, new long[]{wallNanos}, new int[]{1});
           }
 
           // We removed normalizing by dataset length to bring behavior in line with CoreNLP
@@ -431,7 +473,7 @@ public abstract class AbstractBatchOptimizer {
           if (!quiet) {
             long iterationTime = System.currentTimeMillis() - startTime;
             log.info("[grad=" +gradientComputationTime + "ms; total=" + iterationTime +
-                "ms; threads waiting=" + threadWaiting + " ms]");
+                "ms; " + lastGradientStats + "]");
           }
           if (converged) {
             isFinished = true;
@@ -439,6 +481,8 @@ public abstract class AbstractBatchOptimizer {
           }
         }
 
+      } catch (InterruptedException | ExecutionException e) {
+        log.error("Adding up the gradient failed", e);
       } finally {
         if (!isFinished) {
           log.error("Exiting optimizer without isFinished flag being set! Forcing the flag");
@@ -2,9 +2,11 @@ package com.github.keenon.loglinear.learning;
 
 import com.github.keenon.loglinear.inference.CliqueTree;
 import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.ConcatVectorTable;
 import com.github.keenon.loglinear.model.GraphicalModel;
 
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 
@@ -58,6 +60,15 @@ public class LogLikelihoodDifferentiableFunction extends AbstractDifferentiableF
 
     if (Double.isInfinite(logLikelihood)) return 0.0;
 
+    // OPTIMIZATION:
+    // Rather than adding feature vectors to the gradient factor by factor, we sum up how much each cell of each
+    // features table should be added, and add each vector once at the end. Factors that share a table, like every
+    // factor from a tied FactorTemplate, then cost one vector add per cell per model, rather than one per factor.
+
+    IdentityHashMap<ConcatVectorTable, double[]> gradientWeights = new IdentityHashMap<>();
+    // The tables in the order we first saw them, so that the gradient is summed in the same order every time
+    List<ConcatVectorTable> gradientTables = new ArrayList<>();
+
     // Add the determined assignment by training values
 
     for (GraphicalModel.VectorFactor factor : vectorFactors) {
@@ -68,12 +79,11 @@ public class LogLikelihoodDifferentiableFunction extends AbstractDifferentiableF
         if (deterministicValue != -1) {
           assignment[i] = deterministicValue;
         } else {
-          int trainingObservation = Integer.parseInt(model.getVariableMetaDataByReference(factor.neigborIndices[i]).get(LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE));
-          assignment[i] = trainingObservation;
+          assignment[i] = model.getTrainingLabel(factor.neigborIndices[i]);
         }
         if (assignment[i] < 0 || assignment[i] >= factor.featuresTable.getDimensions()[i]) {
           throw new IllegalStateException("Model isn't fully or correctly labeled. Have that variable " + i + " has assignment " + assignment[i] + " (-1 means no label was present).\n" +
-              "To solve this problem, make sure you set model.getVariableMetaDataByReference(i).put(LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE, \"\"+variableTrainingLabel) for all the" +
+              "To solve this problem, make sure you call model.setTrainingLabel(i, variableTrainingLabel) for all the" +
               " variables represented in the model before using it as a training example.");
         }
       }
@@ -81,13 +91,24 @@ public class LogLikelihoodDifferentiableFunction extends AbstractDifferentiableF
       // Add the log-likelihood from this observation to the log-likelihood
       logLikelihood += features.dotProduct(weights);
       // Add the vector from this observation to the gradient
-      gradient.addVectorInPlace(features, 1.0);
+      getGradientWeights(gradientWeights, gradientTables, factor.featuresTable)[flatIndex(factor.featuresTable.getDimensions(), assignment)] += 1.0;
     }
 
     // Take expectations over features given marginals
     // NOTE: This is extremely expensive. Not sure what to do about that
 
-    for (GraphicalModel.VectorFactor factor : vectorFactors) {
+    // OPTIMIZATION:
+    // We walk the joint marginals by position, reading straight out of the result's contiguous array, rather than
+    // looking up (and building) a TableFactor per factor.
+
+    double[] jointMarginalValues = result.getJointMarginalValues();
+    for (int factorIndex = 0; factorIndex < result.getNumFactors(); factorIndex++) {
+      if (!(result.getFactor(factorIndex) instanceof GraphicalModel.VectorFactor)) continue;
+      GraphicalModel.VectorFactor factor = (GraphicalModel.VectorFactor) result.getFactor(factorIndex);
+      int offset = result.getJointMarginalOffset(factorIndex);
+      int[] dims = factor.featuresTable.getDimensions();
+      double[] tableWeights = getGradientWeights(gradientWeights, gradientTables, factor.featuresTable);
+
       // OPTIMIZATION:
       // Rather than use the standard iterator, which creates lots of int[] arrays on the heap, which need to be GC'd,
       // we use the fast version that just mutates one array. Since this is read once for us here, this is ideal.
@@ -95,17 +116,33 @@ public class LogLikelihoodDifferentiableFunction extends AbstractDifferentiableF
       int[] assignment = fastPassByReferenceIterator.next();
       while (true) {
         // calculate assignment prob
-        double assignmentProb = result.jointMarginals.get(factor).getAssignmentValue(assignment);
+        int flatIndex = flatIndex(dims, assignment);
+        double assignmentProb = jointMarginalValues[offset + flatIndex];
         // subtract this feature set, weighted by the probability of the assignment
-        if (assignmentProb > 0) {
-          gradient.addVectorInPlace(factor.featuresTable.getAssignmentValue(assignment).get(), -assignmentProb);
-        }
+        tableWeights[flatIndex] -= assignmentProb;
         // This mutates the assignment[] array, rather than creating a new one
         if (fastPassByReferenceIterator.hasNext()) fastPassByReferenceIterator.next();
         else break;
       }
     }
 
+    // Now add each feature vector to the gradient, once per table
+
+    for (ConcatVectorTable table : gradientTables) {
+      double[] tableWeights = gradientWeights.get(table);
+      int[] dims = table.getDimensions();
+      Iterator<int[]> fastPassByReferenceIterator = table.fastPassByReferenceIterator();
+      int[] assignment = fastPassByReferenceIterator.next();
+      while (true) {
+        double weight = tableWeights[flatIndex(dims, assignment)];
+        if (weight != 0) {
+          gradient.addVectorInPlace(table.getAssignmentValue(assignment).get(), weight);
+        }
+        if (fastPassByReferenceIterator.hasNext()) fastPassByReferenceIterator.next();
+        else break;
+      }
+    }
+
     // Uncache everything, now that the computations have completed
 
     for (GraphicalModel.VectorFactor factor : vectorFactors) {
@@ -115,6 +152,23 @@ public class LogLikelihoodDifferentiableFunction extends AbstractDifferentiableF
     return logLikelihood;
   }
 
+  private static double[] getGradientWeights(IdentityHashMap<ConcatVectorTable, double[]> gradientWeights,
+                                             List<ConcatVectorTable> gradientTables, ConcatVectorTable table) {
+    double[] tableWeights = gradientWeights.get(table);
+    if (tableWeights == null) {
+      tableWeights = new double[table.combinatorialNeighborStatesCount()];
+      gradientWeights.put(table, tableWeights);
+      gradientTables.add(table);
+    }
+    return tableWeights;
+  }
+
+  private static int flatIndex(int[] dims, int[] assignment) {
+    int flatIndex = 0;
+    for (int i = 0; i < assignment.length; i++) flatIndex = flatIndex * dims[i] + assignment[i];
+    return flatIndex;
+  }
+
   /**
    * Finds the deterministic assignment forced by a distribution, or if none exists returns -1
    *
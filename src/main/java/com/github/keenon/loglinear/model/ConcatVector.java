@@ -5,6 +5,7 @@ import com.github.keenon.loglinear.ConcatVectorProto;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.function.Function;
 
 /**
@@ -486,6 +487,25 @@ public class ConcatVector {
     }
   }
 
+  /**
+   * Sets every value in this vector to 0, keeping the arrays behind its dense components to be refilled. A vector
+   * that's zeroed and refilled over and over, like a gradient, stops allocating once its dense components have grown
+   * to full size. Sparse components, and arrays shared copy-on-write with other vectors, are dropped instead.
+   */
+  public void zeroInPlace() {
+    for (int i = 0; i < pointers.length; i++) {
+      if (pointers[i] == null) continue;
+
+      if (sparse[i] || copyOnWrite[i]) {
+        pointers[i] = null;
+        sparse[i] = false;
+        copyOnWrite[i] = false;
+      } else {
+        Arrays.fill(pointers[i], 0.0);
+      }
+    }
+  }
+
   /**
    * @return the number of concatenated vectors that compose this ConcatVector
    */
@@ -676,6 +696,21 @@ public class ConcatVector {
     return true;
   }
 
+  /**
+   * A cheap identity for the current contents of this vector, for keying caches of values derived from it, like scored
+   * factor tables. Clones share components copy-on-write, so a vector and its unmodified clones all have equal keys,
+   * and once a vector has been cloned any write through this API gives it a new key. This costs one pointer per
+   * component, rather than a pass over the values.
+   * <p>
+   * Writing straight into an array returned by getDenseComponent() doesn't change the key, so don't do that to a
+   * vector whose key is in use.
+   *
+   * @return an object whose equals() and hashCode() are by the identity of this vector's components
+   */
+  public Object getContentKey() {
+    return new ContentKey(pointers.clone(), sparse.clone());
+  }
+
   public String toString() {
     StringBuilder sb = new StringBuilder();
     sb.append("[");
@@ -722,6 +757,40 @@ public class ConcatVector {
     copyOnWrite = copyOnWriteBuf;
   }
 
+  /**
+   * The key from getContentKey(), which compares components by identity.
+   */
+  private static class ContentKey {
+    private final double[][] components;
+    private final boolean[] sparse;
+    private final int hashCode;
+
+    ContentKey(double[][] components, boolean[] sparse) {
+      this.components = components;
+      this.sparse = sparse;
+      int hash = 0;
+      for (double[] component : components) hash = 31 * hash + System.identityHashCode(component);
+      this.hashCode = hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof ContentKey)) return false;
+      ContentKey other = (ContentKey) o;
+      if (hashCode != other.hashCode || components.length != other.components.length) return false;
+      for (int i = 0; i < components.length; i++) {
+        if (components[i] != other.components[i] || sparse[i] != other.sparse[i]) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+  }
+
   static boolean loadedNative = false;
 
   // Right now I'm not loading the native library even if it's available, since the dot product "speedup" is actually
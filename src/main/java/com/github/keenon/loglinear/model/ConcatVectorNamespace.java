@@ -2,16 +2,40 @@ package com.github.keenon.loglinear.model;
 
 import com.carrotsearch.hppc.*;
 import com.carrotsearch.hppc.cursors.ObjectCursor;
+import com.carrotsearch.hppc.cursors.ObjectIntCursor;
+import com.carrotsearch.hppc.cursors.ObjectObjectCursor;
 import com.github.keenon.loglinear.ConcatVectorNamespaceProto;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by keenon on 10/20/15.
  *
  * This is a wrapper function to keep a namespace of namespace of recognized features, so that building a set of
  * ConcatVectors for featurizing a model is easier and more intuitive. It's actually quite simple, and threadsafe.
+ *
+ * Featurizers often run on many threads at once (see FeaturizationPipeline), so looking up a feature that already
+ * exists never takes a lock, and adding new values to different sparse features never contends. Once all the features
+ * are known, freeze() turns the namespace read-only, after which lookups don't touch any locks or caches at all.
+ *
+ * Freezing also compiles all the maps down into FrozenFeatureIndex's, which are minimal perfect hash tables over the
+ * UTF-8 bytes of the names, packed into flat buffers. They're several times smaller than the maps. Any namespace can
+ * be written out in that form with writeBinary(), and memory-mapped straight back in with mapBinary(), which builds
+ * nothing at load time, so even huge namespaces load instantly. Lookups read the mapped tables directly, and a
+ * namespace that wasn't frozen when it was written only turns back into maps the first time something new is added.
+ *
+ * Sparse features with an open vocabulary (words, n-grams, anything from user input) can instead be hashed, with
+ * setHashedFeature(). Their values go into a fixed number of buckets by hash, instead of being interned, so they never
+ * grow the namespace or the weights, and the HashedFeature that comes back can featurize without touching the
+ * namespace at all.
  */
 public class ConcatVectorNamespace implements Serializable {
     /** A serialversionuid so we can save this robustly */
@@ -24,12 +48,46 @@ public class ConcatVectorNamespace implements Serializable {
     final ObjectObjectMap<String, ObjectIntMap<String>> sparseFeatureIndex = new ObjectObjectHashMap<>();
     final ObjectObjectMap<String, IntObjectMap<String>> reverseSparseFeatureIndex = new ObjectObjectHashMap<>();
 
+    // OPTIMIZATION:
+    // The HPPC maps above aren't threadsafe, so until the namespace is frozen they're only ever touched under a lock:
+    // featureToIndex's own monitor for the features, sparseFeatureIndex's for the set of sparse features, and each
+    // sparse feature's forward map for its values, so threads adding values to different sparse features don't
+    // contend. Lookups go through these concurrent caches first, so a feature that already exists never takes a lock.
+    // The caches are only ever filled from the HPPC maps, which stay the source of truth.
+
+    private transient ConcurrentHashMap<String, Integer> featureCache = new ConcurrentHashMap<>();
+    private transient ConcurrentHashMap<String, SparseFeature> sparseFeatureCache = new ConcurrentHashMap<>();
+
+    // Set by freeze(), first to stop anything new being added, and then, once every writer is done, to switch lookups
+    // over to the compiled index. After that the HPPC maps are emptied, so everything else has to check for the frozen
+    // index first, and check again once it holds a lock, in case a freeze finished while it was waiting.
+    //
+    // Loading a binary namespace sets the frozen index too, with the HPPC maps empty. If it wasn't frozen when it was
+    // written, the first feature that isn't in the index thaws it: the index is copied into the maps and dropped, and
+    // things carry on as if it had never been written. Adding a feature always thaws first, so a frozen index that's
+    // set by the time an adding thread holds a lock must belong to a frozen namespace.
+    private volatile boolean closedToNewFeatures = false;
+    private transient volatile Frozen frozen = null;
+
+    // Features registered with setHashedFeature(), by name. This is copied on write, since it only changes while the
+    // featurizer is being set up, and reads are then just a plain map lookup.
+    private volatile Map<String, HashedFeature> hashedFeatures = Collections.emptyMap();
+
+    // The format written by writeBinary()
+    private static final int BINARY_MAGIC = 0x534e5643; // "CVNS", in little endian
+    private static final int BINARY_VERSION = 1;
+    private static final int BINARY_FLAG_FROZEN = 1;
+
     /**
      * Creates a new vector that is appropriately sized to accommodate all the features that have been named so far.
      * @return a new, empty ConcatVector
      */
     public ConcatVector newVector() {
-        return new ConcatVector(featureToIndex.size());
+        if (frozen != null) return new ConcatVector(frozen.numFeatures);
+        synchronized (featureToIndex) {
+            if (frozen != null) return new ConcatVector(frozen.numFeatures);
+            return new ConcatVector(featureToIndex.size());
+        }
     }
 
     public ConcatVector newWeightsVector() {
@@ -46,11 +104,32 @@ public class ConcatVectorNamespace implements Serializable {
      *         this namespace;
      */
     public ConcatVector newWeightsVector(boolean presize) {
-        ConcatVector vector = new ConcatVector(featureToIndex.size());
+        ConcatVector vector = newVector();
         if (presize) {
-            for (ObjectCursor<String> s : sparseFeatureIndex.keys()) {
-                int size = sparseFeatureIndex.get(s.value).size();
-                vector.setDenseComponent(ensureFeature(s.value), new double[size]);
+            synchronized (featureToIndex) {
+                synchronized (sparseFeatureIndex) {
+                    if (frozen != null) {
+                        FrozenFeatureIndex[] sparseFeatures = frozen.sparseFeatures;
+                        for (int feature = 0; feature < sparseFeatures.length; feature++) {
+                            if (sparseFeatures[feature] != null) {
+                                vector.setDenseComponent(feature, new double[sparseFeatures[feature].size()]);
+                            }
+                        }
+                    }
+                    else {
+                        for (ObjectObjectCursor<String, ObjectIntMap<String>> sparseIndex : sparseFeatureIndex) {
+                            int size;
+                            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                            synchronized (sparseIndex.value) {
+                                size = sparseIndex.value.size();
+                            }
+                            vector.setDenseComponent(ensureFeature(sparseIndex.key), new double[size]);
+                        }
+                    }
+                }
+            }
+            for (HashedFeature hashedFeature : hashedFeatures.values()) {
+                vector.setDenseComponent(hashedFeature.feature, new double[hashedFeature.numBuckets]);
             }
         }
         setAlwaysOneFeature(vector, 1);
@@ -63,17 +142,27 @@ public class ConcatVectorNamespace implements Serializable {
      * @param featureName the feature to add to our index
      */
     public int ensureFeature(String featureName) {
-        int feature = featureToIndex.getOrDefault(featureName, -1);
-        if (feature == -1) {
-            synchronized (featureToIndex) {
-                feature = featureToIndex.getOrDefault(featureName, -1);
-                if (feature == -1) {
-                    feature = featureToIndex.size();
-                    featureToIndex.put(featureName, feature);
-                }
+        Frozen frozen = this.frozen;
+        if (frozen != null) {
+            int feature = frozen.features.get(featureName);
+            if (feature != -1) return feature;
+            if (closedToNewFeatures) throw unknownFeature(featureName);
+            thaw();
+        }
+        Integer cached = featureCache.get(featureName);
+        if (cached != null) return cached;
+
+        synchronized (featureToIndex) {
+            if (this.frozen != null) return this.frozen.getFeature(featureName);
+            int feature = featureToIndex.getOrDefault(featureName, -1);
+            if (feature == -1) {
+                if (closedToNewFeatures) throw unknownFeature(featureName);
+                feature = featureToIndex.size();
+                featureToIndex.put(featureName, feature);
             }
+            featureCache.put(featureName, feature);
+            return feature;
         }
-        return feature;
     }
 
     /**
@@ -83,34 +172,229 @@ public class ConcatVectorNamespace implements Serializable {
      * @param index the sparse value to ensure is available
      */
     public int ensureSparseFeature(String featureName, String index) {
+        HashedFeature hashedFeature = hashedFeatures.get(featureName);
+        if (hashedFeature != null) return hashedFeature.getIndex(index);
+        Frozen frozen = this.frozen;
+        if (frozen != null) {
+            int rtn = frozen.findSparseFeature(featureName, index);
+            if (rtn != -1) return rtn;
+            if (closedToNewFeatures) throw unknownFeature(featureName + ":" + index);
+            thaw();
+        }
         ensureFeature(featureName);
-        ObjectIntMap<String> sparseIndex = sparseFeatureIndex.get(featureName);
-        IntObjectMap<String> reverseSparseIndex = reverseSparseFeatureIndex.get(featureName);
-        if (sparseIndex == null || reverseSparseIndex == null) {
+        SparseFeature sparseFeature = getSparseFeature(featureName);
+        Integer cached = sparseFeature.cache.get(index);
+        if (cached != null) return cached;
+
+        //noinspection SynchronizationOnLocalVariableOrMethodParameter
+        synchronized (sparseFeature.index) {
+            if (this.frozen != null) return this.frozen.getSparseFeature(featureName, index);
+            int rtn = sparseFeature.index.getOrDefault(index, -1);
+            if (rtn == -1) {
+                if (closedToNewFeatures) throw unknownFeature(featureName + ":" + index);
+                rtn = sparseFeature.index.size();
+                sparseFeature.reverseIndex.put(rtn, index);
+                sparseFeature.index.put(index, rtn);
+            }
+            sparseFeature.cache.put(index, rtn);
+            return rtn;
+        }
+    }
+
+    /**
+     * Switches a sparse feature over to hashing its values into a fixed number of buckets, rather than interning them.
+     * From then on ensureSparseFeature() returns the bucket of a value, and the setSparseFeature() methods flip the
+     * sign of values whose hash says to, if the feature is signed. Weights vectors get a dense component with a weight
+     * for each bucket. This has to happen before any values are added to the feature, and once it's happened it stays.
+     *
+     * Values that share a bucket share a weight. Signed hashing makes those collisions cancel out on average, rather
+     * than always adding up, which is usually worth it once buckets are at all crowded.
+     *
+     * @param featureName the feature to hash
+     * @param numBuckets the number of buckets, and so the size of the feature's weights
+     * @param signed whether to give each value a sign by hash, as well as a bucket
+     * @return the hashed feature, which can featurize on its own without going through the namespace at all
+     */
+    public HashedFeature setHashedFeature(String featureName, int numBuckets, boolean signed) {
+        if (numBuckets < 1) throw new IllegalArgumentException("Hashed features need at least one bucket, got " + numBuckets);
+        synchronized (featureToIndex) {
+            HashedFeature hashedFeature = hashedFeatures.get(featureName);
+            if (hashedFeature != null) {
+                if (hashedFeature.numBuckets != numBuckets || hashedFeature.signed != signed) {
+                    throw new IllegalStateException("\"" + featureName + "\" is already hashed as " + hashedFeature);
+                }
+                return hashedFeature;
+            }
+            if (closedToNewFeatures) throw new IllegalStateException("The namespace is frozen, so \"" + featureName + "\" can't be hashed");
+            Frozen frozen = this.frozen;
+            if (frozen != null && frozen.findSparseFeatureSize(featureName) > 0) {
+                throw new IllegalStateException("\"" + featureName + "\" already has interned values, so it can't be hashed");
+            }
             synchronized (sparseFeatureIndex) {
-                sparseIndex = sparseFeatureIndex.get(featureName);
-                reverseSparseIndex = reverseSparseFeatureIndex.get(featureName);
-                if (sparseIndex == null || reverseSparseIndex == null) {
-                    sparseIndex = new ObjectIntHashMap<>();
-                    reverseSparseIndex = new IntObjectHashMap<>();
-                    sparseFeatureIndex.put(featureName, sparseIndex);
-                    reverseSparseFeatureIndex.put(featureName, reverseSparseIndex);
+                ObjectIntMap<String> sparseIndex = sparseFeatureIndex.get(featureName);
+                if (sparseIndex != null) {
+                    //noinspection SynchronizationOnLocalVariableOrMethodParameter
+                    synchronized (sparseIndex) {
+                        if (!sparseIndex.isEmpty()) throw new IllegalStateException("\"" + featureName + "\" already has interned values, so it can't be hashed");
+                    }
                 }
             }
+
+            hashedFeature = new HashedFeature(featureName, ensureFeature(featureName), numBuckets, signed);
+            Map<String, HashedFeature> newHashedFeatures = new HashMap<>(hashedFeatures);
+            newHashedFeatures.put(featureName, hashedFeature);
+            hashedFeatures = newHashedFeatures;
+            return hashedFeature;
         }
-        Integer rtn = sparseIndex.getOrDefault(index, -1);
-        if (rtn == -1) {
-            //noinspection SynchronizationOnLocalVariableOrMethodParameter
-            synchronized (sparseIndex) {
-                rtn = sparseIndex.getOrDefault(index, -1);
-                if (rtn == -1) {
-                    rtn = sparseIndex.size();
-                    reverseSparseIndex.put(rtn, index);
-                    sparseIndex.put(index, rtn);
+    }
+
+    /**
+     * @param featureName the feature to look for
+     * @return the hashed feature set up by setHashedFeature(), or null if the feature isn't hashed
+     */
+    public HashedFeature getHashedFeature(String featureName) {
+        return hashedFeatures.get(featureName);
+    }
+
+    /**
+     * Makes the namespace read-only. Afterwards, looking up a feature that exists is a single probe of a perfect hash
+     * table, with no locks, and asking for a feature that doesn't exist is an error, rather than adding it. This is safe
+     * to call while other threads are still featurizing: anything they add before the freeze takes effect is kept.
+     *
+     * The maps are compiled down and then emptied, reverse maps included, so a frozen namespace holds on to much less
+     * memory. Looking up names by index (only debugVector() does this) builds what it needs on the fly.
+     */
+    public void freeze() {
+        if (frozen != null && closedToNewFeatures) return;
+        // Weights vectors always need this one, even when it's never come up before
+        ensureFeature(ALWAYS_ONE_FEATURE);
+        closedToNewFeatures = true;
+
+        // Nobody can add anything after this, since they all check closedToNewFeatures inside the locks, and compiling
+        // takes every lock in turn, so it waits out anyone who's adding a feature right now.
+
+        synchronized (featureToIndex) {
+            synchronized (sparseFeatureIndex) {
+                // Either someone else just froze it, or it was loaded already compiled, and never needed to grow
+                if (frozen != null) return;
+                frozen = compileLocked();
+
+                // Anyone waiting on one of these locks checks for the frozen index first thing once they get it, so
+                // they'll never see the maps empty
+                featureToIndex.release();
+                sparseFeatureIndex.release();
+                reverseSparseFeatureIndex.release();
+            }
+        }
+
+        // The caches are never read again, so don't hold on to them
+        featureCache = new ConcurrentHashMap<>();
+        sparseFeatureCache = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Writes the namespace to a stream, in a flat binary format that mapBinary() can load without building anything.
+     * It's a table of all the names in UTF-8, along with arrays of offsets into it and the perfect hash tables over it
+     * (see FrozenFeatureIndex), which comes out about the size of the proto. Frozen namespaces are written as they are;
+     * anything else gets compiled first, which is the same amount of work as freezing it.
+     *
+     * @param stream the output stream to write to
+     * @throws IOException passed through from the stream
+     */
+    public void writeBinary(OutputStream stream) throws IOException {
+        Frozen frozen = this.frozen;
+        boolean isFrozen = closedToNewFeatures;
+        if (frozen == null) {
+            synchronized (featureToIndex) {
+                synchronized (sparseFeatureIndex) {
+                    frozen = this.frozen != null ? this.frozen : compileLocked();
+                    isFrozen = this.frozen != null && closedToNewFeatures;
                 }
             }
         }
-        return rtn;
+        WritableByteChannel channel = Channels.newChannel(stream);
+
+        ByteBuffer features = frozen.features.getBuffer();
+        int numSparseFeatures = 0;
+        for (FrozenFeatureIndex sparseFeature : frozen.sparseFeatures) {
+            if (sparseFeature != null) numSparseFeatures++;
+        }
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(isFrozen ? BINARY_FLAG_FROZEN : 0).putInt(features.remaining()).flip();
+        writeFully(channel, header);
+        writeFully(channel, features);
+        header.clear();
+        header.putInt(numSparseFeatures).flip();
+        writeFully(channel, header);
+
+        for (int feature = 0; feature < frozen.sparseFeatures.length; feature++) {
+            if (frozen.sparseFeatures[feature] == null) continue;
+            ByteBuffer sparseFeature = frozen.sparseFeatures[feature].getBuffer();
+            header.clear();
+            header.putInt(feature).putInt(sparseFeature.remaining()).flip();
+            writeFully(channel, header);
+            writeFully(channel, sparseFeature);
+        }
+
+        Collection<HashedFeature> hashed = hashedFeatures.values();
+        header.clear();
+        header.putInt(hashed.size()).flip();
+        writeFully(channel, header);
+        for (HashedFeature hashedFeature : hashed) {
+            header.clear();
+            header.putInt(hashedFeature.feature).putInt(hashedFeature.numBuckets).putInt(hashedFeature.signed ? 1 : 0).flip();
+            writeFully(channel, header);
+        }
+        stream.flush();
+    }
+
+    /**
+     * Loads a namespace from the format that writeBinary() writes. The namespace reads straight out of the buffer,
+     * which it holds on to, so the buffer must not change afterwards. It comes back frozen if it was frozen when it was
+     * written.
+     *
+     * @param buffer the buffer to read from, starting at its position
+     * @return a new namespace
+     */
+    public static ConcatVectorNamespace readBinary(ByteBuffer buffer) {
+        buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < 16 || buffer.getInt() != BINARY_MAGIC) {
+            throw new IllegalArgumentException("Not a binary ConcatVectorNamespace");
+        }
+        int version = buffer.getInt();
+        if (version != BINARY_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary ConcatVectorNamespace version " + version);
+        }
+        int flags = buffer.getInt();
+
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        Map<String, HashedFeature> hashedFeatures = new HashMap<>();
+        namespace.closedToNewFeatures = (flags & BINARY_FLAG_FROZEN) != 0;
+        namespace.frozen = Frozen.read(buffer, hashedFeatures);
+        namespace.hashedFeatures = hashedFeatures;
+        return namespace;
+    }
+
+    /**
+     * Memory-maps a file written by writeBinary(). Nothing is read up front, so this is nearly instant however big the
+     * namespace is, and the OS pages in the parts that are used. Processes that map the same file share its pages.
+     *
+     * @param file the file to map
+     * @return a new namespace
+     * @throws IOException passed through from the file
+     */
+    public static ConcatVectorNamespace mapBinary(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            return readBinary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * @return whether freeze() has been called, and no more features can be added
+     */
+    public boolean isFrozen() {
+        return closedToNewFeatures;
     }
 
     /**
@@ -144,6 +428,11 @@ public class ConcatVectorNamespace implements Serializable {
      * @param value the value we want to set this one-hot index to
      */
     public void setSparseFeature(ConcatVector vector, String featureName, String index, double value) {
+        HashedFeature hashedFeature = hashedFeatures.get(featureName);
+        if (hashedFeature != null) {
+            hashedFeature.setSparseFeature(vector, index, value);
+            return;
+        }
         vector.setSparseComponent(ensureFeature(featureName), ensureSparseFeature(featureName, index), value);
     }
 
@@ -155,6 +444,11 @@ public class ConcatVectorNamespace implements Serializable {
      * @param sparseFeatures the indices we wish to set, and their values
      */
     public void setSparseFeature(ConcatVector vector, String featureName, Map<String,Double> sparseFeatures) {
+        HashedFeature hashedFeature = hashedFeatures.get(featureName);
+        if (hashedFeature != null) {
+            hashedFeature.setSparseFeature(vector, sparseFeatures);
+            return;
+        }
         int[] indices = new int[sparseFeatures.size()];
         double[] values = new double[sparseFeatures.size()];
         int offset = 0;
@@ -174,6 +468,11 @@ public class ConcatVectorNamespace implements Serializable {
      * @param sparseFeatures the indices we wish to set, whose values will all be set to 1.0
      */
     public void setSparseFeature(ConcatVector vector, String featureName, Collection<String> sparseFeatures) {
+        HashedFeature hashedFeature = hashedFeatures.get(featureName);
+        if (hashedFeature != null) {
+            hashedFeature.setSparseFeature(vector, sparseFeatures);
+            return;
+        }
         int[] indices = new int[sparseFeatures.size()];
         double[] values = new double[sparseFeatures.size()];
         int offset = 0;
@@ -210,6 +509,27 @@ public class ConcatVectorNamespace implements Serializable {
      * @return a Builder for proto serialization
      */
     public ConcatVectorNamespaceProto.ConcatVectorNamespace.Builder getProtoBuilder() {
+        ConcatVectorNamespaceProto.ConcatVectorNamespace.Builder m = getMapsProtoBuilder();
+        for (HashedFeature hashedFeature : hashedFeatures.values()) {
+            m.addHashedFeature(ConcatVectorNamespaceProto.ConcatVectorNamespace.HashedFeature.newBuilder()
+                    .setKey(hashedFeature.featureName)
+                    .setNumBuckets(hashedFeature.numBuckets)
+                    .setSigned(hashedFeature.signed));
+        }
+        return m;
+    }
+
+    private ConcatVectorNamespaceProto.ConcatVectorNamespace.Builder getMapsProtoBuilder() {
+        if (frozen != null) return frozen.getProtoBuilder();
+        synchronized (featureToIndex) {
+            synchronized (sparseFeatureIndex) {
+                if (frozen != null) return frozen.getProtoBuilder();
+                return getProtoBuilderLocked();
+            }
+        }
+    }
+
+    private ConcatVectorNamespaceProto.ConcatVectorNamespace.Builder getProtoBuilderLocked() {
         ConcatVectorNamespaceProto.ConcatVectorNamespace.Builder m = ConcatVectorNamespaceProto.ConcatVectorNamespace.newBuilder();
 
         // Add the outer layer features
@@ -226,11 +546,15 @@ public class ConcatVectorNamespace implements Serializable {
             ConcatVectorNamespaceProto.ConcatVectorNamespace.SparseFeatureIndex.Builder sparseFeature = ConcatVectorNamespaceProto.ConcatVectorNamespace.SparseFeatureIndex.newBuilder();
 
             sparseFeature.setKey(feature.value);
-            for (ObjectCursor<String> sparseFeatureName : sparseFeatureIndex.get(feature.value).keys()) {
-                ConcatVectorNamespaceProto.ConcatVectorNamespace.FeatureToIndexComponent.Builder component = ConcatVectorNamespaceProto.ConcatVectorNamespace.FeatureToIndexComponent.newBuilder();
-                component.setKey(sparseFeatureName.value);
-                component.setData(sparseFeatureIndex.get(feature.value).getOrDefault(sparseFeatureName.value, -1));
-                sparseFeature.addFeatureToIndex(component);
+            ObjectIntMap<String> sparseIndex = sparseFeatureIndex.get(feature.value);
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (sparseIndex) {
+                for (ObjectCursor<String> sparseFeatureName : sparseIndex.keys()) {
+                    ConcatVectorNamespaceProto.ConcatVectorNamespace.FeatureToIndexComponent.Builder component = ConcatVectorNamespaceProto.ConcatVectorNamespace.FeatureToIndexComponent.newBuilder();
+                    component.setKey(sparseFeatureName.value);
+                    component.setData(sparseIndex.getOrDefault(sparseFeatureName.value, -1));
+                    sparseFeature.addFeatureToIndex(component);
+                }
             }
 
             m.addSparseFeatureIndex(sparseFeature);
@@ -264,6 +588,10 @@ public class ConcatVectorNamespace implements Serializable {
             namespace.reverseSparseFeatureIndex.put(key, reverseSparseMap);
         }
 
+        for (ConcatVectorNamespaceProto.ConcatVectorNamespace.HashedFeature hashedFeature : m.getHashedFeatureList()) {
+            namespace.setHashedFeature(hashedFeature.getKey(), hashedFeature.getNumBuckets(), hashedFeature.getSigned());
+        }
+
         return namespace;
     }
 
@@ -306,6 +634,11 @@ public class ConcatVectorNamespace implements Serializable {
      * @param bw the output stream to write to
      */
     public void debugVector(ConcatVector vector, BufferedWriter bw) throws IOException {
+        if (frozen != null) {
+            // The frozen index has no reverse maps, so print through a copy that does
+            readFromProto(getProtoBuilder().build()).debugVector(vector, bw);
+            return;
+        }
         List<String> features = new ArrayList<>();
         Map<String, List<Integer>> sortedFeatures = new HashMap<>();
 
@@ -384,4 +717,370 @@ public class ConcatVectorNamespace implements Serializable {
         bw.write(Double.toString(vector.getValueAt(featureToIndex.getOrDefault(feature, -1), index)));
         bw.write("\n");
     }
+
+    /**
+     * A sparse feature that hashes its values into a fixed number of buckets, rather than interning them, which is
+     * what setHashedFeature() returns. It's immutable and never touches the namespace, so any number of featurizer
+     * threads can share it without any maps or locks getting involved.
+     */
+    public static class HashedFeature implements Serializable {
+        private static final long serialVersionUID = 4620176923958436551L;
+
+        public final String featureName;
+        // The component of vectors that this feature goes in
+        public final int feature;
+        public final int numBuckets;
+        public final boolean signed;
+
+        HashedFeature(String featureName, int feature, int numBuckets, boolean signed) {
+            this.featureName = featureName;
+            this.feature = feature;
+            this.numBuckets = numBuckets;
+            this.signed = signed;
+        }
+
+        /**
+         * @param value the sparse value
+         * @return the bucket it hashes to, in [0, numBuckets)
+         */
+        public int getIndex(String value) {
+            return (int) (((hash(value) & 0xffffffffL) * numBuckets) >>> 32);
+        }
+
+        /**
+         * @param value the sparse value
+         * @return the sign it hashes to, which is always 1.0 unless the feature is signed
+         */
+        public double getSign(String value) {
+            return signed && (hash(value) & 1) != 0 ? -1.0 : 1.0;
+        }
+
+        /**
+         * Sets this feature's component of a vector to a single value.
+         *
+         * @param vector the vector
+         * @param value the sparse value to set
+         * @param weight what to set it to, before its sign is applied
+         */
+        public void setSparseFeature(ConcatVector vector, String value, double weight) {
+            vector.setSparseComponent(feature, getIndex(value), getSign(value) * weight);
+        }
+
+        /**
+         * Sets this feature's component of a vector to a set of values.
+         *
+         * @param vector the vector
+         * @param values the sparse values to set, and what to set each one to, before their signs are applied
+         */
+        public void setSparseFeature(ConcatVector vector, Map<String, Double> values) {
+            int[] indices = new int[values.size()];
+            double[] weights = new double[values.size()];
+            int offset = 0;
+            for (Map.Entry<String, Double> value : values.entrySet()) {
+                indices[offset] = getIndex(value.getKey());
+                weights[offset] = getSign(value.getKey()) * value.getValue();
+                offset++;
+            }
+            setSparseComponent(vector, indices, weights);
+        }
+
+        /**
+         * Sets this feature's component of a vector to a set of values.
+         *
+         * @param vector the vector
+         * @param values the sparse values to set, which will all be set to 1.0, before their signs are applied
+         */
+        public void setSparseFeature(ConcatVector vector, Collection<String> values) {
+            int[] indices = new int[values.size()];
+            double[] weights = new double[values.size()];
+            int offset = 0;
+            for (String value : values) {
+                indices[offset] = getIndex(value);
+                weights[offset] = getSign(value);
+                offset++;
+            }
+            setSparseComponent(vector, indices, weights);
+        }
+
+        @Override
+        public String toString() {
+            return "HashedFeature(" + featureName + ", " + numBuckets + " buckets" + (signed ? ", signed)" : ")");
+        }
+
+        /**
+         * A sparse component can only hold each index once, so values that land in the same bucket get added up first.
+         */
+        private void setSparseComponent(ConcatVector vector, int[] indices, double[] weights) {
+            int[] buckets = indices.clone();
+            Arrays.sort(buckets);
+            int numBuckets = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                if (i == 0 || buckets[i] != buckets[i - 1]) buckets[numBuckets++] = buckets[i];
+            }
+            if (numBuckets < indices.length) {
+                buckets = Arrays.copyOf(buckets, numBuckets);
+                double[] bucketWeights = new double[numBuckets];
+                for (int i = 0; i < indices.length; i++) {
+                    bucketWeights[Arrays.binarySearch(buckets, indices[i])] += weights[i];
+                }
+                indices = buckets;
+                weights = bucketWeights;
+            }
+            vector.setSparseComponent(feature, indices, weights);
+        }
+
+        /**
+         * Strings cache their hashCode(), so hashing the same value over and over is nearly free. This mixes it up
+         * afterwards, since on its own it hardly changes between strings that only differ near the end. Both are part
+         * of the spec, so the buckets are the same on every JVM.
+         */
+        private static int hash(String value) {
+            int h = value.hashCode();
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            h *= 0xc2b2ae35;
+            h ^= h >>> 16;
+            return h;
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // PRIVATE IMPLEMENTATION
+    ////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * The maps for one sparse feature, along with the cache in front of them.
+     */
+    private static class SparseFeature {
+        final ObjectIntMap<String> index;
+        final IntObjectMap<String> reverseIndex;
+        final ConcurrentHashMap<String, Integer> cache = new ConcurrentHashMap<>();
+
+        SparseFeature(ObjectIntMap<String> index, IntObjectMap<String> reverseIndex) {
+            this.index = index;
+            this.reverseIndex = reverseIndex;
+        }
+
+        int size() {
+            synchronized (index) {
+                return index.size();
+            }
+        }
+    }
+
+    /**
+     * Gets the maps for a sparse feature, creating them if they don't exist yet.
+     */
+    private SparseFeature getSparseFeature(String featureName) {
+        SparseFeature sparseFeature = sparseFeatureCache.get(featureName);
+        if (sparseFeature != null) return sparseFeature;
+        synchronized (sparseFeatureIndex) {
+            sparseFeature = sparseFeatureCache.get(featureName);
+            if (sparseFeature != null) return sparseFeature;
+            ObjectIntMap<String> sparseIndex = sparseFeatureIndex.get(featureName);
+            IntObjectMap<String> reverseSparseIndex = reverseSparseFeatureIndex.get(featureName);
+            if (sparseIndex == null || reverseSparseIndex == null) {
+                sparseIndex = new ObjectIntHashMap<>();
+                reverseSparseIndex = new IntObjectHashMap<>();
+                // Adding maps is a change like any other, but reading an empty pair of maps after a freeze is harmless
+                if (!closedToNewFeatures) {
+                    sparseFeatureIndex.put(featureName, sparseIndex);
+                    reverseSparseFeatureIndex.put(featureName, reverseSparseIndex);
+                }
+            }
+            sparseFeature = new SparseFeature(sparseIndex, reverseSparseIndex);
+            sparseFeatureCache.put(featureName, sparseFeature);
+            return sparseFeature;
+        }
+    }
+
+    private static IllegalStateException unknownFeature(String featureName) {
+        return new IllegalStateException("The namespace is frozen, and has no feature \"" + featureName + "\"");
+    }
+
+    /**
+     * Copies a loaded frozen index into the maps, so that new features can be added, unless someone has frozen the
+     * namespace in the meantime.
+     */
+    private void thaw() {
+        synchronized (featureToIndex) {
+            synchronized (sparseFeatureIndex) {
+                Frozen frozen = this.frozen;
+                if (frozen == null || closedToNewFeatures) return;
+                FrozenFeatureIndex features = frozen.features;
+                for (int slot = 0; slot < features.size(); slot++) {
+                    featureToIndex.put(features.getKeyAt(slot), features.getValueAt(slot));
+                }
+                for (int feature = 0; feature < frozen.sparseFeatures.length; feature++) {
+                    FrozenFeatureIndex values = frozen.sparseFeatures[feature];
+                    if (values == null) continue;
+                    ObjectIntMap<String> sparseIndex = new ObjectIntHashMap<>(values.size());
+                    IntObjectMap<String> reverseSparseIndex = new IntObjectHashMap<>(values.size());
+                    for (int slot = 0; slot < values.size(); slot++) {
+                        String value = values.getKeyAt(slot);
+                        sparseIndex.put(value, values.getValueAt(slot));
+                        reverseSparseIndex.put(values.getValueAt(slot), value);
+                    }
+                    sparseFeatureIndex.put(features.getKey(feature), sparseIndex);
+                    reverseSparseFeatureIndex.put(features.getKey(feature), reverseSparseIndex);
+                }
+                this.frozen = null;
+            }
+        }
+    }
+
+    /**
+     * Compiles the maps into a Frozen. Must hold the featureToIndex and sparseFeatureIndex locks.
+     */
+    private Frozen compileLocked() {
+        String[] names = new String[featureToIndex.size()];
+        int[] indices = new int[featureToIndex.size()];
+        int i = 0;
+        for (ObjectIntCursor<String> feature : featureToIndex) {
+            names[i] = feature.key;
+            indices[i] = feature.value;
+            i++;
+        }
+        FrozenFeatureIndex features = FrozenFeatureIndex.build(names, indices);
+
+        FrozenFeatureIndex[] sparseFeatures = new FrozenFeatureIndex[featureToIndex.size()];
+        for (ObjectObjectCursor<String, ObjectIntMap<String>> sparseIndex : sparseFeatureIndex) {
+            // ensureSparseFeature() always names the feature first, so this is only missing from hand-built namespaces
+            int feature = featureToIndex.getOrDefault(sparseIndex.key, -1);
+            if (feature == -1) continue;
+            //noinspection SynchronizationOnLocalVariableOrMethodParameter
+            synchronized (sparseIndex.value) {
+                String[] values = new String[sparseIndex.value.size()];
+                int[] valueIndices = new int[sparseIndex.value.size()];
+                int j = 0;
+                for (ObjectIntCursor<String> value : sparseIndex.value) {
+                    values[j] = value.key;
+                    valueIndices[j] = value.value;
+                    j++;
+                }
+                sparseFeatures[feature] = FrozenFeatureIndex.build(values, valueIndices);
+            }
+        }
+        return new Frozen(features, sparseFeatures);
+    }
+
+    /**
+     * The compiled, read-only form of the namespace.
+     */
+    private static class Frozen {
+        final FrozenFeatureIndex features;
+        // Indexed by feature, and null for features that aren't sparse
+        final FrozenFeatureIndex[] sparseFeatures;
+        final int numFeatures;
+
+        Frozen(FrozenFeatureIndex features, FrozenFeatureIndex[] sparseFeatures) {
+            this.features = features;
+            this.sparseFeatures = sparseFeatures;
+            int maxFeature = -1;
+            for (int slot = 0; slot < features.size(); slot++) maxFeature = Math.max(maxFeature, features.getValueAt(slot));
+            this.numFeatures = maxFeature + 1;
+        }
+
+        int getFeature(String featureName) {
+            int feature = features.get(featureName);
+            if (feature == -1) throw unknownFeature(featureName);
+            return feature;
+        }
+
+        int getSparseFeature(String featureName, String value) {
+            int index = findSparseFeature(featureName, value);
+            if (index == -1) throw unknownFeature(featureName + ":" + value);
+            return index;
+        }
+
+        /**
+         * @return the index of the value, or -1 if there isn't one
+         */
+        int findSparseFeature(String featureName, String value) {
+            FrozenFeatureIndex values = getSparseFeatureValues(featureName);
+            return values == null ? -1 : values.get(value);
+        }
+
+        /**
+         * @return the number of values of the sparse feature, which is 0 if there isn't one
+         */
+        int findSparseFeatureSize(String featureName) {
+            FrozenFeatureIndex values = getSparseFeatureValues(featureName);
+            return values == null ? 0 : values.size();
+        }
+
+        private FrozenFeatureIndex getSparseFeatureValues(String featureName) {
+            int feature = features.get(featureName);
+            return feature != -1 && feature < sparseFeatures.length ? sparseFeatures[feature] : null;
+        }
+
+        ConcatVectorNamespaceProto.ConcatVectorNamespace.Builder getProtoBuilder() {
+            ConcatVectorNamespaceProto.ConcatVectorNamespace.Builder m = ConcatVectorNamespaceProto.ConcatVectorNamespace.newBuilder();
+            for (int slot = 0; slot < features.size(); slot++) {
+                m.addFeatureToIndex(ConcatVectorNamespaceProto.ConcatVectorNamespace.FeatureToIndexComponent.newBuilder()
+                        .setKey(features.getKeyAt(slot))
+                        .setData(features.getValueAt(slot)));
+            }
+            for (int feature = 0; feature < sparseFeatures.length; feature++) {
+                if (sparseFeatures[feature] == null) continue;
+                ConcatVectorNamespaceProto.ConcatVectorNamespace.SparseFeatureIndex.Builder sparseFeature = ConcatVectorNamespaceProto.ConcatVectorNamespace.SparseFeatureIndex.newBuilder();
+                sparseFeature.setKey(features.getKey(feature));
+                for (int slot = 0; slot < sparseFeatures[feature].size(); slot++) {
+                    sparseFeature.addFeatureToIndex(ConcatVectorNamespaceProto.ConcatVectorNamespace.FeatureToIndexComponent.newBuilder()
+                            .setKey(sparseFeatures[feature].getKeyAt(slot))
+                            .setData(sparseFeatures[feature].getValueAt(slot)));
+                }
+                m.addSparseFeatureIndex(sparseFeature);
+            }
+            return m;
+        }
+
+        /**
+         * Reads the format written by writeBinary(), starting just after the header, and adds any hashed features to
+         * the map as it goes.
+         */
+        static Frozen read(ByteBuffer buffer, Map<String, HashedFeature> hashedFeatures) {
+            FrozenFeatureIndex features = new FrozenFeatureIndex(section(buffer, buffer.getInt()));
+
+            int maxFeature = -1;
+            for (int slot = 0; slot < features.size(); slot++) maxFeature = Math.max(maxFeature, features.getValueAt(slot));
+            FrozenFeatureIndex[] sparseFeatures = new FrozenFeatureIndex[maxFeature + 1];
+            int numSparseFeatures = buffer.getInt();
+            for (int i = 0; i < numSparseFeatures; i++) {
+                int feature = buffer.getInt();
+                sparseFeatures[feature] = new FrozenFeatureIndex(section(buffer, buffer.getInt()));
+            }
+
+            int numHashedFeatures = buffer.getInt();
+            for (int i = 0; i < numHashedFeatures; i++) {
+                int feature = buffer.getInt();
+                int numBuckets = buffer.getInt();
+                boolean signed = buffer.getInt() != 0;
+                String featureName = features.getKey(feature);
+                hashedFeatures.put(featureName, new HashedFeature(featureName, feature, numBuckets, signed));
+            }
+            return new Frozen(features, sparseFeatures);
+        }
+
+        /**
+         * Slices the next length bytes off the buffer, and moves past them.
+         */
+        private static ByteBuffer section(ByteBuffer buffer, int length) {
+            ByteBuffer section = buffer.duplicate();
+            section.limit(section.position() + length);
+            buffer.position(buffer.position() + length);
+            return section;
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        featureCache = new ConcurrentHashMap<>();
+        sparseFeatureCache = new ConcurrentHashMap<>();
+    }
 }
@@ -104,6 +104,28 @@ public class ConcatVectorTable extends NDArray<Supplier<ConcatVector>> {
 
     NDArray<Supplier<ConcatVector>> originalThunks = null;
 
+    private boolean shared = false;
+
+    /**
+     * Marks this table as shared by many factors, possibly across many models, like a label transition table passed to
+     * addFactor() for every sentence. Inference then scores it once per weights version and observation pattern,
+     * rather than once per factor (see ScoredFactorCache). A shared table must not be changed once it's been used for
+     * inference. Copies made by cloneTable() aren't shared.
+     *
+     * @return this table, for chaining
+     */
+    public ConcatVectorTable markShared() {
+        shared = true;
+        return this;
+    }
+
+    /**
+     * @return whether markShared() has been called on this table
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
     /**
      * This is an optimization that will fault all the ConcatVectors into memory, and future .get() on the Supplier objs
      * will result in a very fast return by reference. Basically this works by wrapping the output of the old thunks
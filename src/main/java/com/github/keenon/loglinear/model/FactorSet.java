@@ -0,0 +1,323 @@
+package com.github.keenon.loglinear.model;
+
+import java.util.*;
+
+/**
+ * The factors of a GraphicalModel. This is a Set, for compatibility with everything that treats model.factors as one,
+ * but it keeps the factors in an array in the order they were added, so iteration is deterministic and cheap. It also
+ * keeps an index from each variable to the factors that touch it, and the size of each variable, all maintained as
+ * factors come and go, so that structural questions about the model don't need a scan over every factor.
+ * <p>
+ * Factors are compared by identity, like they always were in the HashSet this replaces. A factor's neighbors must not
+ * change while it's in the set.
+ * <p>
+ * A set can be forked in constant time, for GraphicalModel.cloneModel(). The factors at the time of the fork get
+ * frozen into a base set that both copies share and never modify again, and each copy only records its own changes on
+ * top of that: the factors it added, and the factors of the base it removed. Iteration visits the base first, and then
+ * the factors added since.
+ */
+class FactorSet extends AbstractSet<GraphicalModel.Factor> {
+  // Forks of forks stack up bases, which every lookup has to walk through, so past this many we flatten them instead
+  private static final int MAX_DEPTH = 8;
+
+  private GraphicalModel.Factor[] factors = new GraphicalModel.Factor[16];
+  private int size = 0;
+  private IdentityHashMap<GraphicalModel.Factor, Integer> positions = new IdentityHashMap<>();
+
+  // Indexed by variable: the factors touching it, and its size (or -1 when nothing touches it)
+  private List<List<GraphicalModel.Factor>> adjacency = new ArrayList<>();
+  private int[] variableSizes = new int[0];
+  private int maxVariable = -1;
+  // The sum of the table sizes of all the factors
+  private long totalFactorSize = 0;
+
+  // The frozen factors this was forked from, or null, and the ones of those that have been removed since
+  private FactorSet base = null;
+  private Set<GraphicalModel.Factor> removedFromBase = Collections.emptySet();
+  private long removedFromBaseSize = 0;
+  private int depth = 0;
+
+  // Every factor in iteration order, for get() when there are removals to skip over, or null until that's needed. This
+  // belongs to this set alone: bases are shared, so they never build one.
+  private GraphicalModel.Factor[] inOrder = null;
+
+  FactorSet() {
+  }
+
+  FactorSet(Collection<GraphicalModel.Factor> factors) {
+    addAll(factors);
+  }
+
+  @Override
+  public boolean add(GraphicalModel.Factor factor) {
+    if (positions.containsKey(factor)) return false;
+    inOrder = null;
+    if (base != null && base.contains(factor)) {
+      // A factor of the base that was removed comes back where it was
+      if (!removedFromBase.remove(factor)) return false;
+      removedFromBaseSize -= factor.combinatorialNeighborStatesCount();
+      return true;
+    }
+
+    if (size == factors.length) factors = Arrays.copyOf(factors, size * 2);
+    positions.put(factor, size);
+    factors[size++] = factor;
+    totalFactorSize += factor.combinatorialNeighborStatesCount();
+
+    int[] dims = factor.getDimensions();
+    for (int i = 0; i < factor.neigborIndices.length; i++) {
+      int n = factor.neigborIndices[i];
+      while (adjacency.size() <= n) adjacency.add(new ArrayList<>());
+      if (n >= variableSizes.length) {
+        int oldLength = variableSizes.length;
+        variableSizes = Arrays.copyOf(variableSizes, Math.max(n + 1, oldLength * 2));
+        Arrays.fill(variableSizes, oldLength, variableSizes.length, -1);
+      }
+      List<GraphicalModel.Factor> touching = adjacency.get(n);
+      // A factor can list the same variable twice, but it's only adjacent once
+      if (touching.isEmpty() || touching.get(touching.size() - 1) != factor) touching.add(factor);
+      variableSizes[n] = dims[i];
+      if (n > maxVariable) maxVariable = n;
+    }
+    return true;
+  }
+
+  @Override
+  public boolean remove(Object o) {
+    inOrder = null;
+    Integer position = positions.remove(o);
+    if (position == null) {
+      if (base == null || removedFromBase.contains(o) || !base.contains(o)) return false;
+      if (removedFromBase.isEmpty()) removedFromBase = Collections.newSetFromMap(new IdentityHashMap<>());
+      removedFromBase.add((GraphicalModel.Factor) o);
+      removedFromBaseSize += ((GraphicalModel.Factor) o).combinatorialNeighborStatesCount();
+      return true;
+    }
+    GraphicalModel.Factor factor = factors[position];
+
+    // Move the last factor into the hole, which keeps removal constant time
+
+    size--;
+    if (position != size) {
+      factors[position] = factors[size];
+      positions.put(factors[position], position);
+    }
+    factors[size] = null;
+    totalFactorSize -= factor.combinatorialNeighborStatesCount();
+
+    for (int n : factor.neigborIndices) {
+      List<GraphicalModel.Factor> touching = adjacency.get(n);
+      touching.remove(factor);
+      if (touching.isEmpty()) variableSizes[n] = -1;
+    }
+    while (maxVariable >= 0 && adjacency.get(maxVariable).isEmpty()) maxVariable--;
+    return true;
+  }
+
+  @Override
+  public boolean contains(Object o) {
+    return positions.containsKey(o) || (base != null && !removedFromBase.contains(o) && base.contains(o));
+  }
+
+  @Override
+  public void clear() {
+    factors = new GraphicalModel.Factor[16];
+    size = 0;
+    positions = new IdentityHashMap<>();
+    adjacency = new ArrayList<>();
+    variableSizes = new int[0];
+    maxVariable = -1;
+    totalFactorSize = 0;
+    base = null;
+    removedFromBase = Collections.emptySet();
+    removedFromBaseSize = 0;
+    depth = 0;
+    inOrder = null;
+  }
+
+  @Override
+  public int size() {
+    return base == null ? size : size + base.size() - removedFromBase.size();
+  }
+
+  @Override
+  public Iterator<GraphicalModel.Factor> iterator() {
+    return new Iterator<GraphicalModel.Factor>() {
+      // The factors of the base come first, skipping the ones that have been removed
+      final Iterator<GraphicalModel.Factor> inherited = base == null ? Collections.emptyIterator() : base.iterator();
+      GraphicalModel.Factor nextInherited = null;
+      GraphicalModel.Factor lastInherited = null;
+
+      int cursor = 0;
+      int last = -1;
+
+      @Override
+      public boolean hasNext() {
+        while (nextInherited == null && inherited.hasNext()) {
+          GraphicalModel.Factor factor = inherited.next();
+          if (!removedFromBase.contains(factor)) nextInherited = factor;
+        }
+        return nextInherited != null || cursor < size;
+      }
+
+      @Override
+      public GraphicalModel.Factor next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        last = -1;
+        lastInherited = null;
+        if (nextInherited != null) {
+          lastInherited = nextInherited;
+          nextInherited = null;
+          return lastInherited;
+        }
+        last = cursor;
+        return factors[cursor++];
+      }
+
+      @Override
+      public void remove() {
+        if (lastInherited != null) {
+          FactorSet.this.remove(lastInherited);
+          lastInherited = null;
+          return;
+        }
+        if (last == -1) throw new IllegalStateException();
+        FactorSet.this.remove(factors[last]);
+        // The last factor was swapped into this slot, so it still needs visiting
+        cursor = last;
+        last = -1;
+      }
+    };
+  }
+
+  /**
+   * Splits off a copy of this set in constant time. Afterwards, changes to either set are invisible to the other.
+   *
+   * @return a new set with the same factors, sharing everything it can with this one
+   */
+  FactorSet fork() {
+    FactorSet frozen = base;
+    if (size > 0 || !removedFromBase.isEmpty()) {
+      // Move everything this set owns into a new base, and start over on top of it
+
+      frozen = new FactorSet();
+      frozen.factors = factors;
+      frozen.size = size;
+      frozen.positions = positions;
+      frozen.adjacency = adjacency;
+      frozen.variableSizes = variableSizes;
+      frozen.maxVariable = maxVariable;
+      frozen.totalFactorSize = totalFactorSize;
+      frozen.base = base;
+      frozen.removedFromBase = removedFromBase;
+      frozen.removedFromBaseSize = removedFromBaseSize;
+      frozen.depth = depth;
+      if (frozen.depth >= MAX_DEPTH) frozen = new FactorSet(frozen);
+
+      clear();
+      setBase(frozen);
+    }
+
+    FactorSet fork = new FactorSet();
+    fork.setBase(frozen);
+    return fork;
+  }
+
+  /**
+   * @param index the position of the factor, in [0, size())
+   * @return the factor at that position
+   */
+  GraphicalModel.Factor get(int index) {
+    if (index < 0 || index >= size()) throw new IndexOutOfBoundsException("Factor " + index + " of " + size());
+    if (!hasRemovedFromBase()) return getWithoutRemovals(index);
+    // Positions skip over removed factors, so there's no way to find them without a scan. Scan once, into an array of
+    // our own, since the bases are shared with other sets and mustn't change.
+    if (inOrder == null) inOrder = toArray(new GraphicalModel.Factor[size()]);
+    return inOrder[index];
+  }
+
+  /**
+   * @return the highest variable index touched by any factor, or -1 if there are no factors
+   */
+  int getMaxVariable() {
+    if (base == null) return maxVariable;
+    int max = Math.max(maxVariable, base.getMaxVariable());
+    if (!removedFromBase.isEmpty()) {
+      while (max >= 0 && getFactorsTouching(max).isEmpty()) max--;
+    }
+    return max;
+  }
+
+  /**
+   * @return the sum over all the factors of the number of entries in their tables
+   */
+  long getTotalFactorSize() {
+    if (base == null) return totalFactorSize;
+    return totalFactorSize + base.getTotalFactorSize() - removedFromBaseSize;
+  }
+
+  /**
+   * @param variable the variable to look up
+   * @return the size of the variable, or -1 if no factor touches it
+   */
+  int getVariableSize(int variable) {
+    int variableSize = variable < variableSizes.length ? variableSizes[variable] : -1;
+    if (variableSize != -1 || base == null) return variableSize;
+    variableSize = base.getVariableSize(variable);
+    if (variableSize == -1 || removedFromBase.isEmpty()) return variableSize;
+    for (GraphicalModel.Factor factor : base.getFactorsTouching(variable)) {
+      if (!removedFromBase.contains(factor)) return variableSize;
+    }
+    return -1;
+  }
+
+  /**
+   * @param variable the variable to look up
+   * @return the factors touching the variable, which must not be modified
+   */
+  List<GraphicalModel.Factor> getFactorsTouching(int variable) {
+    List<GraphicalModel.Factor> own = variable < adjacency.size() ? adjacency.get(variable) : Collections.emptyList();
+    if (base == null) return own;
+    List<GraphicalModel.Factor> inherited = base.getFactorsTouching(variable);
+    if (removedFromBase.isEmpty() && own.isEmpty()) return inherited;
+    if (inherited.isEmpty()) return own;
+
+    List<GraphicalModel.Factor> touching = new ArrayList<>(inherited.size() + own.size());
+    for (GraphicalModel.Factor factor : inherited) {
+      if (!removedFromBase.contains(factor)) touching.add(factor);
+    }
+    touching.addAll(own);
+    return touching;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * @return whether this set, or any of its bases, has removed factors from its own base
+   */
+  private boolean hasRemovedFromBase() {
+    for (FactorSet set = this; set.base != null; set = set.base) {
+      if (!set.removedFromBase.isEmpty()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Finds a factor by position, when no set in the chain has removed anything, so positions just stack up.
+   */
+  private GraphicalModel.Factor getWithoutRemovals(int index) {
+    if (base != null) {
+      int baseSize = base.size();
+      if (index < baseSize) return base.getWithoutRemovals(index);
+      index -= baseSize;
+    }
+    return factors[index];
+  }
+
+  private void setBase(FactorSet frozen) {
+    base = frozen;
+    depth = frozen == null ? 0 : frozen.depth + 1;
+  }
+}
@@ -0,0 +1,187 @@
+package com.github.keenon.loglinear.model;
+
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A factor template generates the features of many factors from one object, rather than one closure per table cell
+ * per factor, which is what addFactor(neighbors, dimensions, featurizer) builds. Sequence models are the obvious use:
+ * one template for the emission factors of every position, and one for every transition.
+ * <p>
+ * There are two kinds of template:
+ * <ul>
+ * <li>Positional templates compute features from (position, assignment) on demand. Each factor gets a table that holds
+ * nothing but the template and its position.</li>
+ * <li>Tied templates have features that don't depend on position at all, like label transitions. Every factor made
+ * from a tied template, in every model, shares one table. Inference scores shared tables once per weights version (see
+ * ScoredFactorCache), and the log-likelihood gradient adds each of their feature vectors once per model, weighted by
+ * the summed marginals of all the factors that share it.</li>
+ * </ul>
+ * Use GraphicalModel.addFactor(template, position, neighbors) to add a factor from a template.
+ */
+public class FactorTemplate {
+  /**
+   * Computes the features for one assignment to a factor at some position.
+   */
+  @FunctionalInterface
+  public interface Featurizer {
+    /**
+     * @param position   the position of the factor, as given to GraphicalModel.addFactor()
+     * @param assignment the assignment to the factor's variables, which must not be kept or modified
+     * @return the features for the assignment
+     */
+    ConcatVector featurize(int position, int[] assignment);
+  }
+
+  private final int[] dimensions;
+  private final Featurizer featurizer;
+  private final boolean tied;
+
+  // For tied templates, the one table every factor shares, built on first use
+  private ConcatVectorTable tiedTable = null;
+
+  /**
+   * Creates a positional template, whose features are computed from the position and assignment every time they're
+   * asked for.
+   *
+   * @param dimensions the sizes of the variables of every factor made from this template
+   * @param featurizer computes features from a position and an assignment
+   */
+  public FactorTemplate(int[] dimensions, Featurizer featurizer) {
+    this(dimensions, featurizer, false);
+  }
+
+  private FactorTemplate(int[] dimensions, Featurizer featurizer, boolean tied) {
+    this.dimensions = dimensions.clone();
+    this.featurizer = featurizer;
+    this.tied = tied;
+  }
+
+  /**
+   * Creates a tied template, whose features are the same at every position. The features are computed once, the first
+   * time the template is used, and shared from then on, so the featurizer must not depend on anything that changes.
+   *
+   * @param dimensions the sizes of the variables of every factor made from this template
+   * @param featurizer computes features from an assignment
+   * @return a template where every factor shares one table
+   */
+  public static FactorTemplate tied(int[] dimensions, Function<int[], ConcatVector> featurizer) {
+    return new FactorTemplate(dimensions, (position, assignment) -> featurizer.apply(assignment), true);
+  }
+
+  /**
+   * @return whether every factor from this template shares one table
+   */
+  public boolean isTied() {
+    return tied;
+  }
+
+  /**
+   * @return the sizes of the variables of every factor made from this template, by value
+   */
+  public int[] getDimensions() {
+    return dimensions.clone();
+  }
+
+  /**
+   * Gets the features table for a factor at a position. For tied templates this is always the same table.
+   *
+   * @param position the position of the factor
+   * @return a table of features for the factor
+   */
+  public ConcatVectorTable getTable(int position) {
+    if (!tied) return new PositionalTable(this, position);
+    synchronized (this) {
+      if (tiedTable == null) tiedTable = buildTiedTable();
+      return tiedTable;
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Computes every feature vector once. The vectors are already in memory, so caching them for training is a no-op,
+   * and more importantly, releasing the cache can't swap thunks out from under other threads using the same table.
+   */
+  private ConcatVectorTable buildTiedTable() {
+    ConcatVectorTable table = new ConcatVectorTable(dimensions.clone()) {
+      @Override
+      public void cacheVectors() {
+      }
+
+      @Override
+      public void releaseCache() {
+      }
+    };
+    for (int[] assignment : table) {
+      ConcatVector features = featurizer.featurize(0, assignment);
+      table.setAssignmentValue(assignment, () -> features);
+    }
+    table.markShared();
+    return table;
+  }
+
+  /**
+   * The table for one factor of a positional template. Rather than holding a thunk per cell, this makes them on
+   * demand, and only holds feature vectors while they're cached for training.
+   */
+  private static class PositionalTable extends ConcatVectorTable {
+    private final FactorTemplate template;
+    private final int position;
+    private ConcatVector[] cached = null;
+
+    PositionalTable(FactorTemplate template, int position) {
+      super(template.dimensions.clone());
+      this.template = template;
+      this.position = position;
+    }
+
+    @Override
+    public Supplier<ConcatVector> getAssignmentValue(int[] assignment) {
+      // Anything set explicitly takes precedence over the template
+      Supplier<ConcatVector> explicit = super.getAssignmentValue(assignment);
+      if (explicit != null) return explicit;
+
+      ConcatVector[] vectors = cached;
+      if (vectors != null) {
+        ConcatVector features = vectors[flatIndex(assignment)];
+        return () -> features;
+      }
+      int[] copy = assignment.clone();
+      return () -> template.featurizer.featurize(position, copy);
+    }
+
+    @Override
+    public void cacheVectors() {
+      if (cached != null) return;
+      ConcatVector[] vectors = new ConcatVector[combinatorialNeighborStatesCount()];
+      for (int[] assignment : this) {
+        vectors[flatIndex(assignment)] = getAssignmentValue(assignment).get();
+      }
+      cached = vectors;
+    }
+
+    @Override
+    public void releaseCache() {
+      cached = null;
+    }
+
+    @Override
+    public ConcatVectorTable cloneTable() {
+      PositionalTable copy = new PositionalTable(template, position);
+      for (int[] assignment : this) {
+        Supplier<ConcatVector> explicit = super.getAssignmentValue(assignment);
+        if (explicit != null) copy.setAssignmentValue(assignment, explicit);
+      }
+      return copy;
+    }
+
+    private int flatIndex(int[] assignment) {
+      int offset = 0;
+      for (int i = 0; i < assignment.length; i++) offset = offset * template.dimensions[i] + assignment[i];
+      return offset;
+    }
+  }
+}
@@ -0,0 +1,359 @@
+package com.github.keenon.loglinear.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An immutable map from feature names to indices, which is what a ConcatVectorNamespace compiles its maps into when
+ * it's frozen. It's built around a minimal perfect hash function (CHD: "hash, displace, and compress", minus the
+ * compress), which sends each of the n names to its own slot in [0, n), so the table is completely full and lookups
+ * never probe. Names are stored as UTF-8, back to back, and a lookup hashes and compares the query straight from its
+ * chars, so it doesn't allocate anything.
+ * <p>
+ * Everything lives in one flat ByteBuffer, which can just as well be a memory-mapped file as a heap array, so a frozen
+ * namespace can be loaded without building anything. The layout, all little endian:
+ * <pre>
+ * int   n, the number of names
+ * int   b, the number of buckets
+ * long  seed
+ * int[b]    displacement for each bucket: 0 when empty, d &gt; 0 to rehash with d, or -(slot + 1) for a single name
+ * int[2n+1] for each slot, the offset of its name in the name bytes and then its value, and finally the end of the
+ *           last name, so that everything a lookup reads past the displacement is usually on one cache line
+ * byte[]    names, in UTF-8
+ * </pre>
+ * Nothing is kept for looking up a name by its value, since inference never needs to. The first call to getKey()
+ * builds that, at 4 bytes per name.
+ */
+class FrozenFeatureIndex {
+  private static final int HEADER_BYTES = 16;
+  // The average number of names per bucket. Bigger buckets mean a smaller table of displacements, but a longer search
+  // for displacements that fit each bucket into the slots that are left.
+  private static final int BUCKET_SIZE = 4;
+  private static final int MAX_DISPLACEMENT = 1 << 20;
+  private static final int MAX_ATTEMPTS = 32;
+
+  private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+  private final ByteBuffer buffer;
+  private final int size;
+  private final int numBuckets;
+  private final long seed;
+  private final int slotsOffset;
+  private final int keysOffset;
+
+  // Built the first time someone asks for a name by its value
+  private volatile int[] valueToSlot = null;
+
+  /**
+   * Reads an index out of a buffer in the format described above, without copying it.
+   *
+   * @param buffer the buffer, from its position to its limit
+   */
+  FrozenFeatureIndex(ByteBuffer buffer) {
+    this.buffer = buffer.slice().order(ByteOrder.LITTLE_ENDIAN);
+    this.size = this.buffer.getInt(0);
+    this.numBuckets = this.buffer.getInt(4);
+    this.seed = this.buffer.getLong(8);
+    this.slotsOffset = HEADER_BYTES + 4 * numBuckets;
+    this.keysOffset = slotsOffset + 4 * (2 * size + 1);
+  }
+
+  /**
+   * Compiles a map of names to values into a new index.
+   *
+   * @param keys   the names, which must all be different
+   * @param values the value for each name
+   * @return a new index, on the heap
+   */
+  static FrozenFeatureIndex build(String[] keys, int[] values) {
+    int n = keys.length;
+    int numBuckets = Math.max(1, n / BUCKET_SIZE);
+    byte[][] encoded = new byte[n][];
+    int totalKeyBytes = 0;
+    for (int i = 0; i < n; i++) {
+      encoded[i] = keys[i].getBytes(StandardCharsets.UTF_8);
+      totalKeyBytes += encoded[i].length;
+    }
+
+    // Every so often a seed makes a bucket that no displacement can place, so we just try another. Failing over and
+    // over means two names have the same bytes, which can only happen with broken surrogate pairs, since those both
+    // encode as '?'.
+
+    long seed = 0x5eed;
+    int[] slots;
+    int[] displacements = new int[numBuckets];
+    int attempts = 0;
+    while ((slots = place(keys, seed, numBuckets, displacements)) == null) {
+      if (++attempts == MAX_ATTEMPTS) throw new IllegalArgumentException("Can't build a perfect hash over names that encode to the same UTF-8");
+      seed = mix(seed + GOLDEN_GAMMA);
+    }
+
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + 4 * numBuckets + 4 * (2 * n + 1) + totalKeyBytes).order(ByteOrder.LITTLE_ENDIAN);
+    buffer.putInt(n);
+    buffer.putInt(numBuckets);
+    buffer.putLong(seed);
+    for (int displacement : displacements) buffer.putInt(displacement);
+
+    int[] slotToKey = new int[n];
+    for (int i = 0; i < n; i++) slotToKey[slots[i]] = i;
+    int offset = 0;
+    for (int slot = 0; slot < n; slot++) {
+      buffer.putInt(offset);
+      buffer.putInt(values[slotToKey[slot]]);
+      offset += encoded[slotToKey[slot]].length;
+    }
+    buffer.putInt(offset);
+    for (int slot = 0; slot < n; slot++) buffer.put(encoded[slotToKey[slot]]);
+
+    buffer.flip();
+    return new FrozenFeatureIndex(buffer);
+  }
+
+  /**
+   * @param key the name to look up
+   * @return the value of the name, or -1 if it isn't in the index
+   */
+  int get(String key) {
+    if (size == 0) return -1;
+    long hash = hash(key, seed);
+    int displacement = buffer.getInt(HEADER_BYTES + 4 * bucket(hash, numBuckets));
+    if (displacement == 0) return -1;
+    int slot = displacement < 0 ? -displacement - 1 : slot(hash, displacement, size);
+    return matches(slot, key) ? getValueAt(slot) : -1;
+  }
+
+  /**
+   * @return the number of names in the index
+   */
+  int size() {
+    return size;
+  }
+
+  /**
+   * Names are kept in slot order, which is effectively random. This is for walking through all of them.
+   *
+   * @param slot a slot in [0, size())
+   * @return the name in the slot
+   */
+  String getKeyAt(int slot) {
+    int start = buffer.getInt(slotsOffset + 8 * slot);
+    int end = buffer.getInt(slotsOffset + 8 * (slot + 1));
+    byte[] bytes = new byte[end - start];
+    for (int i = 0; i < bytes.length; i++) bytes[i] = buffer.get(keysOffset + start + i);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * @param slot a slot in [0, size())
+   * @return the value of the name in the slot
+   */
+  int getValueAt(int slot) {
+    return buffer.getInt(slotsOffset + 8 * slot + 4);
+  }
+
+  /**
+   * The reverse of get(). The first call builds a table for this, which stays around afterwards.
+   *
+   * @param value the value to look up
+   * @return the name with that value, or null if there isn't one
+   */
+  String getKey(int value) {
+    int[] table = valueToSlot;
+    if (table == null) {
+      int maxValue = -1;
+      for (int slot = 0; slot < size; slot++) maxValue = Math.max(maxValue, getValueAt(slot));
+      table = new int[maxValue + 1];
+      Arrays.fill(table, -1);
+      for (int slot = 0; slot < size; slot++) table[getValueAt(slot)] = slot;
+      valueToSlot = table;
+    }
+    if (value < 0 || value >= table.length || table[value] == -1) return null;
+    return getKeyAt(table[value]);
+  }
+
+  /**
+   * @return a read-only view of the whole index, in the format described above
+   */
+  ByteBuffer getBuffer() {
+    return buffer.asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  /**
+   * Finds a slot for every key: first fits the biggest buckets, by searching for displacements that land all their
+   * keys on free slots, and then hands the leftover slots straight to buckets with only one key.
+   *
+   * @return the slot of each key, or null if some bucket couldn't be placed with this seed
+   */
+  private static int[] place(String[] keys, long seed, int numBuckets, int[] displacements) {
+    int n = keys.length;
+    long[] hashes = new long[n];
+    int[] bucketSizes = new int[numBuckets];
+    for (int i = 0; i < n; i++) {
+      hashes[i] = hash(keys[i], seed);
+      bucketSizes[bucket(hashes[i], numBuckets)]++;
+    }
+
+    // Group the keys by bucket, with a counting sort
+
+    int[] bucketStarts = new int[numBuckets + 1];
+    for (int b = 0; b < numBuckets; b++) bucketStarts[b + 1] = bucketStarts[b] + bucketSizes[b];
+    int[] byBucket = new int[n];
+    int[] fill = Arrays.copyOf(bucketStarts, numBuckets);
+    for (int i = 0; i < n; i++) byBucket[fill[bucket(hashes[i], numBuckets)]++] = i;
+
+    Integer[] order = new Integer[numBuckets];
+    for (int b = 0; b < numBuckets; b++) order[b] = b;
+    Arrays.sort(order, (a, b) -> bucketSizes[b] - bucketSizes[a]);
+
+    Arrays.fill(displacements, 0);
+    int[] slots = new int[n];
+    boolean[] taken = new boolean[n];
+    int[] candidate = new int[0];
+    int nextFree = 0;
+    for (int b : order) {
+      int bucketSize = bucketSizes[b];
+      if (bucketSize == 0) break;
+      int start = bucketStarts[b];
+
+      if (bucketSize == 1) {
+        while (taken[nextFree]) nextFree++;
+        taken[nextFree] = true;
+        slots[byBucket[start]] = nextFree;
+        displacements[b] = -nextFree - 1;
+        continue;
+      }
+
+      if (candidate.length < bucketSize) candidate = new int[bucketSize];
+      boolean placed = false;
+      for (int d = 1; d < MAX_DISPLACEMENT && !placed; d++) {
+        placed = true;
+        for (int i = 0; i < bucketSize && placed; i++) {
+          int slot = slot(hashes[byBucket[start + i]], d, n);
+          if (taken[slot]) placed = false;
+          for (int j = 0; j < i && placed; j++) {
+            if (candidate[j] == slot) placed = false;
+          }
+          candidate[i] = slot;
+        }
+        if (placed) {
+          displacements[b] = d;
+          for (int i = 0; i < bucketSize; i++) {
+            taken[candidate[i]] = true;
+            slots[byBucket[start + i]] = candidate[i];
+          }
+        }
+      }
+      if (!placed) return null;
+    }
+    return slots;
+  }
+
+  // OPTIMIZATION:
+  // These map 32 random bits onto [0, range) with a multiply and a shift, rather than a division, which is several
+  // times slower. The bucket takes the high half of the hash, and the slot the low half of a remix of it.
+
+  private static int bucket(long hash, int numBuckets) {
+    return (int) (((hash >>> 32) * numBuckets) >>> 32);
+  }
+
+  private static int slot(long hash, int displacement, int size) {
+    return (int) (((mix(hash + displacement * GOLDEN_GAMMA) & 0xffffffffL) * size) >>> 32);
+  }
+
+  /**
+   * FNV-1a over the UTF-8 bytes of the key, finished off with a strong mix, since FNV's low bits are weak.
+   */
+  private static long hash(String key, long seed) {
+    long hash = FNV_OFFSET ^ seed;
+    for (int i = 0; i < key.length(); ) {
+      char c = key.charAt(i);
+      if (c < 0x80) {
+        hash = (hash ^ c) * FNV_PRIME;
+        i++;
+        continue;
+      }
+      long encoded = encode(key, i);
+      int numBytes = (int) (encoded >>> 32) & 0xff;
+      i += (int) (encoded >>> 40);
+      for (int b = 0; b < numBytes; b++) {
+        hash = (hash ^ ((encoded >>> (8 * b)) & 0xff)) * FNV_PRIME;
+      }
+    }
+    return mix(hash);
+  }
+
+  /**
+   * Compares the UTF-8 bytes of the key against the name stored in a slot.
+   */
+  private boolean matches(int slot, String key) {
+    int position = keysOffset + buffer.getInt(slotsOffset + 8 * slot);
+    int end = keysOffset + buffer.getInt(slotsOffset + 8 * (slot + 1));
+    // Names are at least as many bytes as chars, so this turns away most mismatches without reading them
+    if (end - position < key.length()) return false;
+    for (int i = 0; i < key.length(); ) {
+      char c = key.charAt(i);
+      if (c < 0x80) {
+        if (position == end || buffer.get(position++) != c) return false;
+        i++;
+        continue;
+      }
+      long encoded = encode(key, i);
+      int numBytes = (int) (encoded >>> 32) & 0xff;
+      i += (int) (encoded >>> 40);
+      if (position + numBytes > end) return false;
+      for (int b = 0; b < numBytes; b++) {
+        if (buffer.get(position++) != (byte) (encoded >>> (8 * b))) return false;
+      }
+    }
+    return position == end;
+  }
+
+  /**
+   * Encodes the code point at some position of a string as UTF-8, the same way String.getBytes() does, including
+   * writing '?' for broken surrogate pairs.
+   *
+   * @return the bytes, packed first byte lowest into the low 32 bits, then the number of bytes in the next 8 bits, and
+   * the number of chars used in the 8 bits after that
+   */
+  private static long encode(String s, int i) {
+    char c = s.charAt(i);
+    if (c < 0x80) {
+      return c | (1L << 32) | (1L << 40);
+    }
+    if (c < 0x800) {
+      return (0xc0 | (c >> 6)) | ((long) (0x80 | (c & 0x3f)) << 8) | (2L << 32) | (1L << 40);
+    }
+    if (Character.isSurrogate(c)) {
+      if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, s.charAt(i + 1));
+        return (0xf0 | (codePoint >> 18)) |
+            ((long) (0x80 | ((codePoint >> 12) & 0x3f)) << 8) |
+            ((long) (0x80 | ((codePoint >> 6) & 0x3f)) << 16) |
+            ((long) (0x80 | (codePoint & 0x3f)) << 24) |
+            (4L << 32) | (2L << 40);
+      }
+      return '?' | (1L << 32) | (1L << 40);
+    }
+    return (0xe0 | (c >> 12)) | ((long) (0x80 | ((c >> 6) & 0x3f)) << 8) | ((long) (0x80 | (c & 0x3f)) << 16) | (3L << 32) | (1L << 40);
+  }
+
+  /**
+   * The finalizer from MurmurHash3.
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
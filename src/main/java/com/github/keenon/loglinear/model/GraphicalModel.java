@@ -2,7 +2,6 @@ package com.github.keenon.loglinear.model;
 
 import com.github.keenon.loglinear.GraphicalModelProto;
 import com.github.keenon.loglinear.inference.CliqueTree;
-import com.github.keenon.loglinear.learning.LogLikelihoodDifferentiableFunction;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,8 +25,23 @@ import java.util.function.Function;
  */
 public class GraphicalModel {
   public Map<String, String> modelMetaData = new HashMap<>();
-  public List<Map<String, String>> variableMetaData = new ArrayList<>();
-  public Set<Factor> factors = new HashSet<>();
+  // Always go through getVariableMetaDataByReference() to get at these, which are views over the arrays below. If this
+  // gets replaced by some other List, it's copied back into a VariableMetaDataList the next time the model is used, and
+  // the observed values and training labels are replaced by whatever the new list holds. Assigning it directly is only
+  // kept working for old code, and is slower than observe() and setTrainingLabel().
+  public List<Map<String, String>> variableMetaData = new VariableMetaDataList(this);
+  // A FactorSet, which also indexes the structure of the model. If this gets replaced by some other Set, it's wrapped
+  // back up into a FactorSet the next time the structure is asked for.
+  public Set<Factor> factors = new FactorSet();
+
+  // OPTIMIZATION:
+  // Observed values and training labels are read on every inference and training call, so they're kept here as
+  // primitives, indexed by variable with -1 for missing, rather than as strings in the variable metadata maps
+
+  private int[] observedValues = new int[0];
+  private int[] trainingLabels = new int[0];
+  // Set when a clone shares the arrays above, which then have to be copied before they're written
+  private boolean sharedValues = false;
 
   /**
    * A single factor in this graphical model. ConcatVectorTable can be reused multiple times if the same graph (or different
@@ -299,10 +313,49 @@ public class GraphicalModel {
    * @return the metadata map corresponding to that variable number
    */
   public synchronized Map<String, String> getVariableMetaDataByReference(int variableIndex) {
-    while (variableIndex >= variableMetaData.size()) {
-      variableMetaData.add(new HashMap<>());
-    }
-    return variableMetaData.get(variableIndex);
+    VariableMetaDataList list = getVariableMetaDataList();
+    list.ensureSize(variableIndex + 1);
+    return list.get(variableIndex);
+  }
+
+  /**
+   * @param variable the variable to look up
+   * @return the value the variable is observed to have, or -1 if it isn't observed
+   */
+  public int getObservedValue(int variable) {
+    syncVariableMetaData();
+    return readValue(observedValues, variable);
+  }
+
+  /**
+   * Reads out the observed value of many variables at once, which is how inference gets at them.
+   *
+   * @param numVariables the number of variables to read, starting from 0
+   * @return a new array, indexed by variable, of observed values, or -1 where a variable isn't observed
+   */
+  public int[] getObservedValues(int numVariables) {
+    syncVariableMetaData();
+    return copyValues(observedValues, numVariables);
+  }
+
+  /**
+   * @param variable the variable to look up
+   * @return the training label of the variable, or -1 if it doesn't have one
+   */
+  public int getTrainingLabel(int variable) {
+    syncVariableMetaData();
+    return readValue(trainingLabels, variable);
+  }
+
+  /**
+   * Reads out the training labels of many variables at once, which is how training gets at them.
+   *
+   * @param numVariables the number of variables to read, starting from 0
+   * @return a new array, indexed by variable, of training labels, or -1 where a variable doesn't have one
+   */
+  public int[] getTrainingLabels(int numVariables) {
+    syncVariableMetaData();
+    return copyValues(trainingLabels, numVariables);
   }
 
   /**
@@ -497,8 +550,10 @@ public class GraphicalModel {
    * @param variable The variable to set.
    * @param value The value to set on the variable.
    */
-  public void setTrainingLabel(int variable, int value) {
-    getVariableMetaDataByReference(variable).put(LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE, Integer.toString(value));
+  public synchronized void setTrainingLabel(int variable, int value) {
+    getVariableMetaDataByReference(variable);
+    ownValues();
+    trainingLabels = setValue(trainingLabels, variable, value);
   }
 
   /**
@@ -524,6 +579,19 @@ public class GraphicalModel {
     return factor;
   }
 
+  /**
+   * Creates a factor from a template, for the variables at some position in the model. Factors from a tied template
+   * all share one features table, which inference and training both take advantage of.
+   *
+   * @param template        the template to generate the factor's features
+   * @param position        the position to pass to the template's featurizer
+   * @param neighborIndices the indices of the neighboring variables, in order
+   * @return a reference to the created factor. This can be safely ignored, as the factor is already saved in the model
+   */
+  public VectorFactor addFactor(FactorTemplate template, int position, int[] neighborIndices) {
+    return addFactor(template.getTable(position), neighborIndices);
+  }
+
   /**
    * Creates an instantiated factor in this graph, with neighborIndices representing the neighbor variables by integer
    * index.
@@ -544,10 +612,12 @@ public class GraphicalModel {
    * Observe a given variable, setting it to a given value.
    *
    * @param variable The variable to set.
-   * @param value The value we have observed this variable to have taken.
+   * @param value The value we have observed this variable to have taken, or -1 to remove the observation.
    */
-  public void observe(int variable, int value) {
-    getVariableMetaDataByReference(variable).put(CliqueTree.VARIABLE_OBSERVED_VALUE, Integer.toString(value));
+  public synchronized void observe(int variable, int value) {
+    getVariableMetaDataByReference(variable);
+    ownValues();
+    observedValues = setValue(observedValues, variable, value);
   }
 
 
@@ -555,15 +625,15 @@ public class GraphicalModel {
    * The number of variables in this graphical model.
    */
   public int numVariables() {
-    int maxVar = 0;
-    for (Factor f : factors) {
-      for (int n : f.neigborIndices) {
-        if (n > maxVar) maxVar = n;
-      }
-    }
-    return maxVar + 1;
+    return Math.max(getMaxVariable(), 0) + 1;
   }
 
+  /**
+   * @return the highest variable index touched by any factor, or -1 if there aren't any factors
+   */
+  public int getMaxVariable() {
+    return getFactorSet().getMaxVariable();
+  }
 
   /**
    * @return an array of integers, indicating variable sizes given by each of the factors in the model
@@ -573,19 +643,46 @@ public class GraphicalModel {
       return new int[0];
     }
 
-    int maxVar = numVariables() - 1;
-    int[] sizes = new int[maxVar + 1];
+    FactorSet factorSet = getFactorSet();
+    int[] sizes = new int[factorSet.getMaxVariable() + 1];
     for (int i = 0; i < sizes.length; i++) {
-      sizes[i] = -1;
+      sizes[i] = factorSet.getVariableSize(i);
     }
+    return sizes;
+  }
 
-    for (Factor f : factors) {
-      for (int i = 0; i < f.neigborIndices.length; i++) {
-        sizes[f.neigborIndices[i]] = f.getDimensions()[i];
-      }
-    }
+  /**
+   * @return the sum over all the factors of the number of entries in their tables, which is a good estimate of how
+   * much work inference over the model will take
+   */
+  public long getTotalFactorSize() {
+    return getFactorSet().getTotalFactorSize();
+  }
 
-    return sizes;
+  /**
+   * @param variable the variable to look up
+   * @return the number of values the variable can take, or -1 if no factor touches it
+   */
+  public int getVariableSize(int variable) {
+    return getFactorSet().getVariableSize(variable);
+  }
+
+  /**
+   * @param variable the variable to look up
+   * @return the factors that touch the variable, in the order they were added, as a read-only list
+   */
+  public List<Factor> getFactorsTouching(int variable) {
+    return Collections.unmodifiableList(getFactorSet().getFactorsTouching(variable));
+  }
+
+  /**
+   * Factors are kept in the order they were added, except that removing a factor moves the last one into its place.
+   *
+   * @param index the position of the factor, in [0, factors.size())
+   * @return the factor at that position, which is also where iterating over factors would find it
+   */
+  public Factor getFactor(int index) {
+    return getFactorSet().get(index);
   }
 
 
@@ -637,9 +734,8 @@ public class GraphicalModel {
     if (proto == null) return null;
     GraphicalModel model = new GraphicalModel();
     model.modelMetaData = readMetaDataFromProto(proto.getMetaData());
-    model.variableMetaData = new ArrayList<>();
     for (int i = 0; i < proto.getVariableMetaDataCount(); i++) {
-      model.variableMetaData.add(readMetaDataFromProto(proto.getVariableMetaData(i)));
+      model.getVariableMetaDataByReference(i).putAll(readMetaDataFromProto(proto.getVariableMetaData(i)));
     }
     for (int i = 0; i < proto.getFactorCount(); i++) {
       model.factors.add(Factor.readFromProto(proto.getFactor(i)));
@@ -696,24 +792,26 @@ public class GraphicalModel {
 
   /**
    * The point here is to allow us to save a copy of the model with a current set of factors and metadata mappings,
-   * which can come in super handy with gameplaying applications. The cloned model doesn't instantiate the feature
-   * thunks inside factors, those are just taken over individually.
+   * which can come in super handy with gameplaying applications.
+   * <p>
+   * OPTIMIZATION:
+   * The clone is copy-on-write, and shares the factor set, the variable metadata, and the observations and training
+   * labels with this model, so cloning takes constant time (plus a copy of the model metadata) however big the model
+   * is. Each side only pays for what it changes afterwards, and neither side sees the other's changes. The factors
+   * themselves are shared too, not copied, so treat a factor as immutable once it's in a model: to change one in just
+   * one of the models, remove it and add a modified cloneFactor() in its place.
    *
    * @return a clone
    */
-  public GraphicalModel cloneModel() {
+  public synchronized GraphicalModel cloneModel() {
     GraphicalModel clone = new GraphicalModel();
     clone.modelMetaData.putAll(modelMetaData);
-    for (int i = 0; i < variableMetaData.size(); i++) {
-      if (variableMetaData.get(i) != null) {
-        clone.getVariableMetaDataByReference(i).putAll(variableMetaData.get(i));
-      }
-    }
-
-    for (Factor f : factors) {
-      clone.factors.add(f.cloneFactor());
-    }
-
+    clone.variableMetaData = getVariableMetaDataList().fork(clone);
+    clone.observedValues = observedValues;
+    clone.trainingLabels = trainingLabels;
+    clone.sharedValues = true;
+    sharedValues = true;
+    clone.factors = getFactorSet().fork();
     return clone;
   }
 
@@ -721,6 +819,111 @@ public class GraphicalModel {
   // PRIVATE IMPLEMENTATION
   ////////////////////////////////////////////////////////////////////////////
 
+  private FactorSet getFactorSet() {
+    if (!(factors instanceof FactorSet)) factors = new FactorSet(factors);
+    return (FactorSet) factors;
+  }
+
+  /**
+   * Reads the observed value array directly, for the VariableMetaData views, which must keep working while a replaced
+   * list is being copied out of them.
+   */
+  int readObservedValue(int variable) {
+    return readValue(observedValues, variable);
+  }
+
+  /**
+   * Reads the training label array directly, for the VariableMetaData views, as above.
+   */
+  int readTrainingLabel(int variable) {
+    return readValue(trainingLabels, variable);
+  }
+
+  /**
+   * Drops the observed values and training labels of a range of variables, and moves the ones after it down to fill
+   * the gap, for VariableMetaDataList.removeRange().
+   */
+  synchronized void removeVariableValues(int fromVariable, int toVariable) {
+    ownValues();
+    observedValues = removeValues(observedValues, fromVariable, toVariable);
+    trainingLabels = removeValues(trainingLabels, fromVariable, toVariable);
+  }
+
+  private boolean ownsVariableMetaData() {
+    return variableMetaData instanceof VariableMetaDataList && ((VariableMetaDataList) variableMetaData).model == this;
+  }
+
+  /**
+   * Picks up a list that was assigned to variableMetaData, before the arrays it replaces are read. This only costs a
+   * type check, unless the list really was replaced.
+   */
+  private void syncVariableMetaData() {
+    if (ownsVariableMetaData()) return;
+    synchronized (this) {
+      getVariableMetaDataList();
+    }
+  }
+
+  private VariableMetaDataList getVariableMetaDataList() {
+    if (!ownsVariableMetaData()) {
+      // Someone put a plain list in, which replaces all the variable metadata, observed values and training labels
+      // included. Copy it before clearing the arrays, since it may hold views that read from them.
+      List<Map<String, String>> metaData = new ArrayList<>(variableMetaData.size());
+      for (Map<String, String> map : variableMetaData) metaData.add(map == null ? null : new HashMap<>(map));
+      observedValues = new int[0];
+      trainingLabels = new int[0];
+      sharedValues = false;
+      VariableMetaDataList list = new VariableMetaDataList(this);
+      variableMetaData = list;
+      for (Map<String, String> map : metaData) list.add(map);
+    }
+    return (VariableMetaDataList) variableMetaData;
+  }
+
+  /**
+   * Makes sure the observed values and training labels arrays aren't shared with a clone, before writing to them.
+   */
+  private void ownValues() {
+    if (!sharedValues) return;
+    observedValues = observedValues.clone();
+    trainingLabels = trainingLabels.clone();
+    sharedValues = false;
+  }
+
+  private static int[] removeValues(int[] values, int from, int to) {
+    if (from >= values.length) return values;
+    to = Math.min(to, values.length);
+    System.arraycopy(values, to, values, from, values.length - to);
+    Arrays.fill(values, values.length - (to - from), values.length, -1);
+    return values;
+  }
+
+  private static int readValue(int[] values, int variable) {
+    return variable < values.length ? values[variable] : -1;
+  }
+
+  private static int[] copyValues(int[] values, int numVariables) {
+    int[] copy = Arrays.copyOf(values, numVariables);
+    if (numVariables > values.length) Arrays.fill(copy, values.length, numVariables, -1);
+    return copy;
+  }
+
+  /**
+   * Sets one entry of a per-variable array, growing it (with -1s) if it's too short.
+   *
+   * @return the array that now holds the value, which is a new one if it had to grow
+   */
+  private static int[] setValue(int[] values, int variable, int value) {
+    if (variable >= values.length) {
+      if (value == -1) return values;
+      int oldLength = values.length;
+      values = Arrays.copyOf(values, Math.max(variable + 1, oldLength * 2));
+      Arrays.fill(values, oldLength, values.length, -1);
+    }
+    values[variable] = value;
+    return values;
+  }
+
   private static GraphicalModelProto.MetaData.Builder getProtoMetaDataBuilder(Map<String, String> metaData) {
     GraphicalModelProto.MetaData.Builder builder = GraphicalModelProto.MetaData.newBuilder();
     for (String key : metaData.keySet()) {
@@ -24,6 +24,8 @@ public class NDArrayDoubles implements Iterable<int[]> {
   // in normal NDArray this is private, but to allow for optimizations we actually leave it as protected
   protected double[] values;
 
+  private boolean shared = false;
+
   /**
    * Constructor takes a list of neighbor variables to use for this factor. This must not change after construction,
    * and the number of states of those variables must also not change.
@@ -51,6 +53,25 @@ public class NDArrayDoubles implements Iterable<int[]> {
   }
 
 
+  /**
+   * Marks this array as shared by many static factors, possibly across many models. Inference then reads it into a
+   * factor once per observation pattern, rather than once per factor (see ScoredFactorCache). A shared array must not
+   * be changed once it's been used for inference. Copies made by deepCopy() aren't shared.
+   *
+   * @return this array, for chaining
+   */
+  public NDArrayDoubles markShared() {
+    shared = true;
+    return this;
+  }
+
+  /**
+   * @return whether markShared() has been called on this array
+   */
+  public boolean isShared() {
+    return shared;
+  }
+
   /**
    * Copy this array.
    */
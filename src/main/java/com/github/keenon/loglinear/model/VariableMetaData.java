@@ -0,0 +1,140 @@
+package com.github.keenon.loglinear.model;
+
+import com.github.keenon.loglinear.inference.CliqueTree;
+import com.github.keenon.loglinear.learning.LogLikelihoodDifferentiableFunction;
+
+import java.util.*;
+
+/**
+ * The metadata map for a single variable in a GraphicalModel. This behaves like any other Map<String, String>, except
+ * that the observed value (CliqueTree.VARIABLE_OBSERVED_VALUE) and the training label
+ * (LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE) aren't kept in the map at all. They live in primitive
+ * int[] arrays on the model, and this map is just a string view of them, so that old code that reads and writes the
+ * metadata keeps working, while inference and training read the arrays without any hashing or parsing.
+ * <p>
+ * Writing "-1" to either key is the same as removing it, since that's how the arrays mark a missing value.
+ * <p>
+ * The rest of the metadata lives in the VariableMetaDataList that made this view, which shares it with forked models.
+ */
+class VariableMetaData extends AbstractMap<String, String> {
+  private final GraphicalModel model;
+  private final VariableMetaDataList list;
+  private final int variable;
+
+  VariableMetaData(VariableMetaDataList list, int variable) {
+    this.model = list.model;
+    this.list = list;
+    this.variable = variable;
+  }
+
+  @Override
+  public String get(Object key) {
+    if (CliqueTree.VARIABLE_OBSERVED_VALUE.equals(key)) return toString(model.readObservedValue(variable));
+    if (LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE.equals(key)) return toString(model.readTrainingLabel(variable));
+    Map<String, String> other = list.getMetaData(variable);
+    return other == null ? null : other.get(key);
+  }
+
+  @Override
+  public boolean containsKey(Object key) {
+    if (CliqueTree.VARIABLE_OBSERVED_VALUE.equals(key)) return model.readObservedValue(variable) != -1;
+    if (LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE.equals(key)) return model.readTrainingLabel(variable) != -1;
+    Map<String, String> other = list.getMetaData(variable);
+    return other != null && other.containsKey(key);
+  }
+
+  @Override
+  public String put(String key, String value) {
+    String old = get(key);
+    if (CliqueTree.VARIABLE_OBSERVED_VALUE.equals(key)) {
+      model.observe(variable, Integer.parseInt(value));
+    } else if (LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE.equals(key)) {
+      model.setTrainingLabel(variable, Integer.parseInt(value));
+    } else {
+      return list.getMetaDataForWriting(variable).put(key, value);
+    }
+    return old;
+  }
+
+  @Override
+  public String remove(Object key) {
+    String old = get(key);
+    if (CliqueTree.VARIABLE_OBSERVED_VALUE.equals(key)) {
+      model.observe(variable, -1);
+    } else if (LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE.equals(key)) {
+      model.setTrainingLabel(variable, -1);
+    } else {
+      if (list.getMetaData(variable) == null) return null;
+      return list.getMetaDataForWriting(variable).remove(key);
+    }
+    return old;
+  }
+
+  @Override
+  public void clear() {
+    if (list.getMetaData(variable) != null) list.getMetaDataForWriting(variable).clear();
+    model.observe(variable, -1);
+    model.setTrainingLabel(variable, -1);
+  }
+
+  @Override
+  public Set<Entry<String, String>> entrySet() {
+    return new AbstractSet<Entry<String, String>>() {
+      @Override
+      public Iterator<Entry<String, String>> iterator() {
+        // Snapshot the keys, so that removing through the iterator can go through remove() above
+
+        Map<String, String> other = list.getMetaData(variable);
+        List<Entry<String, String>> entries = new ArrayList<>(size());
+        for (String key : new String[]{CliqueTree.VARIABLE_OBSERVED_VALUE, LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE}) {
+          String value = get(key);
+          if (value != null) entries.add(new SimpleImmutableEntry<>(key, value));
+        }
+        if (other != null) {
+          for (Entry<String, String> entry : other.entrySet()) entries.add(new SimpleImmutableEntry<>(entry));
+        }
+        Iterator<Entry<String, String>> iterator = entries.iterator();
+
+        return new Iterator<Entry<String, String>>() {
+          Entry<String, String> last = null;
+
+          @Override
+          public boolean hasNext() {
+            return iterator.hasNext();
+          }
+
+          @Override
+          public Entry<String, String> next() {
+            last = iterator.next();
+            return last;
+          }
+
+          @Override
+          public void remove() {
+            if (last == null) throw new IllegalStateException();
+            VariableMetaData.this.remove(last.getKey());
+            last = null;
+          }
+        };
+      }
+
+      @Override
+      public int size() {
+        return VariableMetaData.this.size();
+      }
+    };
+  }
+
+  @Override
+  public int size() {
+    Map<String, String> other = list.getMetaData(variable);
+    int size = other == null ? 0 : other.size();
+    if (model.readObservedValue(variable) != -1) size++;
+    if (model.readTrainingLabel(variable) != -1) size++;
+    return size;
+  }
+
+  private static String toString(int value) {
+    return value == -1 ? null : Integer.toString(value);
+  }
+}
@@ -0,0 +1,164 @@
+package com.github.keenon.loglinear.model;
+
+import java.util.*;
+
+/**
+ * The list behind GraphicalModel.variableMetaData. Each entry is a VariableMetaData view for the variable at that
+ * index, made the first time it's asked for, and anything else added to the list is copied into a view.
+ * <p>
+ * The metadata itself, other than observed values and training labels, is kept here in one map per variable, and
+ * forked models share those maps until they write to them, so that GraphicalModel.cloneModel() doesn't have to copy
+ * any of them.
+ * <p>
+ * New variables can only be added at the end of the list. Removing variables, from anywhere, moves the metadata of the
+ * variables after them down to fill the gap, observed values and training labels included, the same way any list
+ * would. The model's factors aren't renumbered.
+ */
+class VariableMetaDataList extends AbstractList<Map<String, String>> {
+  final GraphicalModel model;
+  private int size = 0;
+  // The views handed out for each variable, made on demand
+  private VariableMetaData[] views = new VariableMetaData[0];
+
+  // The metadata maps, or null where a variable doesn't have any. After a fork, the array and every map in it are
+  // shared, until this list copies them: the array the first time anything is written, and each map the first time
+  // that variable's metadata is written.
+  private Map<String, String>[] metaData = newArray(0);
+  private boolean sharedArray = false;
+  private BitSet ownedMaps = new BitSet();
+
+  VariableMetaDataList(GraphicalModel model) {
+    this.model = model;
+  }
+
+  @Override
+  public Map<String, String> get(int index) {
+    if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Variable " + index + " of " + size);
+    if (index >= views.length) views = Arrays.copyOf(views, Math.max(size, views.length * 2));
+    if (views[index] == null) views[index] = new VariableMetaData(this, index);
+    return views[index];
+  }
+
+  @Override
+  public Map<String, String> set(int index, Map<String, String> element) {
+    Map<String, String> view = get(index);
+    if (element == view) return view;
+    Map<String, String> old = new HashMap<>(view);
+    view.clear();
+    if (element != null) view.putAll(element);
+    return old;
+  }
+
+  @Override
+  public boolean add(Map<String, String> element) {
+    ensureSize(size + 1);
+    if (element != null) get(size - 1).putAll(element);
+    return true;
+  }
+
+  @Override
+  public Map<String, String> remove(int index) {
+    Map<String, String> old = new HashMap<>(get(index));
+    removeRange(index, index + 1);
+    return old;
+  }
+
+  /**
+   * This is what clear() and subList(from, to).clear() come down to, so truncating the list is a single shift.
+   */
+  @Override
+  protected void removeRange(int fromIndex, int toIndex) {
+    if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+      throw new IndexOutOfBoundsException("Variables " + fromIndex + " to " + toIndex + " of " + size);
+    }
+    if (fromIndex == toIndex) return;
+    int removed = toIndex - fromIndex;
+
+    if (sharedArray) {
+      metaData = metaData.clone();
+      sharedArray = false;
+    }
+    System.arraycopy(metaData, toIndex, metaData, fromIndex, size - toIndex);
+    Arrays.fill(metaData, size - removed, size, null);
+
+    // The maps we own move down along with the rest
+
+    BitSet owned = ownedMaps.get(0, fromIndex);
+    for (int i = ownedMaps.nextSetBit(toIndex); i >= 0; i = ownedMaps.nextSetBit(i + 1)) owned.set(i - removed);
+    ownedMaps = owned;
+
+    model.removeVariableValues(fromIndex, toIndex);
+    size -= removed;
+    modCount++;
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Pads the list out with empty metadata, up to a size.
+   *
+   * @param newSize the smallest size the list should have afterwards
+   */
+  void ensureSize(int newSize) {
+    if (newSize <= size) return;
+    if (newSize > metaData.length) {
+      metaData = Arrays.copyOf(metaData, Math.max(newSize, metaData.length * 2));
+      sharedArray = false;
+    }
+    size = newSize;
+    modCount++;
+  }
+
+  /**
+   * Splits off a copy of this list for another model in constant time. Afterwards, changes to either list are
+   * invisible to the other.
+   *
+   * @param clone the model the copy is for
+   * @return a copy of the list, sharing all its metadata with this one
+   */
+  VariableMetaDataList fork(GraphicalModel clone) {
+    VariableMetaDataList fork = new VariableMetaDataList(clone);
+    fork.size = size;
+    fork.metaData = metaData;
+    fork.sharedArray = true;
+    sharedArray = true;
+    ownedMaps = new BitSet();
+    return fork;
+  }
+
+  /**
+   * @param variable the variable to look up
+   * @return the metadata of the variable, which must not be modified, or null if there isn't any
+   */
+  Map<String, String> getMetaData(int variable) {
+    return metaData[variable];
+  }
+
+  /**
+   * @param variable the variable to look up
+   * @return the metadata of the variable, which is safe to modify, since no other list can see it
+   */
+  Map<String, String> getMetaDataForWriting(int variable) {
+    if (sharedArray) {
+      metaData = metaData.clone();
+      sharedArray = false;
+    }
+    if (!ownedMaps.get(variable)) {
+      metaData[variable] = metaData[variable] == null ? new HashMap<>() : new HashMap<>(metaData[variable]);
+      ownedMaps.set(variable);
+    }
+    return metaData[variable];
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  // PRIVATE IMPLEMENTATION
+  ////////////////////////////////////////////////////////////////////////////
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  private static Map<String, String>[] newArray(int length) {
+    return (Map<String, String>[]) new Map[length];
+  }
+}
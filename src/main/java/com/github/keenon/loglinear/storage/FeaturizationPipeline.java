@@ -0,0 +1,326 @@
+package com.github.keenon.loglinear.storage;
+
+import com.github.keenon.loglinear.model.GraphicalModel;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Builds GraphicalModels from a stream of raw records (sentences, game states, whatever) on many threads at once, and
+ * hands them back in the order the records came in, either as a ModelBatch or as a stream that training can start
+ * consuming before featurization is done.
+ *
+ * There are three stages, joined by bounded queues:
+ *
+ * - read: one thread pulls records off the source iterator
+ * - featurize: a pool of threads runs the featurizer, which is usually where all the time goes
+ * - emit: whoever is consuming the output takes the models back off in order
+ *
+ * At most queueCapacity records are in flight between reading and emitting, so a slow consumer or a giant source
+ * never piles up more than that in memory. Every run keeps Stats on how busy each stage was, and how long it spent
+ * waiting on its neighbors, so it's easy to tell which stage is the bottleneck.
+ *
+ * The featurizer gets called from many threads at once, so it must be threadsafe. In particular, every featurizer
+ * threads its features through one ConcatVectorNamespace, which is what has to stand up to the contention.
+ */
+public class FeaturizationPipeline<T> {
+    private final Function<T, GraphicalModel> featurizer;
+    private final int numThreads;
+    private final int queueCapacity;
+
+    private volatile Stats lastStats = null;
+
+    /**
+     * Creates a pipeline with a featurizer thread for every processor.
+     *
+     * @param featurizer builds a model from a single record. Must be threadsafe, and must not return null.
+     */
+    public FeaturizationPipeline(Function<T, GraphicalModel> featurizer) {
+        this(featurizer, Runtime.getRuntime().availableProcessors(), 4 * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param featurizer builds a model from a single record. Must be threadsafe, and must not return null.
+     * @param numThreads the number of threads to featurize with
+     * @param queueCapacity the most records that can be in the pipeline at once, which should be comfortably more than
+     *                      numThreads so that the featurizers don't starve
+     */
+    public FeaturizationPipeline(Function<T, GraphicalModel> featurizer, int numThreads, int queueCapacity) {
+        if (numThreads < 1) throw new IllegalArgumentException("Need at least one featurizer thread, got " + numThreads);
+        if (queueCapacity < 1) throw new IllegalArgumentException("Need a queue capacity of at least one, got " + queueCapacity);
+        this.featurizer = featurizer;
+        this.numThreads = numThreads;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Featurizes every record, and collects the results.
+     *
+     * @param records the records to featurize
+     * @return a batch of the models, in the same order as the records
+     */
+    public ModelBatch buildBatch(Iterator<T> records) {
+        ModelBatch batch = new ModelBatch();
+        run(records).forEachRemaining(batch::add);
+        return batch;
+    }
+
+    /**
+     * Featurizes records in the background, as fast as the stream is consumed. Closing the stream stops the pipeline
+     * early, if it hasn't run through all the records yet.
+     *
+     * @param records the records to featurize
+     * @return an ordered stream of the models, in the same order as the records
+     */
+    public Stream<GraphicalModel> stream(Iterator<T> records) {
+        Run run = run(records);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(run, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(run::cancel);
+    }
+
+    /**
+     * @return the stats of the most recent run, which keep updating while it's still going, or null if nothing has run
+     */
+    public Stats getStats() {
+        return lastStats;
+    }
+
+    /**
+     * Counters for every stage of a run. All the times are in nanoseconds. The busy time of the featurize stage is
+     * summed over all its threads, so it can add up to more than the wall time.
+     */
+    public static class Stats {
+        public final AtomicLong recordsRead = new AtomicLong();
+        public final AtomicLong readNanos = new AtomicLong();
+        public final AtomicLong readBlockedNanos = new AtomicLong();
+
+        public final AtomicLong recordsFeaturized = new AtomicLong();
+        public final AtomicLong featurizeNanos = new AtomicLong();
+        public final AtomicLong featurizeIdleNanos = new AtomicLong();
+
+        public final AtomicLong modelsEmitted = new AtomicLong();
+        public final AtomicLong emitWaitNanos = new AtomicLong();
+
+        final long startNanos = System.nanoTime();
+        volatile long endNanos = -1;
+
+        /**
+         * @return the time since the run started, or the length of the run if it's done
+         */
+        public long getWallNanos() {
+            return (endNanos == -1 ? System.nanoTime() : endNanos) - startNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "read: " + stage(recordsRead.get(), readNanos.get()) + ", blocked on featurizers " + millis(readBlockedNanos.get()) + "\n" +
+                    "featurize: " + stage(recordsFeaturized.get(), featurizeNanos.get()) + ", idle " + millis(featurizeIdleNanos.get()) + "\n" +
+                    "emit: " + modelsEmitted.get() + " models in " + millis(getWallNanos()) + " (" + perSecond(modelsEmitted.get(), getWallNanos()) + "), waiting " + millis(emitWaitNanos.get());
+        }
+
+        private static String stage(long count, long busyNanos) {
+            return count + " records, busy " + millis(busyNanos) + " (" + perSecond(count, busyNanos) + " per busy thread)";
+        }
+
+        private static String millis(long nanos) {
+            return (nanos / 1000000) + "ms";
+        }
+
+        private static String perSecond(long count, long nanos) {
+            return (nanos == 0 ? 0 : (long) (count * 1.0e9 / nanos)) + "/s";
+        }
+    }
+
+    ////////////////////////////////////////////////////////////////////////////
+    // PRIVATE IMPLEMENTATION
+    ////////////////////////////////////////////////////////////////////////////
+
+    private Run run(Iterator<T> records) {
+        Run run = new Run(records);
+        lastStats = run.stats;
+        run.start();
+        return run;
+    }
+
+    /**
+     * A record along with its position in the source, which is how the emit stage puts the models back in order.
+     */
+    private static class Sequenced<T> {
+        final long sequence;
+        final T record;
+
+        Sequenced(long sequence, T record) {
+            this.sequence = sequence;
+            this.record = record;
+        }
+    }
+
+    /**
+     * A single pass over a source of records. This is the emit stage: it's an iterator over the finished models, which
+     * blocks until the next one in order is ready.
+     */
+    private class Run implements Iterator<GraphicalModel> {
+        final Stats stats = new Stats();
+        final Iterator<T> records;
+        final Thread[] threads = new Thread[numThreads + 1];
+
+        // Bounds the number of records between the read and emit stages, which also means that a record's model can
+        // always go in slot (sequence % queueCapacity) of the output
+        final Semaphore inFlight = new Semaphore(queueCapacity);
+        // Sized so that the poison pills at the end always fit
+        final BlockingQueue<Sequenced<T>> input = new ArrayBlockingQueue<>(queueCapacity + numThreads);
+        final GraphicalModel[] output = new GraphicalModel[queueCapacity];
+
+        // Everything below is guarded by the output array
+        long nextToEmit = 0;
+        long totalRecords = -1;
+        Throwable failure = null;
+
+        Run(Iterator<T> records) {
+            this.records = records;
+        }
+
+        void start() {
+            threads[0] = new Thread(this::read, "featurization-read");
+            for (int i = 1; i < threads.length; i++) {
+                threads[i] = new Thread(this::featurize, "featurization-" + i);
+            }
+            for (Thread thread : threads) {
+                // Nobody is left to finish the run if the consumer walks away, so don't hold up the JVM
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            long startWait = System.nanoTime();
+            try {
+                synchronized (output) {
+                    while (true) {
+                        if (failure != null) throw new IllegalStateException("Featurization failed", failure);
+                        if (output[slot(nextToEmit)] != null) return true;
+                        if (totalRecords != -1 && nextToEmit >= totalRecords) {
+                            if (stats.endNanos == -1) stats.endNanos = System.nanoTime();
+                            return false;
+                        }
+                        output.wait();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new IllegalStateException("Interrupted waiting on featurization", e);
+            } finally {
+                stats.emitWaitNanos.addAndGet(System.nanoTime() - startWait);
+            }
+        }
+
+        @Override
+        public GraphicalModel next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            GraphicalModel model;
+            synchronized (output) {
+                int slot = slot(nextToEmit);
+                model = output[slot];
+                output[slot] = null;
+                nextToEmit++;
+            }
+            inFlight.release();
+            stats.modelsEmitted.incrementAndGet();
+            return model;
+        }
+
+        /**
+         * Stops all the threads of this run, whether or not they're done.
+         */
+        void cancel() {
+            fail(new IllegalStateException("Featurization was cancelled"));
+        }
+
+        private void fail(Throwable t) {
+            synchronized (output) {
+                if (failure == null) failure = t;
+                output.notifyAll();
+            }
+            for (Thread thread : threads) {
+                if (thread != Thread.currentThread()) thread.interrupt();
+            }
+        }
+
+        private int slot(long sequence) {
+            return (int) (sequence % queueCapacity);
+        }
+
+        /**
+         * The read stage.
+         */
+        private void read() {
+            try {
+                long sequence = 0;
+                while (true) {
+                    long startBlocked = System.nanoTime();
+                    inFlight.acquire();
+                    long startRead = System.nanoTime();
+                    stats.readBlockedNanos.addAndGet(startRead - startBlocked);
+
+                    if (!records.hasNext()) {
+                        inFlight.release();
+                        break;
+                    }
+                    T record = records.next();
+                    stats.readNanos.addAndGet(System.nanoTime() - startRead);
+                    stats.recordsRead.incrementAndGet();
+                    input.put(new Sequenced<>(sequence++, record));
+                }
+                synchronized (output) {
+                    totalRecords = sequence;
+                    output.notifyAll();
+                }
+                for (int i = 0; i < numThreads; i++) {
+                    input.put(new Sequenced<>(-1, null));
+                }
+            } catch (InterruptedException ignored) {
+                // Cancelled, so there's nobody left to tell
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+
+        /**
+         * The featurize stage, which runs on every featurizer thread.
+         */
+        private void featurize() {
+            try {
+                while (true) {
+                    long startIdle = System.nanoTime();
+                    Sequenced<T> next = input.take();
+                    long startFeaturize = System.nanoTime();
+                    stats.featurizeIdleNanos.addAndGet(startFeaturize - startIdle);
+                    if (next.sequence == -1) break;
+
+                    GraphicalModel model = featurizer.apply(next.record);
+                    if (model == null) throw new IllegalStateException("Featurizer returned null for record " + next.sequence);
+                    stats.featurizeNanos.addAndGet(System.nanoTime() - startFeaturize);
+                    stats.recordsFeaturized.incrementAndGet();
+
+                    synchronized (output) {
+                        output[slot(next.sequence)] = model;
+                        // Only the emit stage waits on this, but it only cares about one particular slot
+                        if (next.sequence == nextToEmit) output.notifyAll();
+                    }
+                }
+            } catch (InterruptedException ignored) {
+                // Cancelled, so there's nobody left to tell
+            } catch (Throwable t) {
+                fail(t);
+            }
+        }
+    }
+}
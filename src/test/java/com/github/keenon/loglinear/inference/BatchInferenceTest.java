@@ -0,0 +1,63 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+import com.pholser.junit.quickcheck.random.SourceOfRandomness;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that solving a batch of models in parallel gives exactly the same answers as solving them one at a time.
+ */
+public class BatchInferenceTest {
+  @Test
+  public void testBatchMatchesSerial() throws Exception {
+    SourceOfRandomness randomness = new SourceOfRandomness(new Random(42));
+    CliqueTreeTest.GraphicalModelGenerator treeGenerator = new CliqueTreeTest.GraphicalModelGenerator(GraphicalModel.class);
+    CliqueTreeTest.LoopyGraphicalModelGenerator loopyGenerator = new CliqueTreeTest.LoopyGraphicalModelGenerator(GraphicalModel.class);
+    ConcatVector weights = new CliqueTreeTest.WeightsGenerator(ConcatVector.class).generate(randomness, null);
+
+    List<GraphicalModel> models = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      models.add(i % 3 == 0 ? loopyGenerator.generate(randomness, null) : treeGenerator.generate(randomness, null));
+    }
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      BatchInference batch = new BatchInference(weights, pool);
+      List<CliqueTree.MarginalResult> marginals = batch.calculateMarginals(models);
+      List<int[]> maps = batch.calculateMAP(models);
+      assertEquals(models.size(), marginals.size());
+      assertEquals(models.size(), maps.size());
+
+      for (int i = 0; i < models.size(); i++) {
+        CliqueTree.MarginalResult serial = new CliqueTree(models.get(i), weights).calculateMarginals();
+        assertEquals(serial, marginals.get(i));
+        assertEquals(serial.partitionFunction, marginals.get(i).partitionFunction, 1.0e-9 * Math.abs(serial.partitionFunction));
+        assertArrayEquals(new CliqueTree(models.get(i), weights).calculateMAP(), maps.get(i));
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testWeightsAreSnapshotted() throws Exception {
+    ConcatVector weights = new ConcatVector(1);
+    weights.setDenseComponent(0, new double[]{1.0, 0.0});
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0}, new int[]{2}, assign -> {
+      ConcatVector vector = new ConcatVector(1);
+      vector.setSparseComponent(0, assign[0], 1.0);
+      return vector;
+    });
+
+    BatchInference batch = new BatchInference(weights);
+    weights.setDenseComponent(0, new double[]{0.0, 1.0});
+    assertArrayEquals(new int[]{0}, batch.calculateMAP(Collections.singletonList(model)).get(0));
+  }
+}
@@ -0,0 +1,102 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+import com.pholser.junit.quickcheck.random.SourceOfRandomness;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the empirical marginals of samples converge on the exact marginals from CliqueTree.
+ */
+public class CliqueTreeSamplerTest {
+  @Test
+  public void testExactSamplesMatchMarginals() throws Exception {
+    SourceOfRandomness randomness = new SourceOfRandomness(new Random(42));
+    CliqueTreeTest.GraphicalModelGenerator treeGenerator = new CliqueTreeTest.GraphicalModelGenerator(GraphicalModel.class);
+    CliqueTreeTest.LoopyGraphicalModelGenerator loopyGenerator = new CliqueTreeTest.LoopyGraphicalModelGenerator(GraphicalModel.class);
+    ConcatVector weights = new CliqueTreeTest.WeightsGenerator(ConcatVector.class).generate(randomness, null);
+
+    for (int i = 0; i < 20; i++) {
+      GraphicalModel model = i % 2 == 0 ? treeGenerator.generate(randomness, null) : loopyGenerator.generate(randomness, null);
+      CliqueTree.MarginalResult exact = new CliqueTree(model, weights).calculateMarginals();
+      if (exact.partitionFunction == 0.0) continue;
+
+      int[][] samples = new CliqueTreeSampler(model, weights).sample(new Random(i), 20000);
+      checkSamplesAgainstMarginals(samples, exact.marginals, 0.03);
+    }
+  }
+
+  @Test
+  public void testGibbsSamplesMatchMarginals() throws Exception {
+    SourceOfRandomness randomness = new SourceOfRandomness(new Random(43));
+    CliqueTreeTest.LoopyGraphicalModelGenerator loopyGenerator = new CliqueTreeTest.LoopyGraphicalModelGenerator(GraphicalModel.class);
+    ConcatVector weights = new CliqueTreeTest.WeightsGenerator(ConcatVector.class).generate(randomness, null);
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    try {
+      for (int i = 0; i < 10; i++) {
+        GraphicalModel model = loopyGenerator.generate(randomness, null);
+        CliqueTree.MarginalResult exact = new CliqueTree(model, weights).calculateMarginals();
+        if (exact.partitionFunction == 0.0) continue;
+
+        CliqueTreeSampler sampler = new CliqueTreeSampler(model, weights);
+        sampler.setExecutor(pool);
+        // Small blocks, so that we actually exercise the Gibbs part rather than sampling everything in one block
+        sampler.setMaxBlockStates(4);
+        int[][] samples = sampler.sampleGibbs(8, 200, 2500, i);
+        assertEquals(8 * 2500, samples.length);
+        checkSamplesAgainstMarginals(samples, exact.marginals, 0.05);
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testObservedVariablesAreFixed() throws Exception {
+    ConcatVector weights = new ConcatVector(1);
+    weights.setDenseComponent(0, new double[]{1.0, 0.0, 0.5, 2.0});
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0, 1}, new int[]{2, 2}, assign -> {
+      ConcatVector vector = new ConcatVector(1);
+      vector.setSparseComponent(0, assign[0] * 2 + assign[1], 1.0);
+      return vector;
+    });
+    model.getVariableMetaDataByReference(1).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "1");
+
+    CliqueTreeSampler sampler = new CliqueTreeSampler(model, weights);
+    int[] buffer = new int[2];
+    int zeros = 0;
+    Random random = new Random(7);
+    for (int i = 0; i < 10000; i++) {
+      sampler.sample(random, buffer);
+      assertEquals(1, buffer[1]);
+      if (buffer[0] == 0) zeros++;
+    }
+    // P(x0 = 0 | x1 = 1) = e^0 / (e^0 + e^2)
+    assertEquals(1.0 / (1.0 + Math.exp(2.0)), zeros / 10000.0, 0.02);
+
+    for (int[] sample : sampler.sampleGibbs(2, 10, 100, 0L)) {
+      assertEquals(1, sample[1]);
+    }
+  }
+
+  private static void checkSamplesAgainstMarginals(int[][] samples, double[][] marginals, double tolerance) {
+    for (int var = 0; var < marginals.length; var++) {
+      if (marginals[var] == null) continue;
+      double[] counts = new double[marginals[var].length];
+      for (int[] sample : samples) {
+        assertTrue(sample[var] >= 0 && sample[var] < counts.length);
+        counts[sample[var]]++;
+      }
+      for (int j = 0; j < counts.length; j++) {
+        assertEquals(marginals[var][j], counts[j] / samples.length, tolerance);
+      }
+    }
+  }
+}
@@ -14,6 +14,7 @@ import org.junit.contrib.theories.Theory;
 import org.junit.runner.RunWith;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
@@ -281,6 +282,467 @@ public class CliqueTreeTest {
     }
   }
 
+  @Theory
+  public void testCalculateMarginalsLoopy(@ForAll(sampleSize = 100) @From(LoopyGraphicalModelGenerator.class) GraphicalModel model,
+                                          @ForAll(sampleSize = 10) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    CliqueTree inference = new CliqueTree(model, weights);
+    checkMarginalsAgainstBruteForce(model, weights, inference);
+
+    // The answer shouldn't depend on which triangulation we picked
+    inference = new CliqueTree(model, weights);
+    inference.setTriangulationHeuristic(JunctionTree.Heuristic.MIN_WEIGHT);
+    checkMarginalsAgainstBruteForce(model, weights, inference);
+  }
+
+  @Theory
+  public void testCalculateMapLoopy(@ForAll(sampleSize = 100) @From(LoopyGraphicalModelGenerator.class) GraphicalModel model,
+                                    @ForAll(sampleSize = 10) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    if (model.factors.size() == 0) return;
+    checkMAPAgainstBruteForce(model, weights, new CliqueTree(model, weights));
+  }
+
+  @Theory
+  public void testCalculateKBestMAP(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel model,
+                                    @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkKBestMAPAgainstBruteForce(model, weights, 10);
+  }
+
+  @Theory
+  public void testCalculateKBestMAPLoopy(@ForAll(sampleSize = 50) @From(LoopyGraphicalModelGenerator.class) GraphicalModel model,
+                                         @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkKBestMAPAgainstBruteForce(model, weights, 10);
+  }
+
+  @Test
+  public void testKBestMAPFirstIsMAP() throws Exception {
+    ConcatVector weights = new ConcatVector(1);
+    weights.setDenseComponent(0, new double[]{1.0, 2.0, 3.0});
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0, 1}, new int[]{2, 2}, assign -> {
+      ConcatVector vector = new ConcatVector(1);
+      vector.setSparseComponent(0, assign[0] + assign[1], 1.0);
+      return vector;
+    });
+
+    List<CliqueTree.ScoredAssignment> kBest = new CliqueTree(model, weights).calculateKBestMAP(10);
+    assertEquals(4, kBest.size());
+    assertArrayEquals(new int[]{1, 1}, kBest.get(0).assignment);
+    assertEquals(3.0, kBest.get(0).logScore, 1.0e-9);
+    assertEquals(2.0, kBest.get(1).logScore, 1.0e-9);
+    assertEquals(2.0, kBest.get(2).logScore, 1.0e-9);
+    assertEquals(1.0, kBest.get(3).logScore, 1.0e-9);
+    assertArrayEquals(new int[]{0, 0}, kBest.get(3).assignment);
+  }
+
+  private void checkKBestMAPAgainstBruteForce(GraphicalModel model, ConcatVector weights, int k) {
+    List<CliqueTree.ScoredAssignment> kBest = new CliqueTree(model, weights).calculateKBestMAP(k);
+
+    // Enumerate every assignment consistent with the observations, and score it the slow but obviously correct way
+
+    int maxVar = -1;
+    for (GraphicalModel.Factor f : model.factors) {
+      for (int n : f.neigborIndices) if (n > maxVar) maxVar = n;
+    }
+    int[] sizes = new int[maxVar + 1];
+    int[] start = new int[maxVar + 1];
+    Arrays.fill(start, -1);
+    for (GraphicalModel.Factor f : model.factors) {
+      for (int i = 0; i < f.neigborIndices.length; i++) {
+        int n = f.neigborIndices[i];
+        Map<String, String> metadata = model.getVariableMetaDataByReference(n);
+        if (metadata.containsKey(CliqueTree.VARIABLE_OBSERVED_VALUE)) {
+          start[n] = Integer.parseInt(metadata.get(CliqueTree.VARIABLE_OBSERVED_VALUE));
+        } else {
+          sizes[n] = f.getDimensions()[i];
+          start[n] = 0;
+        }
+      }
+    }
+
+    List<Double> bruteForceScores = new ArrayList<>();
+    int[] assignment = start.clone();
+    while (true) {
+      double score = bruteForceScore(model, weights, assignment);
+      if (score > Double.NEGATIVE_INFINITY) bruteForceScores.add(score);
+
+      int cursor = 0;
+      while (cursor < assignment.length && (sizes[cursor] == 0 || assignment[cursor] == sizes[cursor] - 1)) {
+        if (sizes[cursor] != 0) assignment[cursor] = 0;
+        cursor++;
+      }
+      if (cursor == assignment.length) break;
+      assignment[cursor]++;
+    }
+    bruteForceScores.sort(Comparator.reverseOrder());
+
+    assertEquals(Math.min(k, bruteForceScores.size()), kBest.size());
+    Set<List<Integer>> seen = new HashSet<>();
+    for (int i = 0; i < kBest.size(); i++) {
+      CliqueTree.ScoredAssignment scored = kBest.get(i);
+      assertEquals(bruteForceScores.get(i), scored.logScore, 1.0e-7);
+      assertEquals(bruteForceScore(model, weights, scored.assignment), scored.logScore, 1.0e-7);
+      List<Integer> asList = new ArrayList<>();
+      for (int a : scored.assignment) asList.add(a);
+      assertTrue(seen.add(asList));
+    }
+  }
+
+  @Theory
+  public void testCalculateMaxMarginalsWithMasks(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel model,
+                                                 @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkMaskedMaxMarginalsAgainstBruteForce(model, weights);
+  }
+
+  @Theory
+  public void testCalculateMaxMarginalsWithMasksLoopy(@ForAll(sampleSize = 50) @From(LoopyGraphicalModelGenerator.class) GraphicalModel model,
+                                                      @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkMaskedMaxMarginalsAgainstBruteForce(model, weights);
+  }
+
+  private void checkMaskedMaxMarginalsAgainstBruteForce(GraphicalModel model, ConcatVector weights) {
+    if (model.factors.size() == 0) return;
+    Random r = new Random(model.factors.size());
+
+    int maxVar = -1;
+    for (GraphicalModel.Factor f : model.factors) {
+      for (int n : f.neigborIndices) if (n > maxVar) maxVar = n;
+    }
+    int[] dims = new int[maxVar + 1];
+    int[] observations = new int[maxVar + 1];
+    Arrays.fill(observations, -1);
+    for (GraphicalModel.Factor f : model.factors) {
+      for (int i = 0; i < f.neigborIndices.length; i++) dims[f.neigborIndices[i]] = f.getDimensions()[i];
+    }
+    for (int n = 0; n <= maxVar; n++) {
+      Map<String, String> metadata = model.getVariableMetaDataByReference(n);
+      if (metadata.containsKey(CliqueTree.VARIABLE_OBSERVED_VALUE)) {
+        observations[n] = Integer.parseInt(metadata.get(CliqueTree.VARIABLE_OBSERVED_VALUE));
+      }
+    }
+
+    // Mask out about a third of the values of about half the variables, always leaving at least one
+
+    boolean[][] allowedValues = new boolean[maxVar + 1][];
+    for (int n = 0; n <= maxVar; n++) {
+      if (dims[n] == 0 || r.nextBoolean()) continue;
+      allowedValues[n] = new boolean[dims[n]];
+      for (int v = 0; v < dims[n]; v++) allowedValues[n][v] = r.nextInt(3) != 0;
+      allowedValues[n][r.nextInt(dims[n])] = true;
+    }
+
+    CliqueTree inference = new CliqueTree(model, weights);
+    int[] unconstrainedMAP = inference.calculateMAP();
+    CliqueTree.MaxMarginalResult result = inference.calculateMaxMarginals(allowedValues);
+
+    // Enumerate every allowed assignment, and keep the best score for each value of each variable
+
+    double best = Double.NEGATIVE_INFINITY;
+    double[][] bestForValue = new double[maxVar + 1][];
+    for (int n = 0; n <= maxVar; n++) {
+      bestForValue[n] = new double[dims[n]];
+      Arrays.fill(bestForValue[n], Double.NEGATIVE_INFINITY);
+    }
+    int[] assignment = new int[maxVar + 1];
+    for (int n = 0; n <= maxVar; n++) if (observations[n] != -1) assignment[n] = observations[n];
+    while (true) {
+      boolean allowed = true;
+      for (int n = 0; n <= maxVar; n++) {
+        if (observations[n] == -1 && allowedValues[n] != null && !allowedValues[n][assignment[n]]) allowed = false;
+      }
+      if (allowed) {
+        double score = bruteForceScore(model, weights, assignment);
+        best = Math.max(best, score);
+        for (int n = 0; n <= maxVar; n++) {
+          if (dims[n] > 0) bestForValue[n][assignment[n]] = Math.max(bestForValue[n][assignment[n]], score);
+        }
+      }
+
+      int cursor = 0;
+      while (cursor < assignment.length && (dims[cursor] == 0 || observations[cursor] != -1 || assignment[cursor] == dims[cursor] - 1)) {
+        if (dims[cursor] != 0 && observations[cursor] == -1) assignment[cursor] = 0;
+        cursor++;
+      }
+      if (cursor == assignment.length) break;
+      assignment[cursor]++;
+    }
+
+    for (int n = 0; n <= maxVar; n++) {
+      if (dims[n] == 0) continue;
+      if (observations[n] != -1) {
+        assertEquals(observations[n], result.mapAssignment[n]);
+        continue;
+      }
+      assertTrue(allowedValues[n] == null || allowedValues[n][result.mapAssignment[n]]);
+
+      double sum = 0.0;
+      for (double score : bestForValue[n]) sum += Math.exp(score - best);
+      for (int v = 0; v < dims[n]; v++) {
+        assertEquals(Math.exp(bestForValue[n][v] - best) / sum, result.maxMarginals[n][v], 1.0e-7);
+      }
+    }
+    assertEquals(best, bruteForceScore(model, weights, result.mapAssignment), 1.0e-7);
+
+    // The masks mustn't leak into later unconstrained inference through the caches
+
+    assertArrayEquals(unconstrainedMAP, inference.calculateMAP());
+  }
+
+  private double bruteForceScore(GraphicalModel model, ConcatVector weights, int[] assignment) {
+    double score = 0.0;
+    for (GraphicalModel.Factor f : model.factors) {
+      int[] factorAssignment = new int[f.neigborIndices.length];
+      for (int i = 0; i < factorAssignment.length; i++) {
+        factorAssignment[i] = assignment[f.neigborIndices[i]];
+      }
+      score += f.getAssignmentValue(factorAssignment, weights);
+    }
+    return score;
+  }
+
+  @Theory
+  public void testCalculateMarginalsForQuery(@ForAll(sampleSize = 100) @From(GraphicalModelGenerator.class) GraphicalModel model,
+                                             @ForAll(sampleSize = 10) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkQueryMarginalsAgainstFullMarginals(model, weights);
+  }
+
+  @Theory
+  public void testCalculateMarginalsForQueryLoopy(@ForAll(sampleSize = 100) @From(LoopyGraphicalModelGenerator.class) GraphicalModel model,
+                                                  @ForAll(sampleSize = 10) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkQueryMarginalsAgainstFullMarginals(model, weights);
+  }
+
+  private void checkQueryMarginalsAgainstFullMarginals(GraphicalModel model, ConcatVector weights) {
+    double[][] full = new CliqueTree(model, weights).calculateMarginals().marginals;
+
+    Random r = new Random();
+    for (int trial = 0; trial < 5; trial++) {
+      List<Integer> query = new ArrayList<>();
+      for (int i = 0; i < full.length; i++) {
+        if (r.nextInt(3) == 0) query.add(i);
+      }
+      int[] queryVariables = query.stream().mapToInt(x -> x).toArray();
+      double[][] partial = new CliqueTree(model, weights).calculateMarginals(queryVariables);
+
+      for (int i = 0; i < full.length; i++) {
+        if (!query.contains(i)) {
+          assertNull(partial[i]);
+          continue;
+        }
+        // Impossible observations leave observed variables out of the full marginals, so there's nothing to compare
+        if (full[i] == null) continue;
+        assertNotNull(partial[i]);
+        assertArrayEquals(full[i], partial[i], 1.0e-7);
+      }
+    }
+  }
+
+  @Theory
+  public void testMarginalResultArrays(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel model,
+                                       @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    CliqueTree.MarginalResult result = new CliqueTree(model, weights).calculateMarginals();
+    assertEquals(model.factors.size(), result.getNumFactors());
+    assertEquals(model.factors.size(), result.jointMarginals.size());
+
+    for (int i = 0; i < result.getNumFactors(); i++) {
+      GraphicalModel.Factor f = result.getFactor(i);
+      assertTrue(model.factors.contains(f));
+      assertEquals(i, result.getFactorIndex(f));
+      assertSame(result.getJointMarginal(i), result.jointMarginals.get(f));
+
+      double sum = 0.0;
+      for (int[] assignment : result.getJointMarginal(i)) {
+        double value = result.getJointMarginalValue(i, assignment);
+        assertEquals(value, result.getJointMarginal(i).getAssignmentValue(assignment), 1.0e-9);
+        sum += value;
+      }
+      if (result.partitionFunction > 0) assertEquals(1.0, sum, 1.0e-5);
+    }
+    assertEquals(-1, result.getFactorIndex(new GraphicalModel().addStaticFactor(new int[]{0}, new int[]{1}, assignment -> 0.0)));
+  }
+
+  @Theory
+  public void testBeamPrunedWithoutPruningIsExact(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel model,
+                                                  @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    CliqueTree.MarginalResult exact = new CliqueTree(model, weights).calculateMarginals();
+    if (exact.partitionFunction == 0.0) return;
+    CliqueTree.PrunedMarginalResult pruned = new CliqueTree(model, weights).calculateMarginalsBeamPruned(0.0, 0);
+
+    assertEquals(0.0, pruned.approximationGap(exact), 1.0e-7);
+    assertEquals(exact.partitionFunction, pruned.partitionFunction, 1.0e-7 * exact.partitionFunction);
+    for (int i = 0; i < exact.getNumFactors(); i++) {
+      GraphicalModel.Factor f = exact.getFactor(i);
+      int j = pruned.getFactorIndex(f);
+      for (int[] assignment : exact.getJointMarginal(i)) {
+        assertEquals(exact.getJointMarginalValue(i, assignment), pruned.getJointMarginalValue(j, assignment), 1.0e-7);
+      }
+    }
+  }
+
+  @Test
+  public void testBeamPrunedLargeLabelChain() throws Exception {
+    int numLabels = 60;
+    int length = 8;
+    ConcatVector weights = largeLabelChainWeights(new Random(42), numLabels, length);
+    GraphicalModel model = largeLabelChain(numLabels, length);
+
+    CliqueTree.MarginalResult exact = new CliqueTree(model, weights).calculateMarginals();
+    CliqueTree.PrunedMarginalResult pruned = new CliqueTree(model, weights).calculateMarginalsBeamPruned(1.0e-4, 10);
+
+    int pruneCount = 0;
+    for (int i = 0; i < length; i++) {
+      assertTrue(pruned.keptStates[i].length <= 10);
+      if (pruned.keptStates[i].length < numLabels) pruneCount++;
+      double sum = 0.0;
+      for (int j = 0; j < numLabels; j++) {
+        if (Arrays.binarySearch(pruned.keptStates[i], j) < 0) assertEquals(0.0, pruned.marginals[i][j], 0.0);
+        sum += pruned.marginals[i][j];
+      }
+      assertEquals(1.0, sum, 1.0e-7);
+    }
+    assertEquals(length, pruneCount);
+    assertTrue(pruned.partitionFunction <= exact.partitionFunction * (1 + 1.0e-9));
+    assertTrue(pruned.approximationGap(exact) < 0.05);
+  }
+
+  @Theory
+  public void testAnytimeMAPWithTimeIsExact(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel model,
+                                            @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkAnytimeMAPIsExact(model, weights);
+  }
+
+  @Theory
+  public void testAnytimeMAPWithTimeIsExactLoopy(@ForAll(sampleSize = 50) @From(LoopyGraphicalModelGenerator.class) GraphicalModel model,
+                                                 @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    checkAnytimeMAPIsExact(model, weights);
+  }
+
+  private void checkAnytimeMAPIsExact(GraphicalModel model, ConcatVector weights) {
+    int[] map = new CliqueTree(model, weights).calculateMAP();
+    CliqueTree.AnytimeMAPResult result = new CliqueTree(model, weights).calculateMAP(1, TimeUnit.HOURS);
+    assertTrue(result.isExact());
+    assertEquals(bruteForceScore(model, weights, map), result.logScore, 1.0e-7);
+    assertEquals(bruteForceScore(model, weights, result.assignment), result.logScore, 1.0e-7);
+  }
+
+  @Test
+  public void testAnytimeMAPPastDeadline() throws Exception {
+    int numLabels = 60;
+    // Long enough that the MAP score overflows exp(), which used to break exact MAP decoding
+    int length = 100;
+    ConcatVector weights = largeLabelChainWeights(new Random(42), numLabels, length);
+    GraphicalModel model = largeLabelChain(numLabels, length);
+    model.getVariableMetaDataByReference(3).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "7");
+
+    CliqueTree.AnytimeMAPResult late = new CliqueTree(model, weights).calculateMAP(0, TimeUnit.NANOSECONDS);
+    assertFalse(late.isExact());
+    assertEquals(CliqueTree.AnytimeMAPResult.Method.GREEDY, late.method);
+    assertEquals(7, late.assignment[3]);
+    for (int i = 0; i < length; i++) assertTrue(late.assignment[i] >= 0 && late.assignment[i] < numLabels);
+    assertEquals(bruteForceScore(model, weights, late.assignment), late.logScore, 1.0e-7);
+
+    CliqueTree.AnytimeMAPResult exact = new CliqueTree(model, weights).calculateMAP(1, TimeUnit.HOURS);
+    assertTrue(exact.isExact());
+    assertEquals(7, exact.assignment[3]);
+    assertTrue(exact.logScore >= late.logScore);
+  }
+
+  @Test
+  public void testLayoutAvoidsExpensiveHubs() throws Exception {
+    // One big clique with lots of small factors hanging off one of its variables. Hanging them all directly off the
+    // big clique makes it a hub that does a number of products quadratic in its degree.
+    int size = 50;
+    int numSmallFactors = 30;
+    ConcatVector weights = new ConcatVector(1);
+    double[] w = new double[size * size];
+    Random r = new Random(42);
+    for (int i = 0; i < w.length; i++) w[i] = r.nextGaussian();
+    weights.setDenseComponent(0, w);
+
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0, 1}, new int[]{size, size}, assignment -> {
+      ConcatVector v = new ConcatVector(1);
+      v.setSparseComponent(0, assignment[0] * size + assignment[1], 1.0);
+      return v;
+    });
+    for (int i = 0; i < numSmallFactors; i++) {
+      final int offset = i;
+      model.addFactor(new int[]{0}, new int[]{size}, assignment -> {
+        ConcatVector v = new ConcatVector(1);
+        v.setSparseComponent(0, (assignment[0] + offset) % (size * size), 1.0);
+        return v;
+      });
+    }
+
+    List<CliqueTree.InferenceProfile> profiles = new ArrayList<>();
+    CliqueTree tree = new CliqueTree(model, weights);
+    tree.setProfilingListener(profiles::add);
+    CliqueTree.MarginalResult result = tree.calculateMarginals();
+    assertEquals(1, profiles.size());
+    CliqueTree.InferenceProfile profile = profiles.get(0);
+    assertEquals(numSmallFactors + 1, profile.numCliques);
+
+    // A hub layout would cost at least numSmallFactors^2 products of the big clique
+    long hubCost = (long) numSmallFactors * numSmallFactors * size * size;
+    assertTrue(profile.estimatedFlops < hubCost / 10);
+    assertTrue(profile.actualFlops < hubCost / 10);
+
+    // Check the answer against brute force on the first variable
+    double[] expected = new double[size];
+    double total = 0.0;
+    for (int a = 0; a < size; a++) {
+      for (int b = 0; b < size; b++) {
+        double score = bruteForceScore(model, weights, new int[]{a, b});
+        expected[a] += Math.exp(score);
+        total += Math.exp(score);
+      }
+    }
+    for (int a = 0; a < size; a++) assertEquals(expected[a] / total, result.marginals[0][a], 1.0e-7);
+  }
+
+  @Theory
+  public void testProfilingEstimateMatchesActual(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel model,
+                                                 @ForAll(sampleSize = 5) @From(WeightsGenerator.class) ConcatVector weights) throws Exception {
+    List<CliqueTree.InferenceProfile> profiles = new ArrayList<>();
+    CliqueTree tree = new CliqueTree(model, weights);
+    tree.setProfilingListener(profiles::add);
+    CliqueTree.MarginalResult result = tree.calculateMarginals();
+    // Impossible observations short circuit message passing, so there's nothing to profile
+    if (profiles.isEmpty()) return;
+    assertEquals(1, profiles.size());
+    assertEquals(profiles.get(0).estimatedFlops, profiles.get(0).actualFlops);
+  }
+
+  private static ConcatVector largeLabelChainWeights(Random r, int numLabels, int length) {
+    ConcatVector weights = new ConcatVector(2);
+    double[] unary = new double[length * numLabels];
+    for (int i = 0; i < unary.length; i++) unary[i] = 6.0 * r.nextGaussian();
+    double[] transition = new double[numLabels * numLabels];
+    for (int i = 0; i < transition.length; i++) transition[i] = 0.5 * r.nextGaussian();
+    weights.setDenseComponent(0, unary);
+    weights.setDenseComponent(1, transition);
+    return weights;
+  }
+
+  private static GraphicalModel largeLabelChain(int numLabels, int length) {
+    GraphicalModel model = new GraphicalModel();
+    for (int i = 0; i < length; i++) {
+      final int position = i;
+      model.addFactor(new int[]{i}, new int[]{numLabels}, assignment -> {
+        ConcatVector v = new ConcatVector(2);
+        v.setSparseComponent(0, position * numLabels + assignment[0], 1.0);
+        return v;
+      });
+      if (i > 0) {
+        model.addFactor(new int[]{i - 1, i}, new int[]{numLabels, numLabels}, assignment -> {
+          ConcatVector v = new ConcatVector(2);
+          v.setSparseComponent(1, assignment[0] * numLabels + assignment[1], 1.0);
+          return v;
+        });
+      }
+    }
+    return model;
+  }
+
   private void randomlyMutateGraphicalModel(GraphicalModel model, Random r) {
     if (r.nextBoolean() && model.factors.size() > 1) {
       // Remove one factor at random
@@ -873,4 +1335,67 @@ public class CliqueTreeTest {
       }
     }
   }
-}
\ No newline at end of file
+
+  /**
+   * Generates small models with factors over random sets of variables, which will usually contain cycles, so that we
+   * exercise the junction tree path through message passing.
+   */
+  public static class LoopyGraphicalModelGenerator extends Generator<GraphicalModel> {
+    public LoopyGraphicalModelGenerator(Class<GraphicalModel> type) {
+      super(type);
+    }
+
+    @Override
+    public GraphicalModel generate(SourceOfRandomness sourceOfRandomness, GenerationStatus generationStatus) {
+      GraphicalModel model = new GraphicalModel();
+
+      int[] variableSizes = new int[6];
+      for (int i = 0; i < variableSizes.length; i++) {
+        variableSizes[i] = sourceOfRandomness.nextInt(1, 3);
+      }
+
+      int numFactors = sourceOfRandomness.nextInt(1, 8);
+      for (int f = 0; f < numFactors; f++) {
+        List<Integer> scope = new ArrayList<>();
+        int scopeSize = sourceOfRandomness.nextInt(1, 3);
+        while (scope.size() < scopeSize) {
+          int gen = sourceOfRandomness.nextInt(variableSizes.length);
+          if (!scope.contains(gen)) scope.add(gen);
+        }
+
+        int[] neighbors = new int[scope.size()];
+        int[] neighborSizes = new int[neighbors.length];
+        for (int j = 0; j < neighbors.length; j++) {
+          neighbors[j] = scope.get(j);
+          neighborSizes[j] = variableSizes[neighbors[j]];
+        }
+        ConcatVectorTable table = new ConcatVectorTable(neighborSizes);
+        for (int[] assignment : table) {
+          ConcatVector v = new ConcatVector(CONCAT_VEC_COMPONENTS);
+          for (int x = 0; x < CONCAT_VEC_COMPONENTS; x++) {
+            double[] val = new double[sourceOfRandomness.nextInt(CONCAT_VEC_COMPONENT_LENGTH)];
+            for (int y = 0; y < val.length; y++) {
+              val[y] = 2.0 * (sourceOfRandomness.nextDouble() - 0.5);
+            }
+            v.setDenseComponent(x, val);
+          }
+          table.setAssignmentValue(assignment, () -> v);
+        }
+        model.addFactor(table, neighbors);
+      }
+
+      // Observe a few of the variables
+
+      for (GraphicalModel.Factor f : model.factors) {
+        for (int i = 0; i < f.neigborIndices.length; i++) {
+          if (sourceOfRandomness.nextDouble() > 0.9) {
+            int obs = sourceOfRandomness.nextInt(f.getDimensions()[i]);
+            model.getVariableMetaDataByReference(f.neigborIndices[i]).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "" + obs);
+          }
+        }
+      }
+
+      return model;
+    }
+  }
+}
@@ -0,0 +1,99 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+import com.pholser.junit.quickcheck.random.SourceOfRandomness;
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that many threads hammering one CompiledInference at once get exactly the answers a fresh CliqueTree gives.
+ */
+public class CompiledInferenceTest {
+  @Test
+  public void testConcurrentInferenceMatchesCliqueTree() throws Exception {
+    SourceOfRandomness randomness = new SourceOfRandomness(new Random(42));
+    CliqueTreeTest.GraphicalModelGenerator treeGenerator = new CliqueTreeTest.GraphicalModelGenerator(GraphicalModel.class);
+    CliqueTreeTest.LoopyGraphicalModelGenerator loopyGenerator = new CliqueTreeTest.LoopyGraphicalModelGenerator(GraphicalModel.class);
+    ConcatVector weights = new CliqueTreeTest.WeightsGenerator(ConcatVector.class).generate(randomness, null);
+
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      for (int i = 0; i < 30; i++) {
+        GraphicalModel model = i % 3 == 0 ? loopyGenerator.generate(randomness, null) : treeGenerator.generate(randomness, null);
+        CliqueTree.MarginalResult expectedMarginals = new CliqueTree(model, weights).calculateMarginals();
+        double[][] expectedSingletons = new CliqueTree(model, weights).calculateMarginalsJustSingletons();
+        int[] expectedMAP = new CliqueTree(model, weights).calculateMAP();
+
+        CompiledInference compiled = new CompiledInference(model, weights);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+          futures.add(pool.submit(() -> {
+            for (int j = 0; j < 10; j++) {
+              CliqueTree.MarginalResult marginals = compiled.calculateMarginals();
+              assertEquals(expectedMarginals, marginals);
+              assertEquals(expectedMarginals.partitionFunction, marginals.partitionFunction,
+                  1.0e-9 * Math.abs(expectedMarginals.partitionFunction));
+              assertArrayEquals(expectedSingletons, compiled.calculateMarginalsJustSingletons());
+              assertArrayEquals(expectedMAP, compiled.calculateMAP());
+            }
+          }));
+        }
+        for (Future<?> future : futures) future.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompiledModelIsSnapshotted() throws Exception {
+    ConcatVector weights = new ConcatVector(1);
+    weights.setDenseComponent(0, new double[]{1.0, 0.0});
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0}, new int[]{2}, assign -> {
+      ConcatVector vector = new ConcatVector(1);
+      vector.setSparseComponent(0, assign[0], 1.0);
+      return vector;
+    });
+
+    CompiledInference compiled = new CompiledInference(model, weights);
+    weights.setDenseComponent(0, new double[]{0.0, 1.0});
+    assertArrayEquals(new int[]{0}, compiled.calculateMAP());
+    assertArrayEquals(new int[]{0}, compiled.newContext().calculateMAP());
+    assertEquals(Math.E / (Math.E + 1.0), compiled.calculateMarginals().marginals[0][0], 1.0e-9);
+  }
+
+  @Test
+  public void testDroppedCompiledInferenceIsCollected() throws Exception {
+    SourceOfRandomness randomness = new SourceOfRandomness(new Random(42));
+    CliqueTreeTest.GraphicalModelGenerator generator = new CliqueTreeTest.GraphicalModelGenerator(GraphicalModel.class);
+    ConcatVector weights = new CliqueTreeTest.WeightsGenerator(ConcatVector.class).generate(randomness, null);
+
+    // Run each compiled model once on a pool thread that outlives them all, keeping only weak references
+
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    List<WeakReference<CompiledInference>> references = new ArrayList<>();
+    try {
+      for (int i = 0; i < 20; i++) {
+        CompiledInference compiled = new CompiledInference(generator.generate(randomness, null), weights);
+        pool.submit(() -> compiled.calculateMarginals()).get();
+        pool.submit(() -> compiled.calculateMAP()).get();
+        references.add(new WeakReference<>(compiled));
+      }
+
+      for (int attempt = 0; attempt < 50 && references.stream().anyMatch(r -> r.get() != null); attempt++) {
+        System.gc();
+        Thread.sleep(10);
+      }
+      for (WeakReference<CompiledInference> reference : references) assertNull(reference.get());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,114 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that compiled programs give bit-for-bit the same answers as the general purpose message passing, on pairwise
+ * models with every kind of message the kernels handle: unary and pairwise, reversed variable orders, repeated factors
+ * over the same pair, observations, and disconnected trees.
+ */
+public class InferenceProgramTest {
+  @Test
+  public void testProgramsMatchMessagePassingExactly() throws Exception {
+    Random r = new Random(42);
+    ConcatVector weights = new ConcatVector(1);
+    double[] w = new double[1000];
+    for (int i = 0; i < w.length; i++) w[i] = r.nextGaussian() * 3;
+    weights.setDenseComponent(0, w);
+
+    for (int trial = 0; trial < 200; trial++) {
+      GraphicalModel model = randomPairwiseForest(r);
+
+      CliqueTree compiled = new CliqueTree(model, weights);
+      CliqueTree.CliqueForest forest = compiled.buildCliqueForest();
+      if (forest.impossibleObservationMade) continue;
+      assertNotNull(InferenceProgram.compile(forest.cliques, forest.parent, forest.visitedOrder, true));
+
+      CliqueTree original = new CliqueTree(model, weights);
+      original.setUseCompiledPrograms(false);
+
+      // Run twice, so that the second run reuses a program and a workspace that have already been used
+
+      for (int run = 0; run < 2; run++) {
+        CliqueTree.MarginalResult expected = original.calculateMarginals();
+        CliqueTree.MarginalResult actual = compiled.calculateMarginals();
+        assertEquals(expected.partitionFunction, actual.partitionFunction, 0.0);
+        assertMarginalsIdentical(expected.marginals, actual.marginals);
+        assertArrayEquals(expected.mapAssignment, actual.mapAssignment);
+        assertEquals(expected.getNumFactors(), actual.getNumFactors());
+        for (GraphicalModel.Factor f : model.factors) {
+          int expectedIndex = expected.getFactorIndex(f);
+          int actualIndex = actual.getFactorIndex(f);
+          for (int[] assignment : new TableFactor(f.neigborIndices, f.getDimensions())) {
+            assertEquals(expected.getJointMarginalValue(expectedIndex, assignment),
+                actual.getJointMarginalValue(actualIndex, assignment), 0.0);
+          }
+        }
+
+        assertMarginalsIdentical(original.calculateMarginalsJustSingletons(), compiled.calculateMarginalsJustSingletons());
+      }
+    }
+  }
+
+  private static void assertMarginalsIdentical(double[][] expected, double[][] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      if (expected[i] == null) {
+        assertNull(actual[i]);
+      } else {
+        assertArrayEquals(expected[i], actual[i], 0.0);
+      }
+    }
+  }
+
+  /**
+   * A few random trees of unary and pairwise factors, with some variables observed.
+   */
+  private static GraphicalModel randomPairwiseForest(Random r) {
+    GraphicalModel model = new GraphicalModel();
+    int numVariables = 1 + r.nextInt(12);
+    int[] sizes = new int[numVariables];
+    for (int i = 0; i < numVariables; i++) sizes[i] = 1 + r.nextInt(4);
+
+    for (int i = 0; i < numVariables; i++) {
+      // Attach to an earlier variable most of the time, or start a new tree
+      if (i > 0 && r.nextInt(5) != 0) {
+        int j = r.nextInt(i);
+        addPairwise(model, r, j, i, sizes);
+        // Sometimes repeat the edge, in either order, so that cliques share both variables
+        if (r.nextInt(4) == 0) addPairwise(model, r, i, j, sizes);
+        if (r.nextInt(4) == 0) addPairwise(model, r, j, i, sizes);
+      }
+      if (r.nextBoolean()) {
+        int offset = r.nextInt(900);
+        model.addFactor(new int[]{i}, new int[]{sizes[i]}, assignment -> {
+          ConcatVector features = new ConcatVector(1);
+          features.setSparseComponent(0, offset + assignment[0], 1.0);
+          return features;
+        });
+      }
+    }
+    for (int i = 0; i < numVariables; i++) {
+      if (r.nextInt(6) == 0) {
+        model.getVariableMetaDataByReference(i).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "" + r.nextInt(sizes[i]));
+      }
+    }
+    return model;
+  }
+
+  private static void addPairwise(GraphicalModel model, Random r, int a, int b, int[] sizes) {
+    int offset = r.nextInt(900);
+    int sizeB = sizes[b];
+    model.addFactor(new int[]{a, b}, new int[]{sizes[a], sizes[b]}, assignment -> {
+      ConcatVector features = new ConcatVector(1);
+      features.setSparseComponent(0, offset + assignment[0] * sizeB + assignment[1], 1.0);
+      return features;
+    });
+  }
+}
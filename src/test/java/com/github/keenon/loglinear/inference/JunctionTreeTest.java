@@ -0,0 +1,98 @@
+package com.github.keenon.loglinear.inference;
+
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the structural guarantees of junction tree compilation. The numerical side (that inference over the compiled
+ * tree is exact) is tested against brute force in CliqueTreeTest.
+ */
+public class JunctionTreeTest {
+
+  @Test
+  public void testCycleHasTreewidthTwo() throws Exception {
+    int[][] scopes = new int[][]{{0, 1}, {1, 2}, {2, 3}, {3, 0}};
+    JunctionTree tree = JunctionTree.compile(scopes, new int[]{2, 2, 2, 2}, JunctionTree.Heuristic.MIN_FILL);
+    assertEquals(2, tree.getTreewidth());
+    assertEquals(2, tree.size());
+    checkJunctionTree(scopes, tree);
+  }
+
+  @Test
+  public void testChainStaysAChain() throws Exception {
+    int[][] scopes = new int[][]{{0}, {0, 1}, {1}, {1, 2}, {2}, {2, 3}};
+    JunctionTree tree = JunctionTree.compile(scopes, new int[]{3, 3, 3, 3}, JunctionTree.Heuristic.MIN_WEIGHT);
+    assertEquals(1, tree.getTreewidth());
+    assertEquals(3, tree.size());
+    checkJunctionTree(scopes, tree);
+  }
+
+  @Test
+  public void testGridAndDisconnected() throws Exception {
+    // A 3x3 grid, plus a disconnected pair
+    int[][] scopes = new int[][]{
+        {0, 1}, {1, 2}, {3, 4}, {4, 5}, {6, 7}, {7, 8},
+        {0, 3}, {3, 6}, {1, 4}, {4, 7}, {2, 5}, {5, 8},
+        {9, 10}
+    };
+    int[] sizes = new int[11];
+    Arrays.fill(sizes, 2);
+    for (JunctionTree.Heuristic heuristic : JunctionTree.Heuristic.values()) {
+      JunctionTree tree = JunctionTree.compile(scopes, sizes, heuristic);
+      assertEquals(3, tree.getTreewidth());
+      assertEquals(2, tree.numTrees);
+      checkJunctionTree(scopes, tree);
+    }
+  }
+
+  @Test
+  public void testCachedByShape() throws Exception {
+    int[][] scopes = new int[][]{{0, 1}, {1, 2}, {2, 0}};
+    JunctionTree a = JunctionTree.compile(scopes, new int[]{2, 3, 2}, JunctionTree.Heuristic.MIN_FILL);
+    JunctionTree b = JunctionTree.compile(new int[][]{{0, 1}, {1, 2}, {2, 0}}, new int[]{2, 3, 2}, JunctionTree.Heuristic.MIN_FILL);
+    JunctionTree c = JunctionTree.compile(scopes, new int[]{2, 2, 2}, JunctionTree.Heuristic.MIN_FILL);
+    assertSame(a, b);
+    assertNotSame(a, c);
+  }
+
+  /**
+   * Checks that every scope lives in its assigned clique, that parents come before children, and the running
+   * intersection property: the cliques containing any given variable form a connected subtree.
+   */
+  private void checkJunctionTree(int[][] scopes, JunctionTree tree) {
+    for (int s = 0; s < scopes.length; s++) {
+      Set<Integer> clique = toSet(tree.getCliqueVariables(tree.getCliqueForScope(s)));
+      for (int n : scopes[s]) assertTrue(clique.contains(n));
+    }
+
+    Set<Integer> seen = new HashSet<>();
+    for (int c : tree.order) {
+      if (tree.getParent(c) != -1) assertTrue(seen.contains(tree.getParent(c)));
+      seen.add(c);
+    }
+    assertEquals(tree.size(), seen.size());
+
+    Set<Integer> variables = new HashSet<>();
+    for (int[] scope : scopes) for (int n : scope) variables.add(n);
+    for (int n : variables) {
+      // Exactly one clique containing n may have a parent that doesn't contain n
+      int tops = 0;
+      for (int c = 0; c < tree.size(); c++) {
+        if (!toSet(tree.getCliqueVariables(c)).contains(n)) continue;
+        int p = tree.getParent(c);
+        if (p == -1 || !toSet(tree.getCliqueVariables(p)).contains(n)) tops++;
+        else assertTrue(toSet(tree.getSeparator(c)).contains(n));
+      }
+      assertEquals(1, tops);
+    }
+  }
+
+  private Set<Integer> toSet(int[] arr) {
+    Set<Integer> set = new HashSet<>();
+    for (int i : arr) set.add(i);
+    return set;
+  }
+}
@@ -0,0 +1,162 @@
+package com.github.keenon.loglinear.inference;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.ConcatVectorTable;
+import com.github.keenon.loglinear.model.GraphicalModel;
+import com.github.keenon.loglinear.model.NDArrayDoubles;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that tables shared across models are scored once per weights version, and that cached tables give the same
+ * answers as freshly scored ones.
+ */
+public class ScoredFactorCacheTest {
+  @Test
+  public void testSharedTablesAreScoredOnce() throws Exception {
+    Random r = new Random(42);
+    ConcatVector weights = new ConcatVector(1);
+    double[] transitionWeights = new double[9];
+    for (int i = 0; i < transitionWeights.length; i++) transitionWeights[i] = r.nextGaussian();
+    weights.setDenseComponent(0, transitionWeights);
+
+    ConcatVectorTable transitions = new ConcatVectorTable(new int[]{3, 3});
+    for (int[] assignment : transitions) {
+      ConcatVector features = new ConcatVector(1);
+      features.setSparseComponent(0, assignment[0] * 3 + assignment[1], 1.0);
+      transitions.setAssignmentValue(assignment, () -> features);
+    }
+    transitions.markShared();
+    NDArrayDoubles prior = new NDArrayDoubles(new int[]{3});
+    for (int[] assignment : prior) prior.setAssignmentValue(assignment, r.nextGaussian());
+    prior.markShared();
+
+    ScoredFactorCache.clear();
+    for (int i = 0; i < 50; i++) {
+      // Models of different lengths, so the shared tables land on different variables in each
+      int length = 2 + r.nextInt(5);
+      GraphicalModel shared = new GraphicalModel();
+      GraphicalModel unshared = new GraphicalModel();
+      for (int j = 0; j < length; j++) {
+        shared.addStaticFactor(prior, new int[]{j});
+        unshared.addStaticFactor(prior.deepCopy(), new int[]{j});
+        if (j > 0) {
+          shared.addFactor(transitions, new int[]{j - 1, j});
+          unshared.addFactor(transitions.cloneTable(), new int[]{j - 1, j});
+        }
+      }
+      if (i % 2 == 0) {
+        shared.getVariableMetaDataByReference(0).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "1");
+        unshared.getVariableMetaDataByReference(0).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "1");
+      }
+
+      CliqueTree.MarginalResult cached = new CliqueTree(shared, weights).calculateMarginals();
+      CliqueTree.MarginalResult fresh = new CliqueTree(unshared, weights).calculateMarginals();
+      assertEquals(fresh.partitionFunction, cached.partitionFunction, 1.0e-9 * fresh.partitionFunction);
+      for (int j = 0; j < length; j++) {
+        assertArrayEquals(fresh.marginals[j], cached.marginals[j], 1.0e-9);
+      }
+    }
+
+    // Only a handful of distinct table and observation combinations exist among the shared models, so almost every
+    // lookup for them should hit
+    assertTrue(ScoredFactorCache.getHits() > 300);
+    assertTrue(ScoredFactorCache.getHitRate() > 0.4);
+  }
+
+  @Test
+  public void testNewWeightsAreRescored() throws Exception {
+    ConcatVectorTable table = new ConcatVectorTable(new int[]{2});
+    for (int[] assignment : table) {
+      ConcatVector features = new ConcatVector(1);
+      features.setSparseComponent(0, assignment[0], 1.0);
+      table.setAssignmentValue(assignment, () -> features);
+    }
+    table.markShared();
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(table, new int[]{0});
+
+    ConcatVector weights = new ConcatVector(1);
+    weights.setDenseComponent(0, new double[]{1.0, 0.0});
+    assertArrayEquals(new int[]{0}, new CliqueTree(model, weights).calculateMAP());
+
+    long hits = ScoredFactorCache.getHits();
+    assertArrayEquals(new int[]{0}, new CliqueTree(model, weights).calculateMAP());
+    assertEquals(hits + 1, ScoredFactorCache.getHits());
+
+    weights.setDenseComponent(0, new double[]{0.0, 1.0});
+    assertArrayEquals(new int[]{1}, new CliqueTree(model, weights).calculateMAP());
+  }
+
+  @Test
+  public void testOnlyTheUnobservedSliceIsScored() throws Exception {
+    ConcatVector weights = new ConcatVector(1);
+    double[] w = new double[24];
+    Random r = new Random(42);
+    for (int i = 0; i < w.length; i++) w[i] = r.nextGaussian();
+    weights.setDenseComponent(0, w);
+
+    int[] featurized = new int[1];
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0, 1, 2}, new int[]{2, 3, 4}, assignment -> {
+      featurized[0]++;
+      ConcatVector features = new ConcatVector(1);
+      features.setSparseComponent(0, (assignment[0] * 3 + assignment[1]) * 4 + assignment[2], 1.0);
+      return features;
+    });
+    ((GraphicalModel.VectorFactor) model.factors.iterator().next()).featuresTable.markShared();
+    GraphicalModel fullyObserved = model.cloneModel();
+
+    // Observing the middle variable leaves a 2x4 slice to score, and each observation pattern is scored only once
+
+    for (int pass = 0; pass < 2; pass++) {
+      for (int value = 0; value < 3; value++) {
+        model.getVariableMetaDataByReference(1).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "" + value);
+        int before = featurized[0];
+        CliqueTree.MarginalResult result = new CliqueTree(model, weights).calculateMarginals();
+        assertEquals(pass == 0 ? 8 : 0, featurized[0] - before);
+
+        TableFactor full = new TableFactor(weights, model.factors.iterator().next()).observe(1, value);
+        assertEquals(full.valueSum(), result.partitionFunction, 1.0e-9 * result.partitionFunction);
+        for (int[] assignment : full) {
+          assertEquals(full.getAssignmentValue(assignment) / full.valueSum(),
+              result.getJointMarginalValue(0, new int[]{assignment[0], value, assignment[1]}), 1.0e-9);
+        }
+      }
+    }
+
+    // A fully observed factor is a single dot product
+
+    for (int i = 0; i < 3; i++) {
+      fullyObserved.getVariableMetaDataByReference(i).put(CliqueTree.VARIABLE_OBSERVED_VALUE, "1");
+    }
+    int before = featurized[0];
+    CliqueTree.MarginalResult result = new CliqueTree(fullyObserved, weights).calculateMarginals();
+    assertEquals(1, featurized[0] - before);
+    assertEquals(Math.exp(w[(3 + 1) * 4 + 1]), result.partitionFunction, 1.0e-9);
+  }
+
+  @Test
+  public void testUnsharedTablesSkipTheCache() throws Exception {
+    ConcatVector weights = new ConcatVector(1);
+    weights.setDenseComponent(0, new double[]{0.5, -0.5});
+
+    int[] featurized = new int[1];
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0}, new int[]{2}, assignment -> {
+      featurized[0]++;
+      ConcatVector features = new ConcatVector(1);
+      features.setSparseComponent(0, assignment[0], 1.0);
+      return features;
+    });
+
+    long lookups = ScoredFactorCache.getHits() + ScoredFactorCache.getMisses();
+    for (int i = 0; i < 3; i++) new CliqueTree(model, weights).calculateMarginals();
+    // Every CliqueTree scores the table itself, without ever touching the cache
+    assertEquals(6, featurized[0]);
+    assertEquals(lookups, ScoredFactorCache.getHits() + ScoredFactorCache.getMisses());
+  }
+}
@@ -74,6 +74,57 @@ public class OptimizerTests {
         }
     }
 
+    @Theory
+    public void testThreadsMatchSequential(@ForAll(sampleSize = 3) @From(LogLikelihoodFunctionTest.GraphicalModelDatasetGenerator.class) GraphicalModel[] dataset,
+                                           @ForAll(sampleSize = 2) @From(LogLikelihoodFunctionTest.WeightsGenerator.class) ConcatVector initialWeights) throws Exception {
+        AbstractDifferentiableFunction<GraphicalModel> ll = new LogLikelihoodDifferentiableFunction();
+
+        AbstractBatchOptimizer sequential = new BacktrackingAdaGradOptimizer();
+        ThreadPoolExecutor oneThread = (ThreadPoolExecutor) Executors.newFixedThreadPool(1);
+        ConcatVector sequentialWeights = sequential.optimize(dataset, ll, initialWeights, 0.1, 1.0e-5, true, oneThread, Optional.<ConcatVectorNamespace>empty());
+        oneThread.shutdown();
+
+        // More threads than there are chunks of work, on some of the smaller datasets, so some threads get nothing
+        AbstractBatchOptimizer threaded = new BacktrackingAdaGradOptimizer();
+        ThreadPoolExecutor fourThreads = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+        ConcatVector threadedWeights = threaded.optimize(dataset, ll, initialWeights, 0.1, 1.0e-5, true, fourThreads, Optional.<ConcatVectorNamespace>empty());
+        fourThreads.shutdown();
+
+        // The threads add up the gradient in a different order, so this is only equal up to rounding
+        ConcatVector difference = threadedWeights.deepClone();
+        difference.addVectorInPlace(sequentialWeights, -1.0);
+        assertEquals(0.0, Math.sqrt(difference.dotProduct(difference)), 1.0e-3 * Math.max(1.0, Math.sqrt(sequentialWeights.dotProduct(sequentialWeights))));
+
+        AbstractBatchOptimizer.GradientStats stats = threaded.getLastGradientStats();
+        assertEquals(4, stats.busyNanos.length);
+        int chunks = 0;
+        for (int i = 0; i < 4; i++) {
+            assertTrue(stats.idleNanos[i] >= 0);
+            assertTrue(stats.idleNanos[i] <= stats.wallNanos);
+            chunks += stats.chunks[i];
+        }
+        assertTrue(chunks > 0);
+        assertTrue(chunks <= dataset.length);
+    }
+
+    @Theory
+    public void testDeterministicThreads(@ForAll(sampleSize = 3) @From(LogLikelihoodFunctionTest.GraphicalModelDatasetGenerator.class) GraphicalModel[] dataset,
+                                         @ForAll(sampleSize = 2) @From(LogLikelihoodFunctionTest.WeightsGenerator.class) ConcatVector initialWeights) throws Exception {
+        AbstractDifferentiableFunction<GraphicalModel> ll = new LogLikelihoodDifferentiableFunction();
+
+        ConcatVector[] runs = new ConcatVector[2];
+        for (int i = 0; i < runs.length; i++) {
+            AbstractBatchOptimizer optimizer = new BacktrackingAdaGradOptimizer();
+            optimizer.setDeterministic(true);
+            ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(3);
+            runs[i] = optimizer.optimize(dataset, ll, initialWeights, 0.1, 1.0e-5, true, executor, Optional.<ConcatVectorNamespace>empty());
+            executor.shutdown();
+        }
+
+        // Every sum happens in the same order both times, so not even the rounding differs
+        assertTrue(runs[0].valueEquals(runs[1], 0.0));
+    }
+
     /*
     @Theory
     public void testOptimizeLogLikelihoodWithConstraints(AbstractBatchOptimizer optimizer,
@@ -18,9 +18,8 @@ import org.junit.contrib.theories.Theories;
 import org.junit.contrib.theories.Theory;
 import org.junit.runner.RunWith;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /**
@@ -94,6 +93,301 @@ public class ConcatVectorNamespaceTest {
         assertEquals(namespace.reverseSparseFeatureIndex, recovered.reverseSparseFeatureIndex);
     }
 
+    @Test
+    public void testConcurrentInterning() throws Exception {
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        int numThreads = 16;
+        int numFeatures = 5;
+        int numValues = 2000;
+
+        // Every thread interns the same features and values, each in its own order
+
+        List<Map<String, Integer>> seen = new ArrayList<>();
+        Thread[] threads = new Thread[numThreads];
+        Throwable[] failures = new Throwable[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            int thread = t;
+            seen.add(new HashMap<>());
+            threads[thread] = new Thread(() -> {
+                try {
+                    Random r = new Random(thread);
+                    List<Integer> order = new ArrayList<>();
+                    for (int i = 0; i < numFeatures * numValues; i++) order.add(i);
+                    Collections.shuffle(order, r);
+                    for (int i : order) {
+                        String feature = "feat" + (i % numFeatures);
+                        String value = "value" + (i / numFeatures);
+                        seen.get(thread).put(feature, namespace.ensureFeature(feature));
+                        seen.get(thread).put(feature + ":" + value, namespace.ensureSparseFeature(feature, value));
+                    }
+                } catch (Throwable e) {
+                    failures[thread] = e;
+                }
+            });
+        }
+        for (Thread thread : threads) thread.start();
+        for (Thread thread : threads) thread.join();
+        for (Throwable failure : failures) {
+            if (failure != null) throw new AssertionError(failure);
+        }
+
+        // Everyone got the same answers, and the indices are dense
+
+        for (int t = 1; t < numThreads; t++) assertEquals(seen.get(0), seen.get(t));
+        Set<Integer> features = new HashSet<>();
+        for (int f = 0; f < numFeatures; f++) {
+            String feature = "feat" + f;
+            features.add(seen.get(0).get(feature));
+            Set<Integer> values = new HashSet<>();
+            for (int v = 0; v < numValues; v++) {
+                int index = seen.get(0).get(feature + ":value" + v);
+                values.add(index);
+                assertEquals("value" + v, namespace.reverseSparseFeatureIndex.get(feature).get(index));
+            }
+            assertEquals(numValues, values.size());
+            assertEquals(numValues - 1, (int) Collections.max(values));
+        }
+        assertEquals(numFeatures, features.size());
+        assertEquals(numFeatures - 1, (int) Collections.max(features));
+    }
+
+    @Test
+    public void testFreeze() throws IOException {
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        ConcatVector before = namespace.newVector();
+        namespace.setSparseFeature(before, "word", "dog", 1.0);
+        namespace.setDenseFeature(before, "embedding", new double[]{0.5, 0.25});
+        assertFalse(namespace.isFrozen());
+        ConcatVectorNamespace unfrozen = ConcatVectorNamespace.readFromProto(namespace.getProtoBuilder().build());
+        // Freezing always adds this one
+        unfrozen.ensureFeature(ConcatVectorNamespace.ALWAYS_ONE_FEATURE);
+
+        namespace.freeze();
+        assertTrue(namespace.isFrozen());
+
+        ConcatVector after = namespace.newVector();
+        namespace.setSparseFeature(after, "word", "dog", 1.0);
+        namespace.setDenseFeature(after, "embedding", new double[]{0.5, 0.25});
+        assertEquals(before.dotProduct(before), before.dotProduct(after), 1.0e-9);
+        assertEquals(before.dotProduct(before), after.dotProduct(after), 1.0e-9);
+        // Weights vectors still get the always-one feature
+        assertEquals(3, namespace.newWeightsVector().getNumberOfComponents());
+
+        try {
+            namespace.ensureSparseFeature("word", "cat");
+            fail("Frozen namespaces can't grow");
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            namespace.ensureFeature("shape");
+            fail("Frozen namespaces can't grow");
+        } catch (IllegalStateException ignored) {
+        }
+
+        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+        namespace.writeToStream(byteArrayOutputStream);
+        ConcatVectorNamespace recovered = ConcatVectorNamespace.readFromStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+        // Freezing drops the maps, but the proto still has everything in them
+        assertEquals(unfrozen.featureToIndex, recovered.featureToIndex);
+        assertEquals(unfrozen.sparseFeatureIndex, recovered.sparseFeatureIndex);
+        assertEquals(unfrozen.reverseSparseFeatureIndex, recovered.reverseSparseFeatureIndex);
+    }
+
+    @Test
+    public void testWriteAndMapBinary() throws Exception {
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        Map<String, Integer> expected = new HashMap<>();
+        Random r = new Random(42);
+        for (int i = 0; i < 5000; i++) {
+            String feature = "feat" + r.nextInt(6);
+            String value = "v\u00e4lue" + r.nextInt(1000);
+            expected.put(feature, namespace.ensureFeature(feature));
+            expected.put(feature + ":" + value, namespace.ensureSparseFeature(feature, value));
+        }
+        namespace.ensureFeature("dense");
+        ConcatVectorNamespace unfrozen = ConcatVectorNamespace.readFromProto(namespace.getProtoBuilder().build());
+        // Freezing always adds this one
+        unfrozen.ensureFeature(ConcatVectorNamespace.ALWAYS_ONE_FEATURE);
+        namespace.freeze();
+
+        File file = File.createTempFile("namespace", ".frozen");
+        file.deleteOnExit();
+        try (OutputStream stream = new FileOutputStream(file)) {
+            namespace.writeBinary(stream);
+        }
+        ConcatVectorNamespace mapped = ConcatVectorNamespace.mapBinary(file);
+
+        for (ConcatVectorNamespace frozen : new ConcatVectorNamespace[]{namespace, mapped}) {
+            assertTrue(frozen.isFrozen());
+            for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+                String[] parts = entry.getKey().split(":");
+                int index = parts.length == 1 ? frozen.ensureFeature(parts[0]) : frozen.ensureSparseFeature(parts[0], parts[1]);
+                assertEquals((int) entry.getValue(), index);
+            }
+            try {
+                frozen.ensureSparseFeature("feat0", "missing");
+                fail("Frozen namespaces can't grow");
+            } catch (IllegalStateException ignored) {
+            }
+
+            ConcatVector weights = frozen.newWeightsVector();
+            ConcatVector expectedWeights = unfrozen.newWeightsVector();
+            assertEquals(expectedWeights.getNumberOfComponents(), weights.getNumberOfComponents());
+            for (int i = 0; i < 6; i++) {
+                int feature = unfrozen.ensureFeature("feat" + i);
+                assertEquals(expectedWeights.getDenseComponent(feature).length, weights.getDenseComponent(feature).length);
+            }
+
+            ConcatVectorNamespace thawed = ConcatVectorNamespace.readFromProto(frozen.getProtoBuilder().build());
+            assertEquals(unfrozen.featureToIndex, thawed.featureToIndex);
+            assertEquals(unfrozen.sparseFeatureIndex, thawed.sparseFeatureIndex);
+
+            StringWriter debug = new StringWriter();
+            frozen.debugVector(weights, new BufferedWriter(debug));
+            assertTrue(debug.toString().contains("SPARSE VALUE \"v\u00e4lue"));
+        }
+    }
+
+    @Test
+    public void testBinaryNamespacesKeepGrowing() throws Exception {
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        for (int i = 0; i < 100; i++) namespace.ensureSparseFeature("feat" + (i % 3), "value" + i);
+        ConcatVectorNamespace.HashedFeature hashed = namespace.setHashedFeature("word", 16, true);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        namespace.writeBinary(bytes);
+        ConcatVectorNamespace loaded = ConcatVectorNamespace.readBinary(ByteBuffer.wrap(bytes.toByteArray()));
+        assertFalse(loaded.isFrozen());
+
+        // Everything that was there is looked up straight from the buffer, without building the maps
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(namespace.ensureSparseFeature("feat" + (i % 3), "value" + i), loaded.ensureSparseFeature("feat" + (i % 3), "value" + i));
+        }
+        assertEquals(hashed.getIndex("dog"), loaded.ensureSparseFeature("word", "dog"));
+        assertTrue(loaded.featureToIndex.isEmpty());
+        try {
+            loaded.setHashedFeature("feat0", 16, false);
+            fail("The feature already has interned values");
+        } catch (IllegalStateException ignored) {
+        }
+
+        // Anything new turns it back into maps, and picks up the numbering where it left off
+
+        for (ConcatVectorNamespace copy : new ConcatVectorNamespace[]{namespace, loaded}) {
+            assertEquals(34, copy.ensureSparseFeature("feat0", "new"));
+            assertEquals(4, copy.ensureFeature("dense"));
+            assertEquals(0, copy.ensureSparseFeature("feat3", "new"));
+        }
+        assertEquals(namespace.featureToIndex, loaded.featureToIndex);
+        assertEquals(namespace.sparseFeatureIndex, loaded.sparseFeatureIndex);
+        assertEquals(namespace.reverseSparseFeatureIndex, loaded.reverseSparseFeatureIndex);
+
+        // Loaded namespaces freeze like any other, and stay frozen through another round trip
+
+        ConcatVectorNamespace reloaded = ConcatVectorNamespace.readBinary(ByteBuffer.wrap(bytes.toByteArray()));
+        reloaded.freeze();
+        bytes = new ByteArrayOutputStream();
+        reloaded.writeBinary(bytes);
+        reloaded = ConcatVectorNamespace.readBinary(ByteBuffer.wrap(bytes.toByteArray()));
+        assertTrue(reloaded.isFrozen());
+        assertEquals(namespace.ensureSparseFeature("feat1", "value1"), reloaded.ensureSparseFeature("feat1", "value1"));
+        ConcatVector weights = reloaded.newWeightsVector();
+        assertEquals(1.0, weights.getValueAt(reloaded.ensureFeature(ConcatVectorNamespace.ALWAYS_ONE_FEATURE), 0), 0.0);
+        assertEquals(16, weights.getDenseComponent(hashed.feature).length);
+    }
+
+    @Test
+    public void testHashedFeatures() throws IOException {
+        ConcatVectorNamespace namespace = new ConcatVectorNamespace();
+        namespace.ensureSparseFeature("shape", "Xxxx");
+        ConcatVectorNamespace.HashedFeature words = namespace.setHashedFeature("word", 64, true);
+        ConcatVectorNamespace.HashedFeature bigrams = namespace.setHashedFeature("bigram", 4, false);
+        assertSame(words, namespace.setHashedFeature("word", 64, true));
+        assertSame(words, namespace.getHashedFeature("word"));
+        assertNull(namespace.getHashedFeature("shape"));
+        try {
+            namespace.setHashedFeature("word", 128, true);
+            fail("The feature is already hashed differently");
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            namespace.setHashedFeature("shape", 64, false);
+            fail("The feature already has interned values");
+        } catch (IllegalStateException ignored) {
+        }
+        try {
+            namespace.setHashedFeature("other", 0, false);
+            fail("Hashed features need buckets");
+        } catch (IllegalArgumentException ignored) {
+        }
+
+        // Values go into buckets without growing anything, and signed features get both signs
+
+        List<String> values = new ArrayList<>();
+        Set<Double> signs = new HashSet<>();
+        double bigramSigns = 0.0;
+        for (int i = 0; i < 1000; i++) {
+            String value = "value" + i;
+            values.add(value);
+            int index = namespace.ensureSparseFeature("word", value);
+            assertEquals(words.getIndex(value), index);
+            assertTrue(index >= 0 && index < 64);
+            signs.add(words.getSign(value));
+            assertEquals(1.0, bigrams.getSign(value), 0.0);
+            bigramSigns += bigrams.getSign(value);
+        }
+        assertEquals(new HashSet<>(Arrays.asList(1.0, -1.0)), signs);
+        assertFalse(namespace.sparseFeatureIndex.containsKey("word"));
+
+        ConcatVector weights = namespace.newWeightsVector();
+        assertEquals(64, weights.getDenseComponent(words.feature).length);
+        assertEquals(4, weights.getDenseComponent(bigrams.feature).length);
+        assertEquals(1, weights.getDenseComponent(namespace.ensureFeature("shape")).length);
+        Arrays.fill(weights.getDenseComponent(words.feature), 1.0);
+        Arrays.fill(weights.getDenseComponent(bigrams.feature), 1.0);
+
+        ConcatVector vector = namespace.newVector();
+        namespace.setSparseFeature(vector, "word", "dog", 2.0);
+        assertEquals(2.0 * words.getSign("dog"), vector.dotProduct(weights), 1.0e-9);
+
+        // Values that collide add up, rather than one replacing the other
+
+        double wordSigns = 0.0;
+        for (String value : values) wordSigns += words.getSign(value);
+        vector = namespace.newVector();
+        namespace.setSparseFeature(vector, "word", values);
+        assertEquals(wordSigns, vector.dotProduct(weights), 1.0e-9);
+        vector = namespace.newVector();
+        Map<String, Double> weighted = new HashMap<>();
+        for (String value : values) weighted.put(value, 0.5);
+        namespace.setSparseFeature(vector, "bigram", weighted);
+        assertEquals(0.5 * bigramSigns, vector.dotProduct(weights), 1.0e-9);
+
+        // The hashing survives serialization, and freezing
+
+        ConcatVectorNamespace recovered = ConcatVectorNamespace.readFromProto(namespace.getProtoBuilder().build());
+        namespace.freeze();
+        try {
+            namespace.setHashedFeature("other", 8, false);
+            fail("Frozen namespaces can't grow");
+        } catch (IllegalStateException ignored) {
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        namespace.writeBinary(bytes);
+        ConcatVectorNamespace mapped = ConcatVectorNamespace.readBinary(ByteBuffer.wrap(bytes.toByteArray()));
+        for (ConcatVectorNamespace copy : new ConcatVectorNamespace[]{recovered, namespace, mapped}) {
+            assertEquals(words.feature, copy.getHashedFeature("word").feature);
+            assertTrue(copy.getHashedFeature("word").signed);
+            assertEquals(64, copy.newWeightsVector().getDenseComponent(words.feature).length);
+            for (String value : values) {
+                assertEquals(words.getIndex(value), copy.ensureSparseFeature("word", value));
+                assertEquals(bigrams.getIndex(value), copy.ensureSparseFeature("bigram", value));
+            }
+            assertEquals(namespace.ensureSparseFeature("shape", "Xxxx"), copy.ensureSparseFeature("shape", "Xxxx"));
+        }
+    }
+
     public ConcatVector toNamespaceVector(ConcatVectorNamespace namespace, Map<Integer,Integer> featureMap) {
         ConcatVector newVector = namespace.newVector();
         for (int i : featureMap.keySet()) {
@@ -47,6 +47,30 @@ public class ConcatVectorTest {
         }
     }
 
+    @Theory
+    public void testZeroInPlace(@ForAll(sampleSize = 50) @From(DenseTestVectorGenerator.class) DenseTestVector d1) {
+        // Shares its components copy-on-write with d1, so zeroing mustn't touch d1's values
+        ConcatVector shared = d1.vector.deepClone();
+        shared.zeroInPlace();
+        ConcatVector owned = d1.vector.newEmptyClone();
+        owned.addVectorInPlace(d1.vector, 2.0);
+        owned.setSparseComponent(d1.values.length, 3, 1.0);
+        owned.zeroInPlace();
+
+        for (int i = 0; i < d1.values.length; i++) {
+            for (int j = 0; j < d1.values[i].length; j++) {
+                assertEquals(d1.values[i][j], d1.vector.getValueAt(i, j), 5.0e-4);
+                assertEquals(0.0, shared.getValueAt(i, j), 0.0);
+                assertEquals(0.0, owned.getValueAt(i, j), 0.0);
+            }
+        }
+        assertEquals(0.0, owned.getValueAt(d1.values.length, 3), 0.0);
+
+        // Refilling works the same as filling an empty vector
+        owned.addVectorInPlace(d1.vector, 1.0);
+        assertTrue(owned.valueEquals(d1.vector, 1.0e-9));
+    }
+
     @Theory
     public void testAppendDenseComponent(@ForAll(sampleSize = 10) double[] vector1,
                                          @ForAll(sampleSize = 10) double[] vector2) throws Exception {
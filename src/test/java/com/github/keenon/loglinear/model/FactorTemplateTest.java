@@ -0,0 +1,100 @@
+package com.github.keenon.loglinear.model;
+
+import com.github.keenon.loglinear.inference.CliqueTree;
+import com.github.keenon.loglinear.learning.LogLikelihoodDifferentiableFunction;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that chains built from templates are indistinguishable from chains built from closures, for both inference
+ * and training, and that tied templates really do share one table.
+ */
+public class FactorTemplateTest {
+  private static final int NUM_LABELS = 3;
+  private static final int NUM_WORDS = 7;
+
+  @Test
+  public void testTemplatesMatchClosures() throws Exception {
+    Random r = new Random(42);
+    ConcatVector weights = new ConcatVector(2);
+    double[] emissionWeights = new double[NUM_LABELS * NUM_WORDS];
+    for (int i = 0; i < emissionWeights.length; i++) emissionWeights[i] = r.nextGaussian();
+    weights.setDenseComponent(0, emissionWeights);
+    double[] transitionWeights = new double[NUM_LABELS * NUM_LABELS];
+    for (int i = 0; i < transitionWeights.length; i++) transitionWeights[i] = r.nextGaussian();
+    weights.setDenseComponent(1, transitionWeights);
+
+    FactorTemplate transitions = FactorTemplate.tied(new int[]{NUM_LABELS, NUM_LABELS}, FactorTemplateTest::transitionFeatures);
+    assertTrue(transitions.isTied());
+
+    ConcatVectorTable sharedTable = null;
+    for (int trial = 0; trial < 20; trial++) {
+      int length = 1 + r.nextInt(8);
+      int[] words = new int[length];
+      for (int i = 0; i < length; i++) words[i] = r.nextInt(NUM_WORDS);
+      FactorTemplate emissions = new FactorTemplate(new int[]{NUM_LABELS}, (position, assignment) -> emissionFeatures(words[position], assignment[0]));
+      assertFalse(emissions.isTied());
+
+      GraphicalModel templated = new GraphicalModel();
+      GraphicalModel closures = new GraphicalModel();
+      for (int i = 0; i < length; i++) {
+        templated.addFactor(emissions, i, new int[]{i});
+        int word = words[i];
+        closures.addFactor(new int[]{i}, new int[]{NUM_LABELS}, assignment -> emissionFeatures(word, assignment[0]));
+        if (i > 0) {
+          GraphicalModel.VectorFactor transition = templated.addFactor(transitions, i, new int[]{i - 1, i});
+          if (sharedTable == null) sharedTable = transition.featuresTable;
+          assertSame(sharedTable, transition.featuresTable);
+          closures.addFactor(new int[]{i - 1, i}, new int[]{NUM_LABELS, NUM_LABELS}, FactorTemplateTest::transitionFeatures);
+        }
+        int label = r.nextInt(NUM_LABELS);
+        templated.setTrainingLabel(i, label);
+        closures.setTrainingLabel(i, label);
+      }
+      if (r.nextBoolean()) {
+        int observed = r.nextInt(length);
+        templated.observe(observed, 1);
+        closures.observe(observed, 1);
+      }
+
+      // Inference
+
+      CliqueTree.MarginalResult expected = new CliqueTree(closures, weights).calculateMarginals();
+      CliqueTree.MarginalResult actual = new CliqueTree(templated, weights).calculateMarginals();
+      assertEquals(expected.partitionFunction, actual.partitionFunction, 1.0e-9 * expected.partitionFunction);
+      for (int i = 0; i < length; i++) assertArrayEquals(expected.marginals[i], actual.marginals[i], 1.0e-9);
+      assertArrayEquals(new CliqueTree(closures, weights).calculateMAP(), new CliqueTree(templated, weights).calculateMAP());
+
+      // Training
+
+      LogLikelihoodDifferentiableFunction function = new LogLikelihoodDifferentiableFunction();
+      ConcatVector expectedGradient = new ConcatVector(2);
+      ConcatVector actualGradient = new ConcatVector(2);
+      double expectedLogLikelihood = function.getSummaryForInstance(closures, weights, expectedGradient);
+      double actualLogLikelihood = function.getSummaryForInstance(templated, weights, actualGradient);
+      assertEquals(expectedLogLikelihood, actualLogLikelihood, 1.0e-9);
+      assertTrue(expectedGradient.valueEquals(actualGradient, 1.0e-9));
+
+      // Cloned and serialized copies keep their features
+
+      GraphicalModel clone = templated.cloneModel();
+      assertTrue(templated.valueEquals(clone, 1.0e-9));
+      assertTrue(closures.valueEquals(clone, 1.0e-9));
+    }
+  }
+
+  private static ConcatVector emissionFeatures(int word, int label) {
+    ConcatVector features = new ConcatVector(2);
+    features.setSparseComponent(0, label * NUM_WORDS + word, 1.0);
+    return features;
+  }
+
+  private static ConcatVector transitionFeatures(int[] assignment) {
+    ConcatVector features = new ConcatVector(2);
+    features.setSparseComponent(1, assignment[0] * NUM_LABELS + assignment[1], 1.0);
+    return features;
+  }
+}
@@ -0,0 +1,100 @@
+package com.github.keenon.loglinear.model;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the perfect hash finds every name it was built from, at every size, including names that aren't ASCII,
+ * and turns away everything else.
+ */
+public class FrozenFeatureIndexTest {
+  @Test
+  public void testLookups() {
+    Random r = new Random(42);
+    for (int size : new int[]{0, 1, 2, 3, 5, 17, 100, 1000, 20000}) {
+      Map<String, Integer> expected = new HashMap<>();
+      // Values don't have to be dense, but they're unique so the reverse lookup is well defined
+      while (expected.size() < size) expected.putIfAbsent(randomName(r), 7 * expected.size() + r.nextInt(7));
+      String[] keys = expected.keySet().toArray(new String[size]);
+      int[] values = new int[size];
+      for (int i = 0; i < size; i++) values[i] = expected.get(keys[i]);
+
+      FrozenFeatureIndex index = FrozenFeatureIndex.build(keys, values);
+      // A copy read back out of its own buffer, the way a mapped file would be
+      ByteBuffer buffer = index.getBuffer();
+      ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+      copy.put(buffer).flip();
+      FrozenFeatureIndex reread = new FrozenFeatureIndex(copy);
+
+      for (FrozenFeatureIndex i : new FrozenFeatureIndex[]{index, reread}) {
+        assertEquals(size, i.size());
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+          assertEquals(entry.getKey(), (int) entry.getValue(), i.get(entry.getKey()));
+        }
+        for (int trial = 0; trial < 1000; trial++) {
+          String name = randomName(r);
+          if (!expected.containsKey(name)) assertEquals(-1, i.get(name));
+        }
+        // Prefixes and extensions of real names share most of their bytes with them
+        for (String key : keys) {
+          if (!expected.containsKey(key + "x")) assertEquals(-1, i.get(key + "x"));
+          if (key.length() > 0 && !expected.containsKey(key.substring(1))) assertEquals(-1, i.get(key.substring(1)));
+        }
+
+        Map<String, Integer> walked = new HashMap<>();
+        for (int slot = 0; slot < i.size(); slot++) walked.put(i.getKeyAt(slot), i.getValueAt(slot));
+        assertEquals(expected, walked);
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+          assertEquals(entry.getKey(), i.getKey(entry.getValue()));
+        }
+        assertNull(i.getKey(-1));
+        assertNull(i.getKey(7 * size + 7));
+      }
+    }
+  }
+
+  @Test
+  public void testBrokenSurrogates() {
+    // A lone surrogate encodes as '?', the same as String.getBytes() does
+    FrozenFeatureIndex index = FrozenFeatureIndex.build(new String[]{"a\uD800b", "\uD83D\uDE00"}, new int[]{1, 2});
+    assertEquals(1, index.get("a\uD800b"));
+    assertEquals(1, index.get("a?b"));
+    assertEquals(2, index.get("\uD83D\uDE00"));
+    assertEquals(-1, index.get("\uD83D"));
+    assertEquals("a?b", index.getKey(1));
+
+    try {
+      FrozenFeatureIndex.build(new String[]{"a\uD800b", "a?b"}, new int[]{1, 2});
+      fail("The names have the same UTF-8");
+    } catch (IllegalArgumentException ignored) {
+    }
+  }
+
+  /**
+   * A mix of ASCII, accented letters, CJK and emoji, which between them cover every length of UTF-8 encoding.
+   */
+  private static String randomName(Random r) {
+    StringBuilder sb = new StringBuilder();
+    int length = r.nextInt(12);
+    for (int i = 0; i < length; i++) {
+      switch (r.nextInt(4)) {
+        case 0:
+          sb.append((char) ('a' + r.nextInt(26)));
+          break;
+        case 1:
+          sb.append((char) (0xc0 + r.nextInt(0x100)));
+          break;
+        case 2:
+          sb.append((char) (0x4e00 + r.nextInt(0x100)));
+          break;
+        default:
+          sb.appendCodePoint(0x1f600 + r.nextInt(0x40));
+      }
+    }
+    return sb.toString();
+  }
+}
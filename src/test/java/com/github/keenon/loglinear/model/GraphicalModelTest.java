@@ -1,6 +1,7 @@
 package com.github.keenon.loglinear.model;
 
 import com.github.keenon.loglinear.inference.CliqueTree;
+import com.github.keenon.loglinear.learning.LogLikelihoodDifferentiableFunction;
 import com.pholser.junit.quickcheck.ForAll;
 import com.pholser.junit.quickcheck.From;
 import com.pholser.junit.quickcheck.generator.GenerationStatus;
@@ -14,11 +15,9 @@ import org.junit.runner.RunWith;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.Map;
-import java.util.Random;
+import java.util.*;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
 /**
  * Created by keenon on 8/11/15.
@@ -181,6 +180,238 @@ public class GraphicalModelTest {
   }
 
 
+  @Test
+  public void testObservationsAndLabelsBehindMetaData() throws IOException {
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0, 1}, new int[]{3, 3}, assignment -> new ConcatVector(0));
+
+    // Writing through the metadata shows up in the arrays, and the other way around
+
+    Map<String, String> metaData = model.getVariableMetaDataByReference(1);
+    metaData.put(CliqueTree.VARIABLE_OBSERVED_VALUE, "2");
+    metaData.put("other", "value");
+    model.setTrainingLabel(0, 1);
+    assertEquals(2, model.getObservedValue(1));
+    assertEquals(-1, model.getObservedValue(0));
+    assertEquals(-1, model.getObservedValue(100));
+    assertArrayEquals(new int[]{-1, 2, -1}, model.getObservedValues(3));
+    assertArrayEquals(new int[]{1, -1}, model.getTrainingLabels(2));
+    assertEquals("1", model.getVariableMetaDataByReference(0).get(LogLikelihoodDifferentiableFunction.VARIABLE_TRAINING_VALUE));
+    assertEquals(2, metaData.size());
+
+    Map<String, String> expected = new HashMap<>();
+    expected.put(CliqueTree.VARIABLE_OBSERVED_VALUE, "2");
+    expected.put("other", "value");
+    assertEquals(expected, metaData);
+
+    // Models that went through serialization or cloning keep their observations
+
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    model.writeToStream(byteArrayOutputStream);
+    GraphicalModel recovered = GraphicalModel.readFromStream(new ByteArrayInputStream(byteArrayOutputStream.toByteArray()));
+    GraphicalModel clone = model.cloneModel();
+    for (GraphicalModel copy : new GraphicalModel[]{recovered, clone}) {
+      assertTrue(model.valueEquals(copy, 1.0e-5));
+      assertArrayEquals(new int[]{-1, 2}, copy.getObservedValues(2));
+      assertArrayEquals(new int[]{1, -1}, copy.getTrainingLabels(2));
+    }
+
+    // Removing the key, or observing -1, removes the observation
+
+    metaData.remove(CliqueTree.VARIABLE_OBSERVED_VALUE);
+    assertEquals(-1, model.getObservedValue(1));
+    assertFalse(metaData.containsKey(CliqueTree.VARIABLE_OBSERVED_VALUE));
+    model.observe(1, 0);
+    assertEquals("0", metaData.get(CliqueTree.VARIABLE_OBSERVED_VALUE));
+    model.observe(1, -1);
+    assertEquals(expected.size() - 1, metaData.size());
+    model.getVariableMetaDataByReference(0).clear();
+    assertEquals(-1, model.getTrainingLabel(0));
+    assertEquals(2, clone.getObservedValue(1));
+  }
+
+  @Test
+  public void testReplacedVariableMetaDataReplacesObservationsAndLabels() {
+    GraphicalModel model = new GraphicalModel();
+    model.addFactor(new int[]{0, 1, 2}, new int[]{3, 3, 3}, assignment -> new ConcatVector(0));
+    model.observe(0, 1);
+    model.setTrainingLabel(2, 2);
+
+    // A plain list, which keeps variable 0's observation, drops variable 2's label, and observes variable 1
+
+    List<Map<String, String>> metaData = new ArrayList<>(model.variableMetaData);
+    Map<String, String> observed = new HashMap<>();
+    observed.put(CliqueTree.VARIABLE_OBSERVED_VALUE, "2");
+    metaData.set(1, observed);
+    metaData.set(2, new HashMap<>());
+    model.variableMetaData = metaData;
+
+    assertEquals(1, model.getObservedValue(0));
+    assertArrayEquals(new int[]{1, 2, -1}, model.getObservedValues(3));
+    assertEquals(-1, model.getTrainingLabel(2));
+    assertArrayEquals(new int[]{-1, -1, -1}, model.getTrainingLabels(3));
+    assertEquals("2", model.getVariableMetaDataByReference(1).get(CliqueTree.VARIABLE_OBSERVED_VALUE));
+
+    // A shorter list drops everything past its end
+
+    model.variableMetaData = new ArrayList<>();
+    assertEquals(-1, model.getObservedValue(0));
+    assertArrayEquals(new int[]{-1, -1, -1}, model.getObservedValues(3));
+  }
+
+  @Test
+  public void testRemoveVariableMetaData() {
+    GraphicalModel model = new GraphicalModel();
+    for (int i = 0; i < 5; i++) {
+      model.getVariableMetaDataByReference(i).put("name", "v" + i);
+      model.observe(i, i % 3);
+    }
+    model.setTrainingLabel(3, 2);
+    GraphicalModel clone = model.cloneModel();
+
+    // Removing one variable moves the ones after it down, observations and labels included
+
+    Map<String, String> removed = model.variableMetaData.remove(1);
+    assertEquals("v1", removed.get("name"));
+    assertEquals("1", removed.get(CliqueTree.VARIABLE_OBSERVED_VALUE));
+    assertEquals(4, model.variableMetaData.size());
+    assertEquals("v2", model.getVariableMetaDataByReference(1).get("name"));
+    assertArrayEquals(new int[]{0, 2, 0, 1, -1}, model.getObservedValues(5));
+    assertArrayEquals(new int[]{-1, -1, 2, -1, -1}, model.getTrainingLabels(5));
+
+    // Truncating, then growing again, leaves the new variables blank
+
+    model.variableMetaData.subList(2, 4).clear();
+    assertEquals(2, model.variableMetaData.size());
+    assertArrayEquals(new int[]{0, 2, -1, -1}, model.getObservedValues(4));
+    assertTrue(model.getVariableMetaDataByReference(3).isEmpty());
+    assertNull(model.getVariableMetaDataByReference(2).get("name"));
+
+    model.variableMetaData.clear();
+    assertEquals(0, model.variableMetaData.size());
+    assertArrayEquals(new int[]{-1, -1}, model.getObservedValues(2));
+
+    // None of which touches a clone
+
+    assertEquals(5, clone.variableMetaData.size());
+    assertEquals("v1", clone.getVariableMetaDataByReference(1).get("name"));
+    assertArrayEquals(new int[]{0, 1, 2, 0, 1}, clone.getObservedValues(5));
+    assertEquals(2, clone.getTrainingLabel(3));
+  }
+
+  @Theory
+  public void testStructureIndex(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel graphicalModel) throws IOException {
+    Random r = new Random(graphicalModel.factors.size());
+    checkStructureIndex(graphicalModel);
+
+    // Remove factors both directly and through the iterator, and the index should keep up
+
+    List<GraphicalModel.Factor> inOrder = new ArrayList<>(graphicalModel.factors);
+    for (int i = 0; i < inOrder.size(); i++) {
+      assertSame(inOrder.get(i), graphicalModel.getFactor(i));
+    }
+    if (!inOrder.isEmpty()) {
+      assertTrue(graphicalModel.factors.remove(inOrder.get(r.nextInt(inOrder.size()))));
+      checkStructureIndex(graphicalModel);
+    }
+    Iterator<GraphicalModel.Factor> iterator = graphicalModel.factors.iterator();
+    int seen = 0;
+    int remaining = graphicalModel.factors.size();
+    while (iterator.hasNext()) {
+      iterator.next();
+      seen++;
+      if (r.nextBoolean()) {
+        iterator.remove();
+        remaining--;
+      }
+    }
+    assertEquals(inOrder.size() - (inOrder.isEmpty() ? 0 : 1), seen);
+    assertEquals(remaining, graphicalModel.factors.size());
+    checkStructureIndex(graphicalModel);
+
+    // A plain Set swapped in from outside gets indexed again
+
+    graphicalModel.factors = new HashSet<>(inOrder);
+    checkStructureIndex(graphicalModel);
+  }
+
+  @Theory
+  public void testCloneIsCopyOnWrite(@ForAll(sampleSize = 50) @From(GraphicalModelGenerator.class) GraphicalModel graphicalModel) throws IOException {
+    Random r = new Random(graphicalModel.factors.size());
+
+    // Fork a chain of models, deeper than FactorSet will stack bases, changing both sides of every fork
+
+    List<GraphicalModel> models = new ArrayList<>();
+    List<GraphicalModel> expected = new ArrayList<>();
+    models.add(graphicalModel);
+    expected.add(copyThroughProto(graphicalModel));
+    for (int depth = 0; depth < 12; depth++) {
+      int parent = models.size() - 1;
+      GraphicalModel clone = models.get(parent).cloneModel();
+      assertTrue(expected.get(parent).valueEquals(clone, 1.0e-9));
+      checkStructureIndex(clone);
+
+      for (GraphicalModel model : new GraphicalModel[]{clone, models.get(parent)}) {
+        int neighbor = r.nextInt(25);
+        int size = model.getVariableSize(neighbor) == -1 ? 3 : model.getVariableSize(neighbor);
+        model.addFactor(new int[]{neighbor}, new int[]{size}, assignment -> new ConcatVector(0));
+        if (!model.factors.isEmpty()) {
+          List<GraphicalModel.Factor> factors = new ArrayList<>(model.factors);
+          assertTrue(model.factors.remove(factors.get(r.nextInt(factors.size()))));
+        }
+        int variable = r.nextInt(25);
+        model.observe(variable, r.nextInt(3));
+        model.setTrainingLabel(r.nextInt(25), r.nextInt(3));
+        model.getVariableMetaDataByReference(r.nextInt(25)).put("fork", "" + depth);
+        model.getVariableMetaDataByReference(variable).remove("fork");
+        model.getModelMetaDataByReference().put("depth", "" + depth);
+      }
+      expected.set(parent, copyThroughProto(models.get(parent)));
+      models.add(clone);
+      expected.add(copyThroughProto(clone));
+    }
+
+    for (int i = 0; i < models.size(); i++) {
+      assertTrue(expected.get(i).valueEquals(models.get(i), 1.0e-9));
+      assertArrayEquals(expected.get(i).getObservedValues(25), models.get(i).getObservedValues(25));
+      checkStructureIndex(models.get(i));
+      List<GraphicalModel.Factor> inOrder = new ArrayList<>(models.get(i).factors);
+      for (int j = 0; j < inOrder.size(); j++) {
+        assertSame(inOrder.get(j), models.get(i).getFactor(j));
+      }
+    }
+  }
+
+  private GraphicalModel copyThroughProto(GraphicalModel model) {
+    return GraphicalModel.readFromProto(model.getProtoBuilder().build());
+  }
+
+  private void checkStructureIndex(GraphicalModel model) {
+    int maxVar = -1;
+    long totalSize = 0;
+    for (GraphicalModel.Factor f : model.factors) {
+      for (int n : f.neigborIndices) maxVar = Math.max(maxVar, n);
+      totalSize += f.combinatorialNeighborStatesCount();
+    }
+    assertEquals(maxVar, model.getMaxVariable());
+    assertEquals(totalSize, model.getTotalFactorSize());
+    for (int n = 0; n <= maxVar + 1; n++) {
+      Set<GraphicalModel.Factor> touching = Collections.newSetFromMap(new IdentityHashMap<>());
+      int size = -1;
+      for (GraphicalModel.Factor f : model.factors) {
+        for (int i = 0; i < f.neigborIndices.length; i++) {
+          if (f.neigborIndices[i] == n) {
+            touching.add(f);
+            size = f.getDimensions()[i];
+          }
+        }
+      }
+      assertEquals(size, model.getVariableSize(n));
+      assertEquals(touching.size(), model.getFactorsTouching(n).size());
+      assertTrue(touching.containsAll(model.getFactorsTouching(n)));
+    }
+  }
+
   public static class GraphicalModelGenerator extends Generator<GraphicalModel> {
     public GraphicalModelGenerator(Class<GraphicalModel> type) {
       super(type);
@@ -0,0 +1,113 @@
+package com.github.keenon.loglinear.storage;
+
+import com.github.keenon.loglinear.model.ConcatVector;
+import com.github.keenon.loglinear.model.GraphicalModel;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the pipeline builds the same models in the same order as featurizing one record at a time, whatever the
+ * thread count and queue size, and that failures make it back to the consumer.
+ */
+public class FeaturizationPipelineTest {
+    private static GraphicalModel featurize(int record) {
+        Random r = new Random(record);
+        // Jitter the time each record takes, so the featurizers finish out of order
+        if (r.nextInt(4) == 0) Thread.yield();
+
+        GraphicalModel model = new GraphicalModel();
+        model.getModelMetaDataByReference().put("record", "" + record);
+        int length = 1 + r.nextInt(5);
+        for (int i = 0; i < length; i++) {
+            double value = r.nextDouble();
+            model.addFactor(new int[]{i}, new int[]{2}, assignment -> {
+                ConcatVector features = new ConcatVector(1);
+                features.setSparseComponent(0, assignment[0], value);
+                return features;
+            });
+            model.setTrainingLabel(i, r.nextInt(2));
+        }
+        return model;
+    }
+
+    @Test
+    public void testMatchesSequentialFeaturization() {
+        List<Integer> records = IntStream.range(0, 500).boxed().collect(Collectors.toList());
+        List<GraphicalModel> expected = records.stream().map(FeaturizationPipelineTest::featurize).collect(Collectors.toList());
+
+        for (int numThreads : new int[]{1, 2, 7}) {
+            for (int queueCapacity : new int[]{1, 3, 64}) {
+                FeaturizationPipeline<Integer> pipeline = new FeaturizationPipeline<>(FeaturizationPipelineTest::featurize, numThreads, queueCapacity);
+                ModelBatch batch = pipeline.buildBatch(records.iterator());
+                assertEquals(expected.size(), batch.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    assertTrue(expected.get(i).valueEquals(batch.get(i), 1.0e-9));
+                }
+
+                FeaturizationPipeline.Stats stats = pipeline.getStats();
+                assertEquals(records.size(), stats.recordsRead.get());
+                assertEquals(records.size(), stats.recordsFeaturized.get());
+                assertEquals(records.size(), stats.modelsEmitted.get());
+                assertNotNull(stats.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testStream() {
+        FeaturizationPipeline<Integer> pipeline = new FeaturizationPipeline<>(FeaturizationPipelineTest::featurize, 3, 4);
+        try (Stream<GraphicalModel> models = pipeline.stream(IntStream.range(0, 1000).iterator())) {
+            List<String> firstFew = models.limit(10).map(model -> model.getModelMetaDataByReference().get("record")).collect(Collectors.toList());
+            assertEquals(Arrays.asList("0", "1", "2", "3", "4", "5", "6", "7", "8", "9"), firstFew);
+        }
+        // The queues are bounded, so the pipeline can't have read much past what was consumed
+        assertTrue(pipeline.getStats().recordsRead.get() <= 10 + 4);
+
+        try (Stream<GraphicalModel> models = pipeline.stream(Collections.<Integer>emptyList().iterator())) {
+            assertEquals(0, models.count());
+        }
+    }
+
+    @Test
+    public void testFailuresReachTheConsumer() {
+        Function<Integer, GraphicalModel> featurizer = record -> {
+            if (record == 37) throw new IllegalArgumentException("bad record");
+            return featurize(record);
+        };
+        FeaturizationPipeline<Integer> pipeline = new FeaturizationPipeline<>(featurizer, 4, 8);
+        try {
+            pipeline.buildBatch(IntStream.range(0, 100).iterator());
+            fail("Expected the featurizer's exception");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+
+        Iterator<Integer> brokenSource = new Iterator<Integer>() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return true;
+            }
+
+            @Override
+            public Integer next() {
+                if (i == 20) throw new NoSuchElementException("broken source");
+                return i++;
+            }
+        };
+        try {
+            pipeline.buildBatch(brokenSource);
+            fail("Expected the source's exception");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof NoSuchElementException);
+        }
+    }
+}